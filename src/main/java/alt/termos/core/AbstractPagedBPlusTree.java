@@ -0,0 +1,1292 @@
+package alt.termos.core;
+
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap B+Tree engine, nodes are disk pages of the PagedMemoryManager addressed by the page number.
+ * Keys and values are stored inline in the page. Leaves are registered in the leaf lists of the manager
+ * with k (distance from the root) as a level.
+ *
+ * Pages of the committed version are never changed: writer copies the path from the root to the changed leaf,
+ * replaced pages are freed by the next commit, so the crash leaves the committed tree intact.
+ * Copies are changed in place until the next commit. Leaves are not linked, otherwise the copy of the leaf
+ * would change its left neighbour, cursor moves by the path of inner nodes.
+ *
+ * Engine is independent of the key type: subclass keeps the current key and value in its own fields
+ * and compares, writes and reads them in the page, so primitive trees never box.
+ *
+ * Writers must be serialized by the caller. Writer locks the version latch of every page it changes
+ * until the operation ends, so getConcurrent() of primitive trees reads the tree without locks at the same time.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public abstract class AbstractPagedBPlusTree {
+
+	public static final int LEAF_TYPE = 1;
+	public static final int INNER_TYPE = 2;
+
+	/*
+	 * Node header follows the NodePage header
+	 */
+
+	public static final long TYPE_OFFSET = NodePage.LAST_OFFSET;
+	public static final long TYPE_SIZE = 4;
+
+	public static final long COUNT_OFFSET = TYPE_OFFSET + TYPE_SIZE;
+	public static final long COUNT_SIZE = 4;
+
+	public static final long ENTRIES_OFFSET = COUNT_OFFSET + COUNT_SIZE;
+	public static final long CHILD_SIZE = 8;
+
+	protected final PagedMemoryManager pmm;
+	private final int keySize;
+	private final int valueSize;
+
+	/*
+	 * Leaf keeps keys array and values array, inner node keeps keys array and children array
+	 */
+
+	private final int leafCapacity;
+	private final int innerCapacity;
+	private final int leafMinimum;
+	private final int innerMinimum;
+	private final long leafValuesOffset;
+	private final long innerChildrenOffset;
+
+	/*
+	 * Off-heap buffers for separator keys moving between levels on split
+	 */
+
+	private final long pendingKey;
+	private final long upKey;
+
+	private volatile long rootPage;
+	private int height;
+	private long size;
+
+	/*
+	 * Inserts and removes shift entries in leaves, cursors are invalidated by them
+	 */
+
+	private long modifications;
+
+	/*
+	 * Pages latched by the current insert or remove, every level changes the node, its parent and one sibling at most
+	 */
+
+	private final long[] latchedPages = new long[3 * MAX_LOAD_LEVELS];
+	private int latchedCount;
+
+	/*
+	 * Freed pages wait in the limbo list until concurrent readers leave them
+	 */
+
+	private final EpochReclaimer reclaimer;
+
+	/*
+	 * Bulk load keeps the open node and the completed but not yet linked node of every level
+	 */
+
+	private static final int MAX_LOAD_LEVELS = 64;
+
+	private long[] loadCurrent;
+	private long[] loadHeld;
+	private int leafFill;
+	private int innerFill;
+
+	/**
+	 *
+	 * @param pmm - page manager
+	 * @param keySize - size of the key in the page
+	 * @param valueSize - size of the value in the page
+	 * @param rootPage - committed root or NULL_PAGE for the new tree
+	 * @param size - committed size
+	 */
+
+	protected AbstractPagedBPlusTree(PagedMemoryManager pmm, int keySize, int valueSize, long rootPage, long size) {
+		Arguments.notNull(pmm);
+		if (pmm.isCacheMode()) {
+			throw new IllegalArgumentException("tree pages can not be evicted in the cache mode");
+		}
+
+		this.pmm = pmm;
+		this.keySize = keySize;
+		this.valueSize = valueSize;
+		Arguments.greater(keySize, 0);
+		Arguments.positive(valueSize);
+
+		long space = pmm.getDiskPageSize() - ENTRIES_OFFSET;
+		this.leafCapacity = (int) (space / (keySize + valueSize));
+		this.innerCapacity = (int) ((space - CHILD_SIZE) / (keySize + CHILD_SIZE));
+		if (leafCapacity < 3 || innerCapacity < 3) {
+			throw new IllegalArgumentException("disk page is too small for the key " + keySize + " and the value " + valueSize);
+		}
+		this.leafMinimum = leafCapacity / 2;
+		this.innerMinimum = (innerCapacity - 1) / 2;
+		this.leafValuesOffset = ENTRIES_OFFSET + (long) leafCapacity * keySize;
+		this.innerChildrenOffset = ENTRIES_OFFSET + (long) innerCapacity * keySize;
+
+		this.reclaimer = new EpochReclaimer(pmm);
+		this.pendingKey = Unsafe.UNSAFE.allocateMemory(keySize);
+		this.upKey = Unsafe.UNSAFE.allocateMemory(keySize);
+
+		if (rootPage == PagedMemoryManager.NULL_PAGE) {
+			this.height = 1;
+			this.rootPage = newLeaf(0);
+		}
+		else {
+			this.rootPage = rootPage;
+			this.size = size;
+			this.height = 1;
+			for (long page = rootPage; getType(page) == INNER_TYPE; page = getChild(page, 0)) {
+				this.height++;
+			}
+		}
+	}
+
+	/**
+	 * Flushes the pages and publishes the root and the size in the meta page
+	 *
+	 * @return sequence of the commit
+	 */
+
+	public long commit() {
+		checkNotLoading();
+		reclaimer.reclaim();
+		return pmm.commit(rootPage, size);
+	}
+
+	/*
+	 * Current key and value are kept by the subclass
+	 */
+
+	/**
+	 * Binary search of the current key is implemented by the subclass, so the comparison is inlined
+	 *
+	 * @param keysAddress - address of the sorted keys array in the page
+	 * @param count - number of keys
+	 * @return index of the key or -(insertion point + 1)
+	 */
+
+	protected abstract int searchCurrentKey(long keysAddress, int count);
+
+	protected abstract int compareKeys(long keyAddress1, long keyAddress2);
+
+	protected abstract void writeCurrentKey(long keyAddress);
+
+	protected abstract void writeCurrentValue(long valueAddress);
+
+	/**
+	 * Found, replaced or removed value is passed to the subclass before it is changed in the page
+	 */
+
+	protected abstract void readValue(long valueAddress);
+
+	/**
+	 * Looks up the current key
+	 *
+	 * @return true if found, value is passed to readValue
+	 */
+
+	protected final boolean getCurrent() {
+		long page = findLeaf();
+		touchLeaf(page);
+		int index = search(page);
+		if (index < 0) {
+			return false;
+		}
+		readValue(leafValueAddress(page, index));
+		return true;
+	}
+
+	protected final boolean containsCurrent() {
+		return search(findLeaf()) >= 0;
+	}
+
+	/**
+	 * Inserts or replaces the current value for the current key
+	 *
+	 * @return true if replaced, previous value is passed to readValue
+	 */
+
+	protected final boolean putCurrent() {
+		checkNotLoading();
+		long sizeBefore = size;
+		try {
+			rootPage = writable(rootPage);
+			long split = insert(rootPage, 1);
+			if (split != PagedMemoryManager.NULL_PAGE) {
+				long newRoot = newInner();
+				Unsafe.UNSAFE.copyMemory(pendingKey, keyAddress(newRoot, 0), keySize);
+				setChild(newRoot, 0, rootPage);
+				setChild(newRoot, 1, split);
+				setCount(newRoot, 1);
+				rootPage = newRoot;
+				height++;
+			}
+		}
+		finally {
+			releaseLatches();
+		}
+		return size == sizeBefore;
+	}
+
+	/**
+	 * Removes the current key
+	 *
+	 * @return true if removed, value is passed to readValue
+	 */
+
+	protected final boolean removeCurrent() {
+		checkNotLoading();
+
+		/*
+		 * Path is copied only if the key is present
+		 */
+
+		if (!containsCurrent()) {
+			return false;
+		}
+		boolean removed;
+		try {
+			rootPage = writable(rootPage);
+			removed = delete(rootPage, 1);
+			if (removed) {
+				size--;
+				modifications++;
+				if (height > 1 && getCount(rootPage) == 0) {
+					long oldRoot = rootPage;
+					rootPage = getChild(oldRoot, 0);
+					height--;
+					freePage(oldRoot);
+				}
+			}
+		}
+		finally {
+			releaseLatches();
+		}
+		return removed;
+	}
+
+	/**
+	 * Starts the bottom-up load of the empty tree. Leaves and inner nodes are written left to right
+	 * filled up to the fill factor, only the last node of every level is rebalanced with its left neighbour
+	 * when the load ends, so pages are never split.
+	 *
+	 * @param fillFactor - part of the page filled, the minimum fill of the node is kept anyway
+	 * @throws IllegalStateException if the tree is not empty
+	 */
+
+	public void beginLoad(double fillFactor) {
+		checkNotLoading();
+		if (!(fillFactor > 0.0 && fillFactor <= 1.0)) {
+			throw new IllegalArgumentException("illegal fill factor " + fillFactor);
+		}
+		if (size != 0 || height != 1) {
+			throw new IllegalStateException("bulk load needs the empty tree");
+		}
+		this.leafFill = Math.max(leafMinimum, Math.min(leafCapacity, (int) Math.round(fillFactor * leafCapacity)));
+		this.innerFill = Math.max(innerMinimum, Math.min(innerCapacity, (int) Math.round(fillFactor * innerCapacity)));
+		this.loadCurrent = new long[MAX_LOAD_LEVELS];
+		this.loadHeld = new long[MAX_LOAD_LEVELS];
+		this.rootPage = writable(rootPage);
+		this.loadCurrent[0] = rootPage;
+	}
+
+	/**
+	 * Appends the current key and value after the last loaded one
+	 *
+	 * @throws IllegalArgumentException if the key is not greater than the last one, the tree is not changed
+	 */
+
+	protected final void appendCurrent() {
+		if (loadCurrent == null) {
+			throw new IllegalStateException("bulk load is not started");
+		}
+		long leaf = loadCurrent[0];
+		int count = getCount(leaf);
+
+		/*
+		 * Order is checked in the buffer before the full leaf is closed
+		 */
+
+		if (size != 0) {
+			writeCurrentKey(pendingKey);
+			long lastKeyAddress = count != 0 ? keyAddress(leaf, count - 1) : keyAddress(loadHeld[0], leafFill - 1);
+			if (compareKeys(lastKeyAddress, pendingKey) >= 0) {
+				throw new IllegalArgumentException("keys are not ascending");
+			}
+		}
+
+		if (count == leafFill) {
+			closeLoadNode(0);
+			long next = newLeaf(pmm.getLeafLevels() - 1);
+			loadCurrent[0] = next;
+			leaf = next;
+			count = 0;
+		}
+
+		writeCurrentKey(keyAddress(leaf, count));
+		writeCurrentValue(leafValueAddress(leaf, count));
+		setCount(leaf, count + 1);
+		size++;
+	}
+
+	/**
+	 * Completes the load, tree can be used after it
+	 */
+
+	public void endLoad() {
+		if (loadCurrent == null) {
+			throw new IllegalStateException("bulk load is not started");
+		}
+		for (int level = 0; ; ++level) {
+			long page = loadCurrent[level];
+			long left = loadHeld[level];
+			if (left == PagedMemoryManager.NULL_PAGE) {
+				rootPage = page;
+				height = level + 1;
+				break;
+			}
+			boolean leaf = level == 0;
+			if (getCount(page) < (leaf ? leafMinimum : innerMinimum)) {
+				if (redistributeLoaded(left, page, level)) {
+					if (loadCurrent[level + 1] == PagedMemoryManager.NULL_PAGE) {
+						rootPage = left;
+						height = level + 1;
+						break;
+					}
+					addLoadChild(level + 1, left);
+					continue;
+				}
+			}
+			addLoadChild(level + 1, left);
+			addLoadChild(level + 1, page);
+		}
+		loadCurrent = null;
+		loadHeld = null;
+		modifications++;
+	}
+
+	/**
+	 *
+	 * @return address of the minimum key or 0 if the tree is empty
+	 */
+
+	protected final long getMinKeyAddress() {
+		long page = getFirstLeaf();
+		return getCount(page) != 0 ? keyAddress(page, 0) : 0;
+	}
+
+	/**
+	 *
+	 * @return address of the maximum key or 0 if the tree is empty
+	 */
+
+	protected final long getMaxKeyAddress() {
+		long page = rootPage;
+		for (int depth = 1; depth < height; ++depth) {
+			page = getChild(page, getCount(page));
+		}
+		int count = getCount(page);
+		return count != 0 ? keyAddress(page, count - 1) : 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getRootPage() {
+		return rootPage;
+	}
+
+	public int getLeafCapacity() {
+		return leafCapacity;
+	}
+
+	public int getInnerCapacity() {
+		return innerCapacity;
+	}
+
+	protected final EpochReclaimer getReclaimer() {
+		return reclaimer;
+	}
+
+	/**
+	 * Frees all pages of the tree, empty root leaf is allocated
+	 */
+
+	public void clear() {
+		checkNotLoading();
+		freeSubtree(rootPage, 1);
+		size = 0;
+		height = 1;
+		rootPage = newLeaf(0);
+		modifications++;
+	}
+
+	/**
+	 * Releases off-heap buffers, pages stay in the file
+	 */
+
+	public void close() {
+		reclaimer.drain();
+		Unsafe.UNSAFE.freeMemory(pendingKey);
+		Unsafe.UNSAFE.freeMemory(upKey);
+	}
+
+	/**
+	 * Checks order of keys, fill of nodes, depth of leaves, order of leaves and the size
+	 *
+	 * @throws IllegalStateException if the tree is broken
+	 */
+
+	public void verify() {
+		long[] lastLeaf = new long[] { PagedMemoryManager.NULL_PAGE };
+		long count = verify(rootPage, 1, lastLeaf);
+		if (count != size) {
+			throw new IllegalStateException("wrong size " + size + ", actual " + count);
+		}
+	}
+
+	private long verify(long page, int depth, long[] lastLeaf) {
+		int count = getCount(page);
+		for (int i = 1; i < count; ++i) {
+			if (compareKeys(keyAddress(page, i - 1), keyAddress(page, i)) >= 0) {
+				throw new IllegalStateException("wrong order of keys in the page " + page);
+			}
+		}
+		if (depth == height) {
+			if (getType(page) != LEAF_TYPE) {
+				throw new IllegalStateException("leaf expected " + page);
+			}
+			if (page != rootPage && count < leafMinimum) {
+				throw new IllegalStateException("underflow of the leaf " + page);
+			}
+			if (pmm.isLeafPage(page) && pmm.getLeafLevel(page) >= pmm.getLeafLevels()) {
+				throw new IllegalStateException("wrong leaf level of the page " + page);
+			}
+			if (lastLeaf[0] != PagedMemoryManager.NULL_PAGE) {
+				int lastCount = getCount(lastLeaf[0]);
+				if (count != 0 && lastCount != 0 && compareKeys(keyAddress(lastLeaf[0], lastCount - 1), keyAddress(page, 0)) >= 0) {
+					throw new IllegalStateException("wrong order of leaves " + lastLeaf[0] + " and " + page);
+				}
+			}
+			lastLeaf[0] = page;
+			return count;
+		}
+		if (getType(page) != INNER_TYPE) {
+			throw new IllegalStateException("inner node expected " + page);
+		}
+		if (page != rootPage && count < innerMinimum) {
+			throw new IllegalStateException("underflow of the inner node " + page);
+		}
+		long total = 0;
+		for (int i = 0; i <= count; ++i) {
+			long child = getChild(page, i);
+			int childCount = getCount(child);
+			if (childCount != 0) {
+				if (i > 0 && compareKeys(keyAddress(child, 0), keyAddress(page, i - 1)) < 0) {
+					throw new IllegalStateException("key less than separator in the page " + child);
+				}
+				if (i < count && compareKeys(keyAddress(child, childCount - 1), keyAddress(page, i)) >= 0) {
+					throw new IllegalStateException("key greater than separator in the page " + child);
+				}
+			}
+			total += verify(child, depth + 1, lastLeaf);
+		}
+		return total;
+	}
+
+	/*
+	 * Insert
+	 */
+
+	private long insert(long page, int depth) {
+		if (depth == height) {
+			int index = search(page);
+			latch(page);
+			settleLeafLevel(page);
+			if (index >= 0) {
+				long valueAddress = leafValueAddress(page, index);
+				readValue(valueAddress);
+				writeCurrentValue(valueAddress);
+				pmm.markDirty(page);
+				return PagedMemoryManager.NULL_PAGE;
+			}
+			index = -(index + 1);
+			size++;
+			modifications++;
+			int count = getCount(page);
+			if (count < leafCapacity) {
+				insertLeafEntry(page, index);
+				return PagedMemoryManager.NULL_PAGE;
+			}
+
+			/*
+			 * Upper half moves to the new right leaf, first key of the right leaf is a separator
+			 */
+
+			long right = newLeaf(getLeafLevel());
+			int mid = count / 2;
+			moveLeafEntries(page, mid, right, 0, count - mid);
+			setCount(right, count - mid);
+			setCount(page, mid);
+			if (index <= mid) {
+				insertLeafEntry(page, index);
+			}
+			else {
+				insertLeafEntry(right, index - mid);
+			}
+			Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), pendingKey, keySize);
+			return right;
+		}
+
+		int childIndex = childIndex(page);
+		long split = insert(writableChild(page, childIndex), depth + 1);
+		if (split == PagedMemoryManager.NULL_PAGE) {
+			return PagedMemoryManager.NULL_PAGE;
+		}
+
+		latch(page);
+		int count = getCount(page);
+		if (count < innerCapacity) {
+			insertInnerEntry(page, childIndex, pendingKey, split);
+			return PagedMemoryManager.NULL_PAGE;
+		}
+
+		/*
+		 * Middle key moves up, left keeps keys before it, right gets keys after it
+		 */
+
+		long right = newInner();
+		int mid = count / 2;
+		Unsafe.UNSAFE.copyMemory(keyAddress(page, mid), upKey, keySize);
+		int rightCount = count - mid - 1;
+		Unsafe.UNSAFE.copyMemory(keyAddress(page, mid + 1), keyAddress(right, 0), (long) rightCount * keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(page, mid + 1), childAddress(right, 0), (rightCount + 1) * CHILD_SIZE);
+		setCount(right, rightCount);
+		setCount(page, mid);
+		if (childIndex <= mid) {
+			insertInnerEntry(page, childIndex, pendingKey, split);
+		}
+		else {
+			insertInnerEntry(right, childIndex - mid - 1, pendingKey, split);
+		}
+		Unsafe.UNSAFE.copyMemory(upKey, pendingKey, keySize);
+		return right;
+	}
+
+	private void insertLeafEntry(long page, int index) {
+		int count = getCount(page);
+		if (index < count) {
+			moveLeafEntries(page, index, page, index + 1, count - index);
+		}
+		writeCurrentKey(keyAddress(page, index));
+		writeCurrentValue(leafValueAddress(page, index));
+		setCount(page, count + 1);
+	}
+
+	private void insertInnerEntry(long page, int index, long keyAddress, long child) {
+		int count = getCount(page);
+		if (index < count) {
+			Unsafe.UNSAFE.copyMemory(keyAddress(page, index), keyAddress(page, index + 1), (long) (count - index) * keySize);
+			Unsafe.UNSAFE.copyMemory(childAddress(page, index + 1), childAddress(page, index + 2), (count - index) * CHILD_SIZE);
+		}
+		Unsafe.UNSAFE.copyMemory(keyAddress, keyAddress(page, index), keySize);
+		setChild(page, index + 1, child);
+		setCount(page, count + 1);
+	}
+
+	/*
+	 * Delete
+	 */
+
+	private boolean delete(long page, int depth) {
+		if (depth == height) {
+			int index = search(page);
+			if (index < 0) {
+				return false;
+			}
+			latch(page);
+			settleLeafLevel(page);
+			readValue(leafValueAddress(page, index));
+			int count = getCount(page);
+			moveLeafEntries(page, index + 1, page, index, count - index - 1);
+			setCount(page, count - 1);
+			return true;
+		}
+
+		int childIndex = childIndex(page);
+		long child = writableChild(page, childIndex);
+		boolean removed = delete(child, depth + 1);
+		if (removed) {
+			boolean leaf = depth + 1 == height;
+			if (getCount(child) < (leaf ? leafMinimum : innerMinimum)) {
+				rebalance(page, childIndex, leaf);
+			}
+		}
+		return removed;
+	}
+
+	/*
+	 * Underflow child borrows from the sibling with extra entries or merges with it.
+	 * Parent and child are already copied, the sibling is copied only if it changes.
+	 */
+
+	private void rebalance(long parent, int childIndex, boolean leaf) {
+		long child = getChild(parent, childIndex);
+		int minimum = leaf ? leafMinimum : innerMinimum;
+		int parentCount = getCount(parent);
+		latch(parent);
+		latch(child);
+
+		if (childIndex > 0) {
+			long left = getChild(parent, childIndex - 1);
+			if (getCount(left) > minimum) {
+				left = writableChild(parent, childIndex - 1);
+				latch(left);
+				if (leaf) {
+					borrowLeafFromLeft(parent, childIndex, left, child);
+				}
+				else {
+					borrowInnerFromLeft(parent, childIndex, left, child);
+				}
+				return;
+			}
+		}
+		if (childIndex < parentCount) {
+			long right = getChild(parent, childIndex + 1);
+			if (getCount(right) > minimum) {
+				right = writableChild(parent, childIndex + 1);
+				latch(right);
+				if (leaf) {
+					borrowLeafFromRight(parent, childIndex, child, right);
+				}
+				else {
+					borrowInnerFromRight(parent, childIndex, child, right);
+				}
+				return;
+			}
+		}
+		if (childIndex > 0) {
+			long left = writableChild(parent, childIndex - 1);
+			latch(left);
+			merge(parent, childIndex - 1, left, child, leaf);
+		}
+		else {
+			merge(parent, childIndex, child, getChild(parent, childIndex + 1), leaf);
+		}
+	}
+
+	private void borrowLeafFromLeft(long parent, int childIndex, long left, long child) {
+		int leftCount = getCount(left);
+		int count = getCount(child);
+		moveLeafEntries(child, 0, child, 1, count);
+		moveLeafEntries(left, leftCount - 1, child, 0, 1);
+		setCount(child, count + 1);
+		setCount(left, leftCount - 1);
+		Unsafe.UNSAFE.copyMemory(keyAddress(child, 0), keyAddress(parent, childIndex - 1), keySize);
+		pmm.markDirty(parent);
+	}
+
+	private void borrowLeafFromRight(long parent, int childIndex, long child, long right) {
+		int rightCount = getCount(right);
+		int count = getCount(child);
+		moveLeafEntries(right, 0, child, count, 1);
+		moveLeafEntries(right, 1, right, 0, rightCount - 1);
+		setCount(child, count + 1);
+		setCount(right, rightCount - 1);
+		Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), keyAddress(parent, childIndex), keySize);
+		pmm.markDirty(parent);
+	}
+
+	private void borrowInnerFromLeft(long parent, int childIndex, long left, long child) {
+		int leftCount = getCount(left);
+		int count = getCount(child);
+		Unsafe.UNSAFE.copyMemory(keyAddress(child, 0), keyAddress(child, 1), (long) count * keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(child, 0), childAddress(child, 1), (count + 1) * CHILD_SIZE);
+		Unsafe.UNSAFE.copyMemory(keyAddress(parent, childIndex - 1), keyAddress(child, 0), keySize);
+		setChild(child, 0, getChild(left, leftCount));
+		Unsafe.UNSAFE.copyMemory(keyAddress(left, leftCount - 1), keyAddress(parent, childIndex - 1), keySize);
+		setCount(child, count + 1);
+		setCount(left, leftCount - 1);
+		pmm.markDirty(parent);
+	}
+
+	private void borrowInnerFromRight(long parent, int childIndex, long child, long right) {
+		int rightCount = getCount(right);
+		int count = getCount(child);
+		Unsafe.UNSAFE.copyMemory(keyAddress(parent, childIndex), keyAddress(child, count), keySize);
+		setChild(child, count + 1, getChild(right, 0));
+		Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), keyAddress(parent, childIndex), keySize);
+		Unsafe.UNSAFE.copyMemory(keyAddress(right, 1), keyAddress(right, 0), (long) (rightCount - 1) * keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(right, 1), childAddress(right, 0), rightCount * CHILD_SIZE);
+		setCount(child, count + 1);
+		setCount(right, rightCount - 1);
+		pmm.markDirty(parent);
+	}
+
+	/*
+	 * Right node is appended to the left one and freed, separator is removed from the parent
+	 */
+
+	private void merge(long parent, int separatorIndex, long left, long right, boolean leaf) {
+		int leftCount = getCount(left);
+		int rightCount = getCount(right);
+		if (leaf) {
+			moveLeafEntries(right, 0, left, leftCount, rightCount);
+			setCount(left, leftCount + rightCount);
+		}
+		else {
+			Unsafe.UNSAFE.copyMemory(keyAddress(parent, separatorIndex), keyAddress(left, leftCount), keySize);
+			Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), keyAddress(left, leftCount + 1), (long) rightCount * keySize);
+			Unsafe.UNSAFE.copyMemory(childAddress(right, 0), childAddress(left, leftCount + 1), (rightCount + 1) * CHILD_SIZE);
+			setCount(left, leftCount + 1 + rightCount);
+		}
+
+		int parentCount = getCount(parent);
+		Unsafe.UNSAFE.copyMemory(keyAddress(parent, separatorIndex + 1), keyAddress(parent, separatorIndex), (long) (parentCount - separatorIndex - 1) * keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(parent, separatorIndex + 2), childAddress(parent, separatorIndex + 1), (parentCount - separatorIndex - 1) * CHILD_SIZE);
+		setCount(parent, parentCount - 1);
+
+		freePage(right);
+	}
+
+	private void freeSubtree(long page, int depth) {
+		if (depth < height) {
+			int count = getCount(page);
+			for (int i = 0; i <= count; ++i) {
+				freeSubtree(getChild(page, i), depth + 1);
+			}
+		}
+		freePage(page);
+	}
+
+	/*
+	 * All leaves are on the same depth, it changes when the root is split or removed. Leaves are not walked then,
+	 * level of the leaf is fixed when it is accessed. Deeper levels than leaf levels of the manager share the last one,
+	 * so only leaves of the small tree ever move. Leaf lists are dropped by the restore of the commit on open,
+	 * leaf is added back when it is accessed.
+	 */
+
+	private int getLeafLevel() {
+		return Math.min(height - 1, pmm.getLeafLevels() - 1);
+	}
+
+	private void settleLeafLevel(long page) {
+		int level = getLeafLevel();
+		if (!pmm.isLeafPage(page)) {
+			pmm.addLeafPage(page, level);
+		}
+		else if (pmm.getLeafLevel(page) != level) {
+			pmm.setLeafLevel(page, level);
+		}
+	}
+
+	/*
+	 * Read writes the header only if the leaf changes its level or list. Without sampled counters
+	 * the hit counter is in the header, so pages of the committed version do not count reads.
+	 */
+
+	private void touchLeaf(long page) {
+		settleLeafLevel(page);
+		if (pmm.isSampledCounters() || !pmm.isCommitted(page)) {
+			pmm.hit(page);
+		}
+	}
+
+	/*
+	 * Search
+	 */
+
+	private long findLeaf() {
+		long page = rootPage;
+		for (int depth = 1; depth < height; ++depth) {
+			page = getChild(page, childIndex(page));
+		}
+		return page;
+	}
+
+	private long getFirstLeaf() {
+		long page = rootPage;
+		for (int depth = 1; depth < height; ++depth) {
+			page = getChild(page, 0);
+		}
+		return page;
+	}
+
+	/*
+	 * Separator is the first key of the right subtree, so equal key goes to the right
+	 */
+
+	private int childIndex(long page) {
+		int index = search(page);
+		return index >= 0 ? index + 1 : -(index + 1);
+	}
+
+	private int search(long page) {
+		long pageAddress = pmm.getPage(page);
+		return searchCurrentKey(pageAddress + ENTRIES_OFFSET, Unsafe.UNSAFE.getInt(pageAddress + COUNT_OFFSET));
+	}
+
+	/*
+	 * Cursor
+	 */
+
+	private static final int FIRST = 0;
+	private static final int LAST = 1;
+	private static final int CURRENT_KEY = 2;
+
+	/**
+	 * Reusable position in the leaf. Cursor moves in both directions by the path of inner nodes,
+	 * so the scan of k entries touches O(log n + k / B) pages and allocates nothing.
+	 * Key and value are read in the page, cursor is valid until the next insert or remove.
+	 */
+
+	public class Cursor {
+
+		private final long[] pathPages = new long[MAX_LOAD_LEVELS];
+		private final int[] pathIndexes = new int[MAX_LOAD_LEVELS];
+		private long page = PagedMemoryManager.NULL_PAGE;
+		private int index;
+		private long expectedModifications;
+
+		protected Cursor() {
+		}
+
+		/**
+		 *
+		 * @return true if the tree is not empty
+		 */
+
+		public boolean first() {
+			descend(FIRST);
+			index = 0;
+			return skipEmpty();
+		}
+
+		/**
+		 *
+		 * @return true if the tree is not empty
+		 */
+
+		public boolean last() {
+			descend(LAST);
+			index = getCount(page) - 1;
+			if (index < 0) {
+				page = PagedMemoryManager.NULL_PAGE;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Positions the cursor at the least key greater than or equal to the current key of the tree
+		 *
+		 * @return true if such key exists
+		 */
+
+		protected final boolean seekCurrent() {
+			descend(CURRENT_KEY);
+			int i = search(page);
+			index = i >= 0 ? i : -(i + 1);
+			return skipEmpty();
+		}
+
+		public boolean isValid() {
+			return page != PagedMemoryManager.NULL_PAGE && expectedModifications == modifications;
+		}
+
+		/**
+		 *
+		 * @return false if there is no next entry, cursor becomes invalid
+		 */
+
+		public boolean next() {
+			checkPosition();
+			index++;
+			return skipEmpty();
+		}
+
+		/**
+		 *
+		 * @return false if there is no previous entry, cursor becomes invalid
+		 */
+
+		public boolean prev() {
+			checkPosition();
+			if (index > 0) {
+				index--;
+				return true;
+			}
+
+			/*
+			 * Lowest inner node with the lesser child, then the rightmost leaf of that child
+			 */
+
+			int depth = height - 2;
+			while (depth >= 0 && pathIndexes[depth] == 0) {
+				depth--;
+			}
+			if (depth < 0) {
+				page = PagedMemoryManager.NULL_PAGE;
+				return false;
+			}
+			pathIndexes[depth]--;
+			long child = getChild(pathPages[depth], pathIndexes[depth]);
+			for (int d = depth + 1; d < height - 1; ++d) {
+				int count = getCount(child);
+				pathPages[d] = child;
+				pathIndexes[d] = count;
+				child = getChild(child, count);
+			}
+			page = child;
+			index = getCount(page) - 1;
+			return true;
+		}
+
+		/**
+		 *
+		 * @return address of the key in the page
+		 */
+
+		public long keyAddress() {
+			checkPosition();
+			return AbstractPagedBPlusTree.this.keyAddress(page, index);
+		}
+
+		/**
+		 *
+		 * @return address of the value in the page
+		 */
+
+		public long valueAddress() {
+			checkPosition();
+			return leafValueAddress(page, index);
+		}
+
+		private void descend(int mode) {
+			long p = rootPage;
+			for (int depth = 0; depth < height - 1; ++depth) {
+				int i;
+				switch(mode) {
+				case FIRST:
+					i = 0;
+					break;
+				case LAST:
+					i = getCount(p);
+					break;
+				default:
+					i = childIndex(p);
+					break;
+				}
+				pathPages[depth] = p;
+				pathIndexes[depth] = i;
+				p = getChild(p, i);
+			}
+			page = p;
+			expectedModifications = modifications;
+		}
+
+		/*
+		 * Lowest inner node with the greater child, then the leftmost leaf of that child
+		 */
+
+		private boolean skipEmpty() {
+			while (index >= getCount(page)) {
+				int depth = height - 2;
+				while (depth >= 0 && pathIndexes[depth] == getCount(pathPages[depth])) {
+					depth--;
+				}
+				if (depth < 0) {
+					page = PagedMemoryManager.NULL_PAGE;
+					return false;
+				}
+				pathIndexes[depth]++;
+				long child = getChild(pathPages[depth], pathIndexes[depth]);
+				for (int d = depth + 1; d < height - 1; ++d) {
+					pathPages[d] = child;
+					pathIndexes[d] = 0;
+					child = getChild(child, 0);
+				}
+				page = child;
+				index = 0;
+			}
+			return true;
+		}
+
+		private void checkPosition() {
+			if (expectedModifications != modifications) {
+				throw new ConcurrentModificationException();
+			}
+			if (page == PagedMemoryManager.NULL_PAGE) {
+				throw new NoSuchElementException();
+			}
+		}
+
+	}
+
+	/*
+	 * Bulk load
+	 */
+
+	private void checkNotLoading() {
+		if (loadCurrent != null) {
+			throw new IllegalStateException("bulk load is not completed");
+		}
+	}
+
+	/*
+	 * Full node waits in the held slot, so the last node of the level can borrow from it
+	 */
+
+	private void closeLoadNode(int level) {
+		if (loadHeld[level] != PagedMemoryManager.NULL_PAGE) {
+			addLoadChild(level + 1, loadHeld[level]);
+		}
+		loadHeld[level] = loadCurrent[level];
+	}
+
+	private void addLoadChild(int level, long child) {
+		if (level == MAX_LOAD_LEVELS) {
+			throw new IllegalStateException("too many levels");
+		}
+		long page = loadCurrent[level];
+		if (page == PagedMemoryManager.NULL_PAGE) {
+			page = newInner();
+			setChild(page, 0, child);
+			loadCurrent[level] = page;
+			return;
+		}
+		int count = getCount(page);
+		if (count == innerFill) {
+			closeLoadNode(level);
+			page = newInner();
+			setChild(page, 0, child);
+			loadCurrent[level] = page;
+			return;
+		}
+		Unsafe.UNSAFE.copyMemory(lowKeyAddress(child, level - 1), keyAddress(page, count), keySize);
+		setChild(page, count + 1, child);
+		setCount(page, count + 1);
+	}
+
+	/*
+	 * First key of the subtree is the separator of it in the parent
+	 */
+
+	private long lowKeyAddress(long page, int level) {
+		for (int i = level; i != 0; --i) {
+			page = getChild(page, 0);
+		}
+		return keyAddress(page, 0);
+	}
+
+	/**
+	 * Moves entries from the left node to the underflow right node or merges them
+	 *
+	 * @return true if the right node is merged to the left one and freed
+	 */
+
+	private boolean redistributeLoaded(long left, long right, int level) {
+		int leftCount = getCount(left);
+		int count = getCount(right);
+		if (level == 0) {
+			int total = leftCount + count;
+			if (total < 2 * leafMinimum) {
+				moveLeafEntries(right, 0, left, leftCount, count);
+				setCount(left, total);
+				freePage(right);
+				return true;
+			}
+			int moved = leftCount - (total - total / 2);
+			moveLeafEntries(right, 0, right, moved, count);
+			moveLeafEntries(left, leftCount - moved, right, 0, moved);
+			setCount(right, count + moved);
+			setCount(left, leftCount - moved);
+			return false;
+		}
+
+		/*
+		 * Separator of the right node is between keys of both nodes
+		 */
+
+		int total = leftCount + 1 + count;
+		Unsafe.UNSAFE.copyMemory(lowKeyAddress(right, level), upKey, keySize);
+		if (total < 2 * innerMinimum + 1) {
+			Unsafe.UNSAFE.copyMemory(upKey, keyAddress(left, leftCount), keySize);
+			Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), keyAddress(left, leftCount + 1), (long) count * keySize);
+			Unsafe.UNSAFE.copyMemory(childAddress(right, 0), childAddress(left, leftCount + 1), (count + 1) * CHILD_SIZE);
+			setCount(left, total);
+			freePage(right);
+			return true;
+		}
+		int newLeftCount = (total - 1) - (total - 1) / 2;
+		int moved = leftCount - newLeftCount;
+		Unsafe.UNSAFE.copyMemory(keyAddress(right, 0), keyAddress(right, moved), (long) count * keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(right, 0), childAddress(right, moved), (count + 1) * CHILD_SIZE);
+		Unsafe.UNSAFE.copyMemory(keyAddress(left, newLeftCount + 1), keyAddress(right, 0), (long) (moved - 1) * keySize);
+		Unsafe.UNSAFE.copyMemory(upKey, keyAddress(right, moved - 1), keySize);
+		Unsafe.UNSAFE.copyMemory(childAddress(left, newLeftCount + 1), childAddress(right, 0), moved * CHILD_SIZE);
+		setCount(right, count + moved);
+		setCount(left, newLeftCount);
+		return false;
+	}
+
+	/*
+	 * Pages
+	 */
+
+	private long newLeaf(int level) {
+		long page = pmm.allocateNewPage();
+		long pageAddress = pmm.getPage(page);
+		Unsafe.UNSAFE.putInt(pageAddress + TYPE_OFFSET, LEAF_TYPE);
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, 0);
+		PageLatch.reset(pageAddress);
+		pmm.addLeafPage(page, level);
+		pmm.markDirty(page);
+		return page;
+	}
+
+	private long newInner() {
+		long page = pmm.allocateNewPage();
+		long pageAddress = pmm.getPage(page);
+		Unsafe.UNSAFE.putInt(pageAddress + TYPE_OFFSET, INNER_TYPE);
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, 0);
+		PageLatch.reset(pageAddress);
+		pmm.markDirty(page);
+		return page;
+	}
+
+	/*
+	 * Page is latched once before its first change, latches are released when the insert or remove ends
+	 */
+
+	private void latch(long page) {
+		for (int i = 0; i != latchedCount; ++i) {
+			if (latchedPages[i] == page) {
+				return;
+			}
+		}
+		PageLatch.lock(pmm.getPage(page));
+		latchedPages[latchedCount++] = page;
+	}
+
+	private void releaseLatches() {
+		for (int i = 0; i != latchedCount; ++i) {
+			PageLatch.unlock(pmm.getPage(latchedPages[i]));
+		}
+		latchedCount = 0;
+	}
+
+	/*
+	 * Page of the committed version is copied before the first change after the commit,
+	 * parent is changed to the copy, so the parent itself must be writable
+	 */
+
+	private long writableChild(long parent, int index) {
+		long child = getChild(parent, index);
+		long copy = writable(child);
+		if (copy != child) {
+			latch(parent);
+			setChild(parent, index, copy);
+		}
+		return copy;
+	}
+
+	private long writable(long page) {
+		if (!pmm.isCommitted(page)) {
+			return page;
+		}
+		long copy = getType(page) == LEAF_TYPE ? newLeaf(getLeafLevel()) : newInner();
+		Unsafe.UNSAFE.copyMemory(pmm.getPage(page) + COUNT_OFFSET, pmm.getPage(copy) + COUNT_OFFSET, pmm.getDiskPageSize() - COUNT_OFFSET);
+		pmm.markDirty(copy);
+		freePage(page);
+		return copy;
+	}
+
+	/*
+	 * Readers standing on the freed page see the obsolete version and restart from the root,
+	 * page returns to the free list when they are gone. Page of the committed version is not changed,
+	 * readers standing on it read the old version, the manager frees it by the next commit.
+	 */
+
+	private void freePage(long page) {
+		if (pmm.isCommitted(page)) {
+			reclaimer.retire(page);
+			return;
+		}
+		long pageAddress = pmm.getPage(page);
+		int i = 0;
+		while (i != latchedCount && latchedPages[i] != page) {
+			i++;
+		}
+		if (i != latchedCount) {
+			latchedPages[i] = latchedPages[--latchedCount];
+		}
+		else {
+			PageLatch.lock(pageAddress);
+		}
+		PageLatch.unlockObsolete(pageAddress);
+		reclaimer.retire(page);
+	}
+
+	private void moveLeafEntries(long fromPage, int fromIndex, long toPage, int toIndex, int length) {
+		if (length == 0) {
+			return;
+		}
+		Unsafe.UNSAFE.copyMemory(keyAddress(fromPage, fromIndex), keyAddress(toPage, toIndex), (long) length * keySize);
+		Unsafe.UNSAFE.copyMemory(leafValueAddress(fromPage, fromIndex), leafValueAddress(toPage, toIndex), (long) length * valueSize);
+		pmm.markDirty(toPage);
+	}
+
+	private int getType(long page) {
+		return Unsafe.UNSAFE.getInt(pmm.getPage(page) + TYPE_OFFSET);
+	}
+
+	protected final int getCount(long page) {
+		return Unsafe.UNSAFE.getInt(pmm.getPage(page) + COUNT_OFFSET);
+	}
+
+	private void setCount(long page, int count) {
+		Unsafe.UNSAFE.putInt(pmm.getPage(page) + COUNT_OFFSET, count);
+		pmm.markDirty(page);
+	}
+
+	private long getChild(long page, int index) {
+		return Unsafe.UNSAFE.getLong(childAddress(page, index));
+	}
+
+	private void setChild(long page, int index, long child) {
+		Unsafe.UNSAFE.putLong(childAddress(page, index), child);
+		pmm.markDirty(page);
+	}
+
+	protected final long keyAddress(long page, int index) {
+		return pmm.getPage(page) + ENTRIES_OFFSET + (long) index * keySize;
+	}
+
+	protected final long leafValueAddress(long page, int index) {
+		return pmm.getPage(page) + leafValuesOffset + (long) index * valueSize;
+	}
+
+	private long childAddress(long page, int index) {
+		return pmm.getPage(page) + innerChildrenOffset + index * CHILD_SIZE;
+	}
+
+}
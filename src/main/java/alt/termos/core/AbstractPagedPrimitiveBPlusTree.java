@@ -0,0 +1,116 @@
+package alt.termos.core;
+
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap B+Tree engine for primitive keys and values of 4 or 8 bytes. Key is passed to the search
+ * as a widened long, so the lookup does not use the current key of the writer and can run without locks.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public abstract class AbstractPagedPrimitiveBPlusTree extends AbstractPagedBPlusTree {
+
+	private final int valueSize;
+	private final long leafValuesOffset;
+	private final long innerChildrenOffset;
+
+	/**
+	 *
+	 * @param pmm - page manager
+	 * @param keySize - size of the key in the page, 4 or 8
+	 * @param valueSize - size of the value in the page, 4 or 8
+	 * @param rootPage - committed root or NULL_PAGE for the new tree
+	 * @param size - committed size
+	 */
+
+	protected AbstractPagedPrimitiveBPlusTree(PagedMemoryManager pmm, int keySize, int valueSize, long rootPage, long size) {
+		super(pmm, keySize, valueSize, rootPage, size);
+		if (keySize != 4 && keySize != 8 || valueSize != 4 && valueSize != 8) {
+			throw new IllegalArgumentException("primitive key " + keySize + " and value " + valueSize + " expected");
+		}
+		this.valueSize = valueSize;
+		this.leafValuesOffset = ENTRIES_OFFSET + (long) getLeafCapacity() * keySize;
+		this.innerChildrenOffset = ENTRIES_OFFSET + (long) getInnerCapacity() * keySize;
+	}
+
+	/**
+	 * Binary search of the primitive key for getConcurrent, keys of the page may be changed during the search,
+	 * so it must not fail on the unordered keys
+	 *
+	 * @param keysAddress - address of the sorted keys array in the page
+	 * @param count - number of keys
+	 * @param key - key, int keys are widened
+	 * @return index of the key or -(insertion point + 1)
+	 */
+
+	protected abstract int searchKey(long keysAddress, int count, long key);
+
+	/**
+	 * Looks up the key without locks while the writer changes the tree. Every page is read optimistically:
+	 * version is taken before the read and validated after it, the child is entered only if the parent
+	 * is still valid after the version of the child is taken. Any change restarts the lookup from the root.
+	 * Hits are not counted, so the reader writes only its epoch, freed pages are not reused until it ends.
+	 *
+	 * @param key - key, int keys are widened
+	 * @param noEntryValue - returned if the key is absent
+	 * @return bits of the value, int values are widened
+	 */
+
+	protected final long getConcurrent(long key, long noEntryValue) {
+		EpochReclaimer reclaimer = getReclaimer();
+		int leafCapacity = getLeafCapacity();
+		int innerCapacity = getInnerCapacity();
+		EpochReclaimer.Slot slot = reclaimer.enter();
+		try {
+			restart: for (;;) {
+				long page = getRootPage();
+				long pageAddress = pmm.getPage(page);
+				long version = PageLatch.startRead(pageAddress);
+				if (page != getRootPage()) {
+					continue;
+				}
+				for (;;) {
+					if (PageLatch.isObsolete(version)) {
+						continue restart;
+					}
+					int type = Unsafe.UNSAFE.getInt(pageAddress + TYPE_OFFSET);
+					int count = Unsafe.UNSAFE.getInt(pageAddress + COUNT_OFFSET);
+					if (type == LEAF_TYPE && count >= 0 && count <= leafCapacity) {
+						int index = searchKey(pageAddress + ENTRIES_OFFSET, count, key);
+						long value = noEntryValue;
+						if (index >= 0) {
+							long valueAddress = pageAddress + leafValuesOffset + (long) index * valueSize;
+							value = valueSize == 8 ? Unsafe.UNSAFE.getLong(valueAddress) : Unsafe.UNSAFE.getInt(valueAddress);
+						}
+						if (PageLatch.validate(pageAddress, version)) {
+							return value;
+						}
+						continue restart;
+					}
+					if (type != INNER_TYPE || count < 0 || count > innerCapacity) {
+						continue restart;
+					}
+					int index = searchKey(pageAddress + ENTRIES_OFFSET, count, key);
+					index = index >= 0 ? index + 1 : -(index + 1);
+					long child = Unsafe.UNSAFE.getLong(pageAddress + innerChildrenOffset + index * CHILD_SIZE);
+					if (!PageLatch.validate(pageAddress, version)) {
+						continue restart;
+					}
+					long childAddress = pmm.getPage(child);
+					long childVersion = PageLatch.startRead(childAddress);
+					if (!PageLatch.validate(pageAddress, version)) {
+						continue restart;
+					}
+					pageAddress = childAddress;
+					version = childVersion;
+				}
+			}
+		}
+		finally {
+			reclaimer.exit(slot);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package alt.termos.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alt.termos.util.Arguments;
+
+/**
+ * Periodic flush of dirty pages in the daemon thread, writers never wait for the msync
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class BackgroundFlusher {
+
+	private final PagedMemoryManager pmm;
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedPages = new AtomicLong();
+	private volatile Exception lastError;
+
+	private final Callable<Long> flushTask = new Callable<Long>() {
+
+		@Override
+		public Long call() {
+			return flushNow();
+		}
+
+	};
+
+	/**
+	 *
+	 * @param pmm - page manager with the mapped file
+	 * @param period - period between the end of one flush and the start of the next one
+	 * @param unit - unit of the period
+	 */
+
+	public BackgroundFlusher(PagedMemoryManager pmm, long period, TimeUnit unit) {
+		Arguments.notNull(pmm);
+		Arguments.greater(period, 0);
+		Arguments.notNull(unit);
+		this.pmm = pmm;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "termos-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					flushNow();
+				}
+				catch(RuntimeException e) {
+					// pages stay dirty, next flush tries again
+				}
+			}
+
+		}, period, period, unit);
+	}
+
+	private long flushNow() {
+		try {
+			long pages = pmm.flush();
+			flushes.incrementAndGet();
+			flushedPages.addAndGet(pages);
+			return pages;
+		}
+		catch(RuntimeException e) {
+			lastError = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Schedules flush right now
+	 *
+	 * @return future of the number of written pages
+	 */
+
+	public Future<Long> flushAsync() {
+		return executor.submit(flushTask);
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getFlushedPages() {
+		return flushedPages.get();
+	}
+
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Stops the thread and writes back pages changed after the last flush
+	 */
+
+	public void close() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		flushNow();
+	}
+
+}
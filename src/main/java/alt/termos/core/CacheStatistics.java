@@ -0,0 +1,60 @@
+package alt.termos.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the cache mode, used to size the file against the working set
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public final class CacheStatistics {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	void hit() {
+		hits.incrementAndGet();
+	}
+	
+	void miss() {
+		misses.incrementAndGet();
+	}
+	
+	void eviction() {
+		evictions.incrementAndGet();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public double getHitRatio() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+	
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics [hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + "]";
+	}
+	
+}
@@ -0,0 +1,179 @@
+package alt.termos.core;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alt.termos.util.Arguments;
+
+/**
+ * Epoch-based reclamation of pages freed while lock-free readers may still stand on them.
+ *
+ * Every reader thread has its own slot with the announced epoch, reader writes only its slot,
+ * so the read path has no atomic instructions. Writer puts the freed page in the limbo list with the
+ * current global epoch, page goes to the free list of the manager when every active reader
+ * announced a later epoch, so nobody can reach the page.
+ *
+ * Writers must be serialized by the caller, as writers of the tree. Limbo list is not kept on the crash,
+ * the commit restored on open still uses its pages or has them free.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class EpochReclaimer {
+
+	public static final long INACTIVE = 0L;
+
+	/*
+	 * Limbo list is scanned when it reaches the threshold, or at once if no reader was ever registered
+	 */
+
+	public static final int RECLAIM_THRESHOLD = 64;
+
+	private final PagedMemoryManager pmm;
+
+	private volatile long globalEpoch = 1L;
+
+	private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<Slot>();
+
+	private final ThreadLocal<Slot> threadSlot = new ThreadLocal<Slot>() {
+
+		@Override
+		protected Slot initialValue() {
+			Slot slot = new Slot();
+			slots.add(slot);
+			return slot;
+		}
+
+	};
+
+	private long[] limboPages = new long[RECLAIM_THRESHOLD];
+	private long[] limboEpochs = new long[RECLAIM_THRESHOLD];
+	private int limboCount;
+
+	/**
+	 * Epoch of one reader thread, slots of finished threads stay inactive
+	 */
+
+	public static final class Slot {
+
+		/*
+		 * Set and lazySet are plain stores with fences, there is no compare-and-set in the slot
+		 */
+
+		private final AtomicLong epoch = new AtomicLong(INACTIVE);
+
+		private Slot() {
+		}
+
+		public long getEpoch() {
+			return epoch.get();
+		}
+
+	}
+
+	/**
+	 *
+	 * @param pmm - page manager that receives reclaimed pages
+	 */
+
+	public EpochReclaimer(PagedMemoryManager pmm) {
+		Arguments.notNull(pmm);
+		this.pmm = pmm;
+	}
+
+	/**
+	 * Announces the current epoch of the thread, pages retired after it are kept until exit
+	 *
+	 * @return slot of the thread to pass to exit
+	 */
+
+	public Slot enter() {
+		Slot slot = threadSlot.get();
+		slot.epoch.set(globalEpoch);
+		return slot;
+	}
+
+	/**
+	 * Ordered store is enough, late exit only delays the reclamation
+	 *
+	 * @param slot - slot returned by enter
+	 */
+
+	public void exit(Slot slot) {
+		slot.epoch.lazySet(INACTIVE);
+	}
+
+	/**
+	 * Puts the page unlinked from the structure to the limbo list
+	 *
+	 * @param pageNum - page not reachable by new readers
+	 */
+
+	public void retire(long pageNum) {
+		if (limboCount == limboPages.length) {
+			reclaim();
+			if (limboCount == limboPages.length) {
+				limboPages = Arrays.copyOf(limboPages, limboCount * 2);
+				limboEpochs = Arrays.copyOf(limboEpochs, limboCount * 2);
+			}
+		}
+		limboPages[limboCount] = pageNum;
+		limboEpochs[limboCount] = globalEpoch;
+		limboCount++;
+		if (slots.isEmpty()) {
+			reclaim();
+		}
+	}
+
+	/**
+	 * Starts the new epoch and frees pages retired before the oldest active reader entered
+	 *
+	 * @return number of freed pages
+	 */
+
+	public int reclaim() {
+		long safeEpoch = ++globalEpoch;
+		for (Slot slot : slots) {
+			long epoch = slot.epoch.get();
+			if (epoch != INACTIVE && epoch < safeEpoch) {
+				safeEpoch = epoch;
+			}
+		}
+		int kept = 0;
+		for (int i = 0; i != limboCount; ++i) {
+			if (limboEpochs[i] < safeEpoch) {
+				pmm.freePage(limboPages[i]);
+			}
+			else {
+				limboPages[kept] = limboPages[i];
+				limboEpochs[kept] = limboEpochs[i];
+				kept++;
+			}
+		}
+		int freed = limboCount - kept;
+		limboCount = kept;
+		return freed;
+	}
+
+	/**
+	 * Frees all retired pages, readers must be finished
+	 */
+
+	public void drain() {
+		for (int i = 0; i != limboCount; ++i) {
+			pmm.freePage(limboPages[i]);
+		}
+		limboCount = 0;
+	}
+
+	public int getRetiredCount() {
+		return limboCount;
+	}
+
+	public long getGlobalEpoch() {
+		return globalEpoch;
+	}
+
+}
@@ -0,0 +1,15 @@
+package alt.termos.core;
+
+/**
+ * Owner of the leaf pages is notified before the page is reused in the cache mode,
+ * so it can remove all references to the evicted page
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public interface EvictionListener {
+
+	void evict(long pageNum);
+	
+}
@@ -0,0 +1,29 @@
+package alt.termos.core;
+
+/**
+ * Fixed size serializer of keys and values stored inline in the disk page.
+ * Comparison is done over the mapped bytes, so the search path never deserializes keys.
+ * 
+ * @author Albert Shift
+ *
+ * @param <T> type of the serialized object
+ */
+
+public interface FixedSerializer<T> {
+
+	int getSize();
+	
+	void write(long address, T value);
+	
+	T read(long address);
+	
+	/**
+	 * 
+	 * @param address - address of the stored object
+	 * @param value - object to compare with
+	 * @return negative, zero or positive if the stored object is less, equal or greater than the value
+	 */
+	
+	int compare(long address, T value);
+	
+}
@@ -0,0 +1,65 @@
+package alt.termos.core;
+
+import alt.termos.util.Unsafe;
+
+/**
+ * Serializers of primitive wrappers
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public final class FixedSerializers {
+
+	public static final FixedSerializer<Long> LONG = new FixedSerializer<Long>() {
+
+		@Override
+		public int getSize() {
+			return 8;
+		}
+
+		@Override
+		public void write(long address, Long value) {
+			Unsafe.UNSAFE.putLong(address, value);
+		}
+
+		@Override
+		public Long read(long address) {
+			return Unsafe.UNSAFE.getLong(address);
+		}
+
+		@Override
+		public int compare(long address, Long value) {
+			return Long.compare(Unsafe.UNSAFE.getLong(address), value);
+		}
+		
+	};
+	
+	public static final FixedSerializer<Integer> INTEGER = new FixedSerializer<Integer>() {
+
+		@Override
+		public int getSize() {
+			return 4;
+		}
+
+		@Override
+		public void write(long address, Integer value) {
+			Unsafe.UNSAFE.putInt(address, value);
+		}
+
+		@Override
+		public Integer read(long address) {
+			return Unsafe.UNSAFE.getInt(address);
+		}
+
+		@Override
+		public int compare(long address, Integer value) {
+			return Integer.compare(Unsafe.UNSAFE.getInt(address), value);
+		}
+		
+	};
+	
+	private FixedSerializers() {
+	}
+	
+}
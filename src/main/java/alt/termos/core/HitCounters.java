@@ -0,0 +1,157 @@
+package alt.termos.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap Morris counters, four bytes per disk page. Counter c is incremented with probability 2^-c,
+ * so it keeps the logarithm of hits and the page is never written on read.
+ * Counters are allocated by chunks and grow together with the file.
+ *
+ * Cell is 8-bit counter and 24-bit epoch of its last write. Decay is O(1): it only advances the global epoch,
+ * the counter is decremented lazily by the epochs elapsed since its write when it is read.
+ * Elapsed epochs are counted modulo 2^24, so the counter untouched for 2^24 decays aliases the fresh one
+ * and comes back with its old value.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class HitCounters {
+
+	public static final int MAX_COUNTER = 62;
+
+	private static final int CELL_SHIFT = 2;
+	private static final int COUNTER_BITS = 8;
+	private static final int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+	private static final int EPOCH_MASK = (1 << (32 - COUNTER_BITS)) - 1;
+
+	private final int chunkShift;
+	private final long chunkMask;
+
+	/*
+	 * Array is replaced on growth, chunks are published before the capacity
+	 */
+
+	private volatile long[] chunks = new long[0];
+	private volatile long capacity;
+
+	/*
+	 * Page untouched for 2^24 decays may come back with its old counter, it is a part of the estimation error
+	 */
+
+	private volatile int epoch;
+
+	/**
+	 *
+	 * @param chunkShift - log2 of pages in the chunk
+	 * @param pages - initial capacity
+	 */
+
+	public HitCounters(int chunkShift, long pages) {
+		Arguments.positive(chunkShift);
+		Arguments.greater(63, chunkShift);
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1L << chunkShift) - 1L;
+		ensureCapacity(pages);
+	}
+
+	public synchronized void ensureCapacity(long pages) {
+		long[] oldChunks = this.chunks;
+		if (oldChunks == null) {
+			throw new IllegalStateException("counters are freed");
+		}
+		int count = (int) ((pages + chunkMask) >>> chunkShift);
+		if (count <= oldChunks.length) {
+			return;
+		}
+		long[] newChunks = new long[count];
+		System.arraycopy(oldChunks, 0, newChunks, 0, oldChunks.length);
+		for (int i = oldChunks.length; i != count; ++i) {
+			newChunks[i] = Unsafe.UNSAFE.allocateMemory((chunkMask + 1) << CELL_SHIFT);
+			Unsafe.UNSAFE.setMemory(newChunks[i], (chunkMask + 1) << CELL_SHIFT, (byte) 0);
+		}
+		this.chunks = newChunks;
+		this.capacity = (long) count << chunkShift;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public int get(long pageNum) {
+		return getCounter(Unsafe.UNSAFE.getIntVolatile(null, getAddress(pageNum)), epoch);
+	}
+
+	/**
+	 * Estimation of hits by the Morris counter
+	 *
+	 * @param pageNum - page number
+	 * @return 2^c - 1
+	 */
+
+	public long getHits(long pageNum) {
+		return (1L << get(pageNum)) - 1L;
+	}
+
+	/**
+	 * Probabilistic increment, lost update of concurrent threads is the part of the estimation error
+	 *
+	 * @param pageNum - page number
+	 * @return new value of the counter
+	 */
+
+	public int increment(long pageNum) {
+		long address = getAddress(pageNum);
+		int currentEpoch = epoch;
+		int counter = getCounter(Unsafe.UNSAFE.getIntVolatile(null, address), currentEpoch);
+		if (counter >= MAX_COUNTER) {
+			return counter;
+		}
+		if (counter != 0 && (ThreadLocalRandom.current().nextLong() & ((1L << counter) - 1L)) != 0) {
+			return counter;
+		}
+		Unsafe.UNSAFE.putIntVolatile(null, address, (currentEpoch << COUNTER_BITS) | (counter + 1));
+		return counter + 1;
+	}
+
+	public void reset(long pageNum) {
+		Unsafe.UNSAFE.putIntVolatile(null, getAddress(pageNum), 0);
+	}
+
+	/**
+	 * Exponential decay, decrement of the Morris counter halves the estimated hits.
+	 * Counters are not touched, every one of them is decremented lazily on the next read.
+	 */
+
+	public synchronized void decay() {
+		epoch = (epoch + 1) & EPOCH_MASK;
+	}
+
+	private static int getCounter(int cell, int currentEpoch) {
+		int counter = cell & COUNTER_MASK;
+		int elapsed = (currentEpoch - (cell >>> COUNTER_BITS)) & EPOCH_MASK;
+		return elapsed < counter ? counter - elapsed : 0;
+	}
+
+	public synchronized void free() {
+		long[] oldChunks = this.chunks;
+		if (oldChunks != null) {
+			this.capacity = 0;
+			this.chunks = null;
+			for (int i = 0; i != oldChunks.length; ++i) {
+				Unsafe.UNSAFE.freeMemory(oldChunks[i]);
+			}
+		}
+	}
+
+	private long getAddress(long pageNum) {
+		if (pageNum < 0 || pageNum >= capacity) {
+			throw new IndexOutOfBoundsException("PageNum: " + pageNum + ", Capacity: " + capacity);
+		}
+		return chunks[(int) (pageNum >>> chunkShift)] + ((pageNum & chunkMask) << CELL_SHIFT);
+	}
+
+}
@@ -0,0 +1,111 @@
+package alt.termos.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the import, counters are read by any thread while the import runs
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public final class ImportStatistics {
+
+	public enum Stage {
+		READ, MERGE, DONE;
+	}
+	
+	private volatile Stage stage = Stage.READ;
+	private final long startTime = System.nanoTime();
+	private volatile long stageStartTime = startTime;
+	private volatile long endTime;
+	
+	private final AtomicLong readEntries = new AtomicLong();
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong spilledEntries = new AtomicLong();
+	private final AtomicLong mergedEntries = new AtomicLong();
+	private final AtomicLong loadedEntries = new AtomicLong();
+	
+	void startMerge() {
+		stageStartTime = System.nanoTime();
+		stage = Stage.MERGE;
+	}
+	
+	void done() {
+		endTime = System.nanoTime();
+		stage = Stage.DONE;
+	}
+	
+	void read() {
+		readEntries.lazySet(readEntries.get() + 1);
+	}
+	
+	void spilled(long entries) {
+		runs.incrementAndGet();
+		spilledEntries.addAndGet(entries);
+	}
+	
+	void merged(long entries) {
+		mergedEntries.addAndGet(entries);
+	}
+	
+	void loaded(long entries) {
+		loadedEntries.addAndGet(entries);
+	}
+	
+	public Stage getStage() {
+		return stage;
+	}
+	
+	public long getReadEntries() {
+		return readEntries.get();
+	}
+
+	public long getRuns() {
+		return runs.get();
+	}
+
+	public long getSpilledEntries() {
+		return spilledEntries.get();
+	}
+
+	public long getMergedEntries() {
+		return mergedEntries.get();
+	}
+
+	/**
+	 * 
+	 * @return entries appended to the tree, duplicates are not counted
+	 */
+	
+	public long getLoadedEntries() {
+		return loadedEntries.get();
+	}
+	
+	public long getElapsedMillis() {
+		long end = stage == Stage.DONE ? endTime : System.nanoTime();
+		return (end - startTime) / 1000000L;
+	}
+	
+	/**
+	 * 
+	 * @return entries per second of the current stage, read or merged
+	 */
+	
+	public double getThroughput() {
+		Stage s = stage;
+		long end = s == Stage.DONE ? endTime : System.nanoTime();
+		long entries = s == Stage.READ ? getReadEntries() : getMergedEntries();
+		long nanos = end - (s == Stage.READ ? startTime : stageStartTime);
+		return nanos == 0 ? 0.0 : entries * 1e9 / nanos;
+	}
+
+	@Override
+	public String toString() {
+		return "ImportStatistics [stage=" + stage + ", readEntries=" + readEntries
+				+ ", runs=" + runs + ", spilledEntries=" + spilledEntries
+				+ ", mergedEntries=" + mergedEntries + ", loadedEntries=" + loadedEntries
+				+ ", throughput=" + (long) getThroughput() + "]";
+	}
+	
+}
@@ -0,0 +1,300 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.MapFileMode;
+import alt.termos.util.PageSizeUtil;
+import alt.termos.util.ParallelSort;
+import alt.termos.util.Unsafe;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ * Import of unsorted entries larger than the heap into the empty long-long tree.
+ *
+ * Entries are collected in the run buffer, the full buffer is sorted by all cores and spilled
+ * to the temporary mapped file in the background, while the next buffer is filled.
+ * Runs are k-way merged straight into the bulk load of the tree, the last added value of the key wins.
+ *
+ * Importer is not thread-safe, statistics can be read from any thread.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class LongLongImporter {
+
+	private static final long ENTRY_SIZE = 16;
+	private static final int STATISTICS_BATCH = 4096;
+
+	private final PagedLongLongBPlusTree tree;
+	private final File directory;
+	private final int runLength;
+	private final ForkJoinPool pool;
+	private final ImportStatistics statistics = new ImportStatistics();
+
+	private long[] keys;
+	private long[] values;
+	private long[] spareKeys;
+	private long[] spareValues;
+	private int length;
+
+	private final List<Run> runs = new ArrayList<Run>();
+	private ForkJoinTask<?> spill;
+
+	/**
+	 *
+	 * @param tree - empty tree
+	 * @param directory - directory of the temporary run files
+	 * @param runLength - entries in the run, two runs are kept in the heap
+	 * @param pool - pool of the sort
+	 */
+
+	public LongLongImporter(PagedLongLongBPlusTree tree, File directory, int runLength, ForkJoinPool pool) {
+		Arguments.notNull(tree);
+		Arguments.notNull(directory);
+		Arguments.greater(runLength, 0);
+		Arguments.notNull(pool);
+		if (!tree.isEmpty()) {
+			throw new IllegalStateException("import needs the empty tree");
+		}
+		this.tree = tree;
+		this.directory = directory;
+		this.runLength = runLength;
+		this.pool = pool;
+		this.keys = new long[runLength];
+		this.values = new long[runLength];
+		this.spareKeys = new long[runLength];
+		this.spareValues = new long[runLength];
+	}
+
+	public ImportStatistics getStatistics() {
+		return statistics;
+	}
+
+	public void add(long key, long value) {
+		if (statistics.getStage() != ImportStatistics.Stage.READ) {
+			throw new IllegalStateException("import is finished");
+		}
+		if (length == runLength) {
+			spillRun();
+		}
+		keys[length] = key;
+		values[length] = value;
+		length++;
+		statistics.read();
+	}
+
+	/**
+	 * Merges runs into the tree
+	 *
+	 * @param fillFactor - fill of pages of the tree
+	 */
+
+	public void finish(double fillFactor) {
+		if (statistics.getStage() != ImportStatistics.Stage.READ) {
+			throw new IllegalStateException("import is finished");
+		}
+		if (length != 0) {
+			spillRun();
+		}
+		awaitSpill();
+		statistics.startMerge();
+		try {
+			tree.beginLoad(fillFactor);
+			merge();
+			tree.endLoad();
+		}
+		finally {
+			close();
+		}
+		statistics.done();
+	}
+
+	/**
+	 * Deletes run files
+	 */
+
+	public void close() {
+		if (spill != null) {
+			try {
+				spill.join();
+			}
+			catch(RuntimeException e) {
+				// file is closed by the task
+			}
+			spill = null;
+		}
+		for (Run run : runs) {
+			run.close();
+		}
+		runs.clear();
+	}
+
+	/*
+	 * Spill of the previous run must complete before its buffer is reused
+	 */
+
+	private void spillRun() {
+		awaitSpill();
+		final long[] runKeys = keys;
+		final long[] runValues = values;
+		final int runLength = length;
+		spill = pool.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				ParallelSort.sort(runKeys, runValues, runLength, pool);
+				synchronized (runs) {
+					runs.add(new Run(runs.size(), directory, runKeys, runValues, runLength));
+				}
+				statistics.spilled(runLength);
+			}
+
+		});
+		keys = spareKeys;
+		values = spareValues;
+		spareKeys = runKeys;
+		spareValues = runValues;
+		length = 0;
+	}
+
+	private void awaitSpill() {
+		if (spill != null) {
+			ForkJoinTask<?> task = spill;
+			spill = null;
+			task.join();
+		}
+	}
+
+	/*
+	 * Heap of runs ordered by the current key and the number of the run, so equal keys come in the order of adding,
+	 * runs are spilled one by one, so the number of the run is its position in the list
+	 */
+
+	private void merge() {
+		int count = runs.size();
+		Run[] heap = runs.toArray(new Run[count]);
+		for (int i = count / 2 - 1; i >= 0; --i) {
+			siftDown(heap, i, count);
+		}
+
+		boolean pending = false;
+		long pendingKey = 0;
+		long pendingValue = 0;
+		long merged = 0;
+		long loaded = 0;
+		while (count != 0) {
+			Run run = heap[0];
+			long key = run.key();
+			long value = run.value();
+			if (pending && key == pendingKey) {
+				pendingValue = value;
+			}
+			else {
+				if (pending) {
+					tree.append(pendingKey, pendingValue);
+					loaded++;
+				}
+				pending = true;
+				pendingKey = key;
+				pendingValue = value;
+			}
+			if (!run.next()) {
+				heap[0] = heap[--count];
+			}
+			siftDown(heap, 0, count);
+			if (++merged % STATISTICS_BATCH == 0) {
+				statistics.merged(STATISTICS_BATCH);
+				statistics.loaded(loaded);
+				loaded = 0;
+			}
+		}
+		if (pending) {
+			tree.append(pendingKey, pendingValue);
+			loaded++;
+		}
+		statistics.merged(merged % STATISTICS_BATCH);
+		statistics.loaded(loaded);
+	}
+
+	private static void siftDown(Run[] heap, int i, int count) {
+		Run run = heap[i];
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= count) {
+				break;
+			}
+			if (child + 1 < count && heap[child + 1].lessThan(heap[child])) {
+				child++;
+			}
+			if (!heap[child].lessThan(run)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = run;
+	}
+
+	/*
+	 * Sorted run in the temporary file, key and value are interleaved
+	 */
+
+	private static final class Run {
+
+		private final int number;
+		private final File file;
+		private final UnsafeMemoryMappedFile mmf;
+		private final long end;
+		private long address;
+
+		Run(int number, File directory, long[] keys, long[] values, int length) {
+			this.number = number;
+			try {
+				this.file = File.createTempFile("termos-run", ".tmp", directory);
+				this.mmf = new UnsafeMemoryMappedFile(file.getPath(), MapFileMode.READ_WRITE, PageSizeUtil.alignBottom(length * ENTRY_SIZE));
+			}
+			catch(Exception e) {
+				throw new IllegalStateException("can not create run file in " + directory, e);
+			}
+			this.address = mmf.getAddress();
+			this.end = address + length * ENTRY_SIZE;
+			for (int i = 0; i != length; ++i) {
+				long entryAddress = address + i * ENTRY_SIZE;
+				Unsafe.UNSAFE.putLong(entryAddress, keys[i]);
+				Unsafe.UNSAFE.putLong(entryAddress + 8, values[i]);
+			}
+		}
+
+		long key() {
+			return Unsafe.UNSAFE.getLong(address);
+		}
+
+		long value() {
+			return Unsafe.UNSAFE.getLong(address + 8);
+		}
+
+		boolean next() {
+			address += ENTRY_SIZE;
+			return address != end;
+		}
+
+		boolean lessThan(Run other) {
+			long key = key();
+			long otherKey = other.key();
+			return key < otherKey || (key == otherKey && number < other.number);
+		}
+
+		void close() {
+			mmf.close();
+			file.delete();
+		}
+
+	}
+
+}
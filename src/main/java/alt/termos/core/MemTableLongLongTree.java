@@ -0,0 +1,265 @@
+package alt.termos.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import alt.termos.util.Arguments;
+
+/**
+ * Concurrent sorted memtable in front of the long/long tree, as the first level of the LSM-tree.
+ *
+ * Writes go to the active memtable and never touch pages. Full memtable is frozen and merged into the tree
+ * by the background thread in the order of keys, so page splits are paid by that thread, not by writers.
+ * Get looks up the active memtable, frozen memtables from the newest and the tree by getConcurrent(),
+ * the background thread is the only writer of the tree.
+ *
+ * Writes are blind: put and remove do not return the previous value.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class MemTableLongLongTree {
+
+	/*
+	 * Remove is the message in the memtable, values are Long otherwise
+	 */
+
+	private static final Object TOMBSTONE = new Object();
+
+	private final PagedLongLongBPlusTree tree;
+	private final int memTableSize;
+	private final int maxFrozen;
+	private final ExecutorService executor;
+
+	/*
+	 * Writers share the lock, freeze takes it exclusively, so no write goes to the frozen memtable
+	 */
+
+	private final ReadWriteLock freezeLock = new ReentrantReadWriteLock();
+	private volatile ConcurrentSkipListMap<Long, Object> active = new ConcurrentSkipListMap<Long, Object>();
+	private final AtomicInteger activeSize = new AtomicInteger();
+
+	/*
+	 * Frozen memtables from the newest, list is replaced on change
+	 */
+
+	private final Object frozenLock = new Object();
+	private volatile List<ConcurrentNavigableMap<Long, Object>> frozen = Collections.emptyList();
+
+	private final Runnable mergeTask = new Runnable() {
+
+		@Override
+		public void run() {
+			mergeFrozen();
+		}
+
+	};
+
+	private volatile RuntimeException lastError;
+
+	/**
+	 *
+	 * @param tree - tree, it is changed only by the merge thread after this call
+	 * @param memTableSize - number of keys in the memtable that freezes it
+	 * @param maxFrozen - number of frozen memtables, writer waits for the merge if there are more
+	 */
+
+	public MemTableLongLongTree(PagedLongLongBPlusTree tree, int memTableSize, int maxFrozen) {
+		Arguments.notNull(tree);
+		Arguments.greater(memTableSize, 0);
+		Arguments.greater(maxFrozen, 0);
+		this.tree = tree;
+		this.memTableSize = memTableSize;
+		this.maxFrozen = maxFrozen;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "termos-memtable");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+	public long get(long key) {
+		Object value = active.get(key);
+		if (value == null) {
+			for (ConcurrentNavigableMap<Long, Object> memTable : frozen) {
+				value = memTable.get(key);
+				if (value != null) {
+					break;
+				}
+			}
+		}
+		if (value == null) {
+			return tree.getConcurrent(key);
+		}
+		return value != TOMBSTONE ? (Long) value : tree.getNoEntryValue();
+	}
+
+	public void put(long key, long value) {
+		write(key, value);
+	}
+
+	public void remove(long key) {
+		write(key, TOMBSTONE);
+	}
+
+	private void write(long key, Object value) {
+		boolean full;
+		freezeLock.readLock().lock();
+		try {
+			full = active.put(key, value) == null && activeSize.incrementAndGet() >= memTableSize;
+		}
+		finally {
+			freezeLock.readLock().unlock();
+		}
+		if (full) {
+			freeze();
+		}
+	}
+
+	/**
+	 * Freezes the active memtable and schedules the merge, waits for the merge if too many memtables are frozen
+	 *
+	 * @return future of the merge
+	 */
+
+	public Future<?> freeze() {
+		freezeLock.writeLock().lock();
+		try {
+			if (!active.isEmpty()) {
+				synchronized (frozenLock) {
+					List<ConcurrentNavigableMap<Long, Object>> list = new ArrayList<ConcurrentNavigableMap<Long, Object>>(frozen.size() + 1);
+					list.add(active);
+					list.addAll(frozen);
+					frozen = list;
+				}
+				active = new ConcurrentSkipListMap<Long, Object>();
+				activeSize.set(0);
+			}
+		}
+		finally {
+			freezeLock.writeLock().unlock();
+		}
+		Future<?> future = executor.submit(mergeTask);
+		if (frozen.size() > maxFrozen) {
+			await(future);
+		}
+		return future;
+	}
+
+	/*
+	 * Memtable leaves the list only after it is merged, so get finds the key either in it or in the tree
+	 */
+
+	private void mergeFrozen() {
+		try {
+			for (;;) {
+				List<ConcurrentNavigableMap<Long, Object>> list = frozen;
+				if (list.isEmpty()) {
+					return;
+				}
+				ConcurrentNavigableMap<Long, Object> oldest = list.get(list.size() - 1);
+				for (Map.Entry<Long, Object> entry : oldest.entrySet()) {
+					Object value = entry.getValue();
+					if (value == TOMBSTONE) {
+						tree.remove(entry.getKey());
+					}
+					else {
+						tree.put(entry.getKey(), (Long) value);
+					}
+				}
+				synchronized (frozenLock) {
+					List<ConcurrentNavigableMap<Long, Object>> rest = new ArrayList<ConcurrentNavigableMap<Long, Object>>(frozen);
+					rest.remove(rest.size() - 1);
+					frozen = rest;
+				}
+			}
+		}
+		catch(RuntimeException e) {
+			lastError = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Merges all written entries into the tree
+	 */
+
+	public void flush() {
+		await(freeze());
+	}
+
+	/**
+	 * Merges all written entries and commits the tree in the merge thread
+	 *
+	 * @return sequence of the commit
+	 */
+
+	public long commit() {
+		flush();
+		Future<Long> future = executor.submit(new Callable<Long>() {
+
+			@Override
+			public Long call() {
+				return tree.commit();
+			}
+
+		});
+		return await(future);
+	}
+
+	private <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted", e);
+		}
+		catch(ExecutionException e) {
+			throw new IllegalStateException("merge failed", e.getCause());
+		}
+	}
+
+	public int getActiveSize() {
+		return activeSize.get();
+	}
+
+	public int getFrozenCount() {
+		return frozen.size();
+	}
+
+	public RuntimeException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Merges all written entries and stops the thread, tree can be used directly after it
+	 */
+
+	public void close() throws InterruptedException {
+		flush();
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -1,6 +1,9 @@
 package alt.termos.core;
 
+import java.util.zip.CRC32;
+
 import alt.termos.util.Arguments;
+import alt.termos.util.SegmentedMemoryMappedFile;
 import alt.termos.util.Unsafe;
 import alt.termos.util.UnsafeMemoryMappedFile;
 
@@ -15,7 +18,7 @@ public class MetaPage {
 	public static final long MAGIC_OFFSET = 0;
 	public static final long MAGIC_SIZE = 4;
 	
-	public static final int DEFAULT_VERSION = 0x100;
+	public static final int DEFAULT_VERSION = 0x105;
 	public static final long VERSION_OFFSET = MAGIC_OFFSET + MAGIC_SIZE;
 	public static final long VERSION_SIZE = 4;
 	
@@ -23,38 +26,134 @@ public class MetaPage {
 	public static final long DISK_PAGESIZE_OFFSET = VERSION_OFFSET + VERSION_SIZE;
 	public static final long DISK_PAGESIZE_SIZE = 4;
 	
-	public static final long REVERVED1_OFFSET = DISK_PAGESIZE_OFFSET + DISK_PAGESIZE_SIZE;
-	public static final long RESERVED1_SIZE = 4;
+	/*
+	 * Number of temperature buckets, it is the length of free and leaf head arrays
+	 */
+
+	public static final int DEFAULT_TEMPERATURE_BUCKETS = 8;
+	public static final int MAX_TEMPERATURE_BUCKETS = 16;
+	public static final long TEMPERATURE_BUCKETS_OFFSET = DISK_PAGESIZE_OFFSET + DISK_PAGESIZE_SIZE;
+	public static final long TEMPERATURE_BUCKETS_SIZE = 4;
+	
+	/*
+	 * Number of leaf levels, leaf lists are indexed by k (distance from the root node), deeper leafs share the last level
+	 */
+
+	public static final int DEFAULT_LEAF_LEVELS = 8;
+	public static final int MAX_LEAF_LEVELS = 16;
+	public static final long LEAF_LEVELS_OFFSET = TEMPERATURE_BUCKETS_OFFSET + TEMPERATURE_BUCKETS_SIZE;
+	public static final long LEAF_LEVELS_SIZE = 4;
+
+	/*
+	 * Flags of the file, in the cache mode full file evicts coldest leaf pages instead of failing 
+	 * With checksums flushed pages keep CRC32C in the header and it is verified on the first touch after open,
+	 * complete checksums mean that every allocated page was checksummed, so the page without the checksum is corrupted
+	 * With sampled counters hits are counted in the off-heap array instead of the page header
+	 */
 	
+	public static final int DEFAULT_FLAGS = 0;
+	public static final int CACHE_MODE_FLAG = 0x1;
+	public static final int CHECKSUMS_FLAG = 0x2;
+	public static final int SAMPLED_COUNTERS_FLAG = 0x4;
+	public static final int CHECKSUMS_COMPLETE_FLAG = 0x8;
+	public static final long FLAGS_OFFSET = LEAF_LEVELS_OFFSET + LEAF_LEVELS_SIZE;
+	public static final long FLAGS_SIZE = 4;
+
 	public static final long DEFAULT_NEXTNEW_PAGE = 1;
-	public static final long NEXTNEW_PAGE_OFFSET = REVERVED1_OFFSET + RESERVED1_SIZE;
+	public static final long NEXTNEW_PAGE_OFFSET = FLAGS_OFFSET + FLAGS_SIZE;
 	public static final long NEXTNEW_PAGE_SIZE = 8; 
 
 	/*
-	 * Needs to be an array of linked lists. Hot, medium, cold and so on. Length of this array can be configurable.
-	 * Not need to be a very big array. Tail of the hot linked list can have the same temperature as a head of cold linked list.
-	 * 
-	 * TODO: implement this as a simple array, group of temperature/hit counter is an index  
+	 * Array of linked lists of free pages. Hot, medium, cold and so on, group of temperature/hit counter is an index.
+	 * Length of this array is configurable by temperature buckets, but space is reserved for MAX_TEMPERATURE_BUCKETS.
+	 * Tail of the hot linked list can have the same temperature as a head of cold linked list.
 	 */
 	
 	public static final long DEFAULT_FREEHEAD_PAGE = 0;
 	public static final long FREEHEAD_PAGE_OFFSET = NEXTNEW_PAGE_OFFSET + NEXTNEW_PAGE_SIZE;
 	public static final long FREEHEAD_PAGE_SIZE = 8; 
+	public static final long FREEHEADS_SIZE = FREEHEAD_PAGE_SIZE * MAX_TEMPERATURE_BUCKETS;
 
 	/*
-	 * Needs to be an array of linked lists, each element has different k (distance from the root node)
-	 * 
-	 * TODO: implement this as a simple array, k is an index
+	 * Free head is a stamped page number: lower bits keep the page number, upper bits keep ABA stamp.
+	 * Stamp is incremented on each successful CAS, so pop/push races on the same head page are detected. 
+	 */
+	
+	public static final int PAGE_NUM_BITS = 40;
+	public static final long PAGE_NUM_MASK = (1L << PAGE_NUM_BITS) - 1L;
+	public static final long STAMP_UNIT = 1L << PAGE_NUM_BITS;
+
+	/*
+	 * Two dimensional array of linked lists of leaf pages, k (distance from the root node) is a row index, 
+	 * group of temperature/hit counter is a column index. Row has the length of MAX_TEMPERATURE_BUCKETS.
 	 */
 	
 	public static final long DEFAULT_LEAFHEAD_PAGE = 0;
-	public static final long LEAFHEAD_PAGE_OFFSET = FREEHEAD_PAGE_OFFSET + FREEHEAD_PAGE_SIZE;
+	public static final long LEAFHEAD_PAGE_OFFSET = FREEHEAD_PAGE_OFFSET + FREEHEADS_SIZE;
 	public static final long LEAFHEAD_PAGE_SIZE = 8; 
+	public static final long LEAFHEADS_SIZE = LEAFHEAD_PAGE_SIZE * MAX_TEMPERATURE_BUCKETS * MAX_LEAF_LEVELS;
+
+	/*
+	 * Generation of leaf lists is kept in the list of every leaf page. Leaf lists are not committed,
+	 * so the restore of the commit starts the next generation and all leaf pages of the previous one are out of lists.
+	 */
+
+	public static final int DEFAULT_LEAF_GENERATION = 0;
+	public static final long LEAF_GENERATION_OFFSET = LEAFHEAD_PAGE_OFFSET + LEAFHEADS_SIZE;
+	public static final long LEAF_GENERATION_SIZE = 4;
+
+	/*
+	 * Two alternating commit slots of the shadow paging. Each slot is in its own 512-byte sector, but both are
+	 * in the meta page, msync writes the whole OS page and the committed slot is rewritten with the same bytes.
+	 * Committed slot survives the torn write only if the device writes sectors atomically, on the device
+	 * with larger physical sectors the torn write can damage both slots.
+	 * Valid slot with the greatest sequence is the committed state.
+	 * Slot keeps the state of the allocator, it is restored on open, so pages allocated after the commit are reused.
+	 */
 
+	public static final int COMMIT_SLOTS = 2;
+	public static final long COMMIT_SLOT_ALIGNMENT = 512;
+	public static final long COMMIT_SLOT_OFFSET = (LEAF_GENERATION_OFFSET + LEAF_GENERATION_SIZE + COMMIT_SLOT_ALIGNMENT - 1) & ~(COMMIT_SLOT_ALIGNMENT - 1);
 
+	public static final long COMMIT_SEQUENCE_OFFSET = 0;
+	public static final long COMMIT_SEQUENCE_SIZE = 8;
+	public static final long COMMIT_ROOT_PAGE_OFFSET = COMMIT_SEQUENCE_OFFSET + COMMIT_SEQUENCE_SIZE;
+	public static final long COMMIT_ROOT_PAGE_SIZE = 8;
+	public static final long COMMIT_NEXTNEW_PAGE_OFFSET = COMMIT_ROOT_PAGE_OFFSET + COMMIT_ROOT_PAGE_SIZE;
+	public static final long COMMIT_NEXTNEW_PAGE_SIZE = 8;
+	public static final long COMMIT_FREEHEAD_PAGE_OFFSET = COMMIT_NEXTNEW_PAGE_OFFSET + COMMIT_NEXTNEW_PAGE_SIZE;
+	public static final long COMMIT_FREEHEADS_SIZE = FREEHEADS_SIZE;
+	public static final long COMMIT_USER_DATA_OFFSET = COMMIT_FREEHEAD_PAGE_OFFSET + COMMIT_FREEHEADS_SIZE;
+	public static final long COMMIT_USER_DATA_SIZE = 8;
+	public static final long COMMIT_CHECKSUM_OFFSET = COMMIT_USER_DATA_OFFSET + COMMIT_USER_DATA_SIZE;
+	public static final long COMMIT_CHECKSUM_SIZE = 4;
 
-	public static final long LAST_OFFSET = LEAFHEAD_PAGE_OFFSET + LEAFHEAD_PAGE_SIZE;
+	public static final int NO_COMMIT_SLOT = -1;
+
+	public static final long LAST_OFFSET = COMMIT_SLOT_OFFSET + COMMIT_SLOT_ALIGNMENT * COMMIT_SLOTS;
 	
+	/*
+	 * Checksum of the slot is computed on every commit and every check of the slot, buffers are reused
+	 */
+
+	private static final ThreadLocal<CRC32> COMMIT_CRC = new ThreadLocal<CRC32>() {
+
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+
+	};
+
+	private static final ThreadLocal<byte[]> COMMIT_BUFFER = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[(int) COMMIT_CHECKSUM_OFFSET];
+		}
+
+	};
+
 	private final long address;
 	private final long fileSize;
 	
@@ -65,6 +164,18 @@ public class MetaPage {
 		this.address = mmf.getAddress();
 		this.fileSize = mmf.getSize();
 	}
+
+	/*
+	 * Meta page is always in the first segment, file size is the size at the moment of opening
+	 */
+
+	public MetaPage(SegmentedMemoryMappedFile smf) {
+		Arguments.notNull(smf);
+		Arguments.greater(smf.getSegmentSize(), LAST_OFFSET);
+
+		this.address = smf.getAddress();
+		this.fileSize = smf.getSize();
+	}
 	
 	public long getAddress() {
 		return address;
@@ -98,6 +209,65 @@ public class MetaPage {
 		Unsafe.UNSAFE.putInt(address + DISK_PAGESIZE_OFFSET, (int) diskPageSize);
 	}
 	
+	public int getTemperatureBuckets() {
+		return Unsafe.UNSAFE.getInt(address + TEMPERATURE_BUCKETS_OFFSET);
+	}
+
+	public void setTemperatureBuckets(int temperatureBuckets) {
+		Unsafe.UNSAFE.putInt(address + TEMPERATURE_BUCKETS_OFFSET, temperatureBuckets);
+	}
+
+	public int getLeafLevels() {
+		return Unsafe.UNSAFE.getInt(address + LEAF_LEVELS_OFFSET);
+	}
+
+	public void setLeafLevels(int leafLevels) {
+		Unsafe.UNSAFE.putInt(address + LEAF_LEVELS_OFFSET, leafLevels);
+	}
+
+	public int getFlags() {
+		return Unsafe.UNSAFE.getInt(address + FLAGS_OFFSET);
+	}
+
+	public void setFlags(int flags) {
+		Unsafe.UNSAFE.putInt(address + FLAGS_OFFSET, flags);
+	}
+
+	public boolean isCacheMode() {
+		return (getFlags() & CACHE_MODE_FLAG) != 0;
+	}
+
+	public void setCacheMode(boolean cacheMode) {
+		int flags = getFlags();
+		setFlags(cacheMode ? flags | CACHE_MODE_FLAG : flags & ~CACHE_MODE_FLAG);
+	}
+
+	public boolean isChecksums() {
+		return (getFlags() & CHECKSUMS_FLAG) != 0;
+	}
+
+	public void setChecksums(boolean checksums) {
+		int flags = getFlags();
+		setFlags(checksums ? flags | CHECKSUMS_FLAG : flags & ~(CHECKSUMS_FLAG | CHECKSUMS_COMPLETE_FLAG));
+	}
+
+	public boolean isChecksumsComplete() {
+		return (getFlags() & CHECKSUMS_COMPLETE_FLAG) != 0;
+	}
+
+	public void setChecksumsComplete() {
+		setFlags(getFlags() | CHECKSUMS_COMPLETE_FLAG);
+	}
+
+	public boolean isSampledCounters() {
+		return (getFlags() & SAMPLED_COUNTERS_FLAG) != 0;
+	}
+
+	public void setSampledCounters(boolean sampledCounters) {
+		int flags = getFlags();
+		setFlags(sampledCounters ? flags | SAMPLED_COUNTERS_FLAG : flags & ~SAMPLED_COUNTERS_FLAG);
+	}
+
 	public long getNextNewPage() {
 		return Unsafe.UNSAFE.getLong(address + NEXTNEW_PAGE_OFFSET);
 	}
@@ -106,31 +276,197 @@ public class MetaPage {
 		Unsafe.UNSAFE.putLong(address + NEXTNEW_PAGE_OFFSET, pageNum);
 	}
 
-	public long getFreeHeadPage() {
-		return Unsafe.UNSAFE.getLong(address + FREEHEAD_PAGE_OFFSET);
+	public boolean compareAndSetNextNewPage(long expectedPageNum, long pageNum) {
+		return Unsafe.UNSAFE.compareAndSwapLong(null, address + NEXTNEW_PAGE_OFFSET, expectedPageNum, pageNum);
 	}
 	
-	public void setFreeHeadPage(long pageNum) {
-		Unsafe.UNSAFE.putLong(address + FREEHEAD_PAGE_OFFSET, pageNum);
+	public long getNextNewPageVolatile() {
+		return Unsafe.UNSAFE.getLongVolatile(null, address + NEXTNEW_PAGE_OFFSET);
 	}
 
-	public long getLeafHeadPage() {
-		return Unsafe.UNSAFE.getLong(address + LEAFHEAD_PAGE_OFFSET);
+	public long getFreeHeadPage(int bucket) {
+		return getFreeHead(bucket) & PAGE_NUM_MASK;
 	}
 	
-	public void setLeafHeadPage(long pageNum) {
-		Unsafe.UNSAFE.putLong(address + LEAFHEAD_PAGE_OFFSET, pageNum);
+	public void setFreeHeadPage(int bucket, long pageNum) {
+		Unsafe.UNSAFE.putLongVolatile(null, freeHeadAddress(bucket), pageNum & PAGE_NUM_MASK);
+	}
+
+	public long getFreeHead(int bucket) {
+		return Unsafe.UNSAFE.getLongVolatile(null, freeHeadAddress(bucket));
+	}
+
+	public boolean compareAndSetFreeHead(int bucket, long expectedHead, long pageNum) {
+		return Unsafe.UNSAFE.compareAndSwapLong(null, freeHeadAddress(bucket), expectedHead, nextStamp(expectedHead, pageNum));
+	}
+	
+	public static long nextStamp(long head, long pageNum) {
+		return ((head & ~PAGE_NUM_MASK) + STAMP_UNIT) | (pageNum & PAGE_NUM_MASK);
+	}
+
+	private long freeHeadAddress(int bucket) {
+		return address + FREEHEAD_PAGE_OFFSET + bucket * FREEHEAD_PAGE_SIZE;
+	}
+	
+	public long getLeafHeadPage(int list) {
+		return Unsafe.UNSAFE.getLongVolatile(null, leafHeadAddress(list));
+	}
+
+	public void setLeafHeadPage(int list, long pageNum) {
+		Unsafe.UNSAFE.putLongVolatile(null, leafHeadAddress(list), pageNum);
+	}
+
+	public int getLeafGeneration() {
+		return Unsafe.UNSAFE.getInt(address + LEAF_GENERATION_OFFSET);
+	}
+
+	public void setLeafGeneration(int leafGeneration) {
+		Unsafe.UNSAFE.putInt(address + LEAF_GENERATION_OFFSET, leafGeneration);
+	}
+
+	public static int getLeafList(int level, int bucket) {
+		return level * MAX_TEMPERATURE_BUCKETS + bucket;
+	}
+	
+	private long leafHeadAddress(int list) {
+		return address + LEAFHEAD_PAGE_OFFSET + list * LEAFHEAD_PAGE_SIZE;
+	}
+
+	public static long getCommitSlotOffset(int slot) {
+		return COMMIT_SLOT_OFFSET + slot * COMMIT_SLOT_ALIGNMENT;
+	}
+
+	private long commitSlotAddress(int slot) {
+		return address + getCommitSlotOffset(slot);
+	}
+
+	public long getCommitSequence(int slot) {
+		return Unsafe.UNSAFE.getLong(commitSlotAddress(slot) + COMMIT_SEQUENCE_OFFSET);
+	}
+
+	public long getCommitRootPage(int slot) {
+		return Unsafe.UNSAFE.getLong(commitSlotAddress(slot) + COMMIT_ROOT_PAGE_OFFSET);
+	}
+
+	public long getCommitNextNewPage(int slot) {
+		return Unsafe.UNSAFE.getLong(commitSlotAddress(slot) + COMMIT_NEXTNEW_PAGE_OFFSET);
+	}
+
+	public long getCommitFreeHeadPage(int slot, int bucket) {
+		return Unsafe.UNSAFE.getLong(commitSlotAddress(slot) + COMMIT_FREEHEAD_PAGE_OFFSET + bucket * FREEHEAD_PAGE_SIZE);
+	}
+
+	public long getCommitUserData(int slot) {
+		return Unsafe.UNSAFE.getLong(commitSlotAddress(slot) + COMMIT_USER_DATA_OFFSET);
+	}
+
+	public boolean isCommitValid(int slot) {
+		long slotAddress = commitSlotAddress(slot);
+		return getCommitSequence(slot) != 0 && Unsafe.UNSAFE.getInt(slotAddress + COMMIT_CHECKSUM_OFFSET) == commitChecksum(slotAddress);
+	}
+
+	/**
+	 * Committed slot is the valid one with the greatest sequence, torn slot is ignored
+	 *
+	 * @return slot or NO_COMMIT_SLOT if nothing was committed
+	 */
+
+	public int getCommittedSlot() {
+		int committed = NO_COMMIT_SLOT;
+		for (int slot = 0; slot != COMMIT_SLOTS; ++slot) {
+			if (isCommitValid(slot) && (committed == NO_COMMIT_SLOT || getCommitSequence(slot) > getCommitSequence(committed))) {
+				committed = slot;
+			}
+		}
+		return committed;
+	}
+
+	/**
+	 * Writes the next commit to the slot that is not committed, so the committed one is never overwritten
+	 *
+	 * @param rootPage - new root page
+	 * @param nextNewPage - next new page at the moment of the commit
+	 * @param freeHeadPages - heads of free lists at the moment of the commit, one per temperature bucket
+	 * @param userData - owner data, for example number of entries
+	 * @return written slot, caller flushes it
+	 */
+
+	public int writeCommit(long rootPage, long nextNewPage, long[] freeHeadPages, long userData) {
+		Arguments.greaterOrEquals(MAX_TEMPERATURE_BUCKETS, freeHeadPages.length);
+		int committed = getCommittedSlot();
+		int slot = committed == NO_COMMIT_SLOT ? 0 : (committed + 1) % COMMIT_SLOTS;
+		long sequence = committed == NO_COMMIT_SLOT ? 1 : getCommitSequence(committed) + 1;
+
+		long slotAddress = commitSlotAddress(slot);
+		Unsafe.UNSAFE.putLong(slotAddress + COMMIT_SEQUENCE_OFFSET, sequence);
+		Unsafe.UNSAFE.putLong(slotAddress + COMMIT_ROOT_PAGE_OFFSET, rootPage);
+		Unsafe.UNSAFE.putLong(slotAddress + COMMIT_NEXTNEW_PAGE_OFFSET, nextNewPage);
+		for (int i = 0; i != MAX_TEMPERATURE_BUCKETS; ++i) {
+			long pageNum = i < freeHeadPages.length ? freeHeadPages[i] : DEFAULT_FREEHEAD_PAGE;
+			Unsafe.UNSAFE.putLong(slotAddress + COMMIT_FREEHEAD_PAGE_OFFSET + i * FREEHEAD_PAGE_SIZE, pageNum & PAGE_NUM_MASK);
+		}
+		Unsafe.UNSAFE.putLong(slotAddress + COMMIT_USER_DATA_OFFSET, userData);
+		Unsafe.UNSAFE.putInt(slotAddress + COMMIT_CHECKSUM_OFFSET, commitChecksum(slotAddress));
+		return slot;
+	}
+
+	/**
+	 * Restores next new page and free heads of the commit, changes of the allocator after it are dropped.
+	 * Leaf lists are not committed, all of them are emptied and the next generation of lists is started.
+	 *
+	 * @param slot - committed slot
+	 * @return new generation of leaf lists, zero means that the generation wrapped around
+	 */
+
+	public int restoreCommit(int slot) {
+		setNextNewPage(getCommitNextNewPage(slot));
+		for (int i = 0; i != MAX_TEMPERATURE_BUCKETS; ++i) {
+			setFreeHeadPage(i, getCommitFreeHeadPage(slot, i));
+		}
+		for (int i = 0; i != MAX_TEMPERATURE_BUCKETS * MAX_LEAF_LEVELS; ++i) {
+			setLeafHeadPage(i, DEFAULT_LEAFHEAD_PAGE);
+		}
+		int leafGeneration = (getLeafGeneration() + 1) & NodePage.LIST_GENERATION_MASK;
+		setLeafGeneration(leafGeneration);
+		return leafGeneration;
+	}
+
+	private static int commitChecksum(long slotAddress) {
+		byte[] data = COMMIT_BUFFER.get();
+		Unsafe.UNSAFE.copyMemory(null, slotAddress, data, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET, data.length);
+		CRC32 crc = COMMIT_CRC.get();
+		crc.reset();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
 	}
 
 	public void formatNew(long diskPageSize) {
+		formatNew(diskPageSize, DEFAULT_TEMPERATURE_BUCKETS, DEFAULT_LEAF_LEVELS);
+	}
+
+	public void formatNew(long diskPageSize, int temperatureBuckets, int leafLevels) {
 		Arguments.greater(fileSize, diskPageSize);
+		Arguments.greater(diskPageSize, LAST_OFFSET);
 		Arguments.aligned(fileSize, diskPageSize);
+		Arguments.greater(temperatureBuckets, 0);
+		Arguments.greaterOrEquals(MAX_TEMPERATURE_BUCKETS, temperatureBuckets);
+		Arguments.greater(leafLevels, 0);
+		Arguments.greaterOrEquals(MAX_LEAF_LEVELS, leafLevels);
 		setMagic(MAGIC);
 		setVersion(DEFAULT_VERSION);
 		setDiskPageSize(diskPageSize);
+		setTemperatureBuckets(temperatureBuckets);
+		setLeafLevels(leafLevels);
+		setFlags(DEFAULT_FLAGS);
 		setNextNewPage(DEFAULT_NEXTNEW_PAGE);
-		setFreeHeadPage(DEFAULT_FREEHEAD_PAGE);
-		setLeafHeadPage(DEFAULT_LEAFHEAD_PAGE);
+		for (int i = 0; i != MAX_TEMPERATURE_BUCKETS; ++i) {
+			setFreeHeadPage(i, DEFAULT_FREEHEAD_PAGE);
+		}
+		for (int i = 0; i != MAX_TEMPERATURE_BUCKETS * MAX_LEAF_LEVELS; ++i) {
+			setLeafHeadPage(i, DEFAULT_LEAFHEAD_PAGE);
+		}
+		setLeafGeneration(DEFAULT_LEAF_GENERATION);
+		Unsafe.UNSAFE.setMemory(address + COMMIT_SLOT_OFFSET, COMMIT_SLOT_ALIGNMENT * COMMIT_SLOTS, (byte) 0);
 	}
 	
 	public boolean isNew() {
@@ -151,18 +487,50 @@ public class MetaPage {
 		Arguments.positive(diskPageSize);		
 		Arguments.pageAligned(diskPageSize);
 		Arguments.aligned(fileSize, diskPageSize);
+		Arguments.greaterOrEquals(PAGE_NUM_MASK, fileSize / diskPageSize);
 		
+		int temperatureBuckets = getTemperatureBuckets();
+		Arguments.greater(temperatureBuckets, 0);
+		Arguments.greaterOrEquals(MAX_TEMPERATURE_BUCKETS, temperatureBuckets);
+
+		int leafLevels = getLeafLevels();
+		Arguments.greater(leafLevels, 0);
+		Arguments.greaterOrEquals(MAX_LEAF_LEVELS, leafLevels);
+
 		long pageNum = getNextNewPage();
 		Arguments.positive(pageNum);
 		Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
 
-		pageNum = getFreeHeadPage();
-		Arguments.positive(pageNum);
-		Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+		for (int i = 0; i != temperatureBuckets; ++i) {
 
-		pageNum = getLeafHeadPage();
-		Arguments.positive(pageNum);
-		Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+			pageNum = getFreeHeadPage(i);
+			Arguments.positive(pageNum);
+			Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+
+			for (int level = 0; level != leafLevels; ++level) {
+				pageNum = getLeafHeadPage(getLeafList(level, i));
+				Arguments.positive(pageNum);
+				Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+			}
+
+		}
+
+		int committed = getCommittedSlot();
+		if (committed != NO_COMMIT_SLOT) {
+			pageNum = getCommitRootPage(committed);
+			Arguments.positive(pageNum);
+			Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+
+			pageNum = getCommitNextNewPage(committed);
+			Arguments.positive(pageNum);
+			Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+
+			for (int i = 0; i != temperatureBuckets; ++i) {
+				pageNum = getCommitFreeHeadPage(committed, i);
+				Arguments.positive(pageNum);
+				Arguments.greaterOrEquals(fileSize, pageNum * diskPageSize);
+			}
+		}
 
 	}
 }
@@ -1,5 +1,7 @@
 package alt.termos.core;
 
+import alt.termos.util.Unsafe;
+
 /**
  * 
  * @author Albert Shift
@@ -8,7 +10,7 @@ package alt.termos.core;
 public class NodePage {
 
 	/*
-	 * Next page reference is using for creating linked lists of free pages or leaf pages
+	 * Next page reference is using for creating linked lists of leaf pages
 	 */
 	
 	public static final long NEXT_PAGE_OFFSET = 0;
@@ -21,4 +23,124 @@ public class NodePage {
 	public static final long HIT_COUNTER_OFFSET = NEXT_PAGE_OFFSET + NEXT_PAGE_SIZE;
 	public static final long HIT_COUNTER_SIZE = 8; 
 
+	/*
+	 * Previous page reference, leaf lists are double linked, so the page can migrate between them in O(1)
+	 */
+
+	public static final long PREV_PAGE_OFFSET = HIT_COUNTER_OFFSET + HIT_COUNTER_SIZE;
+	public static final long PREV_PAGE_SIZE = 8;
+
+	/*
+	 * Index of the leaf list plus one, zero means that the page is not in any leaf list.
+	 * Upper bits keep the generation of leaf lists, the page of another generation is not in any leaf list.
+	 */
+
+	public static final int NO_LIST = 0;
+	public static final int LIST_INDEX_MASK = 0xFFFF;
+	public static final int LIST_GENERATION_SHIFT = 16;
+	public static final int LIST_GENERATION_MASK = 0xFFFF;
+	public static final long LIST_OFFSET = PREV_PAGE_OFFSET + PREV_PAGE_SIZE;
+	public static final long LIST_SIZE = 4;
+
+	/*
+	 * Leaf level is k (distance from the root node), it is a row of the leaf list
+	 */
+
+	public static final long LEVEL_OFFSET = LIST_OFFSET + LIST_SIZE;
+	public static final long LEVEL_SIZE = 4;
+
+	/*
+	 * Checksum of the page written at flush time, upper bits are the marker of the checksummed page,
+	 * so new pages that were never flushed are not verified
+	 */
+
+	public static final long CHECKSUM_MARKER = 0xC3C3C3C3L << 32;
+	public static final long CHECKSUM_OFFSET = LEVEL_OFFSET + LEVEL_SIZE;
+	public static final long CHECKSUM_SIZE = 8;
+
+	/*
+	 * Version latch of the page, see PageLatch. Aligned to 8 bytes for CAS
+	 */
+
+	public static final long VERSION_OFFSET = CHECKSUM_OFFSET + CHECKSUM_SIZE;
+	public static final long VERSION_SIZE = 8;
+
+	/*
+	 * Next page of the free list. It is a separate field, so the link of the committed free list survives
+	 * the reuse of the page as a leaf until the next commit, see PagedMemoryManager.commit
+	 */
+
+	public static final long FREE_PAGE_OFFSET = VERSION_OFFSET + VERSION_SIZE;
+	public static final long FREE_PAGE_SIZE = 8;
+
+	public static final long LAST_OFFSET = FREE_PAGE_OFFSET + FREE_PAGE_SIZE;
+
+	public static long getNextPage(long pageAddress) {
+		return Unsafe.UNSAFE.getLongVolatile(null, pageAddress + NEXT_PAGE_OFFSET);
+	}
+
+	public static void setNextPage(long pageAddress, long pageNum) {
+		Unsafe.UNSAFE.putLongVolatile(null, pageAddress + NEXT_PAGE_OFFSET, pageNum);
+	}
+
+	public static long getFreePage(long pageAddress) {
+		return Unsafe.UNSAFE.getLongVolatile(null, pageAddress + FREE_PAGE_OFFSET);
+	}
+
+	public static void setFreePage(long pageAddress, long pageNum) {
+		Unsafe.UNSAFE.putLongVolatile(null, pageAddress + FREE_PAGE_OFFSET, pageNum);
+	}
+
+	public static long getHitCounter(long pageAddress) {
+		return Unsafe.UNSAFE.getLong(pageAddress + HIT_COUNTER_OFFSET);
+	}
+
+	public static void setHitCounter(long pageAddress, long hits) {
+		Unsafe.UNSAFE.putLong(pageAddress + HIT_COUNTER_OFFSET, hits);
+	}
+
+	public static long getPrevPage(long pageAddress) {
+		return Unsafe.UNSAFE.getLong(pageAddress + PREV_PAGE_OFFSET);
+	}
+
+	public static void setPrevPage(long pageAddress, long pageNum) {
+		Unsafe.UNSAFE.putLong(pageAddress + PREV_PAGE_OFFSET, pageNum);
+	}
+
+	public static int getList(long pageAddress) {
+		return Unsafe.UNSAFE.getIntVolatile(null, pageAddress + LIST_OFFSET);
+	}
+
+	public static void setList(long pageAddress, int list) {
+		Unsafe.UNSAFE.putIntVolatile(null, pageAddress + LIST_OFFSET, list);
+	}
+
+	public static int getLevel(long pageAddress) {
+		return Unsafe.UNSAFE.getInt(pageAddress + LEVEL_OFFSET);
+	}
+
+	public static void setLevel(long pageAddress, int level) {
+		Unsafe.UNSAFE.putInt(pageAddress + LEVEL_OFFSET, level);
+	}
+
+	public static long getChecksum(long pageAddress) {
+		return Unsafe.UNSAFE.getLong(pageAddress + CHECKSUM_OFFSET);
+	}
+
+	public static void setChecksum(long pageAddress, long checksum) {
+		Unsafe.UNSAFE.putLong(pageAddress + CHECKSUM_OFFSET, checksum);
+	}
+
+	public static long getVersion(long pageAddress) {
+		return Unsafe.UNSAFE.getLongVolatile(null, pageAddress + VERSION_OFFSET);
+	}
+
+	public static void setVersion(long pageAddress, long version) {
+		Unsafe.UNSAFE.putLongVolatile(null, pageAddress + VERSION_OFFSET, version);
+	}
+
+	public static boolean compareAndSetVersion(long pageAddress, long expected, long version) {
+		return Unsafe.UNSAFE.compareAndSwapLong(null, pageAddress + VERSION_OFFSET, expected, version);
+	}
+
 }
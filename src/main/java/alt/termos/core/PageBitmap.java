@@ -0,0 +1,173 @@
+package alt.termos.core;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap bitmap of pages, one bit per disk page, used for dirty, verified and fresh pages.
+ * Bitmap is allocated by chunks, so it grows together with the file and existing chunks never move.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PageBitmap {
+
+	private final int chunkShift;
+	private final long chunkMask;
+	private final long chunkBytes;
+
+	/*
+	 * Array is replaced on growth, chunks are published before the capacity
+	 */
+
+	private volatile long[] chunks = new long[0];
+	private volatile long capacity;
+
+	/**
+	 *
+	 * @param chunkShift - log2 of pages in the chunk, at least 6 (one long word)
+	 * @param pages - initial capacity
+	 */
+
+	public PageBitmap(int chunkShift, long pages) {
+		Arguments.greaterOrEquals(chunkShift, 6);
+		Arguments.greater(63, chunkShift);
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1L << chunkShift) - 1L;
+		this.chunkBytes = 1L << (chunkShift - 3);
+		ensureCapacity(pages);
+	}
+
+	public synchronized void ensureCapacity(long pages) {
+		long[] oldChunks = this.chunks;
+		if (oldChunks == null) {
+			throw new IllegalStateException("bitmap is freed");
+		}
+		int count = (int) ((pages + chunkMask) >>> chunkShift);
+		if (count <= oldChunks.length) {
+			return;
+		}
+		long[] newChunks = new long[count];
+		System.arraycopy(oldChunks, 0, newChunks, 0, oldChunks.length);
+		for (int i = oldChunks.length; i != count; ++i) {
+			newChunks[i] = Unsafe.UNSAFE.allocateMemory(chunkBytes);
+			Unsafe.UNSAFE.setMemory(newChunks[i], chunkBytes, (byte) 0);
+		}
+		this.chunks = newChunks;
+		this.capacity = (long) count << chunkShift;
+	}
+
+	public int getChunkShift() {
+		return chunkShift;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the bit of the page, CAS is skipped if the bit is already set
+	 *
+	 * @param pageNum - page number
+	 */
+
+	public void set(long pageNum) {
+		long wordAddress = getWordAddress(pageNum);
+		long bit = 1L << (pageNum & 63);
+		for (;;) {
+			long word = Unsafe.UNSAFE.getLongVolatile(null, wordAddress);
+			if ((word & bit) != 0) {
+				return;
+			}
+			if (Unsafe.UNSAFE.compareAndSwapLong(null, wordAddress, word, word | bit)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Clears the bit of the page, CAS is skipped if the bit is already clear
+	 *
+	 * @param pageNum - page number
+	 */
+
+	public void clear(long pageNum) {
+		long wordAddress = getWordAddress(pageNum);
+		long bit = 1L << (pageNum & 63);
+		for (;;) {
+			long word = Unsafe.UNSAFE.getLongVolatile(null, wordAddress);
+			if ((word & bit) == 0) {
+				return;
+			}
+			if (Unsafe.UNSAFE.compareAndSwapLong(null, wordAddress, word, word & ~bit)) {
+				return;
+			}
+		}
+	}
+
+	public boolean get(long pageNum) {
+		long bit = 1L << (pageNum & 63);
+		return (Unsafe.UNSAFE.getLongVolatile(null, getWordAddress(pageNum)) & bit) != 0;
+	}
+
+	/**
+	 *
+	 * @param pageNum - first page of the word
+	 * @return 64 bits starting from the page aligned by 64
+	 */
+
+	public long getWord(long pageNum) {
+		return Unsafe.UNSAFE.getLongVolatile(null, getWordAddress(pageNum));
+	}
+
+	/**
+	 * Atomically clears 64 bits starting from the page aligned by 64
+	 *
+	 * @param pageNum - first page of the word
+	 * @return previous bits of the word
+	 */
+
+	public long clearWord(long pageNum) {
+		long wordAddress = getWordAddress(pageNum);
+		for (;;) {
+			long word = Unsafe.UNSAFE.getLongVolatile(null, wordAddress);
+			if (word == 0) {
+				return 0;
+			}
+			if (Unsafe.UNSAFE.compareAndSwapLong(null, wordAddress, word, 0)) {
+				return word;
+			}
+		}
+	}
+
+	/**
+	 * Clears all bits, bits set by other threads during the call may be lost
+	 */
+
+	public void clear() {
+		long[] current = this.chunks;
+		for (int i = 0; i != current.length; ++i) {
+			Unsafe.UNSAFE.setMemory(current[i], chunkBytes, (byte) 0);
+		}
+	}
+
+	public synchronized void free() {
+		long[] oldChunks = this.chunks;
+		if (oldChunks != null) {
+			this.capacity = 0;
+			this.chunks = null;
+			for (int i = 0; i != oldChunks.length; ++i) {
+				Unsafe.UNSAFE.freeMemory(oldChunks[i]);
+			}
+		}
+	}
+
+	private long getWordAddress(long pageNum) {
+		if (pageNum < 0 || pageNum >= capacity) {
+			throw new IndexOutOfBoundsException("PageNum: " + pageNum + ", Capacity: " + capacity);
+		}
+		return chunks[(int) (pageNum >>> chunkShift)] + (((pageNum & chunkMask) >>> 6) << 3);
+	}
+
+}
@@ -0,0 +1,93 @@
+package alt.termos.core;
+
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import alt.termos.util.Unsafe;
+
+/**
+ * CRC32C of the disk page, hardware accelerated on JDK 9+, CRC32 on older JDKs.
+ * Hit counter, checksum and version latch fields are excluded, hit counter changes without marking the page dirty
+ * and the latch can be held while the page is flushed.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PageChecksum {
+
+	private static final Class<?> CHECKSUM_CLASS = getChecksumClass();
+
+	private static final ThreadLocal<Checksum> CHECKSUM = new ThreadLocal<Checksum>() {
+
+		@Override
+		protected Checksum initialValue() {
+			try {
+				return (Checksum) CHECKSUM_CLASS.getDeclaredConstructor().newInstance();
+			}
+			catch(ReflectiveOperationException e) {
+				return new CRC32();
+			}
+		}
+
+	};
+
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+	private PageChecksum() {
+	}
+
+	public static boolean isCrc32c() {
+		return !CHECKSUM_CLASS.equals(CRC32.class);
+	}
+
+	/**
+	 *
+	 * @param pageAddress - address of the page
+	 * @param diskPageSize - size of the page
+	 * @return checksum with the marker, ready to store in the header
+	 */
+
+	public static long compute(long pageAddress, long diskPageSize) {
+		byte[] buffer = BUFFER.get();
+		if (buffer == null || buffer.length != diskPageSize) {
+			buffer = new byte[(int) diskPageSize];
+			BUFFER.set(buffer);
+		}
+		Unsafe.UNSAFE.copyMemory(null, pageAddress, buffer, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET, diskPageSize);
+		Unsafe.UNSAFE.setMemory(buffer, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + NodePage.HIT_COUNTER_OFFSET, NodePage.HIT_COUNTER_SIZE, (byte) 0);
+		Unsafe.UNSAFE.setMemory(buffer, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + NodePage.CHECKSUM_OFFSET, NodePage.CHECKSUM_SIZE, (byte) 0);
+		Unsafe.UNSAFE.setMemory(buffer, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + NodePage.VERSION_OFFSET, NodePage.VERSION_SIZE, (byte) 0);
+
+		Checksum checksum = CHECKSUM.get();
+		checksum.reset();
+		checksum.update(buffer, 0, buffer.length);
+		return NodePage.CHECKSUM_MARKER | (checksum.getValue() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Manager checksums every allocated page, so the torn or zeroed header without the marker is corrupted
+	 *
+	 * @param pageAddress - address of the page
+	 * @param diskPageSize - size of the page
+	 * @return false if the checksum is missing or does not match
+	 */
+
+	public static boolean verify(long pageAddress, long diskPageSize) {
+		long stored = NodePage.getChecksum(pageAddress);
+		if ((stored & ~0xFFFFFFFFL) != NodePage.CHECKSUM_MARKER) {
+			return false;
+		}
+		return stored == compute(pageAddress, diskPageSize);
+	}
+
+	private static Class<?> getChecksumClass() {
+		try {
+			return Class.forName("java.util.zip.CRC32C");
+		}
+		catch(ClassNotFoundException e) {
+			return CRC32.class;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package alt.termos.core;
+
+import alt.termos.util.Unsafe;
+
+/**
+ * Optimistic version latch in the header of the page.
+ *
+ * Bit 0 marks the obsolete (freed) page, bit 1 is the exclusive lock, upper bits count the changes of the page.
+ * Reader takes the version, reads the page and validates that the version is the same, so reads never write
+ * the cache line of the latch. Writer upgrades the version to the lock by CAS, unlock increments the counter.
+ *
+ * Latch is not durable, pages locked by the crashed process are unlocked by PagedMemoryManager.resetLatches().
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PageLatch {
+
+	public static final long OBSOLETE = 1L;
+	public static final long LOCKED = 2L;
+	public static final long STEP = 4L;
+
+	private static final int SPINS = 64;
+
+	private PageLatch() {
+	}
+
+	/**
+	 * Waits until the page is unlocked
+	 *
+	 * @param pageAddress - address of the page
+	 * @return version to validate after reading the page
+	 */
+
+	public static long startRead(long pageAddress) {
+		int spins = 0;
+		for (;;) {
+			long version = NodePage.getVersion(pageAddress);
+			if ((version & LOCKED) == 0) {
+				return version;
+			}
+			if (++spins == SPINS) {
+				spins = 0;
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Reads of the page are ordered before the check of the version
+	 *
+	 * @param pageAddress - address of the page
+	 * @param version - version returned by startRead
+	 * @return true if the page was not changed since startRead
+	 */
+
+	public static boolean validate(long pageAddress, long version) {
+		Unsafe.UNSAFE.loadFence();
+		return NodePage.getVersion(pageAddress) == version;
+	}
+
+	/**
+	 * Upgrades the optimistic read to the lock
+	 *
+	 * @param pageAddress - address of the page
+	 * @param version - version returned by startRead
+	 * @return false if the page was changed or locked by another writer, the read must restart
+	 */
+
+	public static boolean tryUpgrade(long pageAddress, long version) {
+		return (version & (LOCKED | OBSOLETE)) == 0 && NodePage.compareAndSetVersion(pageAddress, version, version + LOCKED);
+	}
+
+	/**
+	 *
+	 * @param pageAddress - address of the page
+	 * @throws IllegalStateException if the page is obsolete
+	 */
+
+	public static void lock(long pageAddress) {
+		for (;;) {
+			long version = startRead(pageAddress);
+			if (isObsolete(version)) {
+				throw new IllegalStateException("obsolete page at " + pageAddress);
+			}
+			if (NodePage.compareAndSetVersion(pageAddress, version, version + LOCKED)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock, readers that started before see the new version and restart
+	 *
+	 * @param pageAddress - address of the page locked by this thread
+	 */
+
+	public static void unlock(long pageAddress) {
+		NodePage.setVersion(pageAddress, NodePage.getVersion(pageAddress) + LOCKED);
+	}
+
+	/**
+	 * Releases the lock of the page that is going to be freed
+	 *
+	 * @param pageAddress - address of the page locked by this thread
+	 */
+
+	public static void unlockObsolete(long pageAddress) {
+		NodePage.setVersion(pageAddress, NodePage.getVersion(pageAddress) + LOCKED + OBSOLETE);
+	}
+
+	/**
+	 * Clears the lock and obsolete bits of the allocated page, the counter keeps growing,
+	 * so readers of the previous life of the page fail the validation
+	 *
+	 * @param pageAddress - address of the page
+	 */
+
+	public static void reset(long pageAddress) {
+		NodePage.setVersion(pageAddress, (NodePage.getVersion(pageAddress) & ~(LOCKED | OBSOLETE)) + STEP);
+	}
+
+	public static boolean isLocked(long version) {
+		return (version & LOCKED) != 0;
+	}
+
+	public static boolean isObsolete(long version) {
+		return (version & OBSOLETE) != 0;
+	}
+
+}
@@ -0,0 +1,297 @@
+package alt.termos.core;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import alt.termos.util.Arguments;
+
+/**
+ * Off-heap B+Tree with fixed size keys and values written by serializers.
+ *
+ * Tree is not thread-safe.
+ *
+ * @author Albert Shift
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+
+public final class PagedBPlusTree<K, V> extends AbstractPagedBPlusTree {
+
+	private final FixedSerializer<K> keySerializer;
+	private final FixedSerializer<V> valueSerializer;
+
+	private K currentKey;
+	private V currentValue;
+	private V foundValue;
+
+	public PagedBPlusTree(PagedMemoryManager pmm, FixedSerializer<K> keySerializer, FixedSerializer<V> valueSerializer) {
+		this(pmm, keySerializer, valueSerializer, PagedMemoryManager.NULL_PAGE, 0);
+	}
+
+	private PagedBPlusTree(PagedMemoryManager pmm, FixedSerializer<K> keySerializer, FixedSerializer<V> valueSerializer, long rootPage, long size) {
+		super(pmm, sizeOf(keySerializer), sizeOf(valueSerializer), rootPage, size);
+		this.keySerializer = keySerializer;
+		this.valueSerializer = valueSerializer;
+	}
+
+	private static int sizeOf(FixedSerializer<?> serializer) {
+		Arguments.notNull(serializer);
+		return serializer.getSize();
+	}
+
+	/**
+	 * Opens the tree from the committed root of the manager
+	 *
+	 * @param pmm - page manager
+	 * @param keySerializer - serializer of keys
+	 * @param valueSerializer - serializer of values
+	 * @return committed tree or the new one if nothing was committed
+	 */
+
+	public static <K, V> PagedBPlusTree<K, V> open(PagedMemoryManager pmm, FixedSerializer<K> keySerializer, FixedSerializer<V> valueSerializer) {
+		Arguments.notNull(pmm);
+		return new PagedBPlusTree<K, V>(pmm, keySerializer, valueSerializer, pmm.getCommittedRootPage(), pmm.getCommittedUserData());
+	}
+
+	public V get(K key) {
+		Arguments.notNull(key);
+		currentKey = key;
+		try {
+			return getCurrent() ? foundValue : null;
+		}
+		finally {
+			release();
+		}
+	}
+
+	public boolean containsKey(K key) {
+		Arguments.notNull(key);
+		currentKey = key;
+		try {
+			return containsCurrent();
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Inserts or replaces the value
+	 *
+	 * @param key - key
+	 * @param value - value
+	 * @return previous value or null
+	 */
+
+	public V put(K key, V value) {
+		Arguments.notNull(key);
+		Arguments.notNull(value);
+		currentKey = key;
+		currentValue = value;
+		try {
+			return putCurrent() ? foundValue : null;
+		}
+		finally {
+			release();
+		}
+	}
+
+	public V remove(K key) {
+		Arguments.notNull(key);
+		currentKey = key;
+		try {
+			return removeCurrent() ? foundValue : null;
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Appends the entry to the tree being loaded
+	 *
+	 * @see #beginLoad(double)
+	 */
+
+	public void append(K key, V value) {
+		Arguments.notNull(key);
+		Arguments.notNull(value);
+		currentKey = key;
+		currentValue = value;
+		try {
+			appendCurrent();
+		}
+		finally {
+			release();
+		}
+	}
+
+	/**
+	 * Loads the empty tree from entries in the ascending order of keys
+	 *
+	 * @param entries - sorted entries without duplicates
+	 * @param fillFactor - part of the page filled
+	 */
+
+	public void load(Iterator<? extends Map.Entry<K, V>> entries, double fillFactor) {
+		Arguments.notNull(entries);
+		beginLoad(fillFactor);
+		while (entries.hasNext()) {
+			Map.Entry<K, V> entry = entries.next();
+			append(entry.getKey(), entry.getValue());
+		}
+		endLoad();
+	}
+
+	public K getMinKey() {
+		long address = getMinKeyAddress();
+		return address != 0 ? keySerializer.read(address) : null;
+	}
+
+	public K getMaxKey() {
+		long address = getMaxKeyAddress();
+		return address != 0 ? keySerializer.read(address) : null;
+	}
+
+	/**
+	 * Iterates leaves by the cursor, entries are deserialized on the fly
+	 *
+	 * @return entries in the order of keys
+	 */
+
+	public Iterable<Map.Entry<K, V>> entries() {
+		return new Iterable<Map.Entry<K, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator();
+			}
+
+		};
+	}
+
+	/**
+	 * Cursor over pages, unlike entries() it moves in both directions and seeks without the new iterator.
+	 * Keys and values are deserialized only by key() and value().
+	 *
+	 * @return new cursor, not positioned
+	 */
+
+	public EntryCursor cursor() {
+		return new EntryCursor();
+	}
+
+	public final class EntryCursor extends Cursor {
+
+		private EntryCursor() {
+		}
+
+		/**
+		 * Positions the cursor at the least key greater than or equal to the key
+		 *
+		 * @param key - key
+		 * @return true if such key exists
+		 */
+
+		public boolean seek(K key) {
+			Arguments.notNull(key);
+			currentKey = key;
+			try {
+				return seekCurrent();
+			}
+			finally {
+				release();
+			}
+		}
+
+		public K key() {
+			return keySerializer.read(keyAddress());
+		}
+
+		public V value() {
+			return valueSerializer.read(valueAddress());
+		}
+
+	}
+
+	@Override
+	protected int searchCurrentKey(long keysAddress, int count) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = keySerializer.compare(keysAddress + (long) mid * keySerializer.getSize(), currentKey);
+			if (c < 0) {
+				low = mid + 1;
+			}
+			else if (c > 0) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	protected int compareKeys(long keyAddress1, long keyAddress2) {
+		return keySerializer.compare(keyAddress1, keySerializer.read(keyAddress2));
+	}
+
+	@Override
+	protected void writeCurrentKey(long keyAddress) {
+		keySerializer.write(keyAddress, currentKey);
+	}
+
+	@Override
+	protected void writeCurrentValue(long valueAddress) {
+		valueSerializer.write(valueAddress, currentValue);
+	}
+
+	@Override
+	protected void readValue(long valueAddress) {
+		foundValue = valueSerializer.read(valueAddress);
+	}
+
+	/*
+	 * Tree does not hold references to the keys and values of the caller
+	 */
+
+	private void release() {
+		currentKey = null;
+		currentValue = null;
+		foundValue = null;
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private final EntryCursor cursor = new EntryCursor();
+		private boolean hasNext = cursor.first();
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(cursor.key(), cursor.value());
+			hasNext = cursor.next();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
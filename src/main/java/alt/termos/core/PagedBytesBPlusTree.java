@@ -0,0 +1,1085 @@
+package alt.termos.core;
+
+import java.util.AbstractMap;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Memcmp;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap B+Tree with variable length byte[] keys and values in slotted pages.
+ *
+ * Keys are compared by memcmp over the mapped bytes, nothing is deserialized on the search path.
+ * Node is split by bytes, the separator is the shortest prefix of the first key of the right leaf.
+ * Value that does not fit to the quarter of the page is moved to the chain of overflow pages,
+ * so every page keeps at least four entries. Empty nodes are removed, partially filled nodes are not merged.
+ *
+ * Pages of the committed version are never changed, writer copies the path from the root to the changed leaf
+ * and the manager frees replaced pages by the next commit. Leaves are not linked, cursor and iterator move by the path.
+ *
+ * Tree is not thread-safe.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PagedBytesBPlusTree {
+
+	private static final long BYTE_ARRAY_OFFSET = sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET;
+
+	private static final int NOT_FOUND = 0;
+	private static final int REMOVED = 1;
+	private static final int EMPTY = 2;
+
+	private static final int FIRST = 0;
+	private static final int LAST = 1;
+	private static final int SEEK = 2;
+
+	private final PagedMemoryManager pmm;
+	private final int pageSize;
+	private final int maxCellSize;
+	private final int maxKeyLength;
+	private final int overflowCapacity;
+
+	/*
+	 * Off-heap buffers for the compaction and separator keys moving between levels on split
+	 */
+
+	private final long scratch;
+	private final long pendingKey;
+	private final long upKey;
+	private int pendingKeyLength;
+
+	private long rootPage;
+	private int height;
+	private long size;
+	private long modifications;
+
+	private byte[] currentKey;
+	private byte[] currentValue;
+	private byte[] foundValue;
+
+	public PagedBytesBPlusTree(PagedMemoryManager pmm) {
+		this(pmm, PagedMemoryManager.NULL_PAGE, 0);
+	}
+
+	private PagedBytesBPlusTree(PagedMemoryManager pmm, long rootPage, long size) {
+		Arguments.notNull(pmm);
+		if (pmm.isCacheMode()) {
+			throw new IllegalArgumentException("tree pages can not be evicted in the cache mode");
+		}
+		this.pmm = pmm;
+		this.pageSize = (int) pmm.getDiskPageSize();
+		this.maxCellSize = SlottedPage.getCapacity(pageSize) / 4 - SlottedPage.SLOT_SIZE;
+		this.maxKeyLength = maxCellSize - SlottedPage.LEAF_CELL_HEADER_SIZE - SlottedPage.OVERFLOW_REFERENCE_SIZE;
+		this.overflowCapacity = pageSize - (int) SlottedPage.OVERFLOW_DATA_OFFSET;
+		if (maxKeyLength < 8) {
+			throw new IllegalArgumentException("disk page is too small " + pageSize);
+		}
+
+		this.scratch = Unsafe.UNSAFE.allocateMemory(pageSize);
+		this.pendingKey = Unsafe.UNSAFE.allocateMemory(maxKeyLength);
+		this.upKey = Unsafe.UNSAFE.allocateMemory(maxKeyLength);
+
+		if (rootPage == PagedMemoryManager.NULL_PAGE) {
+			this.height = 1;
+			this.rootPage = newLeaf(0);
+		}
+		else {
+			this.rootPage = rootPage;
+			this.size = size;
+			this.height = 1;
+			for (long page = rootPage; SlottedPage.getType(pmm.getPage(page)) == SlottedPage.INNER_TYPE; page = SlottedPage.getLeftChild(pmm.getPage(page))) {
+				this.height++;
+			}
+		}
+	}
+
+	/**
+	 * Opens the tree from the committed root of the manager
+	 *
+	 * @param pmm - page manager
+	 * @return committed tree or the new one if nothing was committed
+	 */
+
+	public static PagedBytesBPlusTree open(PagedMemoryManager pmm) {
+		Arguments.notNull(pmm);
+		return new PagedBytesBPlusTree(pmm, pmm.getCommittedRootPage(), pmm.getCommittedUserData());
+	}
+
+	/**
+	 * Flushes the pages and publishes the root and the size in the meta page
+	 *
+	 * @return sequence of the commit
+	 */
+
+	public long commit() {
+		return pmm.commit(rootPage, size);
+	}
+
+	public byte[] get(byte[] key) {
+		checkKey(key);
+		long page = findLeaf(key);
+		touchLeaf(page);
+		long pageAddress = pmm.getPage(page);
+		int index = search(pageAddress, key);
+		return index >= 0 ? readValue(SlottedPage.cellAddress(pageAddress, index)) : null;
+	}
+
+	public boolean containsKey(byte[] key) {
+		checkKey(key);
+		return search(pmm.getPage(findLeaf(key)), key) >= 0;
+	}
+
+	/**
+	 * Inserts or replaces the value
+	 *
+	 * @param key - key not longer than the maximum key length
+	 * @param value - value of any length
+	 * @return previous value or null
+	 */
+
+	public byte[] put(byte[] key, byte[] value) {
+		checkKey(key);
+		Arguments.notNull(value);
+		currentKey = key;
+		currentValue = value;
+		modifications++;
+		try {
+			rootPage = writable(rootPage);
+			long split = insert(rootPage, 1);
+			if (split != PagedMemoryManager.NULL_PAGE) {
+				long newRoot = newPage(SlottedPage.INNER_TYPE);
+				long rootAddress = pmm.getPage(newRoot);
+				SlottedPage.setLeftChild(rootAddress, rootPage);
+				writeInnerCell(rootAddress, 0, pendingKey, pendingKeyLength, split);
+				rootPage = newRoot;
+				height++;
+			}
+			return foundValue;
+		}
+		finally {
+			release();
+		}
+	}
+
+	public byte[] remove(byte[] key) {
+		checkKey(key);
+
+		/*
+		 * Path is copied only if the key is present
+		 */
+
+		if (search(pmm.getPage(findLeaf(key)), key) < 0) {
+			return null;
+		}
+		currentKey = key;
+		modifications++;
+		try {
+			rootPage = writable(rootPage);
+			delete(rootPage, 1);
+			size--;
+			long rootAddress = pmm.getPage(rootPage);
+			if (height > 1 && SlottedPage.getLeftChild(rootAddress) == PagedMemoryManager.NULL_PAGE) {
+				pmm.freePage(rootPage);
+				height = 1;
+				rootPage = newLeaf(0);
+				return foundValue;
+			}
+			if (height > 1 && SlottedPage.getCount(rootAddress) == 0) {
+				while (height > 1 && SlottedPage.getCount(pmm.getPage(rootPage)) == 0) {
+					long oldRoot = rootPage;
+					rootPage = SlottedPage.getLeftChild(pmm.getPage(oldRoot));
+					height--;
+					pmm.freePage(oldRoot);
+				}
+			}
+			return foundValue;
+		}
+		finally {
+			release();
+		}
+	}
+
+	public byte[] getMinKey() {
+		long pageAddress = pmm.getPage(getFirstLeaf());
+		return SlottedPage.getCount(pageAddress) != 0 ? readKey(pageAddress, 0) : null;
+	}
+
+	public byte[] getMaxKey() {
+		long pageAddress = pmm.getPage(getLastLeaf(rootPage, 1));
+		int count = SlottedPage.getCount(pageAddress);
+		return count != 0 ? readKey(pageAddress, count - 1) : null;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getRootPage() {
+		return rootPage;
+	}
+
+	public int getMaxKeyLength() {
+		return maxKeyLength;
+	}
+
+	/**
+	 * Frees all pages of the tree and overflow chains, empty root leaf is allocated
+	 */
+
+	public void clear() {
+		freeSubtree(rootPage, 1);
+		modifications++;
+		size = 0;
+		height = 1;
+		rootPage = newLeaf(0);
+	}
+
+	/**
+	 * Releases off-heap buffers, pages stay in the file
+	 */
+
+	public void close() {
+		Unsafe.UNSAFE.freeMemory(scratch);
+		Unsafe.UNSAFE.freeMemory(pendingKey);
+		Unsafe.UNSAFE.freeMemory(upKey);
+	}
+
+	/**
+	 * Iterates leaves by the path of inner nodes, keys and values are copied on the fly
+	 *
+	 * @return entries in the order of keys
+	 */
+
+	public Iterable<Map.Entry<byte[], byte[]>> entries() {
+		return new Iterable<Map.Entry<byte[], byte[]>>() {
+
+			@Override
+			public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+				return new EntryIterator();
+			}
+
+		};
+	}
+
+	/**
+	 * Cursor reads keys in pages, one cursor is reused for many scans
+	 *
+	 * @return new cursor, not positioned
+	 */
+
+	public BytesCursor cursor() {
+		return new BytesCursor();
+	}
+
+	/**
+	 * Checks slotted layout of pages, order of keys against separators, depth of leaves and the size
+	 *
+	 * @throws IllegalStateException if the tree is broken
+	 */
+
+	public void verify() {
+		long count = verify(rootPage, 1, 0, -1, 0, -1);
+		if (count != size) {
+			throw new IllegalStateException("wrong size " + size + ", actual " + count);
+		}
+	}
+
+	/*
+	 * Bounds are keys in pages, negative length means no bound
+	 */
+
+	private long verify(long page, int depth, long lowAddress, int lowLength, long highAddress, int highLength) {
+		long pageAddress = pmm.getPage(page);
+		SlottedPage.verify(pageAddress, pageSize);
+		int count = SlottedPage.getCount(pageAddress);
+		boolean leaf = depth == height;
+		if (SlottedPage.getType(pageAddress) != (leaf ? SlottedPage.LEAF_TYPE : SlottedPage.INNER_TYPE)) {
+			throw new IllegalStateException("wrong type of the page " + page);
+		}
+		for (int i = 0; i != count; ++i) {
+			long cell = SlottedPage.cellAddress(pageAddress, i);
+			long keyAddress = SlottedPage.keyAddress(pageAddress, cell);
+			int keyLength = SlottedPage.getKeyLength(cell);
+			if (i > 0) {
+				long prev = SlottedPage.cellAddress(pageAddress, i - 1);
+				if (Memcmp.compare(SlottedPage.keyAddress(pageAddress, prev), SlottedPage.getKeyLength(prev), keyAddress, keyLength) >= 0) {
+					throw new IllegalStateException("wrong order of keys in the page " + page);
+				}
+			}
+			if (lowLength >= 0 && Memcmp.compare(keyAddress, keyLength, lowAddress, lowLength) < 0) {
+				throw new IllegalStateException("key less than separator in the page " + page);
+			}
+			if (highLength >= 0 && Memcmp.compare(keyAddress, keyLength, highAddress, highLength) >= 0) {
+				throw new IllegalStateException("key greater than separator in the page " + page);
+			}
+		}
+
+		if (leaf) {
+			if (page != rootPage && count == 0) {
+				throw new IllegalStateException("empty leaf " + page);
+			}
+			if (pmm.isLeafPage(page) && pmm.getLeafLevel(page) >= pmm.getLeafLevels()) {
+				throw new IllegalStateException("wrong leaf level of the page " + page);
+			}
+			return count;
+		}
+
+		if (SlottedPage.getLeftChild(pageAddress) == PagedMemoryManager.NULL_PAGE) {
+			throw new IllegalStateException("inner node without children " + page);
+		}
+		long total = 0;
+		for (int i = 0; i <= count; ++i) {
+			long childLowAddress = lowAddress;
+			int childLowLength = lowLength;
+			long childHighAddress = highAddress;
+			int childHighLength = highLength;
+			if (i > 0) {
+				long cell = SlottedPage.cellAddress(pageAddress, i - 1);
+				childLowAddress = SlottedPage.innerKeyAddress(cell);
+				childLowLength = SlottedPage.getKeyLength(cell);
+			}
+			if (i < count) {
+				long cell = SlottedPage.cellAddress(pageAddress, i);
+				childHighAddress = SlottedPage.innerKeyAddress(cell);
+				childHighLength = SlottedPage.getKeyLength(cell);
+			}
+			total += verify(getChild(pageAddress, i), depth + 1, childLowAddress, childLowLength, childHighAddress, childHighLength);
+		}
+		return total;
+	}
+
+	/*
+	 * Insert
+	 */
+
+	private long insert(long page, int depth) {
+		if (depth == height) {
+			settleLeafLevel(page);
+			long pageAddress = pmm.getPage(page);
+			int index = search(pageAddress, currentKey);
+			if (index >= 0) {
+				long cell = SlottedPage.cellAddress(pageAddress, index);
+				foundValue = readValue(cell);
+				freeOverflow(cell);
+				SlottedPage.deleteCell(pageAddress, index);
+				pmm.markDirty(page);
+			}
+			else {
+				index = -(index + 1);
+				size++;
+			}
+
+			boolean overflow = SlottedPage.leafCellSize(currentKey.length, currentValue.length, false) > maxCellSize;
+			int cellSize = SlottedPage.leafCellSize(currentKey.length, currentValue.length, overflow);
+			long overflowPage = overflow ? writeOverflow(currentValue) : PagedMemoryManager.NULL_PAGE;
+
+			pageAddress = pmm.getPage(page);
+			if (SlottedPage.getFreeSpace(pageAddress) >= cellSize + SlottedPage.SLOT_SIZE) {
+				writeLeafCell(pageAddress, index, cellSize, overflowPage);
+				pmm.markDirty(page);
+				return PagedMemoryManager.NULL_PAGE;
+			}
+
+			/*
+			 * Leaf is split by bytes together with the new cell
+			 */
+
+			long right = newLeaf(getLeafLevel());
+			pageAddress = pmm.getPage(page);
+			long rightAddress = pmm.getPage(right);
+			int count = SlottedPage.getCount(pageAddress);
+			int split = splitPoint(pageAddress, count, index, cellSize + SlottedPage.SLOT_SIZE);
+			int from = index < split ? split - 1 : split;
+			moveCells(pageAddress, from, count, rightAddress);
+			SlottedPage.truncate(pageAddress, from);
+			if (index < split) {
+				writeLeafCell(pageAddress, index, cellSize, overflowPage);
+			}
+			else {
+				writeLeafCell(rightAddress, index - split, cellSize, overflowPage);
+			}
+			pmm.markDirty(page);
+			pmm.markDirty(right);
+
+			/*
+			 * Shortest separator that is greater than the last key of the left leaf
+			 */
+
+			long last = SlottedPage.cellAddress(pageAddress, SlottedPage.getCount(pageAddress) - 1);
+			long first = SlottedPage.cellAddress(rightAddress, 0);
+			int firstLength = SlottedPage.getKeyLength(first);
+			int prefix = Memcmp.commonPrefix(SlottedPage.leafKeyAddress(last), SlottedPage.getKeyLength(last), SlottedPage.leafKeyAddress(first), firstLength);
+			pendingKeyLength = Math.min(prefix + 1, firstLength);
+			Unsafe.UNSAFE.copyMemory(SlottedPage.leafKeyAddress(first), pendingKey, pendingKeyLength);
+			return right;
+		}
+
+		int childIndex = childIndex(pmm.getPage(page), currentKey);
+		long split = insert(writableChild(page, childIndex), depth + 1);
+		if (split == PagedMemoryManager.NULL_PAGE) {
+			return PagedMemoryManager.NULL_PAGE;
+		}
+
+		long pageAddress = pmm.getPage(page);
+		int cellSize = SlottedPage.innerCellSize(pendingKeyLength);
+		if (SlottedPage.getFreeSpace(pageAddress) >= cellSize + SlottedPage.SLOT_SIZE) {
+			writeInnerCell(pageAddress, childIndex, pendingKey, pendingKeyLength, split);
+			pmm.markDirty(page);
+			return PagedMemoryManager.NULL_PAGE;
+		}
+
+		/*
+		 * Middle cell moves up, its child becomes the left child of the right node
+		 */
+
+		long right = newPage(SlottedPage.INNER_TYPE);
+		pageAddress = pmm.getPage(page);
+		long rightAddress = pmm.getPage(right);
+		int count = SlottedPage.getCount(pageAddress);
+		int middle = splitPoint(pageAddress, count, childIndex, cellSize + SlottedPage.SLOT_SIZE) - 1;
+		if (middle == childIndex) {
+			SlottedPage.setLeftChild(rightAddress, split);
+			moveCells(pageAddress, childIndex, count, rightAddress);
+			SlottedPage.truncate(pageAddress, childIndex);
+		}
+		else {
+			int up = middle < childIndex ? middle : middle - 1;
+			long cell = SlottedPage.cellAddress(pageAddress, up);
+			int upKeyLength = SlottedPage.getKeyLength(cell);
+			Unsafe.UNSAFE.copyMemory(SlottedPage.innerKeyAddress(cell), upKey, upKeyLength);
+			SlottedPage.setLeftChild(rightAddress, SlottedPage.getInnerChild(cell));
+			moveCells(pageAddress, up + 1, count, rightAddress);
+			SlottedPage.truncate(pageAddress, up);
+			if (middle < childIndex) {
+				writeInnerCell(rightAddress, childIndex - middle - 1, pendingKey, pendingKeyLength, split);
+			}
+			else {
+				writeInnerCell(pageAddress, childIndex, pendingKey, pendingKeyLength, split);
+			}
+			Unsafe.UNSAFE.copyMemory(upKey, pendingKey, upKeyLength);
+			pendingKeyLength = upKeyLength;
+		}
+		pmm.markDirty(page);
+		pmm.markDirty(right);
+		return right;
+	}
+
+	/**
+	 * Finds the split by bytes of the node with the new cell
+	 *
+	 * @return number of cells in the left node counting the new one, from 1 to count
+	 */
+
+	private int splitPoint(long pageAddress, int count, int index, int newSize) {
+		int total = SlottedPage.getUsedSpace(pageAddress, pageSize) + newSize;
+		int accumulated = 0;
+		for (int i = 0; i <= count; ++i) {
+			if (i == index) {
+				accumulated += newSize;
+			}
+			else {
+				long cell = SlottedPage.cellAddress(pageAddress, i < index ? i : i - 1);
+				accumulated += SlottedPage.cellSize(pageAddress, cell) + SlottedPage.SLOT_SIZE;
+			}
+			if (accumulated * 2 >= total) {
+				return Math.max(1, Math.min(i + 1, count));
+			}
+		}
+		return count;
+	}
+
+	private void moveCells(long fromPageAddress, int fromIndex, int toIndex, long toPageAddress) {
+		int index = SlottedPage.getCount(toPageAddress);
+		for (int i = fromIndex; i < toIndex; ++i) {
+			SlottedPage.copyCell(fromPageAddress, i, toPageAddress, pageSize, index++, scratch);
+		}
+	}
+
+	private void writeLeafCell(long pageAddress, int index, int cellSize, long overflowPage) {
+		long cell = SlottedPage.insertCell(pageAddress, pageSize, index, cellSize, scratch);
+		Unsafe.UNSAFE.putInt(cell, currentKey.length);
+		Unsafe.UNSAFE.copyMemory(currentKey, BYTE_ARRAY_OFFSET, null, SlottedPage.leafKeyAddress(cell), currentKey.length);
+		if (overflowPage != PagedMemoryManager.NULL_PAGE) {
+			Unsafe.UNSAFE.putInt(cell + 4, currentValue.length | SlottedPage.OVERFLOW_FLAG);
+			Unsafe.UNSAFE.putLong(SlottedPage.leafValueAddress(cell), overflowPage);
+		}
+		else {
+			Unsafe.UNSAFE.putInt(cell + 4, currentValue.length);
+			Unsafe.UNSAFE.copyMemory(currentValue, BYTE_ARRAY_OFFSET, null, SlottedPage.leafValueAddress(cell), currentValue.length);
+		}
+	}
+
+	private void writeInnerCell(long pageAddress, int index, long keyAddress, int keyLength, long child) {
+		long cell = SlottedPage.insertCell(pageAddress, pageSize, index, SlottedPage.innerCellSize(keyLength), scratch);
+		Unsafe.UNSAFE.putInt(cell, keyLength);
+		SlottedPage.setInnerChild(cell, child);
+		Unsafe.UNSAFE.copyMemory(keyAddress, SlottedPage.innerKeyAddress(cell), keyLength);
+	}
+
+	/*
+	 * Delete
+	 */
+
+	private int delete(long page, int depth) {
+		long pageAddress = pmm.getPage(page);
+		if (depth == height) {
+			int index = search(pageAddress, currentKey);
+			if (index < 0) {
+				return NOT_FOUND;
+			}
+			settleLeafLevel(page);
+			long cell = SlottedPage.cellAddress(pageAddress, index);
+			foundValue = readValue(cell);
+			freeOverflow(cell);
+			SlottedPage.deleteCell(pageAddress, index);
+			pmm.markDirty(page);
+			return SlottedPage.getCount(pageAddress) == 0 && page != rootPage ? EMPTY : REMOVED;
+		}
+
+		int childIndex = childIndex(pageAddress, currentKey);
+		long child = writableChild(page, childIndex);
+		int result = delete(child, depth + 1);
+		if (result != EMPTY) {
+			return result;
+		}
+
+		pageAddress = pmm.getPage(page);
+		pmm.freePage(child);
+
+		if (childIndex > 0) {
+			SlottedPage.deleteCell(pageAddress, childIndex - 1);
+		}
+		else if (SlottedPage.getCount(pageAddress) != 0) {
+			SlottedPage.setLeftChild(pageAddress, SlottedPage.getInnerChild(SlottedPage.cellAddress(pageAddress, 0)));
+			SlottedPage.deleteCell(pageAddress, 0);
+		}
+		else {
+			SlottedPage.setLeftChild(pageAddress, PagedMemoryManager.NULL_PAGE);
+		}
+		pmm.markDirty(page);
+		return SlottedPage.getLeftChild(pageAddress) == PagedMemoryManager.NULL_PAGE && page != rootPage ? EMPTY : REMOVED;
+	}
+
+	private void freeSubtree(long page, int depth) {
+		long pageAddress = pmm.getPage(page);
+		int count = SlottedPage.getCount(pageAddress);
+		if (depth < height) {
+			for (int i = 0; i <= count; ++i) {
+				freeSubtree(getChild(pageAddress, i), depth + 1);
+			}
+		}
+		else {
+			for (int i = 0; i != count; ++i) {
+				freeOverflow(SlottedPage.cellAddress(pageAddress, i));
+			}
+		}
+		pmm.freePage(page);
+	}
+
+	/*
+	 * All leaves are on the same depth, it changes when the root is split or removed. Leaves are not walked then,
+	 * level of the leaf is fixed when it is accessed. Deeper levels than leaf levels of the manager share the last one,
+	 * so only leaves of the small tree ever move. Leaf lists are dropped by the restore of the commit on open,
+	 * leaf is added back when it is accessed.
+	 */
+
+	private int getLeafLevel() {
+		return Math.min(height - 1, pmm.getLeafLevels() - 1);
+	}
+
+	private void settleLeafLevel(long page) {
+		int level = getLeafLevel();
+		if (!pmm.isLeafPage(page)) {
+			pmm.addLeafPage(page, level);
+		}
+		else if (pmm.getLeafLevel(page) != level) {
+			pmm.setLeafLevel(page, level);
+		}
+	}
+
+	/*
+	 * Read writes the header only if the leaf changes its level or list. Without sampled counters
+	 * the hit counter is in the header, so pages of the committed version do not count reads.
+	 */
+
+	private void touchLeaf(long page) {
+		settleLeafLevel(page);
+		if (pmm.isSampledCounters() || !pmm.isCommitted(page)) {
+			pmm.hit(page);
+		}
+	}
+
+	/*
+	 * Overflow pages
+	 */
+
+	private long writeOverflow(byte[] value) {
+		int pages = (value.length + overflowCapacity - 1) / overflowCapacity;
+		long next = PagedMemoryManager.NULL_PAGE;
+		for (int i = pages - 1; i >= 0; --i) {
+			int offset = i * overflowCapacity;
+			int length = Math.min(overflowCapacity, value.length - offset);
+			long page = pmm.allocateNewPage();
+			long pageAddress = pmm.getPage(page);
+			Unsafe.UNSAFE.putInt(pageAddress + SlottedPage.TYPE_OFFSET, SlottedPage.OVERFLOW_TYPE);
+			Unsafe.UNSAFE.putInt(pageAddress + SlottedPage.COUNT_OFFSET, length);
+			SlottedPage.setNextOverflowPage(pageAddress, next);
+			Unsafe.UNSAFE.copyMemory(value, BYTE_ARRAY_OFFSET + offset, null, pageAddress + SlottedPage.OVERFLOW_DATA_OFFSET, length);
+			pmm.markDirty(page);
+			next = page;
+		}
+		return next;
+	}
+
+	private void freeOverflow(long cell) {
+		if (!SlottedPage.isOverflow(cell)) {
+			return;
+		}
+		long page = SlottedPage.getOverflowPage(cell);
+		while (page != PagedMemoryManager.NULL_PAGE) {
+			long next = SlottedPage.getNextOverflowPage(pmm.getPage(page));
+			pmm.freePage(page);
+			page = next;
+		}
+	}
+
+	private byte[] readValue(long cell) {
+		int length = SlottedPage.getValueLength(cell);
+		byte[] value = new byte[length];
+		if (!SlottedPage.isOverflow(cell)) {
+			Unsafe.UNSAFE.copyMemory(null, SlottedPage.leafValueAddress(cell), value, BYTE_ARRAY_OFFSET, length);
+			return value;
+		}
+		int offset = 0;
+		for (long page = SlottedPage.getOverflowPage(cell); page != PagedMemoryManager.NULL_PAGE; ) {
+			long pageAddress = pmm.getPage(page);
+			int count = SlottedPage.getCount(pageAddress);
+			Unsafe.UNSAFE.copyMemory(null, pageAddress + SlottedPage.OVERFLOW_DATA_OFFSET, value, BYTE_ARRAY_OFFSET + offset, count);
+			offset += count;
+			page = SlottedPage.getNextOverflowPage(pageAddress);
+		}
+		return value;
+	}
+
+	private byte[] readKey(long pageAddress, int index) {
+		long cell = SlottedPage.cellAddress(pageAddress, index);
+		byte[] key = new byte[SlottedPage.getKeyLength(cell)];
+		Unsafe.UNSAFE.copyMemory(null, SlottedPage.keyAddress(pageAddress, cell), key, BYTE_ARRAY_OFFSET, key.length);
+		return key;
+	}
+
+	/*
+	 * Search
+	 */
+
+	private long findLeaf(byte[] key) {
+		long page = rootPage;
+		for (int depth = 1; depth < height; ++depth) {
+			long pageAddress = pmm.getPage(page);
+			page = getChild(pageAddress, childIndex(pageAddress, key));
+		}
+		return page;
+	}
+
+	private long getFirstLeaf() {
+		long page = rootPage;
+		for (int depth = 1; depth < height; ++depth) {
+			page = SlottedPage.getLeftChild(pmm.getPage(page));
+		}
+		return page;
+	}
+
+	private long getLastLeaf(long page, int depth) {
+		for (; depth < height; ++depth) {
+			long pageAddress = pmm.getPage(page);
+			page = getChild(pageAddress, SlottedPage.getCount(pageAddress));
+		}
+		return page;
+	}
+
+	/*
+	 * Separator is not greater than the first key of the right subtree, so equal key goes to the right
+	 */
+
+	private int childIndex(long pageAddress, byte[] key) {
+		int index = search(pageAddress, key);
+		return index >= 0 ? index + 1 : -(index + 1);
+	}
+
+	private int search(long pageAddress, byte[] key) {
+		boolean leaf = SlottedPage.getType(pageAddress) == SlottedPage.LEAF_TYPE;
+		int low = 0;
+		int high = SlottedPage.getCount(pageAddress) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long cell = SlottedPage.cellAddress(pageAddress, mid);
+			long keyAddress = leaf ? SlottedPage.leafKeyAddress(cell) : SlottedPage.innerKeyAddress(cell);
+			int c = Memcmp.compare(keyAddress, SlottedPage.getKeyLength(cell), key);
+			if (c < 0) {
+				low = mid + 1;
+			}
+			else if (c > 0) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/*
+	 * Pages
+	 */
+
+	private long getChild(long pageAddress, int index) {
+		if (index == 0) {
+			return SlottedPage.getLeftChild(pageAddress);
+		}
+		return SlottedPage.getInnerChild(SlottedPage.cellAddress(pageAddress, index - 1));
+	}
+
+	private void setChild(long pageAddress, int index, long child) {
+		if (index == 0) {
+			SlottedPage.setLeftChild(pageAddress, child);
+		}
+		else {
+			SlottedPage.setInnerChild(SlottedPage.cellAddress(pageAddress, index - 1), child);
+		}
+	}
+
+	/*
+	 * Page of the committed version is copied before the first change after the commit,
+	 * parent is changed to the copy, so the parent itself must be writable
+	 */
+
+	private long writableChild(long parent, int index) {
+		long child = getChild(pmm.getPage(parent), index);
+		long copy = writable(child);
+		if (copy != child) {
+			setChild(pmm.getPage(parent), index, copy);
+			pmm.markDirty(parent);
+		}
+		return copy;
+	}
+
+	private long writable(long page) {
+		if (!pmm.isCommitted(page)) {
+			return page;
+		}
+		int type = SlottedPage.getType(pmm.getPage(page));
+		long copy = type == SlottedPage.LEAF_TYPE ? newLeaf(getLeafLevel()) : newPage(type);
+		Unsafe.UNSAFE.copyMemory(pmm.getPage(page) + SlottedPage.COUNT_OFFSET, pmm.getPage(copy) + SlottedPage.COUNT_OFFSET, pageSize - SlottedPage.COUNT_OFFSET);
+		pmm.markDirty(copy);
+		pmm.freePage(page);
+		return copy;
+	}
+
+	private long newLeaf(int level) {
+		long page = newPage(SlottedPage.LEAF_TYPE);
+		pmm.addLeafPage(page, level);
+		return page;
+	}
+
+	private long newPage(int type) {
+		long page = pmm.allocateNewPage();
+		SlottedPage.format(pmm.getPage(page), type, pageSize);
+		pmm.markDirty(page);
+		return page;
+	}
+
+	private void checkKey(byte[] key) {
+		Arguments.notNull(key);
+		if (key.length > maxKeyLength) {
+			throw new IllegalArgumentException("key length " + key.length + " is greater than " + maxKeyLength);
+		}
+	}
+
+	/*
+	 * Tree does not hold references to the keys and values of the caller
+	 */
+
+	private void release() {
+		currentKey = null;
+		currentValue = null;
+		foundValue = null;
+	}
+
+	/**
+	 * Reusable position in the leaf. Cursor moves in both directions by the path of inner nodes,
+	 * so the scan of k entries touches O(log n + k / B) pages. Key is read in the page,
+	 * value is copied because it can be in overflow pages. Cursor is valid until the next put, remove or clear.
+	 */
+
+	public final class BytesCursor {
+
+		private long[] pathPages = new long[0];
+		private int[] pathIndexes = new int[0];
+		private long page = PagedMemoryManager.NULL_PAGE;
+		private int index;
+		private long expectedModifications;
+
+		private BytesCursor() {
+		}
+
+		/**
+		 *
+		 * @return true if the tree is not empty
+		 */
+
+		public boolean first() {
+			descend(FIRST, null);
+			index = 0;
+			return skipEmpty();
+		}
+
+		/**
+		 *
+		 * @return true if the tree is not empty
+		 */
+
+		public boolean last() {
+			descend(LAST, null);
+			index = SlottedPage.getCount(pmm.getPage(page)) - 1;
+			if (index < 0) {
+				page = PagedMemoryManager.NULL_PAGE;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Positions the cursor at the least key greater than or equal to the key
+		 *
+		 * @param key - key
+		 * @return true if such key exists
+		 */
+
+		public boolean seek(byte[] key) {
+			Arguments.notNull(key);
+			descend(SEEK, key);
+			int i = search(pmm.getPage(page), key);
+			index = i >= 0 ? i : -(i + 1);
+			return skipEmpty();
+		}
+
+		public boolean isValid() {
+			return page != PagedMemoryManager.NULL_PAGE && expectedModifications == modifications;
+		}
+
+		/**
+		 *
+		 * @return false if there is no next entry, cursor becomes invalid
+		 */
+
+		public boolean next() {
+			checkPosition();
+			index++;
+			return skipEmpty();
+		}
+
+		/**
+		 *
+		 * @return false if there is no previous entry, cursor becomes invalid
+		 */
+
+		public boolean prev() {
+			checkPosition();
+			if (index > 0) {
+				index--;
+				return true;
+			}
+
+			/*
+			 * Lowest inner node with the lesser child, then the rightmost leaf of that child
+			 */
+
+			int depth = height - 2;
+			while (depth >= 0 && pathIndexes[depth] == 0) {
+				depth--;
+			}
+			if (depth < 0) {
+				page = PagedMemoryManager.NULL_PAGE;
+				return false;
+			}
+			pathIndexes[depth]--;
+			long child = getChild(pmm.getPage(pathPages[depth]), pathIndexes[depth]);
+			for (int d = depth + 1; d < height - 1; ++d) {
+				long childAddress = pmm.getPage(child);
+				int count = SlottedPage.getCount(childAddress);
+				pathPages[d] = child;
+				pathIndexes[d] = count;
+				child = getChild(childAddress, count);
+			}
+			page = child;
+			index = SlottedPage.getCount(pmm.getPage(page)) - 1;
+			return true;
+		}
+
+		/**
+		 *
+		 * @return address of the key in the page
+		 */
+
+		public long keyAddress() {
+			checkPosition();
+			return SlottedPage.leafKeyAddress(SlottedPage.cellAddress(pmm.getPage(page), index));
+		}
+
+		public int keyLength() {
+			checkPosition();
+			return SlottedPage.getKeyLength(SlottedPage.cellAddress(pmm.getPage(page), index));
+		}
+
+		public byte[] key() {
+			checkPosition();
+			return readKey(pmm.getPage(page), index);
+		}
+
+		public byte[] value() {
+			checkPosition();
+			return readValue(SlottedPage.cellAddress(pmm.getPage(page), index));
+		}
+
+		private void descend(int mode, byte[] key) {
+			if (pathPages.length < height - 1) {
+				pathPages = new long[height - 1];
+				pathIndexes = new int[height - 1];
+			}
+			long p = rootPage;
+			for (int depth = 0; depth < height - 1; ++depth) {
+				long pageAddress = pmm.getPage(p);
+				int i;
+				switch(mode) {
+				case FIRST:
+					i = 0;
+					break;
+				case LAST:
+					i = SlottedPage.getCount(pageAddress);
+					break;
+				default:
+					i = childIndex(pageAddress, key);
+					break;
+				}
+				pathPages[depth] = p;
+				pathIndexes[depth] = i;
+				p = getChild(pageAddress, i);
+			}
+			page = p;
+			expectedModifications = modifications;
+		}
+
+		/*
+		 * Lowest inner node with the greater child, then the leftmost leaf of that child
+		 */
+
+		private boolean skipEmpty() {
+			while (index >= SlottedPage.getCount(pmm.getPage(page))) {
+				int depth = height - 2;
+				while (depth >= 0 && pathIndexes[depth] == SlottedPage.getCount(pmm.getPage(pathPages[depth]))) {
+					depth--;
+				}
+				if (depth < 0) {
+					page = PagedMemoryManager.NULL_PAGE;
+					return false;
+				}
+				pathIndexes[depth]++;
+				long child = getChild(pmm.getPage(pathPages[depth]), pathIndexes[depth]);
+				for (int d = depth + 1; d < height - 1; ++d) {
+					pathPages[d] = child;
+					pathIndexes[d] = 0;
+					child = SlottedPage.getLeftChild(pmm.getPage(child));
+				}
+				page = child;
+				index = 0;
+			}
+			return true;
+		}
+
+		private void checkPosition() {
+			if (expectedModifications != modifications) {
+				throw new ConcurrentModificationException();
+			}
+			if (page == PagedMemoryManager.NULL_PAGE) {
+				throw new NoSuchElementException();
+			}
+		}
+
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+		private final long[] pathPages = new long[height - 1];
+		private final int[] pathIndexes = new int[height - 1];
+		private long page = rootPage;
+		private int index;
+
+		private EntryIterator() {
+			for (int depth = 0; depth != pathPages.length; ++depth) {
+				pathPages[depth] = page;
+				page = SlottedPage.getLeftChild(pmm.getPage(page));
+			}
+		}
+
+		/*
+		 * Lowest inner node with the greater child, then the leftmost leaf of that child
+		 */
+
+		@Override
+		public boolean hasNext() {
+			while (page != PagedMemoryManager.NULL_PAGE && index >= SlottedPage.getCount(pmm.getPage(page))) {
+				int depth = pathPages.length - 1;
+				while (depth >= 0 && pathIndexes[depth] == SlottedPage.getCount(pmm.getPage(pathPages[depth]))) {
+					depth--;
+				}
+				if (depth < 0) {
+					page = PagedMemoryManager.NULL_PAGE;
+					break;
+				}
+				pathIndexes[depth]++;
+				long child = getChild(pmm.getPage(pathPages[depth]), pathIndexes[depth]);
+				for (int d = depth + 1; d != pathPages.length; ++d) {
+					pathPages[d] = child;
+					pathIndexes[d] = 0;
+					child = SlottedPage.getLeftChild(pmm.getPage(child));
+				}
+				page = child;
+				index = 0;
+			}
+			return page != PagedMemoryManager.NULL_PAGE;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			long pageAddress = pmm.getPage(page);
+			byte[] key = readKey(pageAddress, index);
+			byte[] value = readValue(SlottedPage.cellAddress(pageAddress, index));
+			index++;
+			return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
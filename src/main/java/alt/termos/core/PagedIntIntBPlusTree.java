@@ -0,0 +1,246 @@
+package alt.termos.core;
+
+import java.util.NoSuchElementException;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap B+Tree specialized for int keys and int values.
+ * Keys are compared in the page without serializers and boxing, absent value is reported by no entry value.
+ *
+ * Tree is not thread-safe, except getConcurrent() running with one writer.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PagedIntIntBPlusTree extends AbstractPagedPrimitiveBPlusTree {
+
+	public static final int KEY_SIZE = 4;
+	public static final int VALUE_SIZE = 4;
+
+	private final int noEntryValue;
+
+	private int currentKey;
+	private int currentValue;
+	private int foundValue;
+
+	/**
+	 *
+	 * @param pmm - page manager
+	 * @param noEntryValue - value returned if the key is absent
+	 */
+
+	public PagedIntIntBPlusTree(PagedMemoryManager pmm, int noEntryValue) {
+		this(pmm, noEntryValue, PagedMemoryManager.NULL_PAGE, 0);
+	}
+
+	private PagedIntIntBPlusTree(PagedMemoryManager pmm, int noEntryValue, long rootPage, long size) {
+		super(pmm, KEY_SIZE, VALUE_SIZE, rootPage, size);
+		this.noEntryValue = noEntryValue;
+	}
+
+	/**
+	 * Opens the tree from the committed root of the manager
+	 *
+	 * @param pmm - page manager
+	 * @param noEntryValue - value returned if the key is absent
+	 * @return committed tree or the new one if nothing was committed
+	 */
+
+	public static PagedIntIntBPlusTree open(PagedMemoryManager pmm, int noEntryValue) {
+		Arguments.notNull(pmm);
+		return new PagedIntIntBPlusTree(pmm, noEntryValue, pmm.getCommittedRootPage(), pmm.getCommittedUserData());
+	}
+
+	public int getNoEntryValue() {
+		return noEntryValue;
+	}
+
+	public int get(int key) {
+		currentKey = key;
+		return getCurrent() ? foundValue : noEntryValue;
+	}
+
+	/**
+	 * Lookup without locks, can be called from many threads while one writer changes the tree
+	 *
+	 * @param key - key
+	 * @return value or no entry value
+	 */
+
+	public int getConcurrent(int key) {
+		return (int) getConcurrent(key, noEntryValue);
+	}
+
+	public boolean containsKey(int key) {
+		currentKey = key;
+		return containsCurrent();
+	}
+
+	/**
+	 * Inserts or replaces the value
+	 *
+	 * @param key - key
+	 * @param value - value
+	 * @return previous value or no entry value
+	 */
+
+	public int put(int key, int value) {
+		currentKey = key;
+		currentValue = value;
+		return putCurrent() ? foundValue : noEntryValue;
+	}
+
+	public int remove(int key) {
+		currentKey = key;
+		return removeCurrent() ? foundValue : noEntryValue;
+	}
+
+	/**
+	 * Appends the entry to the tree being loaded
+	 *
+	 * @see #beginLoad(double)
+	 */
+
+	public void append(int key, int value) {
+		currentKey = key;
+		currentValue = value;
+		appendCurrent();
+	}
+
+	/**
+	 * Loads the empty tree from keys in the ascending order
+	 *
+	 * @param keys - sorted keys without duplicates
+	 * @param values - values of keys
+	 * @param fillFactor - part of the page filled
+	 */
+
+	public void load(int[] keys, int[] values, double fillFactor) {
+		Arguments.notNull(keys);
+		Arguments.notNull(values);
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("keys " + keys.length + " and values " + values.length);
+		}
+		beginLoad(fillFactor);
+		for (int i = 0; i != keys.length; ++i) {
+			append(keys[i], values[i]);
+		}
+		endLoad();
+	}
+
+	/**
+	 * Cursor reads keys and values in pages, one cursor is reused for many scans
+	 *
+	 * @return new cursor, not positioned
+	 */
+
+	public IntIntCursor cursor() {
+		return new IntIntCursor();
+	}
+
+	public final class IntIntCursor extends Cursor {
+
+		private IntIntCursor() {
+		}
+
+		/**
+		 * Positions the cursor at the least key greater than or equal to the key
+		 *
+		 * @param key - key
+		 * @return true if such key exists
+		 */
+
+		public boolean seek(int key) {
+			currentKey = key;
+			return seekCurrent();
+		}
+
+		public int key() {
+			return Unsafe.UNSAFE.getInt(keyAddress());
+		}
+
+		public int value() {
+			return Unsafe.UNSAFE.getInt(valueAddress());
+		}
+
+	}
+
+	/**
+	 *
+	 * @return minimum key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+
+	public int getMinKey() {
+		long address = getMinKeyAddress();
+		if (address == 0) {
+			throw new NoSuchElementException();
+		}
+		return Unsafe.UNSAFE.getInt(address);
+	}
+
+	/**
+	 *
+	 * @return maximum key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+
+	public int getMaxKey() {
+		long address = getMaxKeyAddress();
+		if (address == 0) {
+			throw new NoSuchElementException();
+		}
+		return Unsafe.UNSAFE.getInt(address);
+	}
+
+	@Override
+	protected int searchCurrentKey(long keysAddress, int count) {
+		return searchKey(keysAddress, count, currentKey);
+	}
+
+	@Override
+	protected int searchKey(long keysAddress, int count, long key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midKey = Unsafe.UNSAFE.getInt(keysAddress + (long) mid * KEY_SIZE);
+			if (midKey < key) {
+				low = mid + 1;
+			}
+			else if (midKey > key) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	protected int compareKeys(long keyAddress1, long keyAddress2) {
+		int key1 = Unsafe.UNSAFE.getInt(keyAddress1);
+		int key2 = Unsafe.UNSAFE.getInt(keyAddress2);
+		return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+	}
+
+	@Override
+	protected void writeCurrentKey(long keyAddress) {
+		Unsafe.UNSAFE.putInt(keyAddress, currentKey);
+	}
+
+	@Override
+	protected void writeCurrentValue(long valueAddress) {
+		Unsafe.UNSAFE.putInt(valueAddress, currentValue);
+	}
+
+	@Override
+	protected void readValue(long valueAddress) {
+		foundValue = Unsafe.UNSAFE.getInt(valueAddress);
+	}
+
+}
@@ -0,0 +1,246 @@
+package alt.termos.core;
+
+import java.util.NoSuchElementException;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+
+/**
+ * Off-heap B+Tree specialized for long keys and long values.
+ * Keys are compared in the page without serializers and boxing, absent value is reported by no entry value.
+ *
+ * Tree is not thread-safe, except getConcurrent() running with one writer.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class PagedLongLongBPlusTree extends AbstractPagedPrimitiveBPlusTree {
+
+	public static final int KEY_SIZE = 8;
+	public static final int VALUE_SIZE = 8;
+
+	private final long noEntryValue;
+
+	private long currentKey;
+	private long currentValue;
+	private long foundValue;
+
+	/**
+	 *
+	 * @param pmm - page manager
+	 * @param noEntryValue - value returned if the key is absent
+	 */
+
+	public PagedLongLongBPlusTree(PagedMemoryManager pmm, long noEntryValue) {
+		this(pmm, noEntryValue, PagedMemoryManager.NULL_PAGE, 0);
+	}
+
+	private PagedLongLongBPlusTree(PagedMemoryManager pmm, long noEntryValue, long rootPage, long size) {
+		super(pmm, KEY_SIZE, VALUE_SIZE, rootPage, size);
+		this.noEntryValue = noEntryValue;
+	}
+
+	/**
+	 * Opens the tree from the committed root of the manager
+	 *
+	 * @param pmm - page manager
+	 * @param noEntryValue - value returned if the key is absent
+	 * @return committed tree or the new one if nothing was committed
+	 */
+
+	public static PagedLongLongBPlusTree open(PagedMemoryManager pmm, long noEntryValue) {
+		Arguments.notNull(pmm);
+		return new PagedLongLongBPlusTree(pmm, noEntryValue, pmm.getCommittedRootPage(), pmm.getCommittedUserData());
+	}
+
+	public long getNoEntryValue() {
+		return noEntryValue;
+	}
+
+	public long get(long key) {
+		currentKey = key;
+		return getCurrent() ? foundValue : noEntryValue;
+	}
+
+	/**
+	 * Lookup without locks, can be called from many threads while one writer changes the tree
+	 *
+	 * @param key - key
+	 * @return value or no entry value
+	 */
+
+	public long getConcurrent(long key) {
+		return getConcurrent(key, noEntryValue);
+	}
+
+	public boolean containsKey(long key) {
+		currentKey = key;
+		return containsCurrent();
+	}
+
+	/**
+	 * Inserts or replaces the value
+	 *
+	 * @param key - key
+	 * @param value - value
+	 * @return previous value or no entry value
+	 */
+
+	public long put(long key, long value) {
+		currentKey = key;
+		currentValue = value;
+		return putCurrent() ? foundValue : noEntryValue;
+	}
+
+	public long remove(long key) {
+		currentKey = key;
+		return removeCurrent() ? foundValue : noEntryValue;
+	}
+
+	/**
+	 * Appends the entry to the tree being loaded
+	 *
+	 * @see #beginLoad(double)
+	 */
+
+	public void append(long key, long value) {
+		currentKey = key;
+		currentValue = value;
+		appendCurrent();
+	}
+
+	/**
+	 * Loads the empty tree from keys in the ascending order
+	 *
+	 * @param keys - sorted keys without duplicates
+	 * @param values - values of keys
+	 * @param fillFactor - part of the page filled
+	 */
+
+	public void load(long[] keys, long[] values, double fillFactor) {
+		Arguments.notNull(keys);
+		Arguments.notNull(values);
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("keys " + keys.length + " and values " + values.length);
+		}
+		beginLoad(fillFactor);
+		for (int i = 0; i != keys.length; ++i) {
+			append(keys[i], values[i]);
+		}
+		endLoad();
+	}
+
+	/**
+	 * Cursor reads keys and values in pages, one cursor is reused for many scans
+	 *
+	 * @return new cursor, not positioned
+	 */
+
+	public LongLongCursor cursor() {
+		return new LongLongCursor();
+	}
+
+	public final class LongLongCursor extends Cursor {
+
+		private LongLongCursor() {
+		}
+
+		/**
+		 * Positions the cursor at the least key greater than or equal to the key
+		 *
+		 * @param key - key
+		 * @return true if such key exists
+		 */
+
+		public boolean seek(long key) {
+			currentKey = key;
+			return seekCurrent();
+		}
+
+		public long key() {
+			return Unsafe.UNSAFE.getLong(keyAddress());
+		}
+
+		public long value() {
+			return Unsafe.UNSAFE.getLong(valueAddress());
+		}
+
+	}
+
+	/**
+	 *
+	 * @return minimum key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+
+	public long getMinKey() {
+		long address = getMinKeyAddress();
+		if (address == 0) {
+			throw new NoSuchElementException();
+		}
+		return Unsafe.UNSAFE.getLong(address);
+	}
+
+	/**
+	 *
+	 * @return maximum key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+
+	public long getMaxKey() {
+		long address = getMaxKeyAddress();
+		if (address == 0) {
+			throw new NoSuchElementException();
+		}
+		return Unsafe.UNSAFE.getLong(address);
+	}
+
+	@Override
+	protected int searchCurrentKey(long keysAddress, int count) {
+		return searchKey(keysAddress, count, currentKey);
+	}
+
+	@Override
+	protected int searchKey(long keysAddress, int count, long key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midKey = Unsafe.UNSAFE.getLong(keysAddress + (long) mid * KEY_SIZE);
+			if (midKey < key) {
+				low = mid + 1;
+			}
+			else if (midKey > key) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	protected int compareKeys(long keyAddress1, long keyAddress2) {
+		long key1 = Unsafe.UNSAFE.getLong(keyAddress1);
+		long key2 = Unsafe.UNSAFE.getLong(keyAddress2);
+		return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+	}
+
+	@Override
+	protected void writeCurrentKey(long keyAddress) {
+		Unsafe.UNSAFE.putLong(keyAddress, currentKey);
+	}
+
+	@Override
+	protected void writeCurrentValue(long valueAddress) {
+		Unsafe.UNSAFE.putLong(valueAddress, currentValue);
+	}
+
+	@Override
+	protected void readValue(long valueAddress) {
+		foundValue = Unsafe.UNSAFE.getLong(valueAddress);
+	}
+
+}
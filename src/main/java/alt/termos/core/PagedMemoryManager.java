@@ -1,64 +1,1182 @@
 package alt.termos.core;
 
 import alt.termos.util.Arguments;
+import alt.termos.util.MappedFile;
+import alt.termos.util.SegmentedMemoryMappedFile;
+import alt.termos.util.UnsafeMemoryMappedFile;
 
 
 /**
- * 
+ *
  * @author Albert Shift
  *
  */
 
 public class PagedMemoryManager {
-	
+
+	/*
+	 * Page 0 is always the meta page, so it is using as a null reference in the linked lists
+	 */
+
+	public static final long NULL_PAGE = 0;
+
 	private final MetaPage metaPage;
-	
-	private final long address;
+
 	private final long diskPageSize;
-	private final long totalPages;
-	
+
+	/*
+	 * Page number is translated to the address of the segment by the shift, fixed mapping is the only one segment.
+	 * Segments are published before total pages, so the reader that sees the page always sees its segment.
+	 */
+
+	private final SegmentedMemoryMappedFile smf;
+	private final int segmentShift;
+	private final long segmentMask;
+	private final Object growLock = new Object();
+	private volatile long[] segments;
+	private volatile long totalPages;
+
+	/*
+	 * Pages changed since the last flush, only they are written back by the ranged msync
+	 */
+
+	private final MappedFile file;
+	private final PageBitmap dirtyPages;
+	private final Object flushLock = new Object();
+
+	/*
+	 * Pages held by the write-ahead log until their records are durable, flush keeps them dirty
+	 */
+
+	private final PageBitmap heldPages;
+
+	/*
+	 * Pages with verified checksum after open, each page is verified once on the first touch
+	 */
+
+	private final boolean checksums;
+	private final PageBitmap verifiedPages;
+
+	/*
+	 * Shadow paging: old versions of pages are freed only by the commit that stops referencing them.
+	 * Page allocated after the last commit may be a link of the committed free list, so when it is freed
+	 * it is released after the next commit, otherwise the committed free list would be relinked.
+	 */
+
+	private final Object commitLock = new Object();
+	private long[] retiredPages = new long[16];
+	private int retiredCount;
+	private long[] releasedPages = new long[16];
+	private int releasedCount;
+	private final PageBitmap freshPages;
+	private volatile boolean committed;
+
+	/*
+	 * Leaf lists of other generations are dropped by the restore of the commit
+	 */
+
+	private final int leafGeneration;
+	private final int temperatureBuckets;
+	private final int leafLevels;
+
+	/*
+	 * Upper levels of the tree are always hot, so they are never considered for the eviction
+	 */
+
+	private volatile int protectedLevels;
+
+	private final boolean cacheMode;
+
+	/*
+	 * Sampled counters live in the off-heap array, so hits never write disk pages
+	 */
+
+	private final boolean sampledCounters;
+	private final HitCounters hitCounters;
+	private final CacheStatistics statistics = new CacheStatistics();
+	private volatile EvictionListener evictionListener;
+
+	/*
+	 * Leaf lists are double linked, so updates of the list are guarded by the lock of the list
+	 */
+
+	private final Object[] leafLocks;
+
 	public PagedMemoryManager(MetaPage metaPage) {
+		this(metaPage, null, null);
+	}
+
+	/**
+	 * Page manager on top of the fixed mapping, mapped file is used for the flush
+	 *
+	 * @param metaPage - meta page at the address of the mapping
+	 * @param mmf - fixed mapping
+	 */
+
+	public PagedMemoryManager(MetaPage metaPage, UnsafeMemoryMappedFile mmf) {
+		this(metaPage, mmf, null);
+		Arguments.notNull(mmf);
+		if (mmf.getAddress() != metaPage.getAddress()) {
+			throw new IllegalArgumentException("meta page is not at the address of the mapping");
+		}
+	}
+
+	/**
+	 * Page manager on top of the segmented mapping grows the file instead of running out of new pages
+	 *
+	 * @param metaPage - meta page in the first segment
+	 * @param smf - growable mapping
+	 */
+
+	public PagedMemoryManager(MetaPage metaPage, SegmentedMemoryMappedFile smf) {
+		this(metaPage, smf, smf);
+		Arguments.notNull(smf);
+	}
+
+	private PagedMemoryManager(MetaPage metaPage, MappedFile file, SegmentedMemoryMappedFile smf) {
 		Arguments.notNull(metaPage);
 		metaPage.validate();
 
 		this.metaPage = metaPage;
-		
-		this.address = metaPage.getAddress();
+
 		this.diskPageSize = metaPage.getDiskPageSize();
-		this.totalPages = metaPage.getFileSize() / diskPageSize;
+		this.file = file;
+		this.smf = smf;
+
+		if (smf != null) {
+			if (smf.getAddress() != metaPage.getAddress()) {
+				throw new IllegalArgumentException("meta page is not in the first segment");
+			}
+			if (Long.bitCount(diskPageSize) != 1) {
+				throw new IllegalArgumentException("disk page size must be a power of two " + diskPageSize);
+			}
+			Arguments.greaterOrEquals(smf.getSegmentSize(), diskPageSize);
+			this.segmentShift = smf.getSegmentSizeShift() - Long.numberOfTrailingZeros(diskPageSize);
+			this.segmentMask = (1L << segmentShift) - 1L;
+			this.segments = smf.getSegments();
+			this.totalPages = smf.getSize() / diskPageSize;
+			this.dirtyPages = new PageBitmap(Math.max(segmentShift, 6), totalPages);
+		}
+		else {
+			this.segmentShift = 63;
+			this.segmentMask = Long.MAX_VALUE;
+			this.segments = new long[] { metaPage.getAddress() };
+			this.totalPages = metaPage.getFileSize() / diskPageSize;
+			this.dirtyPages = new PageBitmap(Math.max(64 - Long.numberOfLeadingZeros(totalPages - 1), 6), totalPages);
+		}
+
+		this.checksums = metaPage.isChecksums();
+		this.verifiedPages = checksums ? new PageBitmap(dirtyPages.getChunkShift(), totalPages) : null;
+
+		this.temperatureBuckets = metaPage.getTemperatureBuckets();
+		this.leafLevels = metaPage.getLeafLevels();
+		this.cacheMode = metaPage.isCacheMode();
+		this.sampledCounters = metaPage.isSampledCounters();
+		this.hitCounters = sampledCounters ? new HitCounters(dirtyPages.getChunkShift(), totalPages) : null;
+
+		this.leafLocks = new Object[MetaPage.getLeafList(leafLevels, 0)];
+		for (int i = 0; i != leafLocks.length; ++i) {
+			leafLocks[i] = new Object();
+		}
+
+		this.freshPages = new PageBitmap(dirtyPages.getChunkShift(), totalPages);
+		this.heldPages = new PageBitmap(dirtyPages.getChunkShift(), totalPages);
+		int slot = metaPage.getCommittedSlot();
+		if (slot != MetaPage.NO_COMMIT_SLOT) {
+			this.committed = true;
+			if (metaPage.restoreCommit(slot) == MetaPage.DEFAULT_LEAF_GENERATION) {
+				clearLeafLists();
+			}
+		}
+		this.leafGeneration = metaPage.getLeafGeneration();
+
+		if (checksums && !metaPage.isChecksumsComplete()) {
+			completeChecksums();
+		}
+	}
+
+	/*
+	 * Checksums are turned on for the file, every allocated page is checksummed once. Pages are flushed
+	 * before the flag, so the flag on the disk means that pages without the checksum are corrupted.
+	 */
+
+	private void completeChecksums() {
+		long nextNewPage = metaPage.getNextNewPage();
+		for (long pageNum = MetaPage.DEFAULT_NEXTNEW_PAGE; pageNum < nextNewPage; ++pageNum) {
+			verifiedPages.set(pageNum);
+			markDirty(pageNum);
+		}
+		if (file != null) {
+			flush();
+		}
+		metaPage.setChecksumsComplete();
+		if (file != null) {
+			flush();
+		}
+	}
+
+	/*
+	 * Generation of leaf lists wrapped around, so lists of the pages are cleared one by one
+	 */
+
+	private void clearLeafLists() {
+		long nextNewPage = metaPage.getNextNewPage();
+		for (long pageNum = MetaPage.DEFAULT_NEXTNEW_PAGE; pageNum < nextNewPage; ++pageNum) {
+			NodePage.setList(getRawPage(pageNum), NodePage.NO_LIST);
+			markDirty(pageNum);
+		}
 	}
-	
+
+	/**
+	 * Address of the page, with checksums the page is verified on the first touch after open
+	 *
+	 * @param pageNum - page number
+	 * @return address of the page
+	 * @throws IllegalStateException if the checksum of the page does not match
+	 */
+
 	public long getPage(long pageNum) {
+		long pageAddress = getRawPage(pageNum);
+		if (checksums && pageNum != NULL_PAGE && !verifiedPages.get(pageNum)) {
+			verifyPage(pageNum, pageAddress);
+		}
+		return pageAddress;
+	}
+
+	/**
+	 * Address of the page without the verification, for the recovery that overwrites the page
+	 *
+	 * @param pageNum - page number
+	 * @return address of the page
+	 */
+
+	public long getRawPage(long pageNum) {
 		if (pageNum >= totalPages) {
 			throw new IndexOutOfBoundsException("PageNum: "+pageNum+", TotalPages: "+totalPages);
 		}
-		return address + pageNum * diskPageSize;
+		return segments[(int) (pageNum >>> segmentShift)] + (pageNum & segmentMask) * diskPageSize;
+	}
+
+	/*
+	 * Another thread can verify the page and change it while this thread computes the checksum
+	 */
+
+	private void verifyPage(long pageNum, long pageAddress) {
+		if (!PageChecksum.verify(pageAddress, diskPageSize) && !verifiedPages.get(pageNum)) {
+			throw new IllegalStateException("checksum mismatch, PageNum: " + pageNum);
+		}
+		verifiedPages.set(pageNum);
+	}
+
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	public boolean isVerified(long pageNum) {
+		return !checksums || verifiedPages.get(pageNum);
 	}
-	
+
+	public boolean isGrowable() {
+		return smf != null;
+	}
+
+	/**
+	 * Owner of the page marks it after the write, so the next flush writes it back
+	 *
+	 * @param pageNum - changed page
+	 */
+
+	public void markDirty(long pageNum) {
+		dirtyPages.set(pageNum);
+	}
+
+	public boolean isDirty(long pageNum) {
+		return dirtyPages.get(pageNum);
+	}
+
+	/**
+	 * Page is not written by the flush until it is released, so the change is not on the disk before its log record
+	 *
+	 * @param pageNum - page changed under the write-ahead log
+	 */
+
+	public void holdPage(long pageNum) {
+		heldPages.set(pageNum);
+	}
+
+	/**
+	 * Page is written by the next flush
+	 *
+	 * @param pageNum - held page
+	 */
+
+	public void releasePage(long pageNum) {
+		heldPages.clear(pageNum);
+		markDirty(pageNum);
+	}
+
+	public boolean isHeld(long pageNum) {
+		return heldPages.get(pageNum);
+	}
+
+	/**
+	 * Writes back dirty pages, runs of adjacent dirty pages are coalesced into one ranged msync.
+	 * Meta page is always written, because it is changed by every allocation.
+	 * With checksums the checksum of each written page is computed before the msync.
+	 * Pages marked during the flush stay dirty for the next one, held pages stay dirty until they are released.
+	 *
+	 * @return number of written pages
+	 * @throws IllegalStateException if there is no mapped file or msync fails, not written pages stay dirty
+	 */
+
+	public long flush() {
+		if (file == null) {
+			throw new IllegalStateException("no mapped file to flush");
+		}
+		synchronized (flushLock) {
+			dirtyPages.set(NULL_PAGE);
+
+			long pages = totalPages;
+			long flushed = 0;
+			long runStart = -1;
+			long runEnd = -1;
+
+			for (long wordPage = 0; wordPage < pages; wordPage += 64) {
+				long bits = dirtyPages.clearWord(wordPage);
+				long held = bits & heldPages.getWord(wordPage);
+				if (held != 0) {
+					markDirty(wordPage, held);
+					bits &= ~held;
+				}
+				while (bits != 0) {
+					long pageNum = wordPage + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					if (pageNum == runEnd) {
+						++runEnd;
+						continue;
+					}
+					if (runStart != -1) {
+						try {
+							flushed += forceRun(runStart, runEnd);
+						}
+						catch(IllegalStateException e) {
+							markDirty(pageNum);
+							markDirty(wordPage, bits);
+							throw e;
+						}
+					}
+					runStart = pageNum;
+					runEnd = pageNum + 1;
+				}
+			}
+			if (runStart != -1) {
+				flushed += forceRun(runStart, runEnd);
+			}
+			return flushed;
+		}
+	}
+
+	/**
+	 * Atomic commit of the shadow paging. New versions of pages are written by the flush, then the root
+	 * is published by the write of the not committed slot of the meta page and one small flush of that slot.
+	 * Torn write of the slot leaves the previous commit valid.
+	 *
+	 * Slot keeps next new page and free heads, they are restored on open. Retired pages are linked
+	 * in front of the free lists before the flush, so the commit frees them, but they are published
+	 * only after the slot. Links of the committed free lists are never changed before the next commit.
+	 * Other threads must not allocate or free pages during the commit.
+	 *
+	 * @param rootPage - root page of the new version
+	 * @param userData - owner data stored with the root
+	 * @return sequence of the commit
+	 */
+
+	public long commit(long rootPage, long userData) {
+		if (file == null) {
+			throw new IllegalStateException("no mapped file to commit");
+		}
+		if (rootPage != NULL_PAGE) {
+			getPage(rootPage);
+		}
+		synchronized (commitLock) {
+			long[] heads = new long[temperatureBuckets];
+			long[] freeHeadPages = new long[temperatureBuckets];
+			long[] tailPages = new long[temperatureBuckets];
+			for (int bucket = 0; bucket != temperatureBuckets; ++bucket) {
+				heads[bucket] = metaPage.getFreeHead(bucket);
+				freeHeadPages[bucket] = heads[bucket] & MetaPage.PAGE_NUM_MASK;
+				tailPages[bucket] = NULL_PAGE;
+			}
+			for (int i = 0; i != retiredCount; ++i) {
+				long pageNum = retiredPages[i];
+				int bucket = getTemperature(pageNum, getPage(pageNum));
+				NodePage.setFreePage(getPage(pageNum), freeHeadPages[bucket]);
+				markDirty(pageNum);
+				if (tailPages[bucket] == NULL_PAGE) {
+					tailPages[bucket] = pageNum;
+				}
+				freeHeadPages[bucket] = pageNum;
+			}
+
+			flush();
+
+			int slot = metaPage.writeCommit(rootPage, metaPage.getNextNewPageVolatile(), freeHeadPages, userData);
+			try {
+				file.force(MetaPage.getCommitSlotOffset(slot), MetaPage.COMMIT_SLOT_ALIGNMENT);
+			}
+			catch(Exception e) {
+				throw new IllegalStateException("can not flush commit slot " + slot, e);
+			}
+
+			for (int bucket = 0; bucket != temperatureBuckets; ++bucket) {
+				if (tailPages[bucket] != NULL_PAGE) {
+					publishFreePages(bucket, heads[bucket], freeHeadPages[bucket], tailPages[bucket]);
+				}
+			}
+			retiredPages = new long[16];
+			retiredCount = 0;
+
+			committed = true;
+			freshPages.clear();
+			for (int i = 0; i != releasedCount; ++i) {
+				pushFreePage(releasedPages[i]);
+			}
+			releasedPages = new long[16];
+			releasedCount = 0;
+			return metaPage.getCommitSequence(slot);
+		}
+	}
+
+	/*
+	 * Chain of retired pages is linked to the committed head, it is relinked if the head was changed anyway
+	 */
+
+	private void publishFreePages(int bucket, long head, long firstPageNum, long lastPageNum) {
+		long lastPageAddress = getPage(lastPageNum);
+		while (!metaPage.compareAndSetFreeHead(bucket, head, firstPageNum)) {
+			head = metaPage.getFreeHead(bucket);
+			NodePage.setFreePage(lastPageAddress, head & MetaPage.PAGE_NUM_MASK);
+			markDirty(lastPageNum);
+		}
+	}
+
+	private static long[] append(long[] pages, int count, long pageNum) {
+		if (count == pages.length) {
+			long[] newPages = new long[count << 1];
+			System.arraycopy(pages, 0, newPages, 0, count);
+			pages = newPages;
+		}
+		pages[count] = pageNum;
+		return pages;
+	}
+
+	public boolean isFresh(long pageNum) {
+		return freshPages.get(pageNum);
+	}
+
+	/**
+	 * Page of the committed version must not be changed in place, it is copied before the write
+	 *
+	 * @param pageNum - allocated page
+	 * @return true if the page was allocated before the last commit
+	 */
+
+	public boolean isCommitted(long pageNum) {
+		return committed && !freshPages.get(pageNum);
+	}
+
+	public long getCommittedRootPage() {
+		int slot = metaPage.getCommittedSlot();
+		return slot != MetaPage.NO_COMMIT_SLOT ? metaPage.getCommitRootPage(slot) : NULL_PAGE;
+	}
+
+	public long getCommittedUserData() {
+		int slot = metaPage.getCommittedSlot();
+		return slot != MetaPage.NO_COMMIT_SLOT ? metaPage.getCommitUserData(slot) : 0;
+	}
+
+	public long getCommittedSequence() {
+		int slot = metaPage.getCommittedSlot();
+		return slot != MetaPage.NO_COMMIT_SLOT ? metaPage.getCommitSequence(slot) : 0;
+	}
+
+	private long forceRun(long fromPage, long toPage) {
+		if (checksums) {
+			for (long pageNum = Math.max(fromPage, 1); pageNum < toPage; ++pageNum) {
+				long pageAddress = getRawPage(pageNum);
+				NodePage.setChecksum(pageAddress, PageChecksum.compute(pageAddress, diskPageSize));
+				verifiedPages.set(pageNum);
+			}
+		}
+		try {
+			file.force(fromPage * diskPageSize, (toPage - fromPage) * diskPageSize);
+			return toPage - fromPage;
+		}
+		catch(Exception e) {
+			for (long pageNum = fromPage; pageNum != toPage; ++pageNum) {
+				markDirty(pageNum);
+			}
+			throw new IllegalStateException("can not flush pages from " + fromPage + " to " + toPage, e);
+		}
+	}
+
+	private void markDirty(long wordPage, long bits) {
+		while (bits != 0) {
+			markDirty(wordPage + Long.numberOfTrailingZeros(bits));
+			bits &= bits - 1;
+		}
+	}
+
+	/**
+	 * Clears version latches left locked by the crashed process, every allocated page is touched,
+	 * so it is called once on the recovery before the structures are opened
+	 *
+	 * @return number of unlocked pages
+	 */
+
+	public long resetLatches() {
+		long unlocked = 0;
+		long nextNewPage = metaPage.getNextNewPageVolatile();
+		for (long pageNum = MetaPage.DEFAULT_NEXTNEW_PAGE; pageNum < nextNewPage; ++pageNum) {
+			long pageAddress = getRawPage(pageNum);
+			long version = NodePage.getVersion(pageAddress);
+			if (PageLatch.isLocked(version)) {
+				NodePage.setVersion(pageAddress, version + PageLatch.LOCKED);
+				markDirty(pageNum);
+				unlocked++;
+			}
+		}
+		return unlocked;
+	}
+
+	/**
+	 * Releases off-heap memory of the manager, mapping is closed by its owner
+	 */
+
+	public void close() {
+		dirtyPages.free();
+		freshPages.free();
+		heldPages.free();
+		if (verifiedPages != null) {
+			verifiedPages.free();
+		}
+		if (hitCounters != null) {
+			hitCounters.free();
+		}
+	}
+
 	public long getTotalPages() {
 		return totalPages;
 	}
 
+	public long getDiskPageSize() {
+		return diskPageSize;
+	}
+
+	public int getTemperatureBuckets() {
+		return temperatureBuckets;
+	}
+
+	public int getLeafLevels() {
+		return leafLevels;
+	}
+
+	public boolean isCacheMode() {
+		return cacheMode;
+	}
+
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	public EvictionListener getEvictionListener() {
+		return evictionListener;
+	}
+
+	public void setEvictionListener(EvictionListener evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	public int getProtectedLevels() {
+		return protectedLevels;
+	}
+
+	/**
+	 * Leaf pages with k (distance from the root node) less than protected levels are never returned as a victim
+	 *
+	 * @param protectedLevels - number of upper levels
+	 */
+
+	public void setProtectedLevels(int protectedLevels) {
+		Arguments.positive(protectedLevels);
+		this.protectedLevels = protectedLevels;
+	}
+
+	/**
+	 * Temperature is a logarithm of the hit counter, so the bucket of the page changes only
+	 * when the hit counter crosses the power of two
+	 *
+	 * @param hits - hit counter of the page
+	 * @return index of the temperature bucket, 0 is the coldest
+	 */
+
+	public int getTemperature(long hits) {
+		int temperature = 64 - Long.numberOfLeadingZeros(hits);
+		return temperature < temperatureBuckets ? temperature : temperatureBuckets - 1;
+	}
+
+	/**
+	 * Lock-free allocation of the page, safe to call from many threads.
+	 * In the cache mode full file evicts the coldest leaf page instead of failing.
+	 *
+	 * @return page number
+	 * @throws IllegalStateException if there are no free pages in the file
+	 */
+
 	public long allocateNewPage() {
 		/*
 		 * Free pages list
 		 */
-		
+
+		long pageNum = popFreePage();
+		if (pageNum != NULL_PAGE) {
+			allocated(pageNum);
+			resetHitCounter(pageNum, getPage(pageNum));
+			markDirty(pageNum);
+			return pageNum;
+		}
+
 		/*
 		 * New pages list
 		 */
-		
+
+		pageNum = nextNewPage();
+		if (pageNum != NULL_PAGE) {
+			allocated(pageNum);
+			return pageNum;
+		}
+
 		/*
 		 * Leaf pages evict
 		 */
-		
-		return 0;
+
+		if (cacheMode) {
+			pageNum = evictLeafPage();
+			if (pageNum != NULL_PAGE) {
+				allocated(pageNum);
+				return pageNum;
+			}
+		}
+
+		throw new IllegalStateException("no free pages, TotalPages: " + totalPages);
+	}
+
+	/*
+	 * Content of the free page is overwritten by the owner, so the checksum of the page torn by the crash is not verified.
+	 * Page is written with the checksum by the next flush, even if the owner does not change it.
+	 */
+
+	private void allocated(long pageNum) {
+		freshPages.set(pageNum);
+		if (checksums) {
+			verifiedPages.set(pageNum);
+			markDirty(pageNum);
+		}
+	}
+
+	/**
+	 * Evicts the coldest leaf page below protected levels, eviction listener is notified before the page is reused
+	 *
+	 * @return page number of the evicted page or NULL_PAGE if there are no leaf pages to evict
+	 */
+
+	public long evictLeafPage() {
+		for (;;) {
+			long pageNum = getColdestLeafPage();
+			if (pageNum == NULL_PAGE) {
+				return NULL_PAGE;
+			}
+
+			long pageAddress = getPage(pageNum);
+			int list = getList(pageAddress);
+			if (list == NodePage.NO_LIST) {
+				continue;
+			}
+
+			boolean removed = false;
+			synchronized (leafLocks[list - 1]) {
+				if (getList(pageAddress) == list) {
+					unlinkLeafPage(list - 1, pageAddress);
+					setList(pageAddress, NodePage.NO_LIST);
+					removed = true;
+				}
+			}
+
+			/*
+			 * Another thread evicted or moved the page, try the next victim
+			 */
+
+			if (removed) {
+				EvictionListener listener = evictionListener;
+				if (listener != null) {
+					listener.evict(pageNum);
+				}
+				resetHitCounter(pageNum, pageAddress);
+				markDirty(pageNum);
+				statistics.eviction();
+				return pageNum;
+			}
+		}
 	}
-	
+
+	/**
+	 * Adds page to the free list of its temperature, lock-free.
+	 * Page is removed from the leaf list before, if it was a leaf.
+	 * After the commit the page of the committed version is freed by the next commit,
+	 * the page allocated since then is added to the free list after the next commit.
+	 *
+	 * @param pageNum - previously allocated page
+	 */
+
 	public void freePage(long pageNum) {
+		checkFreedPage(pageNum);
+
+		removeLeafPage(pageNum);
+
+		if (committed) {
+			boolean fresh = freshPages.get(pageNum);
+			synchronized (commitLock) {
+				if (fresh) {
+					releasedPages = append(releasedPages, releasedCount++, pageNum);
+				}
+				else {
+					retiredPages = append(retiredPages, retiredCount++, pageNum);
+				}
+			}
+			return;
+		}
+		pushFreePage(pageNum);
+	}
+
+	private void checkFreedPage(long pageNum) {
+		if (pageNum == NULL_PAGE || pageNum >= metaPage.getNextNewPageVolatile()) {
+			throw new IndexOutOfBoundsException("PageNum: "+pageNum+", NextNewPage: "+metaPage.getNextNewPageVolatile());
+		}
+	}
+
+	private void pushFreePage(long pageNum) {
+		long pageAddress = getPage(pageNum);
+		int bucket = getTemperature(pageNum, pageAddress);
+
+		for (;;) {
+			long head = metaPage.getFreeHead(bucket);
+			NodePage.setFreePage(pageAddress, head & MetaPage.PAGE_NUM_MASK);
+			if (metaPage.compareAndSetFreeHead(bucket, head, pageNum)) {
+				markDirty(pageNum);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Hot free pages most likely are still in the memory, so they are reused first
+	 */
+
+	private long popFreePage() {
+		for (int bucket = temperatureBuckets - 1; bucket >= 0; --bucket) {
+			long pageNum = popFreePage(bucket);
+			if (pageNum != NULL_PAGE) {
+				return pageNum;
+			}
+		}
+		return NULL_PAGE;
+	}
+
+	private long popFreePage(int bucket) {
+		for (;;) {
+			long head = metaPage.getFreeHead(bucket);
+			long pageNum = head & MetaPage.PAGE_NUM_MASK;
+			if (pageNum == NULL_PAGE) {
+				return NULL_PAGE;
+			}
+
+			/*
+			 * Page can be popped and reused by another thread at this moment, in that case the stamp
+			 * of the head is changed and CAS fails, so the value of the next page is ignored.
+			 * Link is kept in the popped page, it may be a link of the committed free list.
+			 */
+
+			long nextPageNum = NodePage.getFreePage(getRawPage(pageNum));
+
+			if (metaPage.compareAndSetFreeHead(bucket, head, nextPageNum)) {
+				return pageNum;
+			}
+		}
+	}
+
+	/**
+	 * Adds page to the leaf list of its level and temperature
+	 *
+	 * @param pageNum - allocated page
+	 * @param level - k (distance from the root node), deeper levels than leaf levels share the last one
+	 */
+
+	public void addLeafPage(long pageNum, int level) {
+		Arguments.positive(level);
+		long pageAddress = getPage(pageNum);
+		NodePage.setLevel(pageAddress, level);
+		int list = getLeafList(pageNum, pageAddress);
+		synchronized (leafLocks[list]) {
+			if (getList(pageAddress) != NodePage.NO_LIST) {
+				throw new IllegalStateException("page is already in the leaf list " + pageNum);
+			}
+			linkLeafPage(list, pageNum, pageAddress);
+		}
+	}
+
+	/**
+	 * Moves leaf page to another level, for example after the split of the root or promotion of the page
+	 *
+	 * @param pageNum - leaf page
+	 * @param level - new k (distance from the root node)
+	 */
+
+	public void setLeafLevel(long pageNum, int level) {
+		Arguments.positive(level);
+		long pageAddress = getPage(pageNum);
+		for (;;) {
+			int list = getList(pageAddress);
+			if (list == NodePage.NO_LIST) {
+				NodePage.setLevel(pageAddress, level);
+				markDirty(pageNum);
+				return;
+			}
+			int from = list - 1;
+			int to = MetaPage.getLeafList(clampLevel(level), getTemperature(pageNum, pageAddress));
+			if (from == to) {
+				NodePage.setLevel(pageAddress, level);
+				markDirty(pageNum);
+				return;
+			}
+			synchronized (leafLocks[Math.min(from, to)]) {
+				synchronized (leafLocks[Math.max(from, to)]) {
+					if (getList(pageAddress) == list) {
+						unlinkLeafPage(from, pageAddress);
+						NodePage.setLevel(pageAddress, level);
+						linkLeafPage(to, pageNum, pageAddress);
+						return;
+					}
+				}
+			}
+
+			/*
+			 * Page was moved by the hit of another thread, retry from its new list
+			 */
+		}
+	}
+
+	public int getLeafLevel(long pageNum) {
+		return NodePage.getLevel(getPage(pageNum));
+	}
+
+	/**
+	 * Removes page from the leaf list, does nothing if page is not a leaf
+	 *
+	 * @param pageNum - allocated page
+	 */
+
+	public void removeLeafPage(long pageNum) {
+		long pageAddress = getPage(pageNum);
+		for (;;) {
+			int list = getList(pageAddress);
+			if (list == NodePage.NO_LIST) {
+				return;
+			}
+			synchronized (leafLocks[list - 1]) {
+				if (getList(pageAddress) == list) {
+					unlinkLeafPage(list - 1, pageAddress);
+					setList(pageAddress, NodePage.NO_LIST);
+					markDirty(pageNum);
+					return;
+				}
+			}
+
+			/*
+			 * Another thread moved the page to the other list, retry under its lock
+			 */
+		}
+	}
+
+	public boolean isLeafPage(long pageNum) {
+		return getList(getPage(pageNum)) != NodePage.NO_LIST;
+	}
+
+	/**
+	 * Hit counter of the page, with sampled counters it is an estimation
+	 *
+	 * @param pageNum - allocated page
+	 * @return number of hits
+	 */
+
+	public long getHitCounter(long pageNum) {
+		long pageAddress = getPage(pageNum);
+		return sampledCounters ? hitCounters.getHits(pageNum) : NodePage.getHitCounter(pageAddress);
+	}
+
+	public boolean isSampledCounters() {
+		return sampledCounters;
+	}
+
+	/**
+	 * Increments hit counter of the page, leaf page migrates to the hotter list if temperature is changed
+	 *
+	 * @param pageNum - allocated page
+	 * @return new value of the hit counter, with sampled counters it is an estimation
+	 */
+
+	public long hit(long pageNum) {
+		long pageAddress = getPage(pageNum);
+		long hits;
+		if (sampledCounters) {
+			hitCounters.increment(pageNum);
+			hits = hitCounters.getHits(pageNum);
+		}
+		else {
+			hits = NodePage.getHitCounter(pageAddress) + 1;
+			NodePage.setHitCounter(pageAddress, hits);
+		}
+
+		if (cacheMode) {
+			statistics.hit();
+		}
+
+		settleLeafPage(pageNum, pageAddress);
+		return hits;
+	}
+
+	/**
+	 * Halves sampled hit counters of all pages in O(1), counters and leaf lists are not walked.
+	 * Leaf page moves to the colder list lazily, on the next hit or when the eviction meets it.
+	 * Owner calls it periodically, so the temperature follows the recent traffic.
+	 *
+	 * @throws IllegalStateException if counters are not sampled, decay of the page counters writes every page
+	 */
+
+	public void decayHitCounters() {
+		if (!sampledCounters) {
+			throw new IllegalStateException("decay needs sampled hit counters");
+		}
+		hitCounters.decay();
+	}
+
+	/*
+	 * Moves the leaf page to the list of its current temperature and level
+	 *
+	 * @return true if the page is moved
+	 */
+
+	private boolean settleLeafPage(long pageNum, long pageAddress) {
+		int list = getList(pageAddress);
+		if (list != NodePage.NO_LIST && list - 1 != getLeafList(pageNum, pageAddress)) {
+			migrateLeafPage(pageNum, pageAddress, list);
+			return true;
+		}
+		return false;
+	}
+
+	private int getTemperature(long pageNum, long pageAddress) {
+		if (sampledCounters) {
+			int counter = hitCounters.get(pageNum);
+			return counter < temperatureBuckets ? counter : temperatureBuckets - 1;
+		}
+		return getTemperature(NodePage.getHitCounter(pageAddress));
+	}
+
+	private void resetHitCounter(long pageNum, long pageAddress) {
+		if (sampledCounters) {
+			hitCounters.reset(pageNum);
+		}
+		else {
+			NodePage.setHitCounter(pageAddress, 0);
+		}
+	}
+
+	/**
+	 * Owner records a lookup that did not find data in the cache
+	 */
+
+	public void miss() {
+		statistics.miss();
+	}
+
+	/**
+	 * Coldest leaf page of the deepest level is a victim for the eviction, protected upper levels are never touched.
+	 * Candidate cooled down by the decay moves to its colder list first and the level is scanned again,
+	 * so the cost is O(temperature buckets^2) for each visited level in the worst case.
+	 *
+	 * @return page number or NULL_PAGE if there are no leaf pages below protected levels
+	 */
+
+	public long getColdestLeafPage() {
+		int minLevel = protectedLevels;
+		for (int level = leafLevels - 1; level >= minLevel; --level) {
+			for (int bucket = 0; bucket != temperatureBuckets; ++bucket) {
+				long pageNum = metaPage.getLeafHeadPage(MetaPage.getLeafList(level, bucket));
+				if (pageNum == NULL_PAGE) {
+					continue;
+				}
+				if (!settleLeafPage(pageNum, getPage(pageNum))) {
+					return pageNum;
+				}
+				bucket = -1;
+			}
+		}
+		return NULL_PAGE;
+	}
+
+	/**
+	 * Hottest leaf page is resident in memory with the most probability, upper levels are preferred.
+	 * Cost is O(temperature buckets * leaf levels) in the worst case.
+	 *
+	 * @return page number or NULL_PAGE if there are no leaf pages
+	 */
+
+	public long getHottestLeafPage() {
+		for (int bucket = temperatureBuckets - 1; bucket >= 0; --bucket) {
+			for (int level = 0; level != leafLevels; ++level) {
+				long pageNum = metaPage.getLeafHeadPage(MetaPage.getLeafList(level, bucket));
+				if (pageNum != NULL_PAGE) {
+					return pageNum;
+				}
+			}
+		}
+		return NULL_PAGE;
+	}
+
+	private int clampLevel(int level) {
+		return level < leafLevels ? level : leafLevels - 1;
+	}
+
+	private int getLeafList(long pageNum, long pageAddress) {
+		int level = clampLevel(NodePage.getLevel(pageAddress));
+		return MetaPage.getLeafList(level, getTemperature(pageNum, pageAddress));
+	}
+
+	private void migrateLeafPage(long pageNum, long pageAddress, int list) {
+		int from = list - 1;
+		int to = getLeafList(pageNum, pageAddress);
+		if (from == to) {
+			return;
+		}
+
 		/*
-		 * Adds page to the free list
+		 * Locks are taken in the order of the list index to avoid deadlocks
 		 */
+
+		synchronized (leafLocks[Math.min(from, to)]) {
+			synchronized (leafLocks[Math.max(from, to)]) {
+				if (getList(pageAddress) == list) {
+					unlinkLeafPage(from, pageAddress);
+					linkLeafPage(to, pageNum, pageAddress);
+				}
+			}
+		}
+	}
+
+	private int getList(long pageAddress) {
+		int value = NodePage.getList(pageAddress);
+		return value >>> NodePage.LIST_GENERATION_SHIFT == leafGeneration ? value & NodePage.LIST_INDEX_MASK : NodePage.NO_LIST;
+	}
+
+	private void setList(long pageAddress, int list) {
+		NodePage.setList(pageAddress, list != NodePage.NO_LIST ? leafGeneration << NodePage.LIST_GENERATION_SHIFT | list : NodePage.NO_LIST);
 	}
-	
+
+	private void linkLeafPage(int list, long pageNum, long pageAddress) {
+		long headPageNum = metaPage.getLeafHeadPage(list);
+		NodePage.setPrevPage(pageAddress, NULL_PAGE);
+		NodePage.setNextPage(pageAddress, headPageNum);
+		if (headPageNum != NULL_PAGE) {
+			NodePage.setPrevPage(getPage(headPageNum), pageNum);
+			markDirty(headPageNum);
+		}
+		setList(pageAddress, list + 1);
+		metaPage.setLeafHeadPage(list, pageNum);
+		markDirty(pageNum);
+	}
+
+	/*
+	 * List of the page is kept, so the page moved to another list is never seen without the list
+	 * by the threads that read the list before they take the lock
+	 */
+
+	private void unlinkLeafPage(int list, long pageAddress) {
+		long prevPageNum = NodePage.getPrevPage(pageAddress);
+		long nextPageNum = NodePage.getNextPage(pageAddress);
+		if (prevPageNum != NULL_PAGE) {
+			NodePage.setNextPage(getPage(prevPageNum), nextPageNum);
+			markDirty(prevPageNum);
+		}
+		else {
+			metaPage.setLeafHeadPage(list, nextPageNum);
+		}
+		if (nextPageNum != NULL_PAGE) {
+			NodePage.setPrevPage(getPage(nextPageNum), prevPageNum);
+			markDirty(nextPageNum);
+		}
+		NodePage.setPrevPage(pageAddress, NULL_PAGE);
+		NodePage.setNextPage(pageAddress, NULL_PAGE);
+	}
+
+	private long nextNewPage() {
+		for (;;) {
+			long pageNum = metaPage.getNextNewPageVolatile();
+			if (pageNum >= totalPages) {
+				if (grow(pageNum + 1)) {
+					continue;
+				}
+				return NULL_PAGE;
+			}
+			if (metaPage.compareAndSetNextNewPage(pageNum, pageNum + 1)) {
+				return pageNum;
+			}
+		}
+	}
+
+	/*
+	 * File grows by the whole segment, new segment is mapped separately and existing pages never move
+	 */
+
+	private boolean grow(long pages) {
+		if (smf == null) {
+			return false;
+		}
+		synchronized (growLock) {
+			if (pages <= totalPages) {
+				return true;
+			}
+			try {
+				if (!smf.grow(pages * diskPageSize)) {
+					return false;
+				}
+			}
+			catch(Exception e) {
+				throw new IllegalStateException("can not grow file to " + pages + " pages", e);
+			}
+			long newTotalPages = smf.getSize() / diskPageSize;
+			dirtyPages.ensureCapacity(newTotalPages);
+			freshPages.ensureCapacity(newTotalPages);
+			heldPages.ensureCapacity(newTotalPages);
+			if (verifiedPages != null) {
+				verifiedPages.ensureCapacity(newTotalPages);
+			}
+			if (hitCounters != null) {
+				hitCounters.ensureCapacity(newTotalPages);
+			}
+			this.segments = smf.getSegments();
+			this.totalPages = newTotalPages;
+			return true;
+		}
+	}
+
 }
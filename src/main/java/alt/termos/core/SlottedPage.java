@@ -0,0 +1,350 @@
+package alt.termos.core;
+
+import alt.termos.util.Unsafe;
+
+/**
+ * Slotted layout of the tree node for variable length entries.
+ *
+ * Slot directory grows from the header to the end of the page, cells heap grows from the end of the page
+ * to the directory. Slot keeps the offset of the cell in the page, so cells are kept in the order of keys
+ * by moving 4 byte slots only. Deleted cells become garbage, it is collected by the compaction of the page.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class SlottedPage {
+
+	public static final int LEAF_TYPE = AbstractPagedBPlusTree.LEAF_TYPE;
+	public static final int INNER_TYPE = AbstractPagedBPlusTree.INNER_TYPE;
+	public static final int OVERFLOW_TYPE = 3;
+
+	/*
+	 * Type and count are at the same place as in the fixed size node
+	 */
+
+	public static final long TYPE_OFFSET = AbstractPagedBPlusTree.TYPE_OFFSET;
+	public static final long COUNT_OFFSET = AbstractPagedBPlusTree.COUNT_OFFSET;
+
+	/*
+	 * Offset of the first byte of the cells heap
+	 */
+
+	public static final long HEAP_OFFSET = AbstractPagedBPlusTree.ENTRIES_OFFSET;
+	public static final long HEAP_SIZE = 4;
+
+	/*
+	 * Bytes of deleted cells inside of the heap
+	 */
+
+	public static final long GARBAGE_OFFSET = HEAP_OFFSET + HEAP_SIZE;
+	public static final long GARBAGE_SIZE = 4;
+
+	/*
+	 * Inner node keeps the child for keys less than the first key in the header
+	 */
+
+	public static final long LEFT_CHILD_OFFSET = GARBAGE_OFFSET + GARBAGE_SIZE;
+	public static final long LEFT_CHILD_SIZE = 8;
+
+	public static final long SLOTS_OFFSET = LEFT_CHILD_OFFSET + LEFT_CHILD_SIZE;
+	public static final int SLOT_SIZE = 4;
+
+	/*
+	 * Leaf cell: key length, value length, key and value. Value that does not fit to the cell is kept
+	 * in the chain of overflow pages, flag is set in the value length and the cell keeps the first page.
+	 */
+
+	public static final int OVERFLOW_FLAG = 0x80000000;
+	public static final int LEAF_CELL_HEADER_SIZE = 8;
+	public static final int OVERFLOW_REFERENCE_SIZE = 8;
+
+	/*
+	 * Inner cell: key length, child for keys greater or equal than the key, key
+	 */
+
+	public static final int INNER_CELL_HEADER_SIZE = 12;
+
+	/*
+	 * Overflow page keeps the number of bytes in the count and the next page of the chain after the header.
+	 * Chain is never changed after the write, so the copy of the leaf shares it.
+	 */
+
+	public static final long OVERFLOW_NEXT_OFFSET = AbstractPagedBPlusTree.ENTRIES_OFFSET;
+	public static final long OVERFLOW_NEXT_SIZE = 8;
+
+	public static final long OVERFLOW_DATA_OFFSET = OVERFLOW_NEXT_OFFSET + OVERFLOW_NEXT_SIZE;
+
+	private SlottedPage() {
+	}
+
+	public static void format(long pageAddress, int type, int pageSize) {
+		Unsafe.UNSAFE.putInt(pageAddress + TYPE_OFFSET, type);
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, 0);
+		Unsafe.UNSAFE.putInt(pageAddress + HEAP_OFFSET, pageSize);
+		Unsafe.UNSAFE.putInt(pageAddress + GARBAGE_OFFSET, 0);
+		Unsafe.UNSAFE.putLong(pageAddress + LEFT_CHILD_OFFSET, PagedMemoryManager.NULL_PAGE);
+	}
+
+	/**
+	 * Space for cells and slots in the empty page
+	 */
+
+	public static int getCapacity(int pageSize) {
+		return pageSize - (int) SLOTS_OFFSET;
+	}
+
+	public static int getType(long pageAddress) {
+		return Unsafe.UNSAFE.getInt(pageAddress + TYPE_OFFSET);
+	}
+
+	public static int getCount(long pageAddress) {
+		return Unsafe.UNSAFE.getInt(pageAddress + COUNT_OFFSET);
+	}
+
+	public static long getNextOverflowPage(long pageAddress) {
+		return Unsafe.UNSAFE.getLong(pageAddress + OVERFLOW_NEXT_OFFSET);
+	}
+
+	public static void setNextOverflowPage(long pageAddress, long pageNum) {
+		Unsafe.UNSAFE.putLong(pageAddress + OVERFLOW_NEXT_OFFSET, pageNum);
+	}
+
+	public static long getLeftChild(long pageAddress) {
+		return Unsafe.UNSAFE.getLong(pageAddress + LEFT_CHILD_OFFSET);
+	}
+
+	public static void setLeftChild(long pageAddress, long pageNum) {
+		Unsafe.UNSAFE.putLong(pageAddress + LEFT_CHILD_OFFSET, pageNum);
+	}
+
+	public static int getHeap(long pageAddress) {
+		return Unsafe.UNSAFE.getInt(pageAddress + HEAP_OFFSET);
+	}
+
+	public static int getGarbage(long pageAddress) {
+		return Unsafe.UNSAFE.getInt(pageAddress + GARBAGE_OFFSET);
+	}
+
+	/**
+	 * Free bytes for cells and slots including the garbage
+	 */
+
+	public static int getFreeSpace(long pageAddress) {
+		return getHeap(pageAddress) - slotsEnd(pageAddress) + getGarbage(pageAddress);
+	}
+
+	/**
+	 * Bytes of live cells and their slots
+	 */
+
+	public static int getUsedSpace(long pageAddress, int pageSize) {
+		return getCapacity(pageSize) - getFreeSpace(pageAddress);
+	}
+
+	public static long cellAddress(long pageAddress, int index) {
+		return pageAddress + Unsafe.UNSAFE.getInt(pageAddress + SLOTS_OFFSET + (long) index * SLOT_SIZE);
+	}
+
+	public static int cellSize(long pageAddress, long cellAddress) {
+		return getType(pageAddress) == LEAF_TYPE ? leafCellSize(cellAddress) : innerCellSize(cellAddress);
+	}
+
+	/*
+	 * Leaf cell
+	 */
+
+	public static int leafCellSize(int keyLength, int valueLength, boolean overflow) {
+		return LEAF_CELL_HEADER_SIZE + keyLength + (overflow ? OVERFLOW_REFERENCE_SIZE : valueLength);
+	}
+
+	public static int leafCellSize(long cellAddress) {
+		return leafCellSize(getKeyLength(cellAddress), getValueLength(cellAddress), isOverflow(cellAddress));
+	}
+
+	public static int getKeyLength(long cellAddress) {
+		return Unsafe.UNSAFE.getInt(cellAddress);
+	}
+
+	public static long leafKeyAddress(long cellAddress) {
+		return cellAddress + LEAF_CELL_HEADER_SIZE;
+	}
+
+	public static int getValueLength(long cellAddress) {
+		return Unsafe.UNSAFE.getInt(cellAddress + 4) & ~OVERFLOW_FLAG;
+	}
+
+	public static boolean isOverflow(long cellAddress) {
+		return (Unsafe.UNSAFE.getInt(cellAddress + 4) & OVERFLOW_FLAG) != 0;
+	}
+
+	public static long leafValueAddress(long cellAddress) {
+		return cellAddress + LEAF_CELL_HEADER_SIZE + getKeyLength(cellAddress);
+	}
+
+	public static long getOverflowPage(long cellAddress) {
+		return Unsafe.UNSAFE.getLong(leafValueAddress(cellAddress));
+	}
+
+	/*
+	 * Inner cell
+	 */
+
+	public static int innerCellSize(int keyLength) {
+		return INNER_CELL_HEADER_SIZE + keyLength;
+	}
+
+	public static int innerCellSize(long cellAddress) {
+		return innerCellSize(getKeyLength(cellAddress));
+	}
+
+	public static long innerKeyAddress(long cellAddress) {
+		return cellAddress + INNER_CELL_HEADER_SIZE;
+	}
+
+	public static long getInnerChild(long cellAddress) {
+		return Unsafe.UNSAFE.getLong(cellAddress + 4);
+	}
+
+	public static void setInnerChild(long cellAddress, long pageNum) {
+		Unsafe.UNSAFE.putLong(cellAddress + 4, pageNum);
+	}
+
+	/**
+	 * Key of the cell for both types of nodes
+	 */
+
+	public static long keyAddress(long pageAddress, long cellAddress) {
+		return getType(pageAddress) == LEAF_TYPE ? leafKeyAddress(cellAddress) : innerKeyAddress(cellAddress);
+	}
+
+	/**
+	 * Inserts the slot and allocates the cell, page is compacted if the garbage is needed
+	 *
+	 * @param pageAddress - page
+	 * @param pageSize - disk page size
+	 * @param index - index of the new slot
+	 * @param size - size of the cell
+	 * @param scratch - buffer of the page size for the compaction
+	 * @return address of the cell
+	 */
+
+	public static long insertCell(long pageAddress, int pageSize, int index, int size, long scratch) {
+		if (getFreeSpace(pageAddress) < size + SLOT_SIZE) {
+			throw new IllegalStateException("no space for the cell " + size + " in the page");
+		}
+		if (getHeap(pageAddress) - slotsEnd(pageAddress) < size + SLOT_SIZE) {
+			compact(pageAddress, pageSize, scratch);
+		}
+		int count = getCount(pageAddress);
+		long slots = pageAddress + SLOTS_OFFSET;
+		if (index < count) {
+			Unsafe.UNSAFE.copyMemory(slots + (long) index * SLOT_SIZE, slots + (long) (index + 1) * SLOT_SIZE, (long) (count - index) * SLOT_SIZE);
+		}
+		int heap = getHeap(pageAddress) - size;
+		Unsafe.UNSAFE.putInt(pageAddress + HEAP_OFFSET, heap);
+		Unsafe.UNSAFE.putInt(slots + (long) index * SLOT_SIZE, heap);
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, count + 1);
+		return pageAddress + heap;
+	}
+
+	/**
+	 * Copies the cell from another page to the slot
+	 */
+
+	public static void copyCell(long fromPageAddress, int fromIndex, long toPageAddress, int pageSize, int toIndex, long scratch) {
+		long fromCell = cellAddress(fromPageAddress, fromIndex);
+		int size = cellSize(fromPageAddress, fromCell);
+		long toCell = insertCell(toPageAddress, pageSize, toIndex, size, scratch);
+		Unsafe.UNSAFE.copyMemory(fromCell, toCell, size);
+	}
+
+	public static void deleteCell(long pageAddress, int index) {
+		long cell = cellAddress(pageAddress, index);
+		int size = cellSize(pageAddress, cell);
+		int count = getCount(pageAddress);
+		long slots = pageAddress + SLOTS_OFFSET;
+		if (index < count - 1) {
+			Unsafe.UNSAFE.copyMemory(slots + (long) (index + 1) * SLOT_SIZE, slots + (long) index * SLOT_SIZE, (long) (count - index - 1) * SLOT_SIZE);
+		}
+		if (cell == pageAddress + getHeap(pageAddress)) {
+			Unsafe.UNSAFE.putInt(pageAddress + HEAP_OFFSET, getHeap(pageAddress) + size);
+		}
+		else {
+			Unsafe.UNSAFE.putInt(pageAddress + GARBAGE_OFFSET, getGarbage(pageAddress) + size);
+		}
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, count - 1);
+	}
+
+	/**
+	 * Drops slots from the index to the end, cells become garbage
+	 */
+
+	public static void truncate(long pageAddress, int index) {
+		int count = getCount(pageAddress);
+		int garbage = getGarbage(pageAddress);
+		for (int i = index; i < count; ++i) {
+			garbage += cellSize(pageAddress, cellAddress(pageAddress, i));
+		}
+		Unsafe.UNSAFE.putInt(pageAddress + GARBAGE_OFFSET, garbage);
+		Unsafe.UNSAFE.putInt(pageAddress + COUNT_OFFSET, index);
+	}
+
+	/**
+	 * Rewrites live cells to the end of the page in the order of slots, garbage becomes free space
+	 *
+	 * @param pageAddress - page
+	 * @param pageSize - disk page size
+	 * @param scratch - buffer of the page size
+	 */
+
+	public static void compact(long pageAddress, int pageSize, long scratch) {
+		int heap = getHeap(pageAddress);
+		Unsafe.UNSAFE.copyMemory(pageAddress + heap, scratch + heap, pageSize - heap);
+		boolean leaf = getType(pageAddress) == LEAF_TYPE;
+		int count = getCount(pageAddress);
+		long slots = pageAddress + SLOTS_OFFSET;
+		int newHeap = pageSize;
+		for (int i = 0; i != count; ++i) {
+			int offset = Unsafe.UNSAFE.getInt(slots + (long) i * SLOT_SIZE);
+			long cell = scratch + offset;
+			int size = leaf ? leafCellSize(cell) : innerCellSize(cell);
+			newHeap -= size;
+			Unsafe.UNSAFE.copyMemory(cell, pageAddress + newHeap, size);
+			Unsafe.UNSAFE.putInt(slots + (long) i * SLOT_SIZE, newHeap);
+		}
+		Unsafe.UNSAFE.putInt(pageAddress + HEAP_OFFSET, newHeap);
+		Unsafe.UNSAFE.putInt(pageAddress + GARBAGE_OFFSET, 0);
+	}
+
+	/**
+	 * Checks that slots point to the heap and the garbage matches the live cells
+	 *
+	 * @throws IllegalStateException if the page is broken
+	 */
+
+	public static void verify(long pageAddress, int pageSize) {
+		int heap = getHeap(pageAddress);
+		if (heap < slotsEnd(pageAddress) || heap > pageSize) {
+			throw new IllegalStateException("wrong heap " + heap);
+		}
+		int count = getCount(pageAddress);
+		long live = 0;
+		for (int i = 0; i != count; ++i) {
+			long cell = cellAddress(pageAddress, i);
+			int size = cellSize(pageAddress, cell);
+			if (cell < pageAddress + heap || cell + size > pageAddress + pageSize) {
+				throw new IllegalStateException("cell " + i + " is out of the heap");
+			}
+			live += size;
+		}
+		if (live + getGarbage(pageAddress) != pageSize - heap) {
+			throw new IllegalStateException("wrong garbage " + getGarbage(pageAddress) + ", live " + live + ", heap " + heap);
+		}
+	}
+
+	private static int slotsEnd(long pageAddress) {
+		return (int) SLOTS_OFFSET + getCount(pageAddress) * SLOT_SIZE;
+	}
+
+}
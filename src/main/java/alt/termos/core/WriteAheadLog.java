@@ -0,0 +1,412 @@
+package alt.termos.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import alt.termos.util.Arguments;
+import alt.termos.util.Unsafe;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ * Append-only redo log of page changes next to the data file.
+ *
+ * Record is an after-image of the range of the page: length, crc, page number, offset in the page and bytes.
+ * Concurrent committers are coalesced into one fsync, the first committer is a leader and waits
+ * up to commit delay or until batch size records are appended, others wait for its fsync.
+ * On open the log is replayed into the mapped pages, torn tail is ignored.
+ *
+ * Logged page is held from the flush of the manager until its last record is durable, so the flush
+ * never writes the page before its log record. Writeback of the shared mapping by the kernel is not
+ * controlled by the manager, the log does not prevent it.
+ *
+ * Log is a building block for the owner of the store, trees and the manager do not call it.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class WriteAheadLog {
+
+	public static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 4;
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final PagedMemoryManager pmm;
+	private final RandomAccessFile raf;
+	private final FileChannel ch;
+	private final long commitDelayNanos;
+	private final int batchSize;
+
+	private final Object lock = new Object();
+
+	/*
+	 * Records are appended to the buffer, leader swaps buffers and writes the batch outside of the lock
+	 */
+
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int pendingRecords;
+	private boolean flushing;
+	private IOException failure;
+
+	/*
+	 * Last log sequence number of every held page
+	 */
+
+	private final Map<Long, Long> heldPages = new HashMap<Long, Long>();
+
+	/*
+	 * Log sequence number is a count of bytes appended since open, file position is its part after the last checkpoint
+	 */
+
+	private long appendedLsn;
+	private long durableLsn;
+	private long filePosition;
+
+	private long syncs;
+	private long records;
+	private long recoveredRecords;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Opens the log and replays it into the pages of the manager
+	 *
+	 * @param pmm - page manager of the data file
+	 * @param fileName - log file
+	 * @param commitDelay - maximum time the leader waits for other committers
+	 * @param unit - unit of the commit delay
+	 * @param batchSize - number of appended records that starts fsync without waiting for the delay
+	 */
+
+	public WriteAheadLog(PagedMemoryManager pmm, String fileName, long commitDelay, TimeUnit unit, int batchSize) throws IOException {
+		Arguments.notNull(pmm);
+		Arguments.notNull(fileName);
+		Arguments.positive(commitDelay);
+		Arguments.notNull(unit);
+		Arguments.greater(batchSize, 0);
+
+		this.pmm = pmm;
+		this.commitDelayNanos = unit.toNanos(commitDelay);
+		this.batchSize = batchSize;
+		this.raf = new RandomAccessFile(UnsafeMemoryMappedFile.getFile(fileName), "rw");
+		this.ch = raf.getChannel();
+
+		try {
+			this.recoveredRecords = recover();
+		}
+		catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends after-image of the range of the page, page is held from the flush until the record is durable,
+	 * so the change must be logged before the next flush of the manager
+	 *
+	 * @param pageNum - changed page
+	 * @param offset - offset of the change in the page
+	 * @param length - length of the change
+	 * @return log sequence number to commit
+	 */
+
+	public long logPage(long pageNum, int offset, int length) {
+		Arguments.positive(offset);
+		Arguments.positive(length);
+		if (offset + (long) length > pmm.getDiskPageSize()) {
+			throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length + ", DiskPageSize: " + pmm.getDiskPageSize());
+		}
+		long address = pmm.getPage(pageNum) + offset;
+
+		int recordSize = RECORD_HEADER_SIZE + length;
+
+		synchronized (lock) {
+			pmm.holdPage(pageNum);
+			ensureRemaining(recordSize);
+			int start = buffer.position();
+			buffer.putInt(length);
+			buffer.putInt(0);
+			buffer.putLong(pageNum);
+			buffer.putInt(offset);
+			Unsafe.UNSAFE.copyMemory(null, address, buffer.array(), sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+			buffer.putInt(start + 4, checksum(buffer.array(), buffer.arrayOffset() + start, recordSize));
+
+			appendedLsn += recordSize;
+			heldPages.put(pageNum, appendedLsn);
+			records++;
+			if (++pendingRecords >= batchSize) {
+				lock.notifyAll();
+			}
+			return appendedLsn;
+		}
+	}
+
+	/**
+	 * Waits until the record is on the disk, one fsync serves all committers of the batch
+	 *
+	 * @param lsn - log sequence number returned by append
+	 */
+
+	public void commit(long lsn) throws IOException {
+		ByteBuffer batch;
+		long batchLsn;
+		long position;
+
+		synchronized (lock) {
+			for (;;) {
+				if (durableLsn >= lsn) {
+					return;
+				}
+				if (failure != null) {
+					throw new IOException("log is failed", failure);
+				}
+				if (!flushing) {
+					break;
+				}
+				await(0);
+			}
+
+			/*
+			 * Leader gives other committers the chance to join the batch
+			 */
+
+			flushing = true;
+			long deadline = System.nanoTime() + commitDelayNanos;
+			long remaining;
+			try {
+				while (pendingRecords < batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+					await(remaining);
+				}
+			}
+			catch(RuntimeException e) {
+
+				/*
+				 * Interrupted leader leaves the batch to the next committer
+				 */
+
+				flushing = false;
+				lock.notifyAll();
+				throw e;
+			}
+
+			batch = buffer;
+			buffer = spare;
+			spare = null;
+			batchLsn = appendedLsn;
+			position = filePosition;
+			pendingRecords = 0;
+		}
+
+		IOException error = null;
+		try {
+			batch.flip();
+			while (batch.hasRemaining()) {
+				position += ch.write(batch, position);
+			}
+			ch.force(false);
+		}
+		catch(IOException e) {
+			error = e;
+		}
+
+		synchronized (lock) {
+			batch.clear();
+			spare = batch;
+			flushing = false;
+			if (error != null) {
+				failure = error;
+			}
+			else {
+				filePosition = position;
+				durableLsn = batchLsn;
+				syncs++;
+				releasePages(durableLsn);
+			}
+			lock.notifyAll();
+		}
+
+		/*
+		 * Batch contains all records appended before the commit, so the leader never waits twice
+		 */
+
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Flushes pages of the manager and truncates the log, appenders wait for the checkpoint
+	 */
+
+	public void checkpoint() throws IOException {
+		synchronized (lock) {
+			while (flushing) {
+				await(0);
+			}
+			if (failure != null) {
+				throw new IOException("log is failed", failure);
+			}
+			releasePages(appendedLsn);
+			pmm.flush();
+			buffer.clear();
+			pendingRecords = 0;
+			durableLsn = appendedLsn;
+			filePosition = 0;
+			ch.truncate(0);
+			ch.force(true);
+			lock.notifyAll();
+		}
+	}
+
+	public void close() {
+		try {
+			ch.close();
+			raf.close();
+		} catch (Exception e) {
+			// ignore
+		}
+	}
+
+	public long getAppendedLsn() {
+		synchronized (lock) {
+			return appendedLsn;
+		}
+	}
+
+	public long getDurableLsn() {
+		synchronized (lock) {
+			return durableLsn;
+		}
+	}
+
+	/**
+	 * Number of fsync calls, with group commit it is less than the number of commits
+	 */
+
+	public long getSyncs() {
+		synchronized (lock) {
+			return syncs;
+		}
+	}
+
+	public long getRecords() {
+		synchronized (lock) {
+			return records;
+		}
+	}
+
+	/**
+	 * Number of records replayed on open
+	 */
+
+	public long getRecoveredRecords() {
+		return recoveredRecords;
+	}
+
+	/*
+	 * Replays valid records from the start of the log, stops at the first torn or corrupted record
+	 */
+
+	private long recover() throws IOException {
+		long size = ch.size();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		long position = 0;
+		long replayed = 0;
+
+		while (position + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			if (length < 0 || length > pmm.getDiskPageSize() || position + RECORD_HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+			readFully(record, position);
+			int expected = record.getInt(4);
+			record.putInt(4, 0);
+			if (checksum(record.array(), 0, record.capacity()) != expected) {
+				break;
+			}
+			long pageNum = record.getLong(8);
+			int offset = record.getInt(16);
+			if (offset < 0 || offset + (long) length > pmm.getDiskPageSize() || pageNum <= PagedMemoryManager.NULL_PAGE || pageNum >= pmm.getTotalPages()) {
+				break;
+			}
+			Unsafe.UNSAFE.copyMemory(record.array(), sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + RECORD_HEADER_SIZE, null, pmm.getRawPage(pageNum) + offset, length);
+			pmm.markDirty(pageNum);
+			position += RECORD_HEADER_SIZE + length;
+			replayed++;
+		}
+
+		if (replayed != 0) {
+			pmm.flush();
+		}
+		ch.truncate(0);
+		ch.force(true);
+		return replayed;
+	}
+
+	private void releasePages(long lsn) {
+		Iterator<Map.Entry<Long, Long>> i = heldPages.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Long, Long> entry = i.next();
+			if (entry.getValue() <= lsn) {
+				pmm.releasePage(entry.getKey());
+				i.remove();
+			}
+		}
+	}
+
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = ch.read(dst, position + dst.position());
+			if (n < 0) {
+				throw new IOException("unexpected end of the log at " + position);
+			}
+		}
+	}
+
+	private void ensureRemaining(int recordSize) {
+		if (buffer.remaining() < recordSize) {
+			int capacity = buffer.capacity();
+			while (capacity - buffer.position() < recordSize) {
+				capacity <<= 1;
+			}
+			ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		}
+	}
+
+	private int checksum(byte[] array, int offset, int length) {
+		crc.reset();
+		crc.update(array, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private void await(long nanos) {
+		try {
+			if (nanos == 0) {
+				lock.wait();
+			}
+			else {
+				lock.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted", e);
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+package alt.termos.util;
+
+/**
+ * Memory mapped file that can flush the range of its pages to the disk
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public interface MappedFile {
+
+	long getSize();
+	
+	/**
+	 * Ranged msync of the mapped pages, returns when the range is on the disk
+	 * 
+	 * @param offset - offset in the file
+	 * @param length - length of the range
+	 */
+	
+	void force(long offset, long length) throws Exception;
+	
+	/**
+	 * Without access to the native msync the force falls back to the fsync of the whole file
+	 * 
+	 * @return true if the force writes back only the range
+	 */
+	
+	boolean isRangedFlush();
+	
+}
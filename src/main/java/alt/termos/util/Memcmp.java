@@ -0,0 +1,78 @@
+package alt.termos.util;
+
+import java.nio.ByteOrder;
+
+/**
+ * Lexicographic comparison of unsigned bytes, eight bytes are compared at once
+ *
+ * @author Albert Shift
+ *
+ */
+public final class Memcmp {
+
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	private static final long BYTE_ARRAY_OFFSET = sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET;
+
+	private Memcmp() {
+	}
+
+	/**
+	 * Compares bytes in the memory with the array
+	 *
+	 * @param address - address of the first bytes
+	 * @param length - length of the first bytes
+	 * @param array - second bytes
+	 * @return negative, zero or positive as the memory is less, equal or greater than the array
+	 */
+
+	public static int compare(long address, int length, byte[] array) {
+		return compare(null, address, length, array, BYTE_ARRAY_OFFSET, array.length);
+	}
+
+	public static int compare(long address1, int length1, long address2, int length2) {
+		return compare(null, address1, length1, null, address2, length2);
+	}
+
+	public static int compare(byte[] array1, byte[] array2) {
+		return compare(array1, BYTE_ARRAY_OFFSET, array1.length, array2, BYTE_ARRAY_OFFSET, array2.length);
+	}
+
+	/**
+	 * Length of the common prefix
+	 */
+
+	public static int commonPrefix(long address1, int length1, long address2, int length2) {
+		int length = Math.min(length1, length2);
+		int i = 0;
+		while (i < length && Unsafe.UNSAFE.getByte(address1 + i) == Unsafe.UNSAFE.getByte(address2 + i)) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int compare(Object base1, long offset1, int length1, Object base2, long offset2, int length2) {
+		int length = Math.min(length1, length2);
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			long v1 = Unsafe.UNSAFE.getLong(base1, offset1 + i);
+			long v2 = Unsafe.UNSAFE.getLong(base2, offset2 + i);
+			if (v1 != v2) {
+				if (LITTLE_ENDIAN) {
+					v1 = Long.reverseBytes(v1);
+					v2 = Long.reverseBytes(v2);
+				}
+				return (v1 + Long.MIN_VALUE) < (v2 + Long.MIN_VALUE) ? -1 : 1;
+			}
+		}
+		for (; i < length; ++i) {
+			int b1 = Unsafe.UNSAFE.getByte(base1, offset1 + i) & 0xFF;
+			int b2 = Unsafe.UNSAFE.getByte(base2, offset2 + i) & 0xFF;
+			if (b1 != b2) {
+				return b1 - b2;
+			}
+		}
+		return length1 - length2;
+	}
+
+}
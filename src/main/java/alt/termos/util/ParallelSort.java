@@ -0,0 +1,126 @@
+package alt.termos.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable fork-join merge sort of long keys with the parallel array of values
+ *
+ * @author Albert Shift
+ *
+ */
+public final class ParallelSort {
+
+	private static final int SEQUENTIAL_THRESHOLD = 8192;
+	private static final int INSERTION_THRESHOLD = 32;
+
+	private ParallelSort() {
+	}
+
+	/**
+	 * Sorts first length entries by keys, equal keys keep the order
+	 *
+	 * @param keys - keys
+	 * @param values - values moved with keys
+	 * @param length - number of entries
+	 * @param pool - pool of the sort tasks
+	 */
+
+	public static void sort(long[] keys, long[] values, int length, ForkJoinPool pool) {
+		Arguments.notNull(keys);
+		Arguments.notNull(values);
+		Arguments.notNull(pool);
+		if (length < 0 || length > keys.length || length > values.length) {
+			throw new IndexOutOfBoundsException("length " + length);
+		}
+		long[] tmpKeys = new long[length];
+		long[] tmpValues = new long[length];
+		pool.invoke(new SortTask(keys, values, tmpKeys, tmpValues, 0, length));
+	}
+
+	private static final class SortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] keys;
+		private final long[] values;
+		private final long[] tmpKeys;
+		private final long[] tmpValues;
+		private final int from;
+		private final int to;
+
+		SortTask(long[] keys, long[] values, long[] tmpKeys, long[] tmpValues, int from, int to) {
+			this.keys = keys;
+			this.values = values;
+			this.tmpKeys = tmpKeys;
+			this.tmpValues = tmpValues;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				sort(keys, values, tmpKeys, tmpValues, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new SortTask(keys, values, tmpKeys, tmpValues, from, mid), new SortTask(keys, values, tmpKeys, tmpValues, mid, to));
+			merge(keys, values, tmpKeys, tmpValues, from, mid, to);
+		}
+
+	}
+
+	private static void sort(long[] keys, long[] values, long[] tmpKeys, long[] tmpValues, int from, int to) {
+		if (to - from <= INSERTION_THRESHOLD) {
+			for (int i = from + 1; i < to; ++i) {
+				long key = keys[i];
+				long value = values[i];
+				int j = i - 1;
+				while (j >= from && keys[j] > key) {
+					keys[j + 1] = keys[j];
+					values[j + 1] = values[j];
+					j--;
+				}
+				keys[j + 1] = key;
+				values[j + 1] = value;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(keys, values, tmpKeys, tmpValues, from, mid);
+		sort(keys, values, tmpKeys, tmpValues, mid, to);
+		merge(keys, values, tmpKeys, tmpValues, from, mid, to);
+	}
+
+	/*
+	 * Left run wins on equal keys, so the sort is stable
+	 */
+
+	private static void merge(long[] keys, long[] values, long[] tmpKeys, long[] tmpValues, int from, int mid, int to) {
+		if (keys[mid - 1] <= keys[mid]) {
+			return;
+		}
+		int length = mid - from;
+		System.arraycopy(keys, from, tmpKeys, from, length);
+		System.arraycopy(values, from, tmpValues, from, length);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			if (keys[j] < tmpKeys[i]) {
+				keys[k] = keys[j];
+				values[k++] = values[j++];
+			}
+			else {
+				keys[k] = tmpKeys[i];
+				values[k++] = tmpValues[i++];
+			}
+		}
+		while (i < mid) {
+			keys[k] = tmpKeys[i];
+			values[k++] = tmpValues[i++];
+		}
+	}
+
+}
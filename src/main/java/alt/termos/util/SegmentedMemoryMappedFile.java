@@ -0,0 +1,194 @@
+package alt.termos.util;
+
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Growable memory mapped file. File grows by large aligned segments and each segment is mapped separately,
+ * so addresses of the existing segments never move and growth does not need a remap of the whole file.
+ *
+ * @author Albert Shift
+ *
+ */
+public class SegmentedMemoryMappedFile implements MappedFile {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile raf;
+    private final FileChannel ch;
+    private final MapFileMode mode;
+    private final long segmentSize;
+    private final int segmentSizeShift;
+    private final long maxSize;
+
+    /*
+     * Array is replaced on growth, readers always see the consistent array of mapped segments
+     */
+
+    private volatile long[] segments;
+    private volatile long size;
+
+    public SegmentedMemoryMappedFile(String fileName, MapFileMode mode, long initialSize) throws Exception {
+        this(fileName, mode, initialSize, DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+    }
+
+    public SegmentedMemoryMappedFile(String fileName, MapFileMode mode, long initialSize, long segmentSize, long maxSize) throws Exception {
+        Arguments.notNull(fileName);
+        Arguments.notNull(mode);
+        Arguments.positive(initialSize);
+        Arguments.pageAligned(segmentSize);
+        Arguments.greater(segmentSize, 0);
+        if (Long.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("segment size must be a power of two " + segmentSize);
+        }
+        Arguments.greaterOrEquals(maxSize, initialSize);
+
+        this.mode = mode;
+        this.segmentSize = segmentSize;
+        this.segmentSizeShift = Long.numberOfTrailingZeros(segmentSize);
+        this.maxSize = maxSize;
+
+        this.raf = new RandomAccessFile(UnsafeMemoryMappedFile.getFile(fileName), "rw");
+        this.ch = raf.getChannel();
+
+        try {
+            long existingSize = raf.length();
+            long newSize = PageSizeUtil.alignBottom(Math.max(Math.max(existingSize, initialSize), 1L), segmentSize);
+            this.segments = new long[0];
+            this.size = 0;
+            map(newSize);
+        }
+        catch(Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Grows file up to the new size aligned by segment size, existing segments stay on the same addresses
+     *
+     * @param newSize - minimum new size of the file
+     * @return false if new size exceeds max size
+     */
+
+    public synchronized boolean grow(long newSize) throws Exception {
+        if (newSize <= size) {
+            return true;
+        }
+        newSize = PageSizeUtil.alignBottom(newSize, segmentSize);
+        if (newSize > maxSize) {
+            return false;
+        }
+        map(newSize);
+        return true;
+    }
+
+    private void map(long newSize) throws Exception {
+        long[] oldSegments = this.segments;
+        int count = (int) (newSize >>> segmentSizeShift);
+        long[] newSegments = new long[count];
+        System.arraycopy(oldSegments, 0, newSegments, 0, oldSegments.length);
+
+        if (raf.length() < newSize) {
+            raf.setLength(newSize);
+        }
+
+        /*
+         * Array is published after each mapped segment, so close() can unmap partially grown file
+         */
+
+        for (int i = oldSegments.length; i != count; ++i) {
+            newSegments[i] = UnsafeMemoryMappedFile.map(ch, mode, (long) i << segmentSizeShift, segmentSize);
+            this.segments = newSegments;
+        }
+        this.size = newSize;
+    }
+
+    public void close() {
+        long[] mapped = this.segments;
+        if (mapped != null) {
+            for (int i = 0; i != mapped.length; ++i) {
+                if (mapped[i] != 0) {
+                    try {
+                        UnsafeMemoryMappedFile.unmap(mapped[i], segmentSize);
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+            this.segments = null;
+        }
+        try {
+            ch.close();
+            raf.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Ranged msync, range is split by segments because segments are not contiguous in memory.
+     * Without the ranged msync one fsync of the file writes back all segments.
+     */
+
+    @Override
+    public void force(long offset, long length) throws Exception {
+        long[] mapped = this.segments;
+        if (offset < 0 || length < 0 || offset + length > ((long) mapped.length << segmentSizeShift)) {
+            throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length + ", Size: " + size);
+        }
+        if (!UnsafeMemoryMappedFile.isRangedForce()) {
+            if (length != 0) {
+                raf.getFD().sync();
+            }
+            return;
+        }
+        long end = offset + length;
+        while (offset < end) {
+            int segment = (int) (offset >>> segmentSizeShift);
+            long inSegment = offset & (segmentSize - 1L);
+            long chunk = Math.min(end - offset, segmentSize - inSegment);
+            UnsafeMemoryMappedFile.force(raf.getFD(), mapped[segment] + inSegment, chunk);
+            offset += chunk;
+        }
+    }
+
+    public final long getAddress() {
+        return segments[0];
+    }
+
+    public final long getSegmentAddress(int segment) {
+        return segments[segment];
+    }
+
+    public final long[] getSegments() {
+        return segments;
+    }
+
+    public final int getSegmentCount() {
+        return segments.length;
+    }
+
+    public final long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public final int getSegmentSizeShift() {
+        return segmentSizeShift;
+    }
+
+    public final long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public final long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isRangedFlush() {
+        return UnsafeMemoryMappedFile.isRangedForce();
+    }
+
+}
@@ -1,8 +1,11 @@
 package alt.termos.util;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import sun.nio.ch.FileChannelImpl;
@@ -12,58 +15,163 @@ import sun.nio.ch.FileChannelImpl;
  * @author Albert Shift
  *
  */
-public class UnsafeMemoryMappedFile {
+public class UnsafeMemoryMappedFile implements MappedFile {
 
 	public static final int MAP_READONLY = 0;
 	public static final int MAP_READWRITE = 1;
 	public static final int MAP_PRIVATE = 2;
 	  
-    private static final Method map0 = getMethod(FileChannelImpl.class, "map0", int.class, long.class, long.class);
+    private static final Method map0 = getMap0Method();
+    private static final boolean map0Sync = map0.getParameterTypes().length == 4;
     private static final Method unmap0 = getMethod(FileChannelImpl.class, "unmap0", long.class, long.class);
+    private static final Method force0 = getForce0Method();
+    private static final Object force0Buffer = getForce0Buffer(force0);
+    private static final boolean rangedForce = force0 != null && (force0Buffer != null || Modifier.isStatic(force0.getModifiers()));
 
     private long address;
     private final long size;
+    
+    /*
+     * File stays open while it is mapped, descriptor is needed for the msync
+     */
+    
+    private final RandomAccessFile raf;
 
     public UnsafeMemoryMappedFile(String fileName, MapFileMode mode, long size) throws Exception {
     	Arguments.notNull(fileName);
     	Arguments.positive(size);
     	Arguments.pageAligned(size);
  
-        RandomAccessFile raf = new RandomAccessFile(getFile(fileName), "rw");
-        FileChannel ch = null;
+        this.raf = new RandomAccessFile(getFile(fileName), "rw");
 
         try {
             raf.setLength(size);
-            ch = raf.getChannel();
-            this.address = (Long) map0.invoke(ch, mode.getValue(), 0L, size);
+            this.address = map(raf.getChannel(), mode, 0L, size);
             this.size = size;
-        } finally {
-            if (ch != null) {
-                ch.close();
-            }
+        } catch (Exception e) {
             raf.close();
+            throw e;
         }
     }
 
     public void close() {
         if (address != 0) {
             try {
-                unmap0.invoke(null, address, size);
+                unmap(address, size);
             } catch (Exception e) {
                 // ignore
             }
             address = 0;
         }
+        try {
+            raf.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void force(long offset, long length) throws Exception {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length + ", Size: " + size);
+        }
+        force(raf.getFD(), address + offset, length);
+    }
+
+    @Override
+    public boolean isRangedFlush() {
+        return rangedForce;
     }
 
     public final long getAddress() {
         return address;
     }
 
+    @Override
     public final long getSize() {
         return size;
     }
     
+    public static long map(FileChannel ch, MapFileMode mode, long position, long size) throws Exception {
+        if (map0Sync) {
+            return (Long) map0.invoke(ch, mode.getValue(), position, size, false);
+        }
+        return (Long) map0.invoke(ch, mode.getValue(), position, size);
+    }
+
+    public static void unmap(long address, long size) throws Exception {
+        unmap0.invoke(null, address, size);
+    }
+
+    /**
+     * Ranged msync, address is aligned to the OS page. Without access to the native method
+     * falls back to the fsync of the whole file, that also writes back dirty mapped pages.
+     * 
+     * @param fd - descriptor of the mapped file
+     * @param address - address in the mapping
+     * @param length - length of the range
+     */
+    
+    public static void force(FileDescriptor fd, long address, long length) throws Exception {
+        if (length == 0) {
+            return;
+        }
+        if (!rangedForce) {
+            fd.sync();
+            return;
+        }
+        long aligned = PageSizeUtil.alignTop(address);
+        force0.invoke(force0Buffer, fd, aligned, length + address - aligned);
+    }
+    
+    public static boolean isRangedForce() {
+        return rangedForce;
+    }
+
+    /*
+     * JDK 14+ added isSync argument to map0 for the MAP_SYNC support
+     */
+    
+    private static Method getMap0Method() {
+        try {
+            return getMethod(FileChannelImpl.class, "map0", int.class, long.class, long.class);
+        } catch (IllegalStateException e) {
+            return getMethod(FileChannelImpl.class, "map0", int.class, long.class, long.class, boolean.class);
+        }
+    }
+    
+    /*
+     * JDK 14+ moved msync to the static MappedMemoryUtils.force0, JDK 8-13 has the native instance method
+     * of MappedByteBuffer, both need java.nio to be opened on JDK 9+
+     */
+    
+    private static Method getForce0Method() {
+        try {
+            return getMethod(Class.forName("java.nio.MappedMemoryUtils"), "force0", FileDescriptor.class, long.class, long.class);
+        } catch (Throwable e) {
+            try {
+                return getMethod(MappedByteBuffer.class, "force0", FileDescriptor.class, long.class, long.class);
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+    }
+    
+    /*
+     * Native MappedByteBuffer.force0 does not use the state of the buffer, so the instance is not constructed
+     */
+    
+    private static Object getForce0Buffer(Method force0) {
+        if (force0 == null || Modifier.isStatic(force0.getModifiers())) {
+            return null;
+        }
+        try {
+            return Unsafe.UNSAFE.allocateInstance(Class.forName("java.nio.DirectByteBuffer"));
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+    
     public static Method getMethod(Class<?> cls, String name, Class<?>... params) {
         try {
             Method m = cls.getDeclaredMethod(name, params);
@@ -0,0 +1,133 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.ParallelSort;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class LongLongImporterTest {
+
+	public static final String testFileName = "import.mmf";
+	public static final String runDirectory = "import-runs";
+
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 8192L;
+
+	private static Random random = new Random(5);
+
+	private UnsafeMemoryMappedFile mmf;
+	private PagedMemoryManager pmm;
+	private ForkJoinPool pool;
+	private File directory;
+
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		MetaPage metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		pool = new ForkJoinPool(4);
+		directory = new File(runDirectory);
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testParallelSort() {
+		int length = 100000;
+		long[] keys = new long[length + 10];
+		long[] values = new long[length + 10];
+		for (int i = 0; i != length; ++i) {
+			keys[i] = random.nextInt(1000);
+			values[i] = i;
+		}
+		ParallelSort.sort(keys, values, length, pool);
+		for (int i = 1; i != length; ++i) {
+			Assert.assertTrue(keys[i - 1] <= keys[i]);
+			if (keys[i - 1] == keys[i]) {
+				Assert.assertTrue(values[i - 1] < values[i]);
+			}
+		}
+		Assert.assertEquals(0L, keys[length]);
+	}
+
+	@Test
+	public void testImport() {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+		LongLongImporter importer = new LongLongImporter(tree, directory, 10000, pool);
+
+		int n = 300000;
+		for (int i = 0; i != n; ++i) {
+			long key = random.nextInt(200000) - 100000;
+			controlMap.put(key, (long) i);
+			importer.add(key, i);
+		}
+		Assert.assertEquals(n, importer.getStatistics().getReadEntries());
+		Assert.assertEquals(ImportStatistics.Stage.READ, importer.getStatistics().getStage());
+
+		importer.finish(1.0);
+
+		ImportStatistics statistics = importer.getStatistics();
+		Assert.assertEquals(ImportStatistics.Stage.DONE, statistics.getStage());
+		Assert.assertEquals(30, statistics.getRuns());
+		Assert.assertEquals(n, statistics.getSpilledEntries());
+		Assert.assertEquals(n, statistics.getMergedEntries());
+		Assert.assertEquals(controlMap.size(), statistics.getLoadedEntries());
+		Assert.assertTrue(statistics.getThroughput() > 0.0);
+
+		tree.verify();
+		Assert.assertEquals(controlMap.size(), tree.size());
+		for (Map.Entry<Long, Long> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue().longValue(), tree.get(entry.getKey()));
+		}
+		Assert.assertEquals(0, directory.list().length);
+
+		try {
+			importer.add(1L, 1L);
+			Assert.fail();
+		}
+		catch(IllegalStateException e) {
+			// finished
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testEmptyImport() {
+		PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+		LongLongImporter importer = new LongLongImporter(tree, directory, 100, pool);
+		importer.finish(1.0);
+		tree.verify();
+		Assert.assertTrue(tree.isEmpty());
+		Assert.assertEquals(0, importer.getStatistics().getRuns());
+		tree.close();
+	}
+
+}
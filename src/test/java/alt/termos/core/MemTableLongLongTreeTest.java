@@ -0,0 +1,162 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class MemTableLongLongTreeTest {
+
+	public static final String testFileName = "memtable.mmf";
+
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 4096L;
+
+	private static Random random = new Random(5);
+
+	private UnsafeMemoryMappedFile mmf;
+	private PagedMemoryManager pmm;
+
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		MetaPage metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+	}
+
+	@After
+	public void tearDown() {
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+	}
+
+	@Test
+	public void testConsistency() throws Exception {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+		MemTableLongLongTree testMap = new MemTableLongLongTree(tree, 1000, 2);
+
+		for (int i = 0; i != 300000; ++i) {
+			long key = random.nextInt(20000);
+			switch(random.nextInt(3)) {
+			case 0:
+				Long value = controlMap.get(key);
+				Assert.assertEquals(value != null ? value.longValue() : -1L, testMap.get(key));
+				break;
+			case 1:
+				controlMap.put(key, i + 0L);
+				testMap.put(key, i);
+				break;
+			default:
+				controlMap.remove(key);
+				testMap.remove(key);
+				break;
+			}
+		}
+
+		testMap.commit();
+		Assert.assertEquals(0, testMap.getFrozenCount());
+		Assert.assertEquals(0, testMap.getActiveSize());
+		testMap.close();
+		Assert.assertNull(testMap.getLastError());
+
+		tree.verify();
+		Assert.assertEquals(controlMap.size(), tree.size());
+		for (Map.Entry<Long, Long> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue().longValue(), tree.get(entry.getKey()));
+		}
+	}
+
+	/*
+	 * Even keys are written once, odd keys are put and removed, readers always find even keys
+	 * in one of memtables or in the tree while the merge thread changes it
+	 */
+
+	@Test
+	public void testConcurrent() throws Exception {
+
+		final int n = 100000;
+		PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+		final MemTableLongLongTree testMap = new MemTableLongLongTree(tree, 5000, 2);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		for (long key = 0; key < n; key += 2) {
+			testMap.put(key, key);
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t != 2; ++t) {
+			final Random readerRandom = new Random(t);
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							long key = readerRandom.nextInt(n);
+							long value = testMap.get(key);
+							if (key % 2 == 0) {
+								Assert.assertEquals(key, value);
+							}
+							else {
+								Assert.assertTrue(value == key || value == -1L);
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		for (int round = 0; round != 3; ++round) {
+			for (long key = 1; key < n; key += 2) {
+				testMap.put(key, key);
+			}
+			for (long key = 1; key < n; key += 2) {
+				testMap.remove(key);
+			}
+		}
+
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		testMap.close();
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+
+		tree.verify();
+		Assert.assertEquals(n / 2, tree.size());
+	}
+
+}
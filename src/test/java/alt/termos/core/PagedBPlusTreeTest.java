@@ -0,0 +1,587 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class PagedBPlusTreeTest {
+
+	public static final String testFileName = "btree.mmf";
+
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 4096L;
+
+	private static Random random = new Random(5);
+
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+
+	private UnsafeMemoryMappedFile mmf;
+	private MetaPage metaPage;
+	private PagedMemoryManager pmm;
+
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+	}
+
+	@After
+	public void tearDown() {
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+	}
+
+	@Test
+	public void testConsistency() {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		PagedBPlusTree<Long, Long> testMap = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+
+		for (int i = 0; i != 400000; ++i) {
+			long key = random.nextInt(100000);
+			Operation op = Operation.values()[random.nextInt(3)];
+			switch(op) {
+			case GET:
+				Assert.assertEquals(controlMap.get(key), testMap.get(key));
+				break;
+			case PUT:
+				Assert.assertEquals(controlMap.put(key, i + 0L), testMap.put(key, i + 0L));
+				break;
+			case REMOVE:
+				Assert.assertEquals(controlMap.remove(key), testMap.remove(key));
+				break;
+			}
+			if (i % 50000 == 0) {
+				testMap.verify();
+			}
+		}
+
+		testMap.verify();
+		Assert.assertTrue(testMap.getHeight() > 2);
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey(), testMap.getMinKey());
+		Assert.assertEquals(controlMap.lastKey(), testMap.getMaxKey());
+		assertEntries(controlMap, testMap);
+
+		/*
+		 * Remove all, root collapses to the leaf
+		 */
+
+		while (!controlMap.isEmpty()) {
+			Long key = controlMap.pollFirstEntry().getKey();
+			Assert.assertNotNull(testMap.remove(key));
+		}
+		testMap.verify();
+		Assert.assertEquals(1, testMap.getHeight());
+		Assert.assertTrue(testMap.isEmpty());
+		testMap.close();
+	}
+
+	@Test
+	public void testReopenCommitted() {
+
+		PagedBPlusTree<Long, Long> tree = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		for (long i = 0; i != 10000; ++i) {
+			tree.put(i, i * 2);
+		}
+		tree.commit();
+		tree.close();
+
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+
+		tree = PagedBPlusTree.open(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		tree.verify();
+		Assert.assertEquals(10000L, tree.size());
+		Assert.assertEquals(Long.valueOf(1998L), tree.get(999L));
+
+		/*
+		 * Pages of the committed tree are freed by the next commit
+		 */
+
+		tree.clear();
+		Assert.assertTrue(tree.isEmpty());
+		tree.commit();
+		long pages = metaPage.getNextNewPage();
+		for (long i = 0; i != 10000; ++i) {
+			tree.put(i, i);
+		}
+		tree.verify();
+		Assert.assertEquals(pages, metaPage.getNextNewPage());
+		tree.close();
+	}
+
+	@Test
+	public void testCrashKeepsCommittedTree() {
+
+		PagedBPlusTree<Long, Long> tree = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		for (long i = 0; i != 10000; ++i) {
+			tree.put(i, i * 2);
+		}
+		long root = tree.getRootPage();
+		tree.commit();
+
+		/*
+		 * Changes after the commit go to copies of the path
+		 */
+
+		for (long i = 0; i != 10000; i += 2) {
+			tree.remove(i);
+		}
+		for (long i = 10000; i != 20000; ++i) {
+			tree.put(i, i);
+		}
+		tree.put(1L, -1L);
+		tree.verify();
+		Assert.assertFalse(pmm.isCommitted(tree.getRootPage()));
+		Assert.assertTrue(pmm.isCommitted(root));
+
+		/*
+		 * Crash before the next commit, every page is written
+		 */
+
+		tree.close();
+		pmm.flush();
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+
+		tree = PagedBPlusTree.open(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		Assert.assertEquals(root, tree.getRootPage());
+		tree.verify();
+		Assert.assertEquals(10000L, tree.size());
+		for (long i = 0; i != 10000; ++i) {
+			Assert.assertEquals(Long.valueOf(i * 2), tree.get(i));
+		}
+		Assert.assertNull(tree.get(10000L));
+
+		/*
+		 * Restored tree is changed and committed again
+		 */
+
+		for (long i = 0; i < 10000; i += 3) {
+			tree.remove(i);
+		}
+		tree.commit();
+		tree.verify();
+		Assert.assertEquals(6666L, tree.size());
+		tree.close();
+	}
+
+	@Test
+	public void testLongLongConsistency() {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		PagedLongLongBPlusTree testMap = new PagedLongLongBPlusTree(pmm, -1L);
+
+		for (int i = 0; i != 200000; ++i) {
+			long key = random.nextInt(100000);
+			Long controlValue = null;
+			switch(Operation.values()[random.nextInt(3)]) {
+			case GET:
+				controlValue = controlMap.get(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.get(key));
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i + 0L);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.put(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.remove(key));
+				break;
+			}
+		}
+
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey().longValue(), testMap.getMinKey());
+		Assert.assertEquals(controlMap.lastKey().longValue(), testMap.getMaxKey());
+		for (Map.Entry<Long, Long> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue().longValue(), testMap.get(entry.getKey()));
+		}
+		testMap.commit();
+		testMap.close();
+
+		PagedLongLongBPlusTree reopened = PagedLongLongBPlusTree.open(pmm, -1L);
+		reopened.verify();
+		Assert.assertEquals(controlMap.size(), reopened.size());
+		reopened.close();
+	}
+
+	@Test
+	public void testIntIntConsistency() {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		PagedIntIntBPlusTree testMap = new PagedIntIntBPlusTree(pmm, -1);
+
+		for (int i = 0; i != 200000; ++i) {
+			int key = random.nextInt(100000) - 50000;
+			Integer controlValue = null;
+			switch(Operation.values()[random.nextInt(3)]) {
+			case GET:
+				controlValue = controlMap.get(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.get(key));
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.put(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.remove(key));
+				break;
+			}
+		}
+
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey().intValue(), testMap.getMinKey());
+		Assert.assertEquals(controlMap.lastKey().intValue(), testMap.getMaxKey());
+		testMap.close();
+	}
+
+	@Test
+	public void testBulkLoad() {
+
+		PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+		int leafCapacity = tree.getLeafCapacity();
+		int innerCapacity = tree.getInnerCapacity();
+		int[] sizes = new int[] { 0, 1, 2, leafCapacity - 1, leafCapacity, leafCapacity + 1, 2 * leafCapacity + 1,
+				leafCapacity * (innerCapacity + 1), leafCapacity * (innerCapacity + 1) + 1, 100000, 300000 };
+		double[] fillFactors = new double[] { 0.5, 0.8, 1.0 };
+
+		for (double fillFactor : fillFactors) {
+			for (int size : sizes) {
+				long[] keys = new long[size];
+				long[] values = new long[size];
+				for (int i = 0; i != size; ++i) {
+					keys[i] = i * 3L;
+					values[i] = i;
+				}
+				tree.load(keys, values, fillFactor);
+				tree.verify();
+				Assert.assertEquals(size, tree.size());
+				for (int i = 0; i != size; ++i) {
+					Assert.assertEquals(i, tree.get(i * 3L));
+				}
+				Assert.assertEquals(-1L, tree.get(1L));
+
+				/*
+				 * Loaded tree is updated as usual
+				 */
+
+				for (int i = 0; i < size; i += 2) {
+					Assert.assertEquals(i, tree.remove(i * 3L));
+					Assert.assertEquals(-1L, tree.put(i * 3L + 1, i));
+				}
+				tree.verify();
+				tree.clear();
+			}
+		}
+
+		tree.beginLoad(1.0);
+		for (int i = 0; i != leafCapacity; ++i) {
+			tree.append(i * 10L, i);
+		}
+		try {
+			tree.append(0L, 2L);
+			Assert.fail();
+		}
+		catch(IllegalArgumentException e) {
+			// not ascending
+		}
+		try {
+			tree.put(20L, 2L);
+			Assert.fail();
+		}
+		catch(IllegalStateException e) {
+			// not completed
+		}
+		tree.endLoad();
+		tree.verify();
+		Assert.assertEquals(leafCapacity, tree.size());
+		Assert.assertEquals("rejected key opened a new leaf", 1, tree.getHeight());
+		tree.close();
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		for (long i = 0; i != 50000; ++i) {
+			controlMap.put(random.nextLong(), i);
+		}
+		PagedBPlusTree<Long, Long> testMap = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		testMap.load(controlMap.entrySet().iterator(), 1.0);
+		testMap.verify();
+		Assert.assertEquals(2, testMap.getHeight());
+		assertEntries(controlMap, testMap);
+		testMap.close();
+	}
+
+	@Test
+	public void testCursor() {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		PagedLongLongBPlusTree testMap = new PagedLongLongBPlusTree(pmm, -1L);
+		PagedLongLongBPlusTree.LongLongCursor cursor = testMap.cursor();
+		Assert.assertFalse(cursor.first());
+		Assert.assertFalse(cursor.last());
+		Assert.assertFalse(cursor.seek(0L));
+
+		for (int i = 0; i != 100000; ++i) {
+			long key = random.nextInt(1000000);
+			controlMap.put(key, i + 0L);
+			testMap.put(key, i);
+		}
+		Assert.assertTrue(testMap.getHeight() > 2);
+
+		/*
+		 * Full scans in both directions
+		 */
+
+		Assert.assertTrue(cursor.first());
+		for (Map.Entry<Long, Long> entry : controlMap.entrySet()) {
+			Assert.assertTrue(cursor.isValid());
+			Assert.assertEquals(entry.getKey().longValue(), cursor.key());
+			Assert.assertEquals(entry.getValue().longValue(), cursor.value());
+			cursor.next();
+		}
+		Assert.assertFalse(cursor.isValid());
+
+		Assert.assertTrue(cursor.last());
+		for (Long key : controlMap.descendingKeySet()) {
+			Assert.assertEquals(key.longValue(), cursor.key());
+			cursor.prev();
+		}
+		Assert.assertFalse(cursor.isValid());
+
+		/*
+		 * Seek and walk, prev after next rebuilds the path of inner nodes
+		 */
+
+		for (int i = 0; i != 1000; ++i) {
+			long key = random.nextInt(1100000);
+			Long control = controlMap.ceilingKey(key);
+			Assert.assertEquals(control != null, cursor.seek(key));
+			if (control == null) {
+				continue;
+			}
+			Assert.assertEquals(control.longValue(), cursor.key());
+			int steps = random.nextInt(1000);
+			for (int j = 0; j != steps && control != null; ++j) {
+				control = controlMap.higherKey(control);
+				Assert.assertEquals(control != null, cursor.next());
+				if (control != null) {
+					Assert.assertEquals(control.longValue(), cursor.key());
+				}
+			}
+			if (control == null) {
+				continue;
+			}
+			for (int j = 0; j != steps + 10 && control != null; ++j) {
+				control = controlMap.lowerKey(control);
+				Assert.assertEquals(control != null, cursor.prev());
+				if (control != null) {
+					Assert.assertEquals(control.longValue(), cursor.key());
+				}
+			}
+		}
+
+		Assert.assertTrue(cursor.first());
+		testMap.remove(cursor.key());
+		try {
+			cursor.next();
+			Assert.fail();
+		}
+		catch(ConcurrentModificationException e) {
+			// tree is modified
+		}
+		testMap.close();
+
+		PagedBPlusTree<Long, Long> entryMap = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+		entryMap.load(controlMap.entrySet().iterator(), 0.7);
+		PagedBPlusTree<Long, Long>.EntryCursor entryCursor = entryMap.cursor();
+		Long key = controlMap.ceilingKey(500000L);
+		Assert.assertTrue(entryCursor.seek(500000L));
+		Assert.assertEquals(key, entryCursor.key());
+		Assert.assertEquals(controlMap.get(key), entryCursor.value());
+		Assert.assertTrue(entryCursor.prev());
+		Assert.assertEquals(controlMap.lowerKey(key), entryCursor.key());
+		entryMap.close();
+	}
+
+	private void assertEntries(TreeMap<Long, Long> controlMap, PagedBPlusTree<Long, Long> testMap) {
+		Iterator<Map.Entry<Long, Long>> i = testMap.entries().iterator();
+		for (Map.Entry<Long, Long> entry : controlMap.entrySet()) {
+			Assert.assertTrue(i.hasNext());
+			Map.Entry<Long, Long> testEntry = i.next();
+			Assert.assertEquals(entry.getKey(), testEntry.getKey());
+			Assert.assertEquals(entry.getValue(), testEntry.getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+	}
+
+	/*
+	 * Even keys stay in the tree, odd keys are inserted and removed by the writer, so splits and merges
+	 * run under readers. Readers never miss an even key and never see a wrong value.
+	 */
+
+	@Test
+	public void testConcurrentGet() throws Exception {
+
+		final int n = 100000;
+		final PagedLongLongBPlusTree testMap = new PagedLongLongBPlusTree(pmm, -1L);
+		for (long key = 0; key < n; key += 2) {
+			testMap.put(key, key);
+		}
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int t = 0; t != 2; ++t) {
+			final Random readerRandom = new Random(t);
+			readers.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							long key = readerRandom.nextInt(n);
+							long value = testMap.getConcurrent(key);
+							if (key % 2 == 0) {
+								Assert.assertEquals(key, value);
+							}
+							else {
+								Assert.assertTrue(value == key || value == -1L);
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+		for (Thread reader : readers) {
+			reader.start();
+		}
+
+		for (int round = 0; round != 3; ++round) {
+			for (long key = 1; key < n; key += 2) {
+				testMap.put(key, key);
+			}
+			for (long key = 1; key < n; key += 2) {
+				testMap.remove(key);
+			}
+		}
+
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		testMap.verify();
+		Assert.assertEquals(n / 2, testMap.size());
+	}
+
+	@Test
+	public void testPageLatch() {
+		long pageAddress = pmm.getPage(pmm.allocateNewPage());
+		PageLatch.reset(pageAddress);
+
+		long version = PageLatch.startRead(pageAddress);
+		Assert.assertTrue(PageLatch.validate(pageAddress, version));
+		PageLatch.lock(pageAddress);
+		Assert.assertTrue(PageLatch.isLocked(NodePage.getVersion(pageAddress)));
+		Assert.assertFalse(PageLatch.validate(pageAddress, version));
+		Assert.assertFalse(PageLatch.tryUpgrade(pageAddress, version));
+		PageLatch.unlock(pageAddress);
+		Assert.assertEquals(version + PageLatch.STEP, NodePage.getVersion(pageAddress));
+
+		version = PageLatch.startRead(pageAddress);
+		Assert.assertTrue(PageLatch.tryUpgrade(pageAddress, version));
+		PageLatch.unlockObsolete(pageAddress);
+		Assert.assertTrue(PageLatch.isObsolete(NodePage.getVersion(pageAddress)));
+		try {
+			PageLatch.lock(pageAddress);
+			Assert.fail();
+		}
+		catch(IllegalStateException e) {
+		}
+
+		PageLatch.reset(pageAddress);
+		long newVersion = PageLatch.startRead(pageAddress);
+		Assert.assertFalse(PageLatch.isObsolete(newVersion));
+		Assert.assertTrue(newVersion > version);
+	}
+
+	@Test
+	public void testEpochReclaimer() throws Exception {
+		final EpochReclaimer reclaimer = new EpochReclaimer(pmm);
+
+		/*
+		 * Without readers the page is freed at once
+		 */
+
+		long page = pmm.allocateNewPage();
+		reclaimer.retire(page);
+		Assert.assertEquals(0, reclaimer.getRetiredCount());
+		Assert.assertEquals(page, pmm.allocateNewPage());
+
+		/*
+		 * Reader that entered before the retire holds the page, later reader does not
+		 */
+
+		final AtomicReference<EpochReclaimer.Slot> otherSlot = new AtomicReference<EpochReclaimer.Slot>();
+		Thread other = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				otherSlot.set(reclaimer.enter());
+			}
+
+		});
+		other.start();
+		other.join();
+
+		reclaimer.retire(page);
+		Assert.assertEquals(0, reclaimer.reclaim());
+		Assert.assertEquals(1, reclaimer.getRetiredCount());
+
+		EpochReclaimer.Slot slot = reclaimer.enter();
+		Assert.assertEquals(0, reclaimer.reclaim());
+		reclaimer.exit(otherSlot.get());
+		Assert.assertEquals(1, reclaimer.reclaim());
+		Assert.assertEquals(0, reclaimer.getRetiredCount());
+		reclaimer.exit(slot);
+		Assert.assertEquals(page, pmm.allocateNewPage());
+	}
+
+}
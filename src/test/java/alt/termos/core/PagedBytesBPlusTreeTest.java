@@ -0,0 +1,286 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.Memcmp;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class PagedBytesBPlusTreeTest {
+
+	public static final String testFileName = "bytes.mmf";
+
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 16384L;
+
+	private static Random random = new Random(5);
+
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+
+	private UnsafeMemoryMappedFile mmf;
+	private MetaPage metaPage;
+	private PagedMemoryManager pmm;
+
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+	}
+
+	@After
+	public void tearDown() {
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+	}
+
+	@Test
+	public void testMemcmp() {
+		Assert.assertTrue(Memcmp.compare(bytes("abc"), bytes("abd")) < 0);
+		Assert.assertTrue(Memcmp.compare(bytes("abc"), bytes("ab")) > 0);
+		Assert.assertEquals(0, Memcmp.compare(bytes("0123456789abcdef"), bytes("0123456789abcdef")));
+		Assert.assertTrue(Memcmp.compare(bytes("0123456789abcdef"), bytes("0123456789abcdeg")) < 0);
+		Assert.assertTrue(Memcmp.compare(new byte[] { 1, 2, 3, 4, 5, 6, 7, (byte) 0x80 }, new byte[] { 1, 2, 3, 4, 5, 6, 7, 0x7F }) > 0);
+		Assert.assertTrue(Memcmp.compare(new byte[] { (byte) 0xFF, 0, 0, 0, 0, 0, 0, 0 }, new byte[] { 1, 0, 0, 0, 0, 0, 0, 1 }) > 0);
+	}
+
+	@Test
+	public void testConsistency() {
+
+		TreeMap<String, byte[]> controlMap = new TreeMap<String, byte[]>();
+		PagedBytesBPlusTree testMap = new PagedBytesBPlusTree(pmm);
+
+		for (int i = 0; i != 100000; ++i) {
+			String key = randomKey();
+			switch(Operation.values()[random.nextInt(3)]) {
+			case GET:
+				Assert.assertArrayEquals(controlMap.get(key), testMap.get(bytes(key)));
+				break;
+			case PUT:
+				byte[] value = randomValue();
+				Assert.assertArrayEquals(controlMap.put(key, value), testMap.put(bytes(key), value));
+				break;
+			case REMOVE:
+				Assert.assertArrayEquals(controlMap.remove(key), testMap.remove(bytes(key)));
+				break;
+			}
+			if (i % 10000 == 0) {
+				testMap.verify();
+			}
+		}
+
+		testMap.verify();
+		Assert.assertTrue(testMap.getHeight() > 2);
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertArrayEquals(bytes(controlMap.firstKey()), testMap.getMinKey());
+		Assert.assertArrayEquals(bytes(controlMap.lastKey()), testMap.getMaxKey());
+
+		Iterator<Map.Entry<byte[], byte[]>> i = testMap.entries().iterator();
+		for (Map.Entry<String, byte[]> entry : controlMap.entrySet()) {
+			Map.Entry<byte[], byte[]> testEntry = i.next();
+			Assert.assertArrayEquals(bytes(entry.getKey()), testEntry.getKey());
+			Assert.assertArrayEquals(entry.getValue(), testEntry.getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+
+		/*
+		 * Cursor scans in both directions and seeks the ceiling key
+		 */
+
+		PagedBytesBPlusTree.BytesCursor cursor = testMap.cursor();
+		Assert.assertTrue(cursor.first());
+		for (Map.Entry<String, byte[]> entry : controlMap.entrySet()) {
+			Assert.assertArrayEquals(bytes(entry.getKey()), cursor.key());
+			Assert.assertArrayEquals(entry.getValue(), cursor.value());
+			cursor.next();
+		}
+		Assert.assertFalse(cursor.isValid());
+
+		Assert.assertTrue(cursor.last());
+		for (String key : controlMap.descendingKeySet()) {
+			Assert.assertEquals(key.length(), cursor.keyLength());
+			Assert.assertArrayEquals(bytes(key), cursor.key());
+			cursor.prev();
+		}
+		Assert.assertFalse(cursor.isValid());
+
+		for (int j = 0; j != 1000; ++j) {
+			String key = randomKey();
+			String ceiling = controlMap.ceilingKey(key);
+			Assert.assertEquals(ceiling != null, cursor.seek(bytes(key)));
+			if (ceiling != null) {
+				Assert.assertArrayEquals(bytes(ceiling), cursor.key());
+			}
+		}
+
+		Assert.assertTrue(cursor.first());
+		testMap.remove(bytes(controlMap.firstKey()));
+		controlMap.pollFirstEntry();
+		Assert.assertFalse(cursor.isValid());
+
+		/*
+		 * Remove all, empty nodes and overflow pages are freed
+		 */
+
+		while (!controlMap.isEmpty()) {
+			String key = controlMap.pollFirstEntry().getKey();
+			Assert.assertNotNull(testMap.remove(bytes(key)));
+		}
+		testMap.verify();
+		Assert.assertEquals(1, testMap.getHeight());
+		Assert.assertTrue(testMap.isEmpty());
+		testMap.close();
+	}
+
+	@Test
+	public void testCompactionAndOverflow() {
+		PagedBytesBPlusTree tree = new PagedBytesBPlusTree(pmm);
+		byte[] key = bytes("key");
+
+		/*
+		 * Replaced cells become garbage of the same leaf, compaction reuses it
+		 */
+
+		for (int i = 0; i != 1000; ++i) {
+			byte[] value = new byte[1 + i % 900];
+			Arrays.fill(value, (byte) i);
+			tree.put(key, value);
+			Assert.assertArrayEquals(value, tree.get(key));
+		}
+		tree.verify();
+		Assert.assertEquals(1, tree.getHeight());
+		long pages = metaPage.getNextNewPage();
+
+		byte[] large = new byte[100000];
+		random.nextBytes(large);
+		tree.put(key, large);
+		Assert.assertArrayEquals(large, tree.get(key));
+		Assert.assertTrue(metaPage.getNextNewPage() > pages + large.length / DISK_PAGE_SIZE);
+		Assert.assertArrayEquals(large, tree.put(key, bytes("small")));
+
+		/*
+		 * Overflow chain is freed and reused
+		 */
+
+		long allocated = metaPage.getNextNewPage();
+		tree.put(key, large);
+		Assert.assertEquals(allocated, metaPage.getNextNewPage());
+
+		try {
+			tree.put(new byte[tree.getMaxKeyLength() + 1], large);
+			Assert.fail();
+		}
+		catch(IllegalArgumentException e) {
+			// too long key
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testReopenCommitted() {
+		PagedBytesBPlusTree tree = new PagedBytesBPlusTree(pmm);
+		for (int i = 0; i != 10000; ++i) {
+			tree.put(bytes("key" + i), bytes("value" + i));
+		}
+		tree.commit();
+		tree.close();
+
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+
+		tree = PagedBytesBPlusTree.open(pmm);
+		tree.verify();
+		Assert.assertEquals(10000L, tree.size());
+		Assert.assertArrayEquals(bytes("value999"), tree.get(bytes("key999")));
+
+		/*
+		 * Read of the settled leaf of the committed version does not write the page
+		 */
+
+		pmm.flush();
+		PagedBytesBPlusTree.BytesCursor cursor = tree.cursor();
+		Assert.assertTrue(cursor.seek(bytes("key999")));
+		long leafAddress = cursor.keyAddress() & -DISK_PAGE_SIZE;
+		long hits = NodePage.getHitCounter(leafAddress);
+		Assert.assertArrayEquals(bytes("value999"), tree.get(bytes("key999")));
+		Assert.assertEquals(hits, NodePage.getHitCounter(leafAddress));
+		Assert.assertEquals(1L, pmm.flush());
+
+		/*
+		 * Crash before the next commit keeps the committed tree and its overflow chains
+		 */
+
+		byte[] large = new byte[100000];
+		random.nextBytes(large);
+		tree.put(bytes("key0"), large);
+		tree.commit();
+		for (int i = 0; i != 10000; i += 2) {
+			tree.remove(bytes("key" + i));
+		}
+		tree.put(bytes("key1"), large);
+		tree.verify();
+		tree.close();
+		pmm.flush();
+
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+
+		tree = PagedBytesBPlusTree.open(pmm);
+		tree.verify();
+		Assert.assertEquals(10000L, tree.size());
+		Assert.assertArrayEquals(large, tree.get(bytes("key0")));
+		Assert.assertArrayEquals(bytes("value1"), tree.get(bytes("key1")));
+		int count = 0;
+		for (Map.Entry<byte[], byte[]> entry : tree.entries()) {
+			Assert.assertNotNull(entry.getValue());
+			count++;
+		}
+		Assert.assertEquals(10000, count);
+		tree.close();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String randomKey() {
+		int n = random.nextInt(20000);
+		StringBuilder sb = new StringBuilder();
+		sb.append(n);
+		int padding = n % 7 == 0 ? 100 : n % 40;
+		for (int i = 0; i != padding; ++i) {
+			sb.append((char) ('a' + (n + i) % 26));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] randomValue() {
+		int length = random.nextInt(100) == 0 ? 2000 + random.nextInt(10000) : random.nextInt(200);
+		byte[] value = new byte[length];
+		random.nextBytes(value);
+		return value;
+	}
+
+}
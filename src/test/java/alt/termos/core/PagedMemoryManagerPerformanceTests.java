@@ -0,0 +1,93 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ * Multi-threaded allocation throughput of the lock-free page allocator
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public class PagedMemoryManagerPerformanceTests {
+
+	public static final String testFileName = "allocator-perf.mmf";
+	
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 65536L;
+	public static final int N = 10000000;
+	
+	@Test
+	public void performanceAllocateFreeTest() throws Exception {
+		
+		int cores = Runtime.getRuntime().availableProcessors();
+		
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			run(threads);
+		}
+		
+	}
+	
+	private void run(final int threads) throws Exception {
+		
+		new File(testFileName).delete();
+		UnsafeMemoryMappedFile mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		
+		try {
+			MetaPage metaPage = new MetaPage(mmf);
+			metaPage.formatNew(DISK_PAGE_SIZE);
+			final PagedMemoryManager pmm = new PagedMemoryManager(metaPage);
+			
+			final int opsPerThread = N / threads;
+			final int batch = (int) (TOTAL_PAGES / threads) - 1;
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			
+			for (int t = 0; t != threads; ++t) {
+				new Thread() {
+					
+					@Override
+					public void run() {
+						long[] owned = new long[batch];
+						try {
+							start.await();
+							for (int ops = 0; ops < opsPerThread; ops += batch) {
+								for (int i = 0; i != batch; ++i) {
+									owned[i] = pmm.allocateNewPage();
+								}
+								for (int i = 0; i != batch; ++i) {
+									pmm.freePage(owned[i]);
+								}
+							}
+						}
+						catch(InterruptedException e) {
+						}
+						finally {
+							done.countDown();
+						}
+					}
+					
+				}.start();
+			}
+			
+			long t0 = System.currentTimeMillis();
+			start.countDown();
+			done.await();
+			long td = System.currentTimeMillis() - t0;
+			
+			System.out.println("threads = " + threads + ", allocate+free = " + td + ", ops/sec = " + (long) N * 1000L / Math.max(td, 1));
+		}
+		finally {
+			mmf.close();
+			new File(testFileName).delete();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,681 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.SegmentedMemoryMappedFile;
+import alt.termos.util.Unsafe;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public class PagedMemoryManagerTest {
+
+	public static final String testFileName = "allocator.mmf";
+	
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 1024L;
+	
+	private UnsafeMemoryMappedFile mmf;
+	private MetaPage metaPage;
+	private PagedMemoryManager pmm;
+	
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+	}
+	
+	@After
+	public void tearDown() {
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+	}
+	
+	@Test
+	public void testAllocateAll() {
+		
+		Set<Long> pages = new HashSet<Long>();
+		for (long i = 1; i != TOTAL_PAGES; ++i) {
+			long pageNum = pmm.allocateNewPage();
+			Assert.assertTrue(pageNum > 0 && pageNum < TOTAL_PAGES);
+			Assert.assertTrue(pages.add(pageNum));
+		}
+
+		try {
+			pmm.allocateNewPage();
+			Assert.fail("must be out of pages");
+		}
+		catch(IllegalStateException e) {
+		}
+		
+	}
+	
+	@Test
+	public void testFreeAndReuse() {
+		
+		long p1 = pmm.allocateNewPage();
+		long p2 = pmm.allocateNewPage();
+		long p3 = pmm.allocateNewPage();
+		
+		pmm.freePage(p2);
+		pmm.freePage(p1);
+		
+		Assert.assertEquals(p1, pmm.allocateNewPage());
+		Assert.assertEquals(p2, pmm.allocateNewPage());
+		Assert.assertEquals(p3 + 1, pmm.allocateNewPage());
+		
+	}
+	
+	@Test
+	public void testHotFreePagesFirst() {
+		
+		long cold = pmm.allocateNewPage();
+		long hot = pmm.allocateNewPage();
+		
+		for (int i = 0; i != 100; ++i) {
+			pmm.hit(hot);
+		}
+		
+		pmm.freePage(hot);
+		pmm.freePage(cold);
+		
+		Assert.assertEquals(hot, pmm.allocateNewPage());
+		Assert.assertEquals(0L, pmm.getHitCounter(hot));
+		Assert.assertEquals(cold, pmm.allocateNewPage());
+		
+	}
+	
+	@Test
+	public void testLeafTemperatureMigration() {
+		
+		Assert.assertEquals(PagedMemoryManager.NULL_PAGE, pmm.getColdestLeafPage());
+		
+		long[] leafs = new long[4];
+		for (int i = 0; i != leafs.length; ++i) {
+			leafs[i] = pmm.allocateNewPage();
+			pmm.addLeafPage(leafs[i], 1);
+			Assert.assertTrue(pmm.isLeafPage(leafs[i]));
+		}
+		
+		for (int i = 0; i != leafs.length; ++i) {
+			for (int j = 0; j != 1 << (i * 2); ++j) {
+				pmm.hit(leafs[i]);
+			}
+		}
+		
+		Assert.assertEquals(leafs[0], pmm.getColdestLeafPage());
+		Assert.assertEquals(leafs[3], pmm.getHottestLeafPage());
+		
+		pmm.freePage(leafs[0]);
+		Assert.assertFalse(pmm.isLeafPage(leafs[0]));
+		Assert.assertEquals(leafs[1], pmm.getColdestLeafPage());
+		
+		pmm.removeLeafPage(leafs[3]);
+		Assert.assertEquals(leafs[2], pmm.getHottestLeafPage());
+		
+		for (int j = 0; j != 1000; ++j) {
+			pmm.hit(leafs[1]);
+		}
+		Assert.assertEquals(leafs[2], pmm.getColdestLeafPage());
+		Assert.assertEquals(leafs[1], pmm.getHottestLeafPage());
+		
+	}
+	
+	@Test
+	public void testDeepLeafsFirst() {
+		
+		long root = pmm.allocateNewPage();
+		long upper = pmm.allocateNewPage();
+		long deep = pmm.allocateNewPage();
+		long deeper = pmm.allocateNewPage();
+		
+		pmm.addLeafPage(root, 0);
+		pmm.addLeafPage(upper, 1);
+		pmm.addLeafPage(deep, 3);
+		pmm.addLeafPage(deeper, 100);
+		
+		for (int i = 0; i != 1000; ++i) {
+			pmm.hit(deeper);
+		}
+		
+		Assert.assertEquals(deeper, pmm.getColdestLeafPage());
+		Assert.assertEquals(deeper, pmm.getHottestLeafPage());
+		
+		pmm.removeLeafPage(deeper);
+		Assert.assertEquals(deep, pmm.getColdestLeafPage());
+		
+		pmm.setLeafLevel(deep, 1);
+		Assert.assertEquals(1, pmm.getLeafLevel(deep));
+		Assert.assertEquals(deep, pmm.getColdestLeafPage());
+		
+		pmm.setProtectedLevels(2);
+		Assert.assertEquals(PagedMemoryManager.NULL_PAGE, pmm.getColdestLeafPage());
+		
+		pmm.setProtectedLevels(1);
+		pmm.removeLeafPage(deep);
+		Assert.assertEquals(upper, pmm.getColdestLeafPage());
+		
+		pmm.removeLeafPage(upper);
+		Assert.assertEquals(PagedMemoryManager.NULL_PAGE, pmm.getColdestLeafPage());
+		Assert.assertEquals(root, pmm.getHottestLeafPage());
+		
+	}
+	
+	@Test
+	public void testCacheModeEvictsColdLeafs() {
+		
+		metaPage.setCacheMode(true);
+		pmm = new PagedMemoryManager(metaPage);
+		Assert.assertTrue(pmm.isCacheMode());
+		
+		final Set<Long> evicted = new HashSet<Long>();
+		pmm.setEvictionListener(new EvictionListener() {
+
+			@Override
+			public void evict(long pageNum) {
+				Assert.assertFalse(pmm.isLeafPage(pageNum));
+				evicted.add(pageNum);
+			}
+			
+		});
+		
+		long hot = pmm.allocateNewPage();
+		pmm.addLeafPage(hot, 1);
+		for (int i = 0; i != 100; ++i) {
+			pmm.hit(hot);
+		}
+		
+		for (long i = 2; i != TOTAL_PAGES; ++i) {
+			pmm.miss();
+			long pageNum = pmm.allocateNewPage();
+			pmm.addLeafPage(pageNum, 1);
+			pmm.hit(pageNum);
+		}
+		
+		Assert.assertTrue(evicted.isEmpty());
+		
+		for (int i = 0; i != 100; ++i) {
+			pmm.miss();
+			long pageNum = pmm.allocateNewPage();
+			Assert.assertNotEquals(hot, pageNum);
+			pmm.addLeafPage(pageNum, 1);
+			pmm.hit(pageNum);
+			pmm.hit(pageNum);
+		}
+		
+		Assert.assertEquals(100, evicted.size());
+		Assert.assertFalse(evicted.contains(hot));
+		
+		CacheStatistics statistics = pmm.getStatistics();
+		Assert.assertEquals(300L + TOTAL_PAGES - 2, statistics.getHits());
+		Assert.assertEquals(100L + TOTAL_PAGES - 2, statistics.getMisses());
+		Assert.assertEquals(100L, statistics.getEvictions());
+		
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testCacheModeNothingToEvict() {
+		
+		metaPage.setCacheMode(true);
+		pmm = new PagedMemoryManager(metaPage);
+		
+		for (long i = 1; i != TOTAL_PAGES + 1; ++i) {
+			pmm.allocateNewPage();
+		}
+		
+	}
+	
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testFreeNotAllocated() {
+		pmm.freePage(TOTAL_PAGES - 1);
+	}
+	
+	@Test
+	public void testConcurrentAllocateAndFree() throws Exception {
+		
+		final int threads = 8;
+		final int rounds = 10000;
+		final int perThread = (int) (TOTAL_PAGES - 1) / threads;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			
+			List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+			for (int t = 0; t != threads; ++t) {
+				futures.add(executor.submit(new Callable<long[]>() {
+
+					@Override
+					public long[] call() throws Exception {
+						long[] owned = new long[perThread];
+						for (int r = 0; r != rounds; ++r) {
+							for (int i = 0; i != owned.length; ++i) {
+								owned[i] = pmm.allocateNewPage();
+							}
+							if (r + 1 == rounds) {
+								break;
+							}
+							for (int i = 0; i != owned.length; ++i) {
+								pmm.freePage(owned[i]);
+							}
+						}
+						return owned;
+					}
+					
+				}));
+			}
+			
+			Set<Long> pages = new HashSet<Long>();
+			for (Future<long[]> future : futures) {
+				for (long pageNum : future.get()) {
+					Assert.assertTrue("page allocated twice " + pageNum, pages.add(pageNum));
+				}
+			}
+			Assert.assertEquals(threads * perThread, pages.size());
+		}
+		finally {
+			executor.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testRemoveLeafPageWhileMoved() throws Exception {
+		
+		final long leaf = pmm.allocateNewPage();
+		pmm.addLeafPage(leaf, 1);
+		
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			
+			Future<?> mover = executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int level = 1; !done.get(); level = 3 - level) {
+						pmm.setLeafLevel(leaf, level);
+					}
+				}
+				
+			});
+			
+			for (int i = 0; i != 100000; ++i) {
+				pmm.removeLeafPage(leaf);
+				Assert.assertFalse("page left in the leaf list", pmm.isLeafPage(leaf));
+				pmm.addLeafPage(leaf, 1);
+			}
+			
+			done.set(true);
+			mover.get();
+		}
+		finally {
+			done.set(true);
+			executor.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testGrowBySegments() throws Exception {
+		
+		String growFileName = "growable.mmf";
+		long segmentSize = DISK_PAGE_SIZE * 16;
+		new File(growFileName).delete();
+		
+		SegmentedMemoryMappedFile smf = new SegmentedMemoryMappedFile(growFileName, MapFileMode.READ_WRITE, segmentSize, segmentSize, segmentSize * 4);
+		try {
+			MetaPage growMetaPage = new MetaPage(smf);
+			growMetaPage.formatNew(DISK_PAGE_SIZE);
+			PagedMemoryManager growPmm = new PagedMemoryManager(growMetaPage, smf);
+			
+			long firstPage = growPmm.allocateNewPage();
+			long firstAddress = growPmm.getPage(firstPage);
+			Unsafe.UNSAFE.putLong(firstAddress + NodePage.LAST_OFFSET, 12345L);
+			
+			Set<Long> addresses = new HashSet<Long>();
+			addresses.add(firstAddress);
+			for (long i = 2; i != 64; ++i) {
+				long pageNum = growPmm.allocateNewPage();
+				Assert.assertEquals(i, pageNum);
+				Assert.assertTrue(addresses.add(growPmm.getPage(pageNum)));
+			}
+			
+			Assert.assertEquals(4, smf.getSegmentCount());
+			Assert.assertEquals(64L, growPmm.getTotalPages());
+			Assert.assertEquals(firstAddress, growPmm.getPage(firstPage));
+			Assert.assertEquals(12345L, Unsafe.UNSAFE.getLong(firstAddress + NodePage.LAST_OFFSET));
+			
+			try {
+				growPmm.allocateNewPage();
+				Assert.fail("max size exceeded");
+			}
+			catch(IllegalStateException e) {
+			}
+			
+			/*
+			 * Dirty pages of all segments are flushed
+			 */
+			
+			growPmm.markDirty(63);
+			Assert.assertEquals(2L, growPmm.flush());
+			growPmm.close();
+		}
+		finally {
+			smf.close();
+			new File(growFileName).delete();
+		}
+		
+	}
+	
+	@Test
+	public void testFlushDirtyPages() throws Exception {
+		
+		pmm.flush();
+		Assert.assertFalse(pmm.isDirty(0));
+		
+		for (long i = 1; i != 11; ++i) {
+			long pageNum = pmm.allocateNewPage();
+			Unsafe.UNSAFE.putLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET, pageNum);
+			pmm.markDirty(pageNum);
+		}
+		pmm.markDirty(20);
+		Assert.assertTrue(pmm.isDirty(10));
+		
+		/*
+		 * Meta page and pages 1..10 are one run, page 20 is another one
+		 */
+		
+		Assert.assertEquals(12L, pmm.flush());
+		Assert.assertFalse(pmm.isDirty(10));
+		Assert.assertFalse(pmm.isDirty(20));
+		Assert.assertEquals(1L, pmm.flush());
+		
+		BackgroundFlusher flusher = new BackgroundFlusher(pmm, 1, TimeUnit.HOURS);
+		try {
+			pmm.markDirty(5);
+			Assert.assertEquals(Long.valueOf(2L), flusher.flushAsync().get());
+			Assert.assertEquals(1L, flusher.getFlushes());
+		}
+		finally {
+			flusher.close();
+		}
+		Assert.assertNull(flusher.getLastError());
+		
+	}
+	
+	@Test
+	public void testShadowCommit() throws Exception {
+		
+		Assert.assertEquals(PagedMemoryManager.NULL_PAGE, pmm.getCommittedRootPage());
+		
+		long oldRoot = pmm.allocateNewPage();
+		Unsafe.UNSAFE.putLong(pmm.getPage(oldRoot) + NodePage.LAST_OFFSET, 1L);
+		pmm.markDirty(oldRoot);
+		Assert.assertEquals(1L, pmm.commit(oldRoot, 100L));
+		
+		/*
+		 * New version is written to the copy, old one is freed after the commit
+		 */
+		
+		long newRoot = pmm.allocateNewPage();
+		Unsafe.UNSAFE.copyMemory(pmm.getPage(oldRoot), pmm.getPage(newRoot), DISK_PAGE_SIZE);
+		Unsafe.UNSAFE.putLong(pmm.getPage(newRoot) + NodePage.LAST_OFFSET, 2L);
+		pmm.markDirty(newRoot);
+		Assert.assertTrue(pmm.isCommitted(oldRoot));
+		Assert.assertFalse(pmm.isCommitted(newRoot));
+		pmm.freePage(oldRoot);
+		
+		Assert.assertEquals(oldRoot, pmm.getCommittedRootPage());
+		Assert.assertEquals(2L, pmm.commit(newRoot, 200L));
+		Assert.assertEquals(newRoot, pmm.getCommittedRootPage());
+		Assert.assertEquals(200L, pmm.getCommittedUserData());
+		Assert.assertEquals(oldRoot, pmm.allocateNewPage());
+		
+		/*
+		 * Torn write of the last slot leaves the previous commit valid
+		 */
+		
+		int slot = metaPage.getCommittedSlot();
+		long checksumAddress = metaPage.getAddress() + MetaPage.getCommitSlotOffset(slot) + MetaPage.COMMIT_CHECKSUM_OFFSET;
+		Unsafe.UNSAFE.putInt(checksumAddress, Unsafe.UNSAFE.getInt(checksumAddress) + 1);
+		Assert.assertEquals(1L, pmm.getCommittedSequence());
+		Assert.assertEquals(oldRoot, pmm.getCommittedRootPage());
+		
+		Assert.assertEquals(2L, pmm.commit(newRoot, 300L));
+		Assert.assertEquals(300L, pmm.getCommittedUserData());
+		
+	}
+	
+	@Test
+	public void testRestoreAllocatorOnOpen() throws Exception {
+		
+		long root = pmm.allocateNewPage();
+		long freed = pmm.allocateNewPage();
+		long replaced = pmm.allocateNewPage();
+		pmm.freePage(freed);
+		Assert.assertEquals(1L, pmm.commit(root, 100L));
+		long nextNewPage = metaPage.getNextNewPage();
+		
+		/*
+		 * Free page of the commit is reused as a leaf and freed again, link of the committed free list is kept
+		 */
+		
+		Assert.assertEquals(freed, pmm.allocateNewPage());
+		Assert.assertTrue(pmm.isFresh(freed));
+		pmm.addLeafPage(freed, 0);
+		long added = pmm.allocateNewPage();
+		pmm.freePage(freed);
+		Assert.assertEquals(added + 1, pmm.allocateNewPage());
+		pmm.freePage(replaced);
+		Assert.assertEquals(added + 2, pmm.allocateNewPage());
+		
+		/*
+		 * Crash before the next commit, every page is written
+		 */
+		
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		Assert.assertEquals(nextNewPage, metaPage.getNextNewPage());
+		Assert.assertFalse(pmm.isLeafPage(freed));
+		Assert.assertEquals(freed, pmm.allocateNewPage());
+		Assert.assertEquals(nextNewPage, pmm.allocateNewPage());
+		pmm.freePage(freed);
+		pmm.freePage(replaced);
+		Assert.assertEquals(2L, pmm.commit(root, 200L));
+		
+		/*
+		 * Replaced page is freed by the commit, fresh page released after the slot is not in the committed free list
+		 */
+		
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		Set<Long> pages = new HashSet<Long>();
+		pages.add(pmm.allocateNewPage());
+		pages.add(pmm.allocateNewPage());
+		Assert.assertTrue(pages.contains(replaced));
+		Assert.assertTrue(pages.contains(nextNewPage + 1));
+		Assert.assertEquals(nextNewPage + 2, pmm.allocateNewPage());
+		
+	}
+	
+	@Test
+	public void testChecksumVerifyOnFirstTouch() throws Exception {
+		
+		metaPage.setChecksums(true);
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		Assert.assertTrue(pmm.isChecksums());
+		
+		long pageNum = pmm.allocateNewPage();
+		long otherPageNum = pmm.allocateNewPage();
+		Unsafe.UNSAFE.putLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET, 777L);
+		pmm.markDirty(pageNum);
+		pmm.markDirty(otherPageNum);
+		pmm.flush();
+		
+		/*
+		 * Hit counter is not covered by the checksum
+		 */
+		
+		pmm.hit(pageNum);
+		
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		Assert.assertFalse(pmm.isVerified(pageNum));
+		Assert.assertEquals(777L, Unsafe.UNSAFE.getLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET));
+		Assert.assertTrue(pmm.isVerified(pageNum));
+		
+		/*
+		 * Corrupted page is detected on the first touch only
+		 */
+		
+		long otherAddress = pmm.getRawPage(otherPageNum);
+		Unsafe.UNSAFE.putByte(otherAddress + DISK_PAGE_SIZE - 1, (byte) 1);
+		try {
+			pmm.getPage(otherPageNum);
+			Assert.fail("corruption is not detected");
+		}
+		catch(IllegalStateException e) {
+		}
+		Assert.assertFalse(pmm.isVerified(otherPageNum));
+		
+		/*
+		 * New page is valid and it is written with the checksum by the next flush
+		 */
+		
+		long newPageNum = pmm.allocateNewPage();
+		pmm.getPage(newPageNum);
+		Assert.assertTrue(pmm.isVerified(newPageNum));
+		Assert.assertTrue(pmm.isDirty(newPageNum));
+		
+	}
+	
+	@Test
+	public void testChecksumMissingMarker() throws Exception {
+		
+		long pageNum = pmm.allocateNewPage();
+		long otherPageNum = pmm.allocateNewPage();
+		Unsafe.UNSAFE.putLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET, 777L);
+		pmm.markDirty(pageNum);
+		pmm.markDirty(otherPageNum);
+		pmm.flush();
+		
+		/*
+		 * Pages allocated before checksums are checksummed on open
+		 */
+		
+		metaPage.setChecksums(true);
+		Assert.assertFalse(metaPage.isChecksumsComplete());
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		Assert.assertTrue(metaPage.isChecksumsComplete());
+		
+		long otherAddress = pmm.getRawPage(otherPageNum);
+		pmm.close();
+		Unsafe.UNSAFE.setMemory(otherAddress, NodePage.LAST_OFFSET, (byte) 0);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		
+		Assert.assertEquals(777L, Unsafe.UNSAFE.getLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET));
+		try {
+			pmm.getPage(otherPageNum);
+			Assert.fail("zeroed header is not detected");
+		}
+		catch(IllegalStateException e) {
+		}
+		
+	}
+	
+	@Test
+	public void testSampledCountersDecay() throws Exception {
+		
+		metaPage.setSampledCounters(true);
+		pmm.close();
+		pmm = new PagedMemoryManager(metaPage, mmf);
+		
+		long hotPage = pmm.allocateNewPage();
+		long coldPage = pmm.allocateNewPage();
+		pmm.addLeafPage(hotPage, 1);
+		pmm.addLeafPage(coldPage, 1);
+		pmm.flush();
+		
+		for (int i = 0; i != 1000; ++i) {
+			pmm.hit(hotPage);
+		}
+		
+		/*
+		 * Reads do not write the page, only the migration to the hotter leaf list does
+		 */
+		
+		pmm.flush();
+		for (int i = 0; i != 1000; ++i) {
+			pmm.hit(hotPage);
+		}
+		Assert.assertFalse(pmm.isDirty(hotPage));
+		Assert.assertEquals(0L, NodePage.getHitCounter(pmm.getPage(hotPage)));
+		
+		long hits = pmm.getHitCounter(hotPage);
+		Assert.assertTrue("hits " + hits, hits >= 127 && hits < 32768);
+		Assert.assertEquals(hotPage, pmm.getHottestLeafPage());
+		Assert.assertEquals(coldPage, pmm.getColdestLeafPage());
+		
+		pmm.flush();
+		for (int i = 0; i != HitCounters.MAX_COUNTER; ++i) {
+			pmm.decayHitCounters();
+		}
+		Assert.assertEquals(0L, pmm.getHitCounter(hotPage));
+		Assert.assertEquals(0, pmm.getTemperature(pmm.getHitCounter(hotPage)));
+		Assert.assertTrue(pmm.isLeafPage(hotPage));
+		
+		/*
+		 * Decay does not walk the lists, cooled page moves when the eviction meets it
+		 */
+		
+		Assert.assertFalse(pmm.isDirty(hotPage));
+		Assert.assertEquals(hotPage, pmm.getHottestLeafPage());
+		pmm.removeLeafPage(coldPage);
+		Assert.assertEquals(hotPage, pmm.getColdestLeafPage());
+		Assert.assertTrue(pmm.isDirty(hotPage));
+		Assert.assertTrue(pmm.isLeafPage(hotPage));
+		
+		pmm.addLeafPage(coldPage, 1);
+		Assert.assertEquals(coldPage, pmm.getColdestLeafPage());
+		
+		/*
+		 * Counter continues from the decayed value
+		 */
+		
+		for (int i = 0; i != 1000; ++i) {
+			pmm.hit(coldPage);
+		}
+		hits = pmm.getHitCounter(coldPage);
+		Assert.assertTrue("hits " + hits, hits >= 127 && hits < 32768);
+		Assert.assertEquals(coldPage, pmm.getHottestLeafPage());
+		Assert.assertEquals(hotPage, pmm.getColdestLeafPage());
+		
+	}
+	
+}
@@ -0,0 +1,221 @@
+package alt.termos.core;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import alt.termos.util.MapFileMode;
+import alt.termos.util.Unsafe;
+import alt.termos.util.UnsafeMemoryMappedFile;
+
+/**
+ * 
+ * @author Albert Shift
+ *
+ */
+
+public class WriteAheadLogTest {
+
+	public static final String testFileName = "wal.mmf";
+	public static final String testLogName = "wal.mmf.wal";
+	
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long TOTAL_PAGES = 64L;
+	
+	private UnsafeMemoryMappedFile mmf;
+	private PagedMemoryManager pmm;
+	
+	@Before
+	public void setup() throws Exception {
+		new File(testFileName).delete();
+		new File(testLogName).delete();
+		mmf = new UnsafeMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, DISK_PAGE_SIZE * TOTAL_PAGES);
+		MetaPage metaPage = new MetaPage(mmf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		pmm = new PagedMemoryManager(metaPage, mmf);
+	}
+	
+	@After
+	public void tearDown() {
+		pmm.close();
+		mmf.close();
+		new File(testFileName).delete();
+		new File(testLogName).delete();
+	}
+	
+	@Test
+	public void testRecovery() throws Exception {
+		
+		WriteAheadLog wal = new WriteAheadLog(pmm, testLogName, 0, TimeUnit.MILLISECONDS, 1);
+		
+		long pageNum = pmm.allocateNewPage();
+		long address = pmm.getPage(pageNum) + NodePage.LAST_OFFSET;
+		Unsafe.UNSAFE.putLong(address, 42L);
+		wal.commit(wal.logPage(pageNum, (int) NodePage.LAST_OFFSET, 8));
+		Assert.assertEquals(1L, wal.getSyncs());
+		wal.close();
+		
+		/*
+		 * Change is lost in the data file, but it is in the log
+		 */
+		
+		Unsafe.UNSAFE.putLong(address, 0L);
+		
+		RandomAccessFile raf = new RandomAccessFile(testLogName, "rw");
+		try {
+			raf.seek(raf.length());
+			raf.write(new byte[] { 1, 2, 3 });
+		}
+		finally {
+			raf.close();
+		}
+		
+		wal = new WriteAheadLog(pmm, testLogName, 0, TimeUnit.MILLISECONDS, 1);
+		try {
+			Assert.assertEquals(1L, wal.getRecoveredRecords());
+			Assert.assertEquals(42L, Unsafe.UNSAFE.getLong(address));
+			Assert.assertEquals(0L, new File(testLogName).length());
+		}
+		finally {
+			wal.close();
+		}
+		
+	}
+	
+	@Test
+	public void testGroupCommit() throws Exception {
+		
+		final int threads = 8;
+		final int commits = 100;
+		
+		final WriteAheadLog wal = new WriteAheadLog(pmm, testLogName, 2, TimeUnit.MILLISECONDS, threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t != threads; ++t) {
+				final long pageNum = pmm.allocateNewPage();
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						long address = pmm.getPage(pageNum) + NodePage.LAST_OFFSET;
+						for (int i = 0; i != commits; ++i) {
+							Unsafe.UNSAFE.putLong(address, i);
+							wal.commit(wal.logPage(pageNum, (int) NodePage.LAST_OFFSET, 8));
+						}
+						return null;
+					}
+					
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			
+			Assert.assertEquals(threads * commits, wal.getRecords());
+			Assert.assertEquals(wal.getAppendedLsn(), wal.getDurableLsn());
+			Assert.assertTrue("syncs " + wal.getSyncs(), wal.getSyncs() < threads * commits);
+			
+			wal.checkpoint();
+			Assert.assertEquals(0L, new File(testLogName).length());
+		}
+		finally {
+			executor.shutdown();
+			wal.close();
+		}
+		
+	}
+	
+	@Test
+	public void testPageHeldUntilDurable() throws Exception {
+		
+		WriteAheadLog wal = new WriteAheadLog(pmm, testLogName, 0, TimeUnit.MILLISECONDS, 1);
+		try {
+			long pageNum = pmm.allocateNewPage();
+			pmm.flush();
+			
+			Unsafe.UNSAFE.putLong(pmm.getPage(pageNum) + NodePage.LAST_OFFSET, 42L);
+			long lsn = wal.logPage(pageNum, (int) NodePage.LAST_OFFSET, 8);
+			pmm.markDirty(pageNum);
+			Assert.assertTrue(pmm.isHeld(pageNum));
+			
+			/*
+			 * Flush does not write the page before its log record
+			 */
+			
+			pmm.flush();
+			Assert.assertTrue(pmm.isDirty(pageNum));
+			
+			wal.commit(lsn);
+			Assert.assertFalse(pmm.isHeld(pageNum));
+			pmm.flush();
+			Assert.assertFalse(pmm.isDirty(pageNum));
+		}
+		finally {
+			wal.close();
+		}
+		
+	}
+	
+	@Test(timeout = 10000)
+	public void testInterruptedLeader() throws Exception {
+		
+		final WriteAheadLog wal = new WriteAheadLog(pmm, testLogName, 1, TimeUnit.HOURS, 2);
+		try {
+			final long pageNum = pmm.allocateNewPage();
+			final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+			Thread leader = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						wal.commit(wal.logPage(pageNum, (int) NodePage.LAST_OFFSET, 8));
+					}
+					catch(Throwable e) {
+						error.set(e);
+					}
+				}
+				
+			});
+			leader.start();
+			
+			/*
+			 * Leader waits for the second record of the batch
+			 */
+			
+			while (leader.getState() != Thread.State.TIMED_WAITING) {
+				Thread.yield();
+			}
+			leader.interrupt();
+			leader.join();
+			Assert.assertTrue(String.valueOf(error.get()), error.get() instanceof IllegalStateException);
+			
+			/*
+			 * Next committer becomes the leader, the batch is full without the delay
+			 */
+			
+			wal.commit(wal.logPage(pageNum, (int) NodePage.LAST_OFFSET, 8));
+			Assert.assertEquals(wal.getAppendedLsn(), wal.getDurableLsn());
+			Assert.assertEquals(1L, wal.getSyncs());
+			
+			wal.checkpoint();
+		}
+		finally {
+			wal.close();
+		}
+		
+	}
+	
+}
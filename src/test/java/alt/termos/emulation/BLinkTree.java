@@ -0,0 +1,685 @@
+package alt.termos.emulation;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent B+Tree of Lehman and Yao
+ *
+ * Every node has the high key and the link to the right node of the same level.
+ * Reader that comes to the node after its split sees the key beyond the high key and moves right,
+ * so the split is correct without the lock of the parent and readers never wait.
+ *
+ * Content of the node is the immutable snapshot, writers copy it and publish the new one under the latch of the node.
+ * Writer holds at most two latches: the node and its right node or its parent.
+ * Nodes are not merged on remove, empty leaves stay in the chain of the level.
+ *
+ * clear() and verify() are not concurrent.
+ *
+ * Tree is the emulation in the heap, paged trees in the mapped file are not concurrent.
+ *
+ * @author Albert Shift
+ *
+ * @param <K>
+ * @param <V>
+ */
+
+public final class BLinkTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V, E> {
+
+	private final Class<E> entryClass;
+	private final int maxLength;
+	private final Comparator<? super K> keyComparator;
+
+	private volatile Node root;
+	private final AtomicInteger size = new AtomicInteger();
+
+	public BLinkTree(Class<E> entryClass, int branchingFactor, Comparator<? super K> keyComparator) {
+		notNull(entryClass, "entryClass");
+		notNull(keyComparator, "keyComparator");
+		if (branchingFactor < 2) {
+			throw new IllegalArgumentException("illegal branchingFactor " + branchingFactor);
+		}
+		this.entryClass = entryClass;
+		this.maxLength = 2 * branchingFactor;
+		this.keyComparator = keyComparator;
+		this.root = newLeaf();
+	}
+
+	public static <K, V, E extends Tree.Entry<K, V>> BLinkTree<K, V, E> newInstance(Class<E> entryClass, int branchingFactor, Comparator<? super K> keyComparator) {
+		return new BLinkTree<K, V, E>(entryClass, branchingFactor, keyComparator);
+	}
+
+	private void notNull(Object obj, String argumentName) {
+		if (obj == null) {
+			throw new IllegalArgumentException("empty argument " + argumentName);
+		}
+	}
+
+	private final class Node {
+
+		final int level;
+		final ReentrantLock latch = new ReentrantLock();
+		volatile Snapshot snapshot;
+
+		Node(int level, Snapshot snapshot) {
+			this.level = level;
+			this.snapshot = snapshot;
+		}
+
+	}
+
+	/*
+	 * Leaf has entries, inner node has separators and one child more,
+	 * separator is the first key of the right child. High key is null on the last node of the level
+	 */
+
+	private final class Snapshot {
+
+		final E[] entries;
+		final Object[] keys;
+		final Node[] childs;
+		final K highKey;
+		final Node right;
+
+		Snapshot(E[] entries, K highKey, Node right) {
+			this.entries = entries;
+			this.keys = null;
+			this.childs = null;
+			this.highKey = highKey;
+			this.right = right;
+		}
+
+		Snapshot(Object[] keys, Node[] childs, K highKey, Node right) {
+			this.entries = null;
+			this.keys = keys;
+			this.childs = childs;
+			this.highKey = highKey;
+			this.right = right;
+		}
+
+		boolean isBeyond(K key) {
+			return highKey != null && keyComparator.compare(key, highKey) >= 0;
+		}
+
+		int search(K key) {
+			int low = 0;
+			int high = entries.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = keyComparator.compare(entries[mid].getKey(), key);
+				if (c < 0) {
+					low = mid + 1;
+				}
+				else if (c > 0) {
+					high = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		@SuppressWarnings("unchecked")
+		int childIndex(K key) {
+			int low = 0;
+			int high = keys.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = keyComparator.compare((K) keys[mid], key);
+				if (c < 0) {
+					low = mid + 1;
+				}
+				else if (c > 0) {
+					high = mid - 1;
+				}
+				else {
+					return mid + 1;
+				}
+			}
+			return low;
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private E[] newEntries(int length) {
+		return (E[]) Array.newInstance(entryClass, length);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Node[] newChilds(int length) {
+		return (Node[]) Array.newInstance(Node.class, length);
+	}
+
+	private Node newLeaf() {
+		return new Node(0, new Snapshot(newEntries(0), null, null));
+	}
+
+	/*
+	 * Readers
+	 */
+
+	@Override
+	public E get(K key) {
+		notNull(key, "key");
+		Node node = root;
+		for (;;) {
+			Snapshot s = node.snapshot;
+			if (s.isBeyond(key)) {
+				node = s.right;
+			}
+			else if (node.level == 0) {
+				int index = s.search(key);
+				return index >= 0 ? s.entries[index] : null;
+			}
+			else {
+				node = s.childs[s.childIndex(key)];
+			}
+		}
+	}
+
+	@Override
+	public E getFirstEntry() {
+		Node node = root;
+		while (node.level != 0) {
+			node = node.snapshot.childs[0];
+		}
+		for (; node != null; node = node.snapshot.right) {
+			Snapshot s = node.snapshot;
+			if (s.entries.length != 0) {
+				return s.entries[0];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public E getNextEntry(K key) {
+		if (key == null) {
+			return getFirstEntry();
+		}
+		Node node = findLeaf(key, null);
+		while (node != null) {
+			Snapshot s = node.snapshot;
+			int index = s.search(key);
+			index = index >= 0 ? index + 1 : -(index + 1);
+			if (index < s.entries.length) {
+				return s.entries[index];
+			}
+			node = s.right;
+		}
+		return null;
+	}
+
+	/**
+	 * Rightmost leaf is found by the descent, if it is empty the level is scanned
+	 */
+
+	@Override
+	public E getLastEntry() {
+		Node node = root;
+		for (;;) {
+			Snapshot s = node.snapshot;
+			if (s.right != null) {
+				node = s.right;
+			}
+			else if (node.level != 0) {
+				node = s.childs[s.childs.length - 1];
+			}
+			else if (s.entries.length != 0) {
+				return s.entries[s.entries.length - 1];
+			}
+			else {
+				break;
+			}
+		}
+
+		E last = null;
+		for (Node leaf = leftmost(0); leaf != null; leaf = leaf.snapshot.right) {
+			Snapshot s = leaf.snapshot;
+			if (s.entries.length != 0) {
+				last = s.entries[s.entries.length - 1];
+			}
+		}
+		return last;
+	}
+
+	/*
+	 * Writers
+	 */
+
+	@Override
+	public E put(E entry) {
+		notNull(entry, "entry");
+		K key = entry.getKey();
+		notNull(key, "key");
+		if (entry.getValue() == null) {
+			return remove(key);
+		}
+
+		List<Node> path = new ArrayList<Node>();
+		Node node = latch(findLeaf(key, path), key);
+		Snapshot s = node.snapshot;
+		int index = s.search(key);
+		if (index >= 0) {
+			E oldEntry = s.entries[index];
+			E[] entries = s.entries.clone();
+			entries[index] = entry;
+			node.snapshot = new Snapshot(entries, s.highKey, s.right);
+			node.latch.unlock();
+			return oldEntry;
+		}
+
+		index = -(index + 1);
+		E[] entries = newEntries(s.entries.length + 1);
+		System.arraycopy(s.entries, 0, entries, 0, index);
+		entries[index] = entry;
+		System.arraycopy(s.entries, index, entries, index + 1, s.entries.length - index);
+		this.size.incrementAndGet();
+
+		if (entries.length <= maxLength) {
+			node.snapshot = new Snapshot(entries, s.highKey, s.right);
+			node.latch.unlock();
+			return null;
+		}
+
+		/*
+		 * Right node is complete before the left one links it
+		 */
+
+		int half = entries.length / 2;
+		Node right = new Node(0, new Snapshot(Arrays.copyOfRange(entries, half, entries.length), s.highKey, s.right));
+		K separator = entries[half].getKey();
+		node.snapshot = new Snapshot(Arrays.copyOfRange(entries, 0, half), separator, right);
+		addSeparator(node, separator, right, path);
+		return null;
+	}
+
+	@Override
+	public E remove(K key) {
+		notNull(key, "key");
+		Node node = latch(findLeaf(key, null), key);
+		Snapshot s = node.snapshot;
+		int index = s.search(key);
+		if (index < 0) {
+			node.latch.unlock();
+			return null;
+		}
+		E oldEntry = s.entries[index];
+		E[] entries = newEntries(s.entries.length - 1);
+		System.arraycopy(s.entries, 0, entries, 0, index);
+		System.arraycopy(s.entries, index + 1, entries, index, entries.length - index);
+		node.snapshot = new Snapshot(entries, s.highKey, s.right);
+		node.latch.unlock();
+		this.size.decrementAndGet();
+		return oldEntry;
+	}
+
+	@Override
+	public E removeFirst() {
+		for (;;) {
+			E entry = getFirstEntry();
+			if (entry == null) {
+				return null;
+			}
+			E removedEntry = remove(entry.getKey());
+			if (removedEntry != null) {
+				return removedEntry;
+			}
+		}
+	}
+
+	@Override
+	public E removeLast() {
+		for (;;) {
+			E entry = getLastEntry();
+			if (entry == null) {
+				return null;
+			}
+			E removedEntry = remove(entry.getKey());
+			if (removedEntry != null) {
+				return removedEntry;
+			}
+		}
+	}
+
+	/**
+	 * Keys are processed one by one in the sorted order, concurrent writers may change the tree between them
+	 */
+
+	@Override
+	public List<E> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		List<E> result = new ArrayList<E>(Collections.<E>nCopies(keys.size(), null));
+		for (int index : Batches.sortedOrder(keys, keyComparator)) {
+			result.set(index, get(keys.get(index)));
+		}
+		return result;
+	}
+
+	/**
+	 * Entries of the sorted batch that fall into one leaf are merged under one latch and published
+	 * as one snapshot, the leaf is split once when it overflows and the rest of the batch starts the new descent
+	 */
+
+	@Override
+	public void putAll(Collection<? extends E> entries) {
+		notNull(entries, "entries");
+		List<E> list = new ArrayList<E>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (E entry : list) {
+			notNull(entry, "entry");
+			keys.add(entry.getKey());
+		}
+		List<E> batch = new ArrayList<E>(list.size());
+		for (int index : Batches.uniqueOrder(keys, keyComparator)) {
+			E entry = list.get(index);
+			if (entry.getKey() == null || entry.getValue() == null) {
+				put(entry);
+			}
+			else {
+				batch.add(entry);
+			}
+		}
+
+		int i = 0;
+		while (i != batch.size()) {
+			List<Node> path = new ArrayList<Node>();
+			K firstKey = batch.get(i).getKey();
+			Node node = latch(findLeaf(firstKey, path), firstKey);
+			Snapshot s = node.snapshot;
+
+			List<E> merged = new ArrayList<E>(maxLength + 1);
+			int added = 0;
+			int j = 0;
+			while (i != batch.size() && merged.size() + s.entries.length - j <= maxLength && !s.isBeyond(batch.get(i).getKey())) {
+				E entry = batch.get(i++);
+				while (j != s.entries.length && keyComparator.compare(s.entries[j].getKey(), entry.getKey()) < 0) {
+					merged.add(s.entries[j++]);
+				}
+				if (j != s.entries.length && keyComparator.compare(s.entries[j].getKey(), entry.getKey()) == 0) {
+					j++;
+				}
+				else {
+					added++;
+				}
+				merged.add(entry);
+			}
+			while (j != s.entries.length) {
+				merged.add(s.entries[j++]);
+			}
+			E[] leafEntries = merged.toArray(newEntries(merged.size()));
+			this.size.addAndGet(added);
+
+			if (leafEntries.length <= maxLength) {
+				node.snapshot = new Snapshot(leafEntries, s.highKey, s.right);
+				node.latch.unlock();
+				continue;
+			}
+
+			int half = leafEntries.length / 2;
+			Node right = new Node(0, new Snapshot(Arrays.copyOfRange(leafEntries, half, leafEntries.length), s.highKey, s.right));
+			K separator = leafEntries[half].getKey();
+			node.snapshot = new Snapshot(Arrays.copyOfRange(leafEntries, 0, half), separator, right);
+			addSeparator(node, separator, right, path);
+		}
+	}
+
+	/*
+	 * Descent without latches, path keeps one node of every inner level for the splits
+	 */
+
+	private Node findLeaf(K key, List<Node> path) {
+		Node node = root;
+		for (;;) {
+			Snapshot s = node.snapshot;
+			if (s.isBeyond(key)) {
+				node = s.right;
+			}
+			else if (node.level == 0) {
+				return node;
+			}
+			else {
+				if (path != null) {
+					path.add(node);
+				}
+				node = s.childs[s.childIndex(key)];
+			}
+		}
+	}
+
+	/*
+	 * Latches the node that holds the key, latches are coupled from left to right
+	 */
+
+	private Node latch(Node node, K key) {
+		node.latch.lock();
+		for (;;) {
+			Snapshot s = node.snapshot;
+			if (!s.isBeyond(key)) {
+				return node;
+			}
+			Node right = s.right;
+			right.latch.lock();
+			node.latch.unlock();
+			node = right;
+		}
+	}
+
+	/*
+	 * Child is latched and split, its latch is released after the latch of the parent is taken
+	 */
+
+	private void addSeparator(Node child, K separator, Node right, List<Node> path) {
+		for (;;) {
+			if (child == root) {
+				Node[] childs = newChilds(2);
+				childs[0] = child;
+				childs[1] = right;
+				this.root = new Node(child.level + 1, new Snapshot(new Object[] { separator }, childs, null, null));
+				child.latch.unlock();
+				return;
+			}
+
+			Node parent = latch(findParent(child.level + 1, separator, path), separator);
+			child.latch.unlock();
+
+			Snapshot s = parent.snapshot;
+			int index = s.childIndex(separator);
+			Object[] keys = new Object[s.keys.length + 1];
+			System.arraycopy(s.keys, 0, keys, 0, index);
+			keys[index] = separator;
+			System.arraycopy(s.keys, index, keys, index + 1, s.keys.length - index);
+			Node[] childs = newChilds(s.childs.length + 1);
+			System.arraycopy(s.childs, 0, childs, 0, index + 1);
+			childs[index + 1] = right;
+			System.arraycopy(s.childs, index + 1, childs, index + 2, s.childs.length - index - 1);
+
+			if (keys.length <= maxLength) {
+				parent.snapshot = new Snapshot(keys, childs, s.highKey, s.right);
+				parent.latch.unlock();
+				return;
+			}
+
+			int half = keys.length / 2;
+			Node greater = new Node(parent.level, new Snapshot(Arrays.copyOfRange(keys, half + 1, keys.length),
+					Arrays.copyOfRange(childs, half + 1, childs.length), s.highKey, s.right));
+			@SuppressWarnings("unchecked")
+			K upKey = (K) keys[half];
+			parent.snapshot = new Snapshot(Arrays.copyOfRange(keys, 0, half), Arrays.copyOfRange(childs, 0, half + 1), upKey, greater);
+
+			child = parent;
+			separator = upKey;
+			right = greater;
+		}
+	}
+
+	/*
+	 * Parent from the path or by the new descent if the tree has grown since,
+	 * the writer that splits the root holds its latch until the new root is published
+	 */
+
+	private Node findParent(int level, K key, List<Node> path) {
+		for (Node node : path) {
+			if (node.level == level) {
+				return node;
+			}
+		}
+		Node node = root;
+		while (node.level < level) {
+			node.latch.lock();
+			node.latch.unlock();
+			node = root;
+		}
+		for (;;) {
+			Snapshot s = node.snapshot;
+			if (s.isBeyond(key)) {
+				node = s.right;
+			}
+			else if (node.level == level) {
+				return node;
+			}
+			else {
+				node = s.childs[s.childIndex(key)];
+			}
+		}
+	}
+
+	private Node leftmost(int level) {
+		Node node = root;
+		while (node.level != level) {
+			node = node.snapshot.childs[0];
+		}
+		return node;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int size() {
+		return this.size.get();
+	}
+
+	public int getHeight() {
+		return this.root.level + 1;
+	}
+
+	@Override
+	public void clear() {
+		this.root = newLeaf();
+		this.size.set(0);
+	}
+
+	/**
+	 * Checks every level by right links: order of keys, high keys and separators of parents
+	 */
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void verify() {
+		int count = 0;
+		for (int level = root.level; level >= 0; --level) {
+			K lowKey = null;
+			for (Node node = leftmost(level); node != null; node = node.snapshot.right) {
+				Snapshot s = node.snapshot;
+				if (node.level != level) {
+					throw new IllegalStateException("wrong level " + node.level + " of the node on the level " + level);
+				}
+				int length = level == 0 ? s.entries.length : s.keys.length;
+				if (length > maxLength) {
+					throw new IllegalStateException("too big length " + length);
+				}
+				for (int i = 0; i != length; ++i) {
+					K key = level == 0 ? s.entries[i].getKey() : (K) s.keys[i];
+					if (lowKey != null && keyComparator.compare(lowKey, key) > 0 || s.highKey != null && keyComparator.compare(key, s.highKey) >= 0) {
+						throw new IllegalStateException("key " + key + " is out of the node");
+					}
+					if (i != 0 && keyComparator.compare(level == 0 ? s.entries[i - 1].getKey() : (K) s.keys[i - 1], key) >= 0) {
+						throw new IllegalStateException("unordered keys at " + i);
+					}
+				}
+				if (level == 0) {
+					count += length;
+				}
+				else {
+					for (int i = 0; i != s.childs.length; ++i) {
+						K highKey = i < length ? (K) s.keys[i] : s.highKey;
+						K childHighKey = s.childs[i].snapshot.highKey;
+						if (highKey == null ? childHighKey != null : childHighKey == null || keyComparator.compare(highKey, childHighKey) != 0) {
+							throw new IllegalStateException("high key " + childHighKey + " of the child differs from " + highKey);
+						}
+					}
+				}
+				if ((s.right == null) != (s.highKey == null)) {
+					throw new IllegalStateException("high key " + s.highKey + " without the right node");
+				}
+				lowKey = s.highKey;
+			}
+		}
+		if (count != size()) {
+			throw new IllegalStateException("size " + size() + " differs from " + count + " entries");
+		}
+	}
+
+	/**
+	 * Weakly consistent iteration, every leaf is read as one snapshot
+	 */
+
+	@Override
+	public Iterable<E> entries() {
+		return new Iterable<E>() {
+
+			@Override
+			public Iterator<E> iterator() {
+				return new Iterator<E>() {
+
+					private Node leaf = leftmost(0);
+					private E[] entries = leaf.snapshot.entries;
+					private int index;
+
+					@Override
+					public boolean hasNext() {
+						while (index == entries.length) {
+							leaf = leaf.snapshot.right;
+							if (leaf == null) {
+								return false;
+							}
+							entries = leaf.snapshot.entries;
+							index = 0;
+						}
+						return true;
+					}
+
+					@Override
+					public E next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return entries[index++];
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+
+				};
+			}
+
+		};
+	}
+
+}
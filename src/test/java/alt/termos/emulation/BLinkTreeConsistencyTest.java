@@ -0,0 +1,307 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BLinkTreeConsistencyTest {
+
+	private static Random random = new Random(5);
+
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+
+	@Test
+	public void test() {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+
+		@SuppressWarnings("unchecked")
+		BLinkTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BLinkTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+
+		for (int i = 0; i != 1000000; ++i) {
+			int key = random.nextInt(5000);
+			Integer controlValue = null;
+			Tree.Entry<Integer, Integer> testEntry = null;
+			switch(Operation.values()[random.nextInt(3)]) {
+			case GET:
+				controlValue = controlMap.get(key);
+				testEntry = testMap.get(key);
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				testEntry = testMap.put(SimpleEntry.newEntry(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				testEntry = testMap.remove(key);
+				break;
+			}
+			Assert.assertEquals(controlValue, testEntry != null ? testEntry.getValue() : null);
+			if (i % 1000 == 0) {
+				testMap.verify();
+				Integer nextKey = controlMap.higherKey(key);
+				Tree.Entry<Integer, Integer> nextEntry = testMap.getNextEntry(key);
+				Assert.assertEquals(nextKey, nextEntry != null ? nextEntry.getKey() : null);
+			}
+		}
+
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey(), testMap.getFirstEntry().getKey());
+		Assert.assertEquals(controlMap.lastKey(), testMap.getLastEntry().getKey());
+
+		Iterator<SimpleEntry<Integer, Integer>> i = testMap.entries().iterator();
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), i.next().getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+
+		while (!controlMap.isEmpty()) {
+			Assert.assertEquals(controlMap.pollFirstEntry().getValue(), testMap.removeFirst().getValue());
+			if (!controlMap.isEmpty()) {
+				Assert.assertEquals(controlMap.pollLastEntry().getValue(), testMap.removeLast().getValue());
+			}
+		}
+		testMap.verify();
+		Assert.assertTrue(testMap.isEmpty());
+		Assert.assertNull(testMap.getLastEntry());
+	}
+
+	/*
+	 * Writers own disjoint keys and see their own writes, readers scan the tree at the same time
+	 */
+
+	@Test
+	public void testConcurrent() throws Exception {
+
+		final int writers = 4;
+		final int keysPerWriter = 50000;
+		@SuppressWarnings("unchecked")
+		final BLinkTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BLinkTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t != writers; ++t) {
+			final int writer = t;
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						List<Integer> keys = new ArrayList<Integer>();
+						for (int i = 0; i != keysPerWriter; ++i) {
+							keys.add(i * writers + writer);
+						}
+						Collections.shuffle(keys, new Random(writer));
+						for (Integer key : keys) {
+							Assert.assertNull(testMap.put(SimpleEntry.newEntry(key, key)));
+							Assert.assertEquals(key, testMap.get(key).getValue());
+						}
+						for (Integer key : keys.subList(0, keysPerWriter / 2)) {
+							Assert.assertEquals(key, testMap.remove(key).getValue());
+							Assert.assertNull(testMap.get(key));
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+		for (int t = 0; t != 2; ++t) {
+			final Random readerRandom = new Random(t);
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							int key = readerRandom.nextInt(writers * keysPerWriter);
+							SimpleEntry<Integer, Integer> entry = testMap.get(key);
+							Assert.assertTrue(entry == null || entry.getValue().intValue() == key);
+							SimpleEntry<Integer, Integer> next = testMap.getNextEntry(key);
+							Assert.assertTrue(next == null || next.getKey().intValue() > key);
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads.subList(0, writers)) {
+			thread.join();
+		}
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+
+		testMap.verify();
+		Assert.assertEquals(writers * keysPerWriter / 2, testMap.size());
+		Assert.assertTrue(testMap.getHeight() > 3);
+	}
+
+	/*
+	 * Writers put and remove the same keys, every successful insert or remove is counted,
+	 * so a lost update shows up as the wrong size. Value keeps the key and the writer.
+	 */
+
+	@Test
+	public void testContended() throws Exception {
+
+		final int writers = 4;
+		final int readers = 4;
+		final int keys = 20000;
+		final int operations = 200000;
+		@SuppressWarnings("unchecked")
+		final BLinkTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BLinkTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+		final AtomicInteger expectedSize = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t != writers; ++t) {
+			final int writer = t;
+			final Random writerRandom = new Random(100 + t);
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i != operations; ++i) {
+							int key = writerRandom.nextInt(keys);
+							if (writerRandom.nextInt(3) != 0) {
+								SimpleEntry<Integer, Integer> old = testMap.put(SimpleEntry.newEntry(key, key * writers + writer));
+								if (old == null) {
+									expectedSize.incrementAndGet();
+								}
+								else {
+									Assert.assertEquals(key, old.getValue().intValue() / writers);
+								}
+							}
+							else if (testMap.remove(key) != null) {
+								expectedSize.decrementAndGet();
+							}
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+		for (int t = 0; t != readers; ++t) {
+			final Random readerRandom = new Random(200 + t);
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							int key = readerRandom.nextInt(keys);
+							SimpleEntry<Integer, Integer> entry = testMap.get(key);
+							Assert.assertTrue(entry == null || entry.getValue().intValue() / writers == key);
+							SimpleEntry<Integer, Integer> next = testMap.getNextEntry(key);
+							Assert.assertTrue(next == null || (next.getKey().intValue() > key && next.getValue().intValue() / writers == next.getKey().intValue()));
+						}
+					}
+					catch(Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads.subList(0, writers)) {
+			thread.join();
+		}
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+
+		testMap.verify();
+		Assert.assertEquals(expectedSize.get(), testMap.size());
+		int count = 0;
+		int lastKey = -1;
+		for (SimpleEntry<Integer, Integer> entry : testMap.entries()) {
+			Assert.assertTrue(entry.getKey().intValue() > lastKey);
+			Assert.assertEquals(entry.getKey().intValue(), entry.getValue().intValue() / writers);
+			Assert.assertEquals(entry, testMap.get(entry.getKey()));
+			lastKey = entry.getKey().intValue();
+			count++;
+		}
+		Assert.assertEquals(expectedSize.get(), count);
+	}
+
+	/*
+	 * The first batch grows the tree several levels at once, null values remove keys
+	 */
+
+	@Test
+	public void testBatch() {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		@SuppressWarnings("unchecked")
+		BLinkTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BLinkTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(i == 0 ? 5000 : 200);
+			List<SimpleEntry<Integer, Integer>> batch = new ArrayList<SimpleEntry<Integer, Integer>>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.add(SimpleEntry.newEntry(key, value));
+			}
+			testMap.putAll(batch);
+			for (SimpleEntry<Integer, Integer> entry : batch) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), testMap.get(entry.getKey()).getValue());
+		}
+
+	}
+
+
+}
@@ -0,0 +1,130 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Mixed reads and writes from many threads, B-link tree against the B-Tree under one lock
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class BLinkTreePerformanceTests {
+
+	public static final int N = 1000000;
+	public static final int OPERATIONS = 4000000;
+	public static final int WRITE_PERCENT = 10;
+	public static final int[] THREADS = new int[] { 1, 2, 4, 8 };
+
+	@Test
+	public void performanceMixedTest() throws Exception {
+
+		for (int threads : THREADS) {
+			@SuppressWarnings("unchecked")
+			final BLinkTree<Integer, Integer, SimpleEntry<Integer, Integer>> blink = BLinkTree.newInstance(SimpleEntry.class, 32, Comparators.INTEGER);
+			long time = run(threads, new Operations() {
+
+				@Override
+				public void get(int key) {
+					blink.get(key);
+				}
+
+				@Override
+				public void put(int key) {
+					blink.put(SimpleEntry.newEntry(key, key));
+				}
+
+				@Override
+				public void remove(int key) {
+					blink.remove(key);
+				}
+
+			});
+			System.out.println("blink threads = " + threads + ", ops/sec = " + (long) (OPERATIONS * 1000.0 / time));
+
+			@SuppressWarnings("unchecked")
+			final BTree<Integer, Integer, SimpleEntry<Integer, Integer>> btree = BTree.newInstance(SimpleEntry.class, 32, Comparators.INTEGER);
+			time = run(threads, new Operations() {
+
+				@Override
+				public void get(int key) {
+					synchronized(btree) {
+						btree.get(key);
+					}
+				}
+
+				@Override
+				public void put(int key) {
+					synchronized(btree) {
+						btree.put(SimpleEntry.newEntry(key, key));
+					}
+				}
+
+				@Override
+				public void remove(int key) {
+					synchronized(btree) {
+						btree.remove(key);
+					}
+				}
+
+			});
+			System.out.println("locked btree threads = " + threads + ", ops/sec = " + (long) (OPERATIONS * 1000.0 / time));
+		}
+	}
+
+	private interface Operations {
+
+		void get(int key);
+
+		void put(int key);
+
+		void remove(int key);
+
+	}
+
+	private static long run(final int threads, final Operations operations) throws InterruptedException {
+		Random random = new Random(5);
+		for (int i = 0; i != N / 2; ++i) {
+			operations.put(random.nextInt(N));
+		}
+
+		List<Thread> list = new ArrayList<Thread>();
+		for (int t = 0; t != threads; ++t) {
+			final Random threadRandom = new Random(t);
+			list.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i != OPERATIONS / threads; ++i) {
+						int key = threadRandom.nextInt(N);
+						int op = threadRandom.nextInt(100);
+						if (op >= WRITE_PERCENT) {
+							operations.get(key);
+						}
+						else if (op % 2 == 0) {
+							operations.put(key);
+						}
+						else {
+							operations.remove(key);
+						}
+					}
+				}
+
+			}));
+		}
+
+		long t0 = System.currentTimeMillis();
+		for (Thread thread : list) {
+			thread.start();
+		}
+		for (Thread thread : list) {
+			thread.join();
+		}
+		return Math.max(1, System.currentTimeMillis() - t0);
+	}
+
+}
@@ -1,9 +1,13 @@
 package alt.termos.emulation;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,6 +36,7 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 	
 	private Map<Node, Integer> cache = new HashMap<Node, Integer>();
 	private long pageAccess;
+	private int batchAdded;
 	
 	public void access(Node node) {
 		Integer hits = cache.get(node);
@@ -113,6 +118,27 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 		
 		protected abstract int getChildPages();
 		
+		protected abstract void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result);
+		
+		/*
+		 * Node and its splits make the chain: this, splitNodes[0], splitNodes[1]... divided by splitEntries.
+		 * Batch is sorted, so the position in the chain only moves forward
+		 */
+		
+		protected abstract void putAll(List<E> batch, int from, int to, List<E> splitEntries, List<Node> splitNodes);
+		
+		protected int chainIndex(K key, List<E> splitEntries, int index) {
+			while (index < splitEntries.size() && keyComparator.compare(key, splitEntries.get(index).getKey()) > 0) {
+				index++;
+			}
+			return index;
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected <N extends Node> N chainNode(List<Node> splitNodes, int index) {
+			return (N) (index == 0 ? this : splitNodes.get(index - 1));
+		}
+		
 		public Node() {
 		}
 		
@@ -253,6 +279,9 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 		@SuppressWarnings({ "unchecked" })
 		private Node[] childs = (Node[]) Array.newInstance(Node.class, 2* branchingFactor + 1);
 
+		public InnerNode() {
+		}
+
 		public InnerNode(Node firstChild, InnerNode src, int fromIndex) {
 			super(src, fromIndex);
 			System.arraycopy(src.childs, fromIndex+1, childs, 1, this.length);
@@ -311,6 +340,92 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 			index = -(index + 1);
 			return this.childs[index].get(key);
 		}
+		
+		@Override
+		protected void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result) {
+			
+			access(this);
+			
+			int i = from;
+			while (i != to) {
+				int index = search(keys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i++], this.entries[index]);
+					continue;
+				}
+				index = -(index + 1);
+				int next = i + 1;
+				if (index < length) {
+					K bound = this.entries[index].getKey();
+					while (next != to && keyComparator.compare(keys.get(order[next]), bound) < 0) {
+						next++;
+					}
+				}
+				else {
+					next = to;
+				}
+				this.childs[index].getAll(keys, order, i, next, result);
+				i = next;
+			}
+		}
+		
+		@Override
+		protected void putAll(List<E> batch, int from, int to, List<E> splitEntries, List<Node> splitNodes) {
+			
+			access(this);
+			
+			int chain = 0;
+			int i = from;
+			while (i != to) {
+				E entry = batch.get(i);
+				chain = chainIndex(entry.getKey(), splitEntries, chain);
+				if (chain < splitEntries.size() && keyComparator.compare(entry.getKey(), splitEntries.get(chain).getKey()) == 0) {
+					splitEntries.set(chain, entry);
+					i++;
+					continue;
+				}
+				InnerNode node = chainNode(splitNodes, chain);
+				int index = node.search(entry.getKey());
+				if (index >= 0) {
+					node.replace(index, entry);
+					i++;
+					continue;
+				}
+				index = -(index + 1);
+				E bound = index < node.length ? node.entries[index] : (chain < splitEntries.size() ? splitEntries.get(chain) : null);
+				int next = i + 1;
+				while (next != to && (bound == null || keyComparator.compare(batch.get(next).getKey(), bound.getKey()) < 0)) {
+					next++;
+				}
+				
+				List<E> childEntries = new ArrayList<E>();
+				List<Node> childNodes = new ArrayList<Node>();
+				node.childs[index].putAll(batch, i, next, childEntries, childNodes);
+				for (int j = 0; j != childEntries.size(); ++j) {
+					addSplit(childEntries.get(j), childNodes.get(j), splitEntries, splitNodes, chain);
+				}
+				i = next;
+			}
+		}
+		
+		/*
+		 * Inserts the split of the child to the chain, the full node of the chain splits too
+		 */
+		
+		@SuppressWarnings("unchecked")
+		protected void addSplit(E entry, Node greater, List<E> splitEntries, List<Node> splitNodes, int fromChain) {
+			int chain = chainIndex(entry.getKey(), splitEntries, fromChain);
+			InnerNode node = chainNode(splitNodes, chain);
+			int index = -(node.search(entry.getKey()) + 1);
+			if (node.length < node.entries.length) {
+				node.insertChild(index+1, greater);
+				node.insert(index, entry);
+				return;
+			}
+			Split split = (Split) node.split(index, new Split(entry, greater));
+			splitEntries.add(chain, split.entry);
+			splitNodes.add(chain, split.greater);
+		}
 
 		@Override
 		@SuppressWarnings("unchecked")
@@ -669,6 +784,47 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 			return null;
 		}
 		
+		@Override
+		protected void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result) {
+			
+			access(this);
+			
+			for (int i = from; i != to; ++i) {
+				int index = search(keys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i], this.entries[index]);
+				}
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected void putAll(List<E> batch, int from, int to, List<E> splitEntries, List<Node> splitNodes) {
+			
+			access(this);
+			
+			int chain = 0;
+			for (int i = from; i != to; ++i) {
+				E entry = batch.get(i);
+				chain = chainIndex(entry.getKey(), splitEntries, chain);
+				if (chain < splitEntries.size() && keyComparator.compare(entry.getKey(), splitEntries.get(chain).getKey()) == 0) {
+					splitEntries.set(chain, entry);
+					continue;
+				}
+				LeafNode node = chainNode(splitNodes, chain);
+				Object result = node.put(entry);
+				if (result == null) {
+					batchAdded++;
+				}
+				else if (result instanceof BTree.Split) {
+					Split split = (Split) result;
+					splitEntries.add(chain, split.entry);
+					splitNodes.add(chain, split.greater);
+					batchAdded++;
+				}
+			}
+		}
+		
 		@Override
 		public Object put(E entry) {
 			
@@ -842,6 +998,75 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 		}
 	}
 
+	/**
+	 * Walks the tree once for the sorted batch, every node is accessed once for all keys under it
+	 */
+	
+	@Override
+	public List<E> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		int[] order = Batches.sortedOrder(keys, keyComparator);
+		List<E> result = new ArrayList<E>(Collections.<E>nCopies(order.length, null));
+		int from = 0;
+		while (from != order.length && keys.get(order[from]) == null) {
+			result.set(order[from++], this.nullEntry);
+		}
+		if (from != order.length) {
+			root.getAll(keys, order, from, order.length, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Inserts the sorted batch in one walk, splits of children are collected by parents 
+	 * and the root grows as many levels as needed at the end
+	 */
+	
+	@Override
+	public void putAll(Collection<? extends E> entries) {
+		notNull(entries, "entries");
+		List<E> list = new ArrayList<E>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (E entry : list) {
+			keys.add(entry.getKey());
+		}
+		
+		List<E> batch = new ArrayList<E>(list.size());
+		for (int index : Batches.uniqueOrder(keys, keyComparator)) {
+			E entry = list.get(index);
+			if (entry.getKey() == null) {
+				updateNullEntry(entry);
+			}
+			else if (entry.getValue() == null) {
+				remove(entry.getKey());
+			}
+			else {
+				batch.add(entry);
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		
+		List<E> splitEntries = new ArrayList<E>();
+		List<Node> splitNodes = new ArrayList<Node>();
+		this.batchAdded = 0;
+		root.putAll(batch, 0, batch.size(), splitEntries, splitNodes);
+		this.size += this.batchAdded;
+		
+		while (!splitEntries.isEmpty()) {
+			InnerNode newRoot = new InnerNode(root, splitEntries.get(0), splitNodes.get(0));
+			List<E> rootEntries = new ArrayList<E>();
+			List<Node> rootNodes = new ArrayList<Node>();
+			for (int i = 1; i != splitEntries.size(); ++i) {
+				newRoot.addSplit(splitEntries.get(i), splitNodes.get(i), rootEntries, rootNodes, 0);
+			}
+			this.root = newRoot;
+			splitEntries = rootEntries;
+			splitNodes = rootNodes;
+		}
+	}
+
 	public E remove(K key) {
 		if (key == null) {
 			return updateNullEntry(null);
@@ -965,6 +1190,171 @@ public final class BTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K, V,
 		this.root.verify(true);
 	}
 
+	/**
+	 * Builds the empty tree bottom-up, nodes are filled up to the fill factor and never split,
+	 * the last node of every level is rebalanced with its left neighbour at the end
+	 * 
+	 * @param sortedEntries - entries in the ascending order of keys without duplicates
+	 * @param fillFactor - part of the node filled, the minimum length is kept anyway
+	 */
+	
+	public void load(Iterator<E> sortedEntries, double fillFactor) {
+		if (!isEmpty()) {
+			throw new IllegalStateException("tree is not empty");
+		}
+		if (!(fillFactor > 0.0 && fillFactor <= 1.0)) {
+			throw new IllegalArgumentException("illegal fillFactor " + fillFactor);
+		}
+		int maxLength = 2 * branchingFactor;
+		Loader loader = new Loader(Math.max(branchingFactor, Math.min(maxLength, (int) Math.round(fillFactor * maxLength))));
+		
+		E prevEntry = null;
+		while (sortedEntries.hasNext()) {
+			E entry = sortedEntries.next();
+			notNull(entry, "entry");
+			if (entry.getKey() == null) {
+				updateNullEntry(entry);
+				continue;
+			}
+			notNull(entry.getValue(), "value");
+			if (prevEntry != null && keyComparator.compare(prevEntry.getKey(), entry.getKey()) >= 0) {
+				throw new IllegalArgumentException("entries are not sorted at " + entry.getKey());
+			}
+			loader.append(entry);
+			prevEntry = entry;
+		}
+		
+		this.root = loader.finish();
+		this.size = loader.count;
+	}
+	
+	/*
+	 * Every level keeps the open node and the full node with the entry after it, 
+	 * they go to the upper level when the next node is full
+	 */
+	
+	private final class Loader {
+		
+		private final int fillLength;
+		private final List<Node> current = new ArrayList<Node>();
+		private final List<Node> held = new ArrayList<Node>();
+		private final List<E> heldEntry = new ArrayList<E>();
+		private int count;
+		
+		Loader(int fillLength) {
+			this.fillLength = fillLength;
+			addLevel(new LeafNode());
+		}
+		
+		private void addLevel(Node node) {
+			current.add(node);
+			held.add(null);
+			heldEntry.add(null);
+		}
+		
+		void append(E entry) {
+			Node leaf = current.get(0);
+			if (leaf.length < fillLength) {
+				leaf.entries[leaf.length++] = entry;
+			}
+			else {
+				close(0, entry);
+				current.set(0, new LeafNode());
+			}
+			count++;
+		}
+		
+		private void close(int level, E entry) {
+			if (held.get(level) != null) {
+				addChild(level + 1, held.get(level), heldEntry.get(level));
+			}
+			held.set(level, current.get(level));
+			heldEntry.set(level, entry);
+		}
+		
+		/**
+		 * Child goes to the node of the level, entry after it closes the full node
+		 */
+		
+		@SuppressWarnings("unchecked")
+		private void addChild(int level, Node child, E entry) {
+			if (level == current.size()) {
+				addLevel(new InnerNode());
+			}
+			InnerNode node = (InnerNode) current.get(level);
+			node.childs[node.length] = child;
+			if (entry == null) {
+				return;
+			}
+			if (node.length < fillLength) {
+				node.entries[node.length++] = entry;
+			}
+			else {
+				close(level, entry);
+				current.set(level, new InnerNode());
+			}
+		}
+		
+		Node finish() {
+			for (int level = 0; ; ++level) {
+				Node node = current.get(level);
+				Node lesser = held.get(level);
+				if (lesser == null) {
+					return node;
+				}
+				E splitEntry = heldEntry.get(level);
+				if (node.length < branchingFactor) {
+					if (lesser.length + node.length < 2 * branchingFactor) {
+						lesser.join(splitEntry, node);
+						if (level + 1 == current.size()) {
+							return lesser;
+						}
+						addChild(level + 1, lesser, null);
+						continue;
+					}
+					splitEntry = redistribute(lesser, splitEntry, node);
+				}
+				addChild(level + 1, lesser, splitEntry);
+				addChild(level + 1, node, null);
+			}
+		}
+		
+		/**
+		 * Moves the tail of the lesser node through the split entry to the greater one
+		 * 
+		 * @return new split entry
+		 */
+		
+		@SuppressWarnings("unchecked")
+		private E redistribute(Node lesser, E splitEntry, Node greater) {
+			int total = lesser.length + greater.length;
+			int lesserLength = total - total / 2;
+			int moved = lesser.length - lesserLength;
+			
+			System.arraycopy(greater.entries, 0, greater.entries, moved, greater.length);
+			System.arraycopy(lesser.entries, lesserLength + 1, greater.entries, 0, moved - 1);
+			greater.entries[moved - 1] = splitEntry;
+			if (lesser instanceof BTree.InnerNode) {
+				Node[] lesserChilds = ((InnerNode) lesser).childs;
+				Node[] greaterChilds = ((InnerNode) greater).childs;
+				System.arraycopy(greaterChilds, 0, greaterChilds, moved, greater.length + 1);
+				System.arraycopy(lesserChilds, lesserLength + 1, greaterChilds, 0, moved);
+				for (int i = lesserLength + 1; i <= lesser.length; ++i) {
+					lesserChilds[i] = null;
+				}
+			}
+			E newSplitEntry = lesser.entries[lesserLength];
+			for (int i = lesserLength; i != lesser.length; ++i) {
+				lesser.entries[i] = null;
+			}
+			
+			greater.length += moved;
+			lesser.length = lesserLength;
+			return newSplitEntry;
+		}
+		
+	}
+	
 	@Override
 	public Iterable<E> entries() {
 		return new IterableEntries();
@@ -1,5 +1,9 @@
 package alt.termos.emulation;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
@@ -37,6 +41,80 @@ public class BTreeConsistencyTest {
 		Assert.assertEquals(controlMap.size(), testMap.size());
 	}
 	
+	@Test
+	public void testBatch() {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+		
+		/*
+		 * The first batch splits the root many times, the tree grows several levels at once
+		 */
+		
+		List<SimpleEntry<Integer, Integer>> batch = new ArrayList<SimpleEntry<Integer, Integer>>();
+		for (int i = 0; i != 5000; ++i) {
+			int key = random.nextInt(10000);
+			batch.add(SimpleEntry.newEntry(key, i));
+			controlMap.put(key, i);
+		}
+		testMap.putAll(batch);
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(200);
+			batch.clear();
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				keys.add(key);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.add(SimpleEntry.newEntry(key, value));
+			}
+			
+			List<SimpleEntry<Integer, Integer>> entries = testMap.getAll(keys);
+			for (int j = 0; j != length; ++j) {
+				SimpleEntry<Integer, Integer> entry = entries.get(j);
+				Assert.assertEquals(controlMap.get(keys.get(j)), entry != null ? entry.getValue() : null);
+			}
+			
+			testMap.putAll(batch);
+			for (SimpleEntry<Integer, Integer> entry : batch) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+		
+		Iterator<Map.Entry<Integer, Integer>> control = controlMap.entrySet().iterator();
+		for (SimpleEntry<Integer, Integer> entry : testMap.entries()) {
+			Map.Entry<Integer, Integer> controlEntry = control.next();
+			Assert.assertEquals(controlEntry.getKey(), entry.getKey());
+			Assert.assertEquals(controlEntry.getValue(), entry.getValue());
+		}
+		Assert.assertFalse(control.hasNext());
+		
+		/*
+		 * Inner nodes are accessed once per batch
+		 */
+		
+		List<Integer> keys = new ArrayList<Integer>(controlMap.keySet()).subList(0, 100);
+		testMap.resetPageAccess();
+		for (Integer key : keys) {
+			testMap.get(key);
+		}
+		long single = testMap.getPageAccess();
+		testMap.resetPageAccess();
+		testMap.getAll(keys);
+		Assert.assertTrue(testMap.getPageAccess() * 2 < single);
+	}
+	
 	private void testLoop(TreeMap<Integer, Integer> controlMap, BTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap) {
 		for (int i = 0; i != 10000000; ++i) {
 			this.key = getNextKey();
@@ -0,0 +1,83 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BTreeLoadTest {
+
+	private static Random random = new Random(5);
+	
+	@Test
+	public void test() {
+		
+		int[] branchingFactors = new int[] { 2, 3, 16 };
+		double[] fillFactors = new double[] { 0.5, 0.75, 1.0 };
+		
+		for (int branchingFactor : branchingFactors) {
+			for (double fillFactor : fillFactors) {
+				for (int size = 0; size <= 3000; size += 1 + size / 10) {
+					testLoad(branchingFactor, fillFactor, size);
+				}
+			}
+		}
+	}
+	
+	private void testLoad(int branchingFactor, double fillFactor, int size) {
+		List<SimpleEntry<Integer, Integer>> list = new ArrayList<SimpleEntry<Integer, Integer>>(size);
+		for (int i = 0; i != size; ++i) {
+			list.add(SimpleEntry.newEntry(i * 2, i));
+		}
+		
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BTree.newInstance(SimpleEntry.class, branchingFactor, Comparators.INTEGER);
+		testMap.load(list.iterator(), fillFactor);
+		testMap.verify();
+		
+		Assert.assertEquals(size, testMap.size());
+		Iterator<SimpleEntry<Integer, Integer>> i = testMap.entries().iterator();
+		for (SimpleEntry<Integer, Integer> entry : list) {
+			Assert.assertSame(entry, i.next());
+		}
+		Assert.assertFalse(i.hasNext());
+		Assert.assertNull(testMap.get(1));
+		
+		/*
+		 * Loaded tree is updated as usual
+		 */
+		
+		for (int n = 0; n != size; ++n) {
+			int key = random.nextInt(2 * size);
+			if (random.nextBoolean()) {
+				testMap.put(SimpleEntry.newEntry(key, key));
+			}
+			else {
+				testMap.remove(key);
+			}
+		}
+		testMap.verify();
+	}
+	
+	@Test
+	public void testNotSorted() {
+		List<SimpleEntry<Integer, Integer>> list = new ArrayList<SimpleEntry<Integer, Integer>>();
+		list.add(SimpleEntry.newEntry(2, 2));
+		list.add(SimpleEntry.newEntry(1, 1));
+		
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> testMap = BTree.newInstance(SimpleEntry.class, 2, Comparators.INTEGER);
+		try {
+			testMap.load(list.iterator(), 1.0);
+			Assert.fail();
+		}
+		catch(IllegalArgumentException e) {
+			// not sorted
+		}
+		Assert.assertTrue(testMap.isEmpty());
+	}
+	
+}
@@ -1,5 +1,8 @@
 package alt.termos.emulation;
 
+import java.util.List;
+import java.util.Map;
+
 public interface BasicTree<K, V> {
 
 	V get(K key);
@@ -8,6 +11,17 @@ public interface BasicTree<K, V> {
 	
 	V remove(K key);
 	
+	/**
+	 * Batch is sorted once and the tree is walked for all keys together
+	 * 
+	 * @param keys - keys in any order
+	 * @return values in the order of keys, null for absent keys
+	 */
+	
+	List<V> getAll(List<? extends K> keys);
+	
+	void putAll(Map<? extends K, ? extends V> entries);
+	
 	K getMinKey();
 	
 	K getMaxKey();
@@ -0,0 +1,77 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Page accesses per key of getAll and putAll against the batch size
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class BatchPerformanceTests {
+
+	public static final int N = 1000000;
+	public static final int OPERATIONS = 1000000;
+	public static final int[] BATCH_SIZES = new int[] { 1, 4, 16, 64, 256, 1024, 4096 };
+
+	private static Random random = new Random(5);
+
+	@Test
+	public void performanceGetAllTest() {
+
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> btree = newTree();
+
+		for (int batchSize : BATCH_SIZES) {
+			btree.resetPageAccess();
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != OPERATIONS / batchSize; ++i) {
+				btree.getAll(randomKeys(batchSize));
+			}
+			System.out.println("getAll batch = " + batchSize + ", page access per key = " + (double) btree.getPageAccess() / OPERATIONS
+					+ ", time = " + (System.currentTimeMillis() - t0));
+		}
+	}
+
+	@Test
+	public void performancePutAllTest() {
+
+		for (int batchSize : BATCH_SIZES) {
+			BTree<Integer, Integer, SimpleEntry<Integer, Integer>> btree = newTree();
+			btree.resetPageAccess();
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != OPERATIONS / batchSize; ++i) {
+				List<SimpleEntry<Integer, Integer>> batch = new ArrayList<SimpleEntry<Integer, Integer>>(batchSize);
+				for (Integer key : randomKeys(batchSize)) {
+					batch.add(SimpleEntry.newEntry(key, i));
+				}
+				btree.putAll(batch);
+			}
+			System.out.println("putAll batch = " + batchSize + ", page access per key = " + (double) btree.getPageAccess() / OPERATIONS
+					+ ", time = " + (System.currentTimeMillis() - t0));
+		}
+	}
+
+	private static BTree<Integer, Integer, SimpleEntry<Integer, Integer>> newTree() {
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> btree = BTree.newInstance(SimpleEntry.class, 32, Comparators.INTEGER);
+		for (int i = 0; i != N; ++i) {
+			int key = random.nextInt(2 * N);
+			btree.put(SimpleEntry.newEntry(key, key));
+		}
+		return btree;
+	}
+
+	private static List<Integer> randomKeys(int batchSize) {
+		List<Integer> keys = new ArrayList<Integer>(batchSize);
+		for (int j = 0; j != batchSize; ++j) {
+			keys.add(random.nextInt(2 * N));
+		}
+		return keys;
+	}
+
+}
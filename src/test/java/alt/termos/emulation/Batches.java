@@ -0,0 +1,77 @@
+package alt.termos.emulation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ordering of batches for getAll and putAll, the batch is sorted once and trees walk it in one pass
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class Batches {
+
+	private Batches() {
+	}
+
+	/**
+	 * Stable order of keys, null keys go first
+	 *
+	 * @param keys - keys of the batch
+	 * @param keyComparator - comparator of the tree
+	 * @return indexes of keys in the ascending order
+	 */
+
+	public static <K> int[] sortedOrder(final List<? extends K> keys, final Comparator<? super K> keyComparator) {
+		Integer[] order = new Integer[keys.size()];
+		for (int i = 0; i != order.length; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return compareKeys(keys.get(o1), keys.get(o2), keyComparator);
+			}
+
+		});
+		int[] result = new int[order.length];
+		for (int i = 0; i != order.length; ++i) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Order of the batch with the last index of every key, later puts of the same key win
+	 *
+	 * @param keys - keys of the batch
+	 * @param keyComparator - comparator of the tree
+	 * @return indexes of unique keys in the ascending order
+	 */
+
+	public static <K> int[] uniqueOrder(List<? extends K> keys, Comparator<? super K> keyComparator) {
+		int[] order = sortedOrder(keys, keyComparator);
+		int length = 0;
+		for (int i = 0; i != order.length; ++i) {
+			if (i + 1 != order.length && compareKeys(keys.get(order[i]), keys.get(order[i + 1]), keyComparator) == 0) {
+				continue;
+			}
+			order[length++] = order[i];
+		}
+		return Arrays.copyOf(order, length);
+	}
+
+	private static <K> int compareKeys(K key1, K key2, Comparator<? super K> keyComparator) {
+		if (key1 == null) {
+			return key2 == null ? 0 : -1;
+		}
+		if (key2 == null) {
+			return 1;
+		}
+		return keyComparator.compare(key1, key2);
+	}
+
+}
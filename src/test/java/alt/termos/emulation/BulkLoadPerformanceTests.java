@@ -0,0 +1,199 @@
+package alt.termos.emulation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alt.termos.core.LongLongImporter;
+import alt.termos.core.MetaPage;
+import alt.termos.core.PagedLongLongBPlusTree;
+import alt.termos.core.PagedMemoryManager;
+import alt.termos.util.MapFileMode;
+import alt.termos.util.SegmentedMemoryMappedFile;
+
+/**
+ * Incremental inserts against the bottom-up load of the same keys
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class BulkLoadPerformanceTests {
+
+	public static final int N = 10000000;
+
+	public static final String testFileName = "bulk.mmf";
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final long MAX_SIZE = 64L * SEGMENT_SIZE;
+
+	private MetaPage metaPage;
+
+	@Test
+	public void performanceHeapTest() throws Exception {
+
+		long[] keys = randomKeys();
+
+		pause();
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, SimpleEntry<Integer, Integer>> btree = BTree.newInstance(SimpleEntry.class, 64, Comparators.INTEGER);
+		long t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			btree.put(SimpleEntry.newEntry((int) keys[i], i));
+		}
+		System.out.println("heap btree random puts = " + (System.currentTimeMillis() - t0) + ", pages = " + btree.getTotalPages());
+		btree.clear();
+
+		Arrays.sort(keys);
+		List<SimpleEntry<Integer, Integer>> list = new ArrayList<SimpleEntry<Integer, Integer>>(N);
+		for (int i = 0; i != N; ++i) {
+			list.add(SimpleEntry.newEntry((int) keys[i], i));
+		}
+
+		pause();
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			btree.put(list.get(i));
+		}
+		System.out.println("heap btree sorted puts = " + (System.currentTimeMillis() - t0) + ", pages = " + btree.getTotalPages());
+		btree.clear();
+
+		pause();
+		t0 = System.currentTimeMillis();
+		btree.load(list.iterator(), 1.0);
+		System.out.println("heap btree load = " + (System.currentTimeMillis() - t0) + ", pages = " + btree.getTotalPages());
+		Assert.assertEquals(N, btree.size());
+	}
+
+	@Test
+	public void performancePagedTest() throws Exception {
+
+		long[] keys = randomKeys();
+		long[] values = new long[N];
+
+		SegmentedMemoryMappedFile smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				tree.put(keys[i], i);
+			}
+			System.out.println("paged btree random puts = " + (System.currentTimeMillis() - t0) + ", pages = " + metaPage.getNextNewPage());
+			tree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+
+		Arrays.sort(keys);
+
+		smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				tree.put(keys[i], i);
+			}
+			System.out.println("paged btree sorted puts = " + (System.currentTimeMillis() - t0) + ", pages = " + metaPage.getNextNewPage());
+			tree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+
+		smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+			long t0 = System.currentTimeMillis();
+			tree.load(keys, values, 1.0);
+			System.out.println("paged btree load = " + (System.currentTimeMillis() - t0) + ", pages = " + metaPage.getNextNewPage());
+			Assert.assertEquals(N, tree.size());
+			tree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+	}
+
+	@Test
+	public void performanceImportTest() throws Exception {
+
+		long[] keys = randomKeys();
+		ForkJoinPool pool = new ForkJoinPool();
+
+		SegmentedMemoryMappedFile smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedLongLongBPlusTree tree = new PagedLongLongBPlusTree(pmm, -1L);
+			LongLongImporter importer = new LongLongImporter(tree, new File("."), N / 10, pool);
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				importer.add(keys[i], i);
+			}
+			System.out.println("import read = " + (System.currentTimeMillis() - t0) + ", " + importer.getStatistics());
+			importer.finish(1.0);
+			System.out.println("import = " + (System.currentTimeMillis() - t0) + ", " + importer.getStatistics());
+			Assert.assertEquals(N, tree.size());
+			tree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Unique keys in the random order
+	 */
+
+	private long[] randomKeys() {
+		Random random = new Random(5);
+		long[] keys = new long[N];
+		for (int i = 0; i != N; ++i) {
+			keys[i] = i * 2;
+		}
+		for (int i = N - 1; i > 0; --i) {
+			int j = random.nextInt(i + 1);
+			long key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+		}
+		return keys;
+	}
+
+	private SegmentedMemoryMappedFile newFile() throws Exception {
+		pause();
+		new File(testFileName).delete();
+		return new SegmentedMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, SEGMENT_SIZE, SEGMENT_SIZE, MAX_SIZE);
+	}
+
+	private PagedMemoryManager newManager(SegmentedMemoryMappedFile smf) {
+		metaPage = new MetaPage(smf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		return new PagedMemoryManager(metaPage, smf);
+	}
+
+	private void closeFile(SegmentedMemoryMappedFile smf) {
+		smf.close();
+		new File(testFileName).delete();
+	}
+
+	private void pause() throws InterruptedException {
+		System.gc();
+		Thread.sleep(1000);
+	}
+
+}
@@ -1,13 +1,33 @@
 package alt.termos.emulation;
 
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Frequency-weighted multiway search tree, every node keeps the hottest entries of its key range
+ *
+ * Layout is built offline from the entries sorted by key and the snapshot of their counters:
+ * the max-Cartesian tree of counters is built by the stack in O(n), top entries of the range are taken
+ * from its frontier by the small heap, every gap between them is exactly one subtree of the Cartesian tree.
+ * Subtrees are built in parallel by the fork-join pool, so the build is O(n log b) and scales to millions of keys.
+ *
+ * Tree is the emulation in the heap. Paged B+Tree keeps entries in leaves only, so this layout does not apply to it,
+ * and the re-heat compaction of the mapped file is not implemented.
+ *
+ * @author Albert Shift
+ *
+ * @param <K>
+ * @param <V>
+ */
 
 public class IdealTree<K, V> {
 
@@ -16,7 +36,9 @@ public class IdealTree<K, V> {
 	private final EntryComparator entryComparator = new EntryComparator();
 	
 	private Node root;
+	private int size;
 	
+	private static final int PARALLEL_THRESHOLD = 8192;
 	
 	private int MAX_CACHE_SIZE = 1;
 	private int MEM_LOAD_TIME = 0;
@@ -126,86 +148,6 @@ public class IdealTree<K, V> {
 			}
 		}
 		
-		CounterEntry<K, V> get(K key) {
-			
-			access(this);
-			
-			int index = search(key);
-			if (index >= 0) {
-				return this.entries[index];
-			}
-			
-			index = -(index + 1);
-			
-			Node child = this.childs[index];
-			
-			if (child != null) {
-				return child.get(key);
-			}
-			
-			return null;
-		}
-		
-		void fill(List<CounterEntry<K, V>> list) {
-			
-			Collections.sort(list, entryComparator);
-			
-			if (list.size() > entries.length) {
-				throw new IllegalArgumentException("invalid size");
-			}
-			
-			for (int i = 0; i != list.size(); ++i) {
-				this.entries[i] = list.get(i);
-			}
-			
-			length = list.size();
-			
-		}
-		
-		void load(K splitKey, List<CounterEntry<K, V>> orderedList) {
-
-			for (int i = 0; i != length; ++i) {
-				
-				CounterEntry<K, V> entry = entries[i];
-				
-				List<CounterEntry<K, V>> elements = getTopLessThanKey(entry.getKey(), orderedList, branchingFactor * 2);
-				
-				if (!elements.isEmpty()) {
-					Node child = new Node();
-					child = new Node();
-					child.fill(elements);
-					child.load(entry.getKey(), orderedList);
-					this.childs[i] = child;
-				}
-				
-			}
-			
-			List<CounterEntry<K, V>> elements = getTopLessThanKey(splitKey, orderedList, branchingFactor * 2);
-			if (!elements.isEmpty()) {
-				Node child = new Node();
-				child.fill(elements);
-				child.load(splitKey, orderedList);
-				this.childs[length] = child;
-			}
-			
-		}
-		
-		int getChildPages() {
-			
-			int pages = 0;
-			for (int i = 0; i != length+1; ++i) {
-				
-				Node child = this.childs[i];
-				
-				if (child != null) {
-					pages += 1 + child.getChildPages();
-				}
-				
-			}
-			
-			return pages;
-		}
-		
 		void print(String prefix) {
 			
 			System.out.println(prefix + "Node " + this.hashCode());
@@ -242,70 +184,322 @@ public class IdealTree<K, V> {
 	}
 	
 	public int getTotalPages() {
-		return 1 + this.root.getChildPages();
+		int pages = 0;
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(this.root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			pages++;
+			for (int i = 0; i != node.length + 1; ++i) {
+				if (node.childs[i] != null) {
+					stack.push(node.childs[i]);
+				}
+			}
+		}
+		return pages;
+	}
+	
+	public int size() {
+		return size;
 	}
 	
 	public CounterEntry<K, V> get(K key) {
-		return this.root.get(key);
+		Node node = this.root;
+		while (node != null) {
+			access(node);
+			int index = node.search(key);
+			if (index >= 0) {
+				return node.entries[index];
+			}
+			node = node.childs[-(index + 1)];
+		}
+		return null;
 	}
 	
+	/**
+	 * Loads entries ordered by counters, hottest first
+	 * 
+	 * @param orderedList - entries, the list is not modified
+	 */
+	
 	public void load(List<CounterEntry<K, V>> orderedList) {
+		List<CounterEntry<K, V>> sortedList = new ArrayList<CounterEntry<K, V>>(orderedList);
+		Collections.sort(sortedList, entryComparator);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			build(sortedList.iterator(), pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
 
-		List<CounterEntry<K, V>> root = getTopLessThanKey(null, orderedList, branchingFactor * 2);
+	/**
+	 * Rebuilds the tree from the sorted stream, counters are taken once at the beginning,
+	 * so the entries can be hit while the layout is built
+	 * 
+	 * @param sortedEntries - entries in the ascending order of keys without duplicates
+	 * @param pool - pool for the subtrees
+	 */
 
-		this.root = new Node();
-		this.root.fill(root);
-		this.root.load(null, orderedList);
+	public void build(Iterator<CounterEntry<K, V>> sortedEntries, ForkJoinPool pool) {
+		List<CounterEntry<K, V>> list = new ArrayList<CounterEntry<K, V>>();
+		CounterEntry<K, V> prev = null;
+		while (sortedEntries.hasNext()) {
+			CounterEntry<K, V> entry = sortedEntries.next();
+			notNull(entry, "entry");
+			if (prev != null && keyComparator.compare(prev.getKey(), entry.getKey()) >= 0) {
+				throw new IllegalArgumentException("entries are not sorted at " + entry.getKey());
+			}
+			list.add(entry);
+			prev = entry;
+		}
 
+		int[] counters = new int[list.size()];
+		for (int i = 0; i != counters.length; ++i) {
+			counters[i] = list.get(i).getCounter();
+		}
+		
+		Layout layout = new Layout(list, counters);
+		Node newRoot = new Node();
+		if (!list.isEmpty()) {
+			pool.invoke(new BuildTask(layout, newRoot, layout.root, 0, counters.length));
+		}
+		
+		this.root = newRoot;
+		this.size = list.size();
+		this.cache.clear();
+	}
+	
+	/*
+	 * Max-Cartesian tree of counters, the entry with the less index is the parent of the equal one
+	 */
+	
+	private final class Layout {
+		
+		private final List<CounterEntry<K, V>> list;
+		private final int[] counters;
+		private final int[] left;
+		private final int[] right;
+		private final boolean[] selected;
+		private final int root;
+		
+		Layout(List<CounterEntry<K, V>> list, int[] counters) {
+			int n = counters.length;
+			this.list = list;
+			this.counters = counters;
+			this.left = new int[n];
+			this.right = new int[n];
+			this.selected = new boolean[n];
+			
+			int[] stack = new int[n];
+			int sp = 0;
+			for (int i = 0; i != n; ++i) {
+				int last = -1;
+				while (sp > 0 && counters[stack[sp - 1]] < counters[i]) {
+					last = stack[--sp];
+				}
+				left[i] = last;
+				right[i] = -1;
+				if (sp > 0) {
+					right[stack[sp - 1]] = i;
+				}
+				stack[sp++] = i;
+			}
+			this.root = n > 0 ? stack[0] : -1;
+		}
+		
+		boolean hotter(int i, int j) {
+			return counters[i] > counters[j] || (counters[i] == counters[j] && i < j);
+		}
 
 	}
 
-	public List<CounterEntry<K, V>> getTopLessThanKey(K key, List<CounterEntry<K, V>> orderedList, int num) {
+	/*
+	 * Builds the node for the Cartesian subtree [fromIndex, toIndex) and its children,
+	 * only the subtrees much smaller than the own one are forked, so the stack depth stays logarithmic
+	 */
 		
-		List<CounterEntry<K, V>> result = new ArrayList<CounterEntry<K, V>>();
+	private final class BuildTask extends RecursiveAction {
 		
-		int fromIndex = 0;
+		private static final long serialVersionUID = 1L;
 		
-		for (int i = 0; i != num; ++i) {
+		private final Layout layout;
+		private final Node node;
+		private final int top;
+		private final int fromIndex;
+		private final int toIndex;
 			
-			int index = findLessThanKeyEntry(key, orderedList, fromIndex);
-			
-			if (index == -1) {
-				break;
-			}
+		BuildTask(Layout layout, Node node, int top, int fromIndex, int toIndex) {
+			this.layout = layout;
+			this.node = node;
+			this.top = top;
+			this.fromIndex = fromIndex;
+			this.toIndex = toIndex;
+		}
 			
-			result.add(orderedList.remove(index));
+		@Override
+		protected void compute() {
+			int forkSize = (toIndex - fromIndex) / 4 * 3;
+			int[] heap = new int[node.entries.length + 1];
+			List<BuildTask> children = new ArrayList<BuildTask>(node.childs.length);
+			List<BuildTask> forked = new ArrayList<BuildTask>();
+			ArrayDeque<BuildTask> local = new ArrayDeque<BuildTask>();
+			local.push(this);
 			
-			fromIndex = index;
+			while (!local.isEmpty()) {
+				BuildTask task = local.pop();
+				select(task.top, heap);
+				children.clear();
+				task.fill(task.top, task.fromIndex, task.toIndex, children);
+				for (BuildTask child : children) {
+					int childSize = child.toIndex - child.fromIndex;
+					if (childSize >= PARALLEL_THRESHOLD && childSize <= forkSize) {
+						child.fork();
+						forked.add(child);
+					}
+					else {
+						local.push(child);
+					}
+				}
+			}
 			
+			for (BuildTask task : forked) {
+				task.join();
+			}
 		}
 		
-		return result;
+		/*
+		 * Takes the hottest entries of the subtree, frontier of the Cartesian tree is kept in the heap
+		 */
 		
-	}
-	
-	public int findLessThanKeyEntry(K key, List<CounterEntry<K, V>> orderedList, int fromIndex) {
+		private void select(int top, int[] heap) {
+			int heapSize = 0;
+			heap[heapSize++] = top;
+			for (int selected = 0; selected != heap.length - 1 && heapSize != 0; ++selected) {
+				int hottest = heap[0];
+				heap[0] = heap[--heapSize];
+				siftDown(heap, heapSize);
+				layout.selected[hottest] = true;
+				if (layout.left[hottest] != -1) {
+					heapSize = siftUp(heap, heapSize, layout.left[hottest]);
+				}
+				if (layout.right[hottest] != -1) {
+					heapSize = siftUp(heap, heapSize, layout.right[hottest]);
+				}
+			}
+		}
 		
-		if (fromIndex >= orderedList.size()) {
-			return -1;
+		private int siftUp(int[] heap, int heapSize, int index) {
+			int i = heapSize;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!layout.hotter(index, heap[parent])) {
+					break;
+				}
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = index;
+			return heapSize + 1;
 		}
 		
-		for (int i = fromIndex; i != orderedList.size(); ++i) {
-			
-			if (key == null) {
-				return i;
+		private void siftDown(int[] heap, int heapSize) {
+			int i = 0;
+			int index = heap[0];
+			for (;;) {
+				int child = 2 * i + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && layout.hotter(heap[child + 1], heap[child])) {
+					child++;
+				}
+				if (!layout.hotter(heap[child], index)) {
+					break;
+				}
+				heap[i] = heap[child];
+				i = child;
 			}
-			
-			CounterEntry<K, V> entry = orderedList.get(i);
-			
-			if (keyComparator.compare(entry.getKey(), key) == -1) {
-				return i;
+			heap[i] = index;
+		}
+		
+		/*
+		 * In-order walk of the selected part, every not selected subtree is the child between two entries
+		 */
+		
+		private void fill(int index, int from, int to, List<BuildTask> children) {
+			if (index == -1) {
+				return;
 			}
-			
+			if (!layout.selected[index]) {
+				Node child = new Node();
+				node.childs[node.length] = child;
+				children.add(new BuildTask(layout, child, index, from, to));
+				return;
+			}
+			fill(layout.left[index], from, index, children);
+			node.entries[node.length++] = layout.list.get(index);
+			fill(layout.right[index], index + 1, to, children);
 		}
 		
-		return -1;
+	}
+	
+	/**
+	 * Checks order of keys and that every node keeps entries hotter than the entries of its children,
+	 * counters must not be changed after the build
+	 */
 		
+	public void verify() {
+		int count = 0;
+		ArrayDeque<Object[]> stack = new ArrayDeque<Object[]>();
+		stack.push(new Object[] { this.root, null, null, null });
+		while (!stack.isEmpty()) {
+			Object[] item = stack.pop();
+			@SuppressWarnings("unchecked")
+			Node node = (Node) item[0];
+			@SuppressWarnings("unchecked")
+			CounterEntry<K, V> low = (CounterEntry<K, V>) item[1];
+			@SuppressWarnings("unchecked")
+			CounterEntry<K, V> high = (CounterEntry<K, V>) item[2];
+			@SuppressWarnings("unchecked")
+			CounterEntry<K, V> parentMin = (CounterEntry<K, V>) item[3];
+			
+			int minCounter = Integer.MAX_VALUE;
+			CounterEntry<K, V> min = null;
+			for (int i = 0; i != node.length; ++i) {
+				CounterEntry<K, V> entry = node.entries[i];
+				if (i > 0 && keyComparator.compare(node.entries[i - 1].getKey(), entry.getKey()) >= 0) {
+					throw new IllegalStateException("unordered keys at " + entry.getKey());
+				}
+				if ((low != null && keyComparator.compare(low.getKey(), entry.getKey()) >= 0)
+						|| (high != null && keyComparator.compare(entry.getKey(), high.getKey()) >= 0)) {
+					throw new IllegalStateException("key " + entry.getKey() + " is out of the parent range");
+				}
+				if (parentMin != null && entry.getCounter() > parentMin.getCounter()) {
+					throw new IllegalStateException("entry " + entry + " is hotter than the parent entry " + parentMin);
+				}
+				if (entry.getCounter() < minCounter) {
+					minCounter = entry.getCounter();
+					min = entry;
+				}
+			}
+			count += node.length;
+			
+			for (int i = 0; i != node.length + 1; ++i) {
+				Node child = node.childs[i];
+				if (child == null) {
+					continue;
+				}
+				if (node.length != node.entries.length) {
+					throw new IllegalStateException("child of the not full node");
+				}
+				stack.push(new Object[] { child, i > 0 ? node.entries[i - 1] : low, i < node.length ? node.entries[i] : high, min });
+			}
+		}
+		if (count != size) {
+			throw new IllegalStateException("wrong size " + size + ", actual " + count);
+		}
 	}
 	
 	public class EntryComparator implements Comparator<CounterEntry<K,V>> {
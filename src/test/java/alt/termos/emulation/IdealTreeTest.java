@@ -0,0 +1,126 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.math3.distribution.ExponentialDistribution;
+import org.apache.commons.math3.random.Well19937c;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdealTreeTest {
+
+	private static Random random = new Random(5);
+	
+	private ForkJoinPool pool;
+	
+	@Before
+	public void setup() {
+		pool = new ForkJoinPool(4);
+	}
+	
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testLoad() {
+		
+		List<CounterEntry<Integer, Integer>> list = new ArrayList<CounterEntry<Integer, Integer>>();
+		for (int i = 0; i != 10000; ++i) {
+			CounterEntry<Integer, Integer> entry = CounterEntry.newEntry(i, i);
+			entry.setCounter(random.nextInt(100));
+			list.add(entry);
+		}
+		Collections.sort(list, LoadTest.counterComparator);
+		
+		IdealTree<Integer, Integer> tree = new IdealTree<Integer, Integer>(2, Comparators.INTEGER);
+		tree.load(list);
+		tree.verify();
+		
+		Assert.assertEquals(10000, list.size());
+		Assert.assertEquals(10000, tree.size());
+		for (CounterEntry<Integer, Integer> entry : list) {
+			Assert.assertSame(entry, tree.get(entry.getKey()));
+		}
+		Assert.assertNull(tree.get(-1));
+		Assert.assertNull(tree.get(10000));
+		
+		/*
+		 * Hottest entries are in the root
+		 */
+		
+		tree.resetPageAccess();
+		for (int i = 0; i != 4; ++i) {
+			tree.get(list.get(i).getKey());
+		}
+		Assert.assertEquals(1000, tree.getPageAccess());
+	}
+	
+	@Test
+	public void testBuild() {
+		
+		int n = 2000000;
+		ExponentialDistribution exponentialDistribution = new ExponentialDistribution(new Well19937c(5), 5.0, ExponentialDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
+		
+		List<CounterEntry<Integer, Integer>> list = new ArrayList<CounterEntry<Integer, Integer>>(n);
+		for (int i = 0; i != n; ++i) {
+			list.add(CounterEntry.newEntry(i, i));
+		}
+		for (int i = 0; i != 10 * n; ++i) {
+			int key = (int) Math.round(exponentialDistribution.sample() * n / 50);
+			if (key < n) {
+				list.get(key).increment();
+			}
+		}
+		
+		IdealTree<Integer, Integer> tree = new IdealTree<Integer, Integer>(8, Comparators.INTEGER);
+		long t0 = System.currentTimeMillis();
+		tree.build(list.iterator(), pool);
+		System.out.println("IdealTree build " + n + " keys = " + (System.currentTimeMillis() - t0) + ", pages = " + tree.getTotalPages());
+		
+		tree.verify();
+		Assert.assertEquals(n, tree.size());
+		for (int i = 0; i < n; i += 997) {
+			Assert.assertEquals(Integer.valueOf(i), tree.get(i).getValue());
+		}
+	}
+	
+	@Test
+	public void testMonotoneCounters() {
+		
+		/*
+		 * Counters grow with keys, the layout is a chain
+		 */
+		
+		int n = 1000000;
+		List<CounterEntry<Integer, Integer>> list = new ArrayList<CounterEntry<Integer, Integer>>(n);
+		for (int i = 0; i != n; ++i) {
+			CounterEntry<Integer, Integer> entry = CounterEntry.newEntry(i, i);
+			entry.setCounter(i);
+			list.add(entry);
+		}
+		
+		IdealTree<Integer, Integer> tree = new IdealTree<Integer, Integer>(2, Comparators.INTEGER);
+		tree.build(list.iterator(), pool);
+		tree.verify();
+		Assert.assertEquals(n / 4, tree.getTotalPages());
+		Assert.assertEquals(Integer.valueOf(0), tree.get(0).getValue());
+		
+		try {
+			Collections.reverse(list);
+			tree.build(list.iterator(), pool);
+			Assert.fail();
+		}
+		catch(IllegalArgumentException e) {
+			// not sorted
+		}
+	}
+	
+}
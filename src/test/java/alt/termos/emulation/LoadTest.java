@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Random;
 
 import org.apache.commons.math3.distribution.ExponentialDistribution;
+import org.apache.commons.math3.random.Well19937c;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -125,6 +126,82 @@ public class LoadTest {
 		
 	}
 	
+	@Test
+	public void testThermalTree() {
+
+		int branchingFactor = 2;
+		long seed = 5;
+
+		@SuppressWarnings("unchecked")
+		BTree<Integer, Integer, CounterEntry<Integer, Integer>> testMap = BTree.newInstance(CounterEntry.class, branchingFactor, Comparators.INTEGER);
+		ThermalTree<Integer, Integer> thermalTree = ThermalTree.newInstance(branchingFactor, Comparators.INTEGER);
+
+		/*
+		 * Same workload for both trees, thermal tree counts gets by itself
+		 */
+
+		Random opRandom = new Random(seed);
+		ExponentialDistribution keys = new ExponentialDistribution(new Well19937c(seed), 5.0, ExponentialDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
+
+		for (int i = 0; i != 1000000; ++i) {
+			int key = mapKey((int) Math.round(keys.sample()));
+			if (opRandom.nextInt(100) <= 80) {
+				CounterEntry<Integer, Integer> entry = testMap.get(key);
+				if (entry != null) {
+					entry.increment();
+				}
+				thermalTree.get(key);
+			}
+			else {
+				CounterEntry<Integer, Integer> newEntry = CounterEntry.newEntry(key, key);
+				CounterEntry<Integer, Integer> entry = testMap.put(newEntry);
+				if (entry != null) {
+					newEntry.setCounter(entry.getCounter() + 1);
+				}
+				CounterEntry<Integer, Integer> newThermalEntry = CounterEntry.newEntry(key, key);
+				entry = thermalTree.put(newThermalEntry);
+				if (entry != null) {
+					newThermalEntry.setCounter(entry.getCounter() + 1);
+				}
+			}
+			if (i % 100000 == 0) {
+				thermalTree.verify();
+			}
+		}
+
+		thermalTree.verify();
+		Assert.assertEquals(testMap.size(), thermalTree.size());
+		for (CounterEntry<Integer,Integer> e : testMap.entries()) {
+			Assert.assertEquals(e.getKey(), thermalTree.get(e.getKey()).getKey());
+		}
+
+		System.out.println("BTree total pages = " + testMap.getTotalPages());
+		System.out.println("ThermalTree total pages = " + thermalTree.getTotalPages() + ", promotions = " + thermalTree.getPromotions()
+				+ ", demotions = " + thermalTree.getDemotions() + ", rebuilds = " + thermalTree.getRebuilds());
+
+		int N = 1000000;
+
+		testMap.resetPageAccess();
+		keys.reseedRandomGenerator(seed);
+		for (int i = 0; i != N; ++i) {
+			testMap.get(mapKey((int) Math.round(keys.sample())));
+		}
+
+		thermalTree.resetPageAccess();
+		keys.reseedRandomGenerator(seed);
+		for (int i = 0; i != N; ++i) {
+			thermalTree.get(mapKey((int) Math.round(keys.sample())));
+		}
+
+		thermalTree.verify();
+
+		System.out.println("BTree pageAccess = " + testMap.getPageAccess());
+		System.out.println("ThermalTree pageAccess = " + thermalTree.getPageAccess());
+		System.out.println("PageAccess better = " + (double) (testMap.getPageAccess() - thermalTree.getPageAccess()) * 100.0 / thermalTree.getPageAccess() + "%");
+
+		Assert.assertTrue(thermalTree.getPageAccess() < testMap.getPageAccess());
+	}
+
 	private int getNextKey() {
 		int expKey = (int) Math.round(exponentialDistribution.sample());
 		return mapKey(expKey);
@@ -0,0 +1,422 @@
+package alt.termos.emulation;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * B+Tree specialized for long keys and long values, nodes keep raw primitive arrays
+ * and the search is Arrays.binarySearch without comparator and boxing.
+ * Absent value is reported by the no entry value.
+ *
+ * @author Albert Shift
+ *
+ */
+
+public final class LongLongBTree {
+
+	private final int branchingFactor;
+	private final long noEntryValue;
+
+	private Node root;
+	private int height;
+	private int size;
+
+	/*
+	 * Results of the recursive put and remove
+	 */
+
+	private boolean found;
+	private long foundValue;
+	private long splitKey;
+
+	public LongLongBTree(int branchingFactor, long noEntryValue) {
+		if (branchingFactor < 2) {
+			throw new IllegalArgumentException("illegal branchingFactor " + branchingFactor);
+		}
+		this.branchingFactor = branchingFactor;
+		this.noEntryValue = noEntryValue;
+		this.root = new LeafNode();
+		this.height = 1;
+	}
+
+	/*
+	 * Node keeps up to 2 * branchingFactor keys, one more slot is for the insert before the split
+	 */
+
+	private abstract class Node {
+
+		protected final long[] keys = new long[2 * branchingFactor + 1];
+		protected int length;
+
+		protected int search(long key) {
+			return Arrays.binarySearch(keys, 0, length, key);
+		}
+
+	}
+
+	private final class LeafNode extends Node {
+
+		private final long[] values = new long[2 * branchingFactor + 1];
+		private LeafNode next;
+
+		protected void insert(int index, long key, long value) {
+			if (index < length) {
+				System.arraycopy(keys, index, keys, index + 1, length - index);
+				System.arraycopy(values, index, values, index + 1, length - index);
+			}
+			keys[index] = key;
+			values[index] = value;
+			length++;
+		}
+
+		protected void delete(int index) {
+			int last = length - 1;
+			if (index < last) {
+				System.arraycopy(keys, index + 1, keys, index, last - index);
+				System.arraycopy(values, index + 1, values, index, last - index);
+			}
+			length--;
+		}
+
+	}
+
+	private final class InnerNode extends Node {
+
+		private final Node[] childs = new Node[2 * branchingFactor + 2];
+
+		protected int childIndex(long key) {
+			int index = search(key);
+			return index >= 0 ? index + 1 : -(index + 1);
+		}
+
+		protected void insert(int index, long key, Node greater) {
+			if (index < length) {
+				System.arraycopy(keys, index, keys, index + 1, length - index);
+				System.arraycopy(childs, index + 1, childs, index + 2, length - index);
+			}
+			keys[index] = key;
+			childs[index + 1] = greater;
+			length++;
+		}
+
+		protected void delete(int index) {
+			int last = length - 1;
+			if (index < last) {
+				System.arraycopy(keys, index + 1, keys, index, last - index);
+				System.arraycopy(childs, index + 2, childs, index + 1, last - index);
+			}
+			length--;
+		}
+
+	}
+
+	public long getNoEntryValue() {
+		return noEntryValue;
+	}
+
+	public long get(long key) {
+		Node node = root;
+		for (int depth = 1; depth < height; ++depth) {
+			InnerNode inner = (InnerNode) node;
+			node = inner.childs[inner.childIndex(key)];
+		}
+		int index = node.search(key);
+		return index >= 0 ? ((LeafNode) node).values[index] : noEntryValue;
+	}
+
+	public boolean containsKey(long key) {
+		Node node = root;
+		for (int depth = 1; depth < height; ++depth) {
+			InnerNode inner = (InnerNode) node;
+			node = inner.childs[inner.childIndex(key)];
+		}
+		return node.search(key) >= 0;
+	}
+
+	public long put(long key, long value) {
+		found = false;
+		Node greater = insert(root, 1, key, value);
+		if (greater != null) {
+			InnerNode newRoot = new InnerNode();
+			newRoot.keys[0] = splitKey;
+			newRoot.childs[0] = root;
+			newRoot.childs[1] = greater;
+			newRoot.length = 1;
+			root = newRoot;
+			height++;
+		}
+		if (found) {
+			return foundValue;
+		}
+		size++;
+		return noEntryValue;
+	}
+
+	public long remove(long key) {
+		if (!delete(root, 1, key)) {
+			return noEntryValue;
+		}
+		size--;
+		if (height > 1 && root.length == 0) {
+			root = ((InnerNode) root).childs[0];
+			height--;
+		}
+		return foundValue;
+	}
+
+	public long getMinKey() {
+		Node node = root;
+		for (int depth = 1; depth < height; ++depth) {
+			node = ((InnerNode) node).childs[0];
+		}
+		if (node.length == 0) {
+			throw new NoSuchElementException();
+		}
+		return node.keys[0];
+	}
+
+	public long getMaxKey() {
+		Node node = root;
+		for (int depth = 1; depth < height; ++depth) {
+			node = ((InnerNode) node).childs[node.length];
+		}
+		if (node.length == 0) {
+			throw new NoSuchElementException();
+		}
+		return node.keys[node.length - 1];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void clear() {
+		this.root = new LeafNode();
+		this.height = 1;
+		this.size = 0;
+	}
+
+	/*
+	 * Insert goes to the extra slot, overflow node is split on the way up
+	 */
+
+	private Node insert(Node node, int depth, long key, long value) {
+		if (depth == height) {
+			LeafNode leaf = (LeafNode) node;
+			int index = leaf.search(key);
+			if (index >= 0) {
+				found = true;
+				foundValue = leaf.values[index];
+				leaf.values[index] = value;
+				return null;
+			}
+			leaf.insert(-(index + 1), key, value);
+			if (leaf.length <= 2 * branchingFactor) {
+				return null;
+			}
+			LeafNode greater = new LeafNode();
+			int mid = leaf.length / 2;
+			greater.length = leaf.length - mid;
+			System.arraycopy(leaf.keys, mid, greater.keys, 0, greater.length);
+			System.arraycopy(leaf.values, mid, greater.values, 0, greater.length);
+			leaf.length = mid;
+			greater.next = leaf.next;
+			leaf.next = greater;
+			splitKey = greater.keys[0];
+			return greater;
+		}
+
+		InnerNode inner = (InnerNode) node;
+		int childIndex = inner.childIndex(key);
+		Node split = insert(inner.childs[childIndex], depth + 1, key, value);
+		if (split == null) {
+			return null;
+		}
+		inner.insert(childIndex, splitKey, split);
+		if (inner.length <= 2 * branchingFactor) {
+			return null;
+		}
+
+		/*
+		 * Middle key moves up
+		 */
+
+		InnerNode greater = new InnerNode();
+		int mid = inner.length / 2;
+		splitKey = inner.keys[mid];
+		greater.length = inner.length - mid - 1;
+		System.arraycopy(inner.keys, mid + 1, greater.keys, 0, greater.length);
+		System.arraycopy(inner.childs, mid + 1, greater.childs, 0, greater.length + 1);
+		Arrays.fill(inner.childs, mid + 1, inner.length + 1, null);
+		inner.length = mid;
+		return greater;
+	}
+
+	private boolean delete(Node node, int depth, long key) {
+		if (depth == height) {
+			LeafNode leaf = (LeafNode) node;
+			int index = leaf.search(key);
+			if (index < 0) {
+				return false;
+			}
+			foundValue = leaf.values[index];
+			leaf.delete(index);
+			return true;
+		}
+
+		InnerNode inner = (InnerNode) node;
+		int childIndex = inner.childIndex(key);
+		Node child = inner.childs[childIndex];
+		if (!delete(child, depth + 1, key)) {
+			return false;
+		}
+		if (child.length < branchingFactor) {
+			balance(inner, childIndex, depth + 1 == height);
+		}
+		return true;
+	}
+
+	/*
+	 * Underflow child borrows from the sibling with extra keys or joins with it
+	 */
+
+	private void balance(InnerNode parent, int childIndex, boolean leaf) {
+		if (childIndex > 0 && parent.childs[childIndex - 1].length > branchingFactor) {
+			rotateClockwise(parent, childIndex - 1, leaf);
+		}
+		else if (childIndex < parent.length && parent.childs[childIndex + 1].length > branchingFactor) {
+			rotateCounterclockwise(parent, childIndex, leaf);
+		}
+		else if (childIndex > 0) {
+			join(parent, childIndex - 1, leaf);
+		}
+		else {
+			join(parent, childIndex, leaf);
+		}
+	}
+
+	private void rotateClockwise(InnerNode parent, int index, boolean leaf) {
+		if (leaf) {
+			LeafNode lesser = (LeafNode) parent.childs[index];
+			LeafNode greater = (LeafNode) parent.childs[index + 1];
+			int last = lesser.length - 1;
+			greater.insert(0, lesser.keys[last], lesser.values[last]);
+			lesser.length--;
+			parent.keys[index] = greater.keys[0];
+		}
+		else {
+			InnerNode lesser = (InnerNode) parent.childs[index];
+			InnerNode greater = (InnerNode) parent.childs[index + 1];
+			System.arraycopy(greater.keys, 0, greater.keys, 1, greater.length);
+			System.arraycopy(greater.childs, 0, greater.childs, 1, greater.length + 1);
+			greater.keys[0] = parent.keys[index];
+			greater.childs[0] = lesser.childs[lesser.length];
+			greater.length++;
+			parent.keys[index] = lesser.keys[lesser.length - 1];
+			lesser.childs[lesser.length] = null;
+			lesser.length--;
+		}
+	}
+
+	private void rotateCounterclockwise(InnerNode parent, int index, boolean leaf) {
+		if (leaf) {
+			LeafNode lesser = (LeafNode) parent.childs[index];
+			LeafNode greater = (LeafNode) parent.childs[index + 1];
+			lesser.insert(lesser.length, greater.keys[0], greater.values[0]);
+			greater.delete(0);
+			parent.keys[index] = greater.keys[0];
+		}
+		else {
+			InnerNode lesser = (InnerNode) parent.childs[index];
+			InnerNode greater = (InnerNode) parent.childs[index + 1];
+			lesser.keys[lesser.length] = parent.keys[index];
+			lesser.childs[lesser.length + 1] = greater.childs[0];
+			lesser.length++;
+			parent.keys[index] = greater.keys[0];
+			System.arraycopy(greater.keys, 1, greater.keys, 0, greater.length - 1);
+			System.arraycopy(greater.childs, 1, greater.childs, 0, greater.length);
+			greater.childs[greater.length] = null;
+			greater.length--;
+		}
+	}
+
+	private void join(InnerNode parent, int index, boolean leaf) {
+		if (leaf) {
+			LeafNode lesser = (LeafNode) parent.childs[index];
+			LeafNode greater = (LeafNode) parent.childs[index + 1];
+			System.arraycopy(greater.keys, 0, lesser.keys, lesser.length, greater.length);
+			System.arraycopy(greater.values, 0, lesser.values, lesser.length, greater.length);
+			lesser.length += greater.length;
+			lesser.next = greater.next;
+		}
+		else {
+			InnerNode lesser = (InnerNode) parent.childs[index];
+			InnerNode greater = (InnerNode) parent.childs[index + 1];
+			lesser.keys[lesser.length] = parent.keys[index];
+			System.arraycopy(greater.keys, 0, lesser.keys, lesser.length + 1, greater.length);
+			System.arraycopy(greater.childs, 0, lesser.childs, lesser.length + 1, greater.length + 1);
+			lesser.length += 1 + greater.length;
+		}
+		parent.delete(index);
+		parent.childs[parent.length + 1] = null;
+	}
+
+	/*
+	 * Verify
+	 */
+
+	public void verify() {
+		LeafNode[] lastLeaf = new LeafNode[1];
+		int count = verify(root, 1, lastLeaf);
+		if (count != size) {
+			throw new IllegalStateException("wrong size " + size + ", actual " + count);
+		}
+		if (lastLeaf[0].next != null) {
+			throw new IllegalStateException("last leaf has a next " + lastLeaf[0]);
+		}
+	}
+
+	private int verify(Node node, int depth, LeafNode[] lastLeaf) {
+		if (node.length > 2 * branchingFactor) {
+			throw new IllegalStateException("too big length " + node.length + " in Node " + node);
+		}
+		if (node != root && node.length < branchingFactor) {
+			throw new IllegalStateException("too low length " + node.length + " in Node " + node);
+		}
+		for (int i = 1; i < node.length; ++i) {
+			if (node.keys[i - 1] >= node.keys[i]) {
+				throw new IllegalStateException("Node " + node + " has unordered keys at " + i);
+			}
+		}
+		if (depth == height) {
+			LeafNode leaf = (LeafNode) node;
+			if (lastLeaf[0] != null && lastLeaf[0].next != leaf) {
+				throw new IllegalStateException("wrong next of the leaf " + lastLeaf[0]);
+			}
+			lastLeaf[0] = leaf;
+			return leaf.length;
+		}
+		InnerNode inner = (InnerNode) node;
+		int total = 0;
+		for (int i = 0; i <= inner.length; ++i) {
+			Node child = inner.childs[i];
+			if (i > 0 && child.keys[0] < inner.keys[i - 1]) {
+				throw new IllegalStateException("invalid key in greaterChild " + child.keys[0] + ", Node = " + inner);
+			}
+			if (i < inner.length && child.keys[child.length - 1] >= inner.keys[i]) {
+				throw new IllegalStateException("invalid key in lesserChild " + child.keys[child.length - 1] + ", Node = " + inner);
+			}
+			total += verify(child, depth + 1, lastLeaf);
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,96 @@
+package alt.termos.emulation;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrimitiveBTreeConsistencyTest {
+
+	private static Random random = new Random(5);
+
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+
+	@Test
+	public void testLongLong() {
+
+		TreeMap<Long, Long> controlMap = new TreeMap<Long, Long>();
+		LongLongBTree testMap = new LongLongBTree(3, -1L);
+
+		for (int i = 0; i != 1000000; ++i) {
+			long key = random.nextInt(1000);
+			Long controlValue = null;
+			switch(getRandomOperation()) {
+			case GET:
+				controlValue = controlMap.get(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.get(key));
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, (long) i);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.put(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1L, testMap.remove(key));
+				break;
+			}
+			if (i % 1000 == 0) {
+				testMap.verify();
+			}
+		}
+
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey().longValue(), testMap.getMinKey());
+		Assert.assertEquals(controlMap.lastKey().longValue(), testMap.getMaxKey());
+	}
+
+	@Test
+	public void testIntInt() {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		IntIntBTree testMap = new IntIntBTree(3, -1);
+
+		for (int i = 0; i != 1000000; ++i) {
+			int key = random.nextInt(1000);
+			Integer controlValue = null;
+			switch(getRandomOperation()) {
+			case GET:
+				controlValue = controlMap.get(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.get(key));
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.put(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				Assert.assertEquals(controlValue != null ? controlValue : -1, testMap.remove(key));
+				break;
+			}
+			if (i % 1000 == 0) {
+				testMap.verify();
+			}
+		}
+
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+
+		while (!controlMap.isEmpty()) {
+			int key = controlMap.pollFirstEntry().getKey();
+			Assert.assertTrue(testMap.remove(key) != -1);
+		}
+		testMap.verify();
+		Assert.assertEquals(1, testMap.getHeight());
+		Assert.assertTrue(testMap.isEmpty());
+	}
+
+	private Operation getRandomOperation() {
+		int ordinal = random.nextInt(3);
+		return Operation.values()[ordinal];
+	}
+
+}
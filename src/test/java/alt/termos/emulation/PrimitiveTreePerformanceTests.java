@@ -0,0 +1,186 @@
+package alt.termos.emulation;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alt.termos.core.FixedSerializers;
+import alt.termos.core.MetaPage;
+import alt.termos.core.PagedBPlusTree;
+import alt.termos.core.PagedIntIntBPlusTree;
+import alt.termos.core.PagedLongLongBPlusTree;
+import alt.termos.core.PagedMemoryManager;
+import alt.termos.util.MapFileMode;
+import alt.termos.util.SegmentedMemoryMappedFile;
+
+/**
+ * Boxed trees against the primitive-specialized ones on the heap and in the paged file
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class PrimitiveTreePerformanceTests {
+
+	public static final int N = 10000000;
+
+	public static final String testFileName = "primitive.mmf";
+	public static final long DISK_PAGE_SIZE = 4096L;
+	public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final long MAX_SIZE = 64L * SEGMENT_SIZE;
+
+	@Test
+	public void performanceSequentialTest() throws Exception {
+		System.out.println("Sequential Test");
+		run(1, 0);
+	}
+
+	@Test
+	public void performanceRandomTest() throws Exception {
+		Random random = new Random();
+		int a = random.nextInt() | 1;
+		int b = random.nextInt();
+		System.out.println("Random Test");
+		run(a, b);
+	}
+
+	/*
+	 * Keys are i * a + b, odd a makes them unique in int
+	 */
+
+	private void run(int a, int b) throws Exception {
+
+		pause();
+		SimpleBTree<Integer, Integer> btree = new SimpleBTree<Integer, Integer>(Integer.class, Integer.class, 64, Comparators.INTEGER);
+		long t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			btree.put(i * a + b, i);
+		}
+		System.out.println("boxed heap btree puts = " + (System.currentTimeMillis() - t0));
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			Assert.assertEquals(i, btree.get(i * a + b).intValue());
+		}
+		System.out.println("boxed heap btree gets = " + (System.currentTimeMillis() - t0));
+		btree.clear();
+		btree = null;
+
+		pause();
+		IntIntBTree intTree = new IntIntBTree(64, -1);
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			intTree.put(i * a + b, i);
+		}
+		System.out.println("int-int heap btree puts = " + (System.currentTimeMillis() - t0));
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			Assert.assertEquals(i, intTree.get(i * a + b));
+		}
+		System.out.println("int-int heap btree gets = " + (System.currentTimeMillis() - t0));
+		intTree.clear();
+		intTree = null;
+
+		pause();
+		LongLongBTree longTree = new LongLongBTree(64, -1L);
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			longTree.put(i * a + b, i);
+		}
+		System.out.println("long-long heap btree puts = " + (System.currentTimeMillis() - t0));
+		t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			Assert.assertEquals(i, longTree.get(i * a + b));
+		}
+		System.out.println("long-long heap btree gets = " + (System.currentTimeMillis() - t0));
+		longTree.clear();
+		longTree = null;
+
+		SegmentedMemoryMappedFile smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedBPlusTree<Long, Long> pagedTree = new PagedBPlusTree<Long, Long>(pmm, FixedSerializers.LONG, FixedSerializers.LONG);
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				pagedTree.put((long) (i * a + b), (long) i);
+			}
+			System.out.println("boxed paged btree puts = " + (System.currentTimeMillis() - t0));
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				Assert.assertEquals(i, pagedTree.get((long) (i * a + b)).longValue());
+			}
+			System.out.println("boxed paged btree gets = " + (System.currentTimeMillis() - t0));
+			pagedTree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+
+		smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedIntIntBPlusTree pagedTree = new PagedIntIntBPlusTree(pmm, -1);
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				pagedTree.put(i * a + b, i);
+			}
+			System.out.println("int-int paged btree puts = " + (System.currentTimeMillis() - t0));
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				Assert.assertEquals(i, pagedTree.get(i * a + b));
+			}
+			System.out.println("int-int paged btree gets = " + (System.currentTimeMillis() - t0));
+			pagedTree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+
+		smf = newFile();
+		try {
+			PagedMemoryManager pmm = newManager(smf);
+			PagedLongLongBPlusTree pagedTree = new PagedLongLongBPlusTree(pmm, -1L);
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				pagedTree.put(i * a + b, i);
+			}
+			System.out.println("long-long paged btree puts = " + (System.currentTimeMillis() - t0));
+			t0 = System.currentTimeMillis();
+			for (int i = 0; i != N; ++i) {
+				Assert.assertEquals(i, pagedTree.get(i * a + b));
+			}
+			System.out.println("long-long paged btree gets = " + (System.currentTimeMillis() - t0));
+			pagedTree.close();
+			pmm.close();
+		}
+		finally {
+			closeFile(smf);
+		}
+	}
+
+	private SegmentedMemoryMappedFile newFile() throws Exception {
+		pause();
+		new File(testFileName).delete();
+		return new SegmentedMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, SEGMENT_SIZE, SEGMENT_SIZE, MAX_SIZE);
+	}
+
+	private PagedMemoryManager newManager(SegmentedMemoryMappedFile smf) {
+		MetaPage metaPage = new MetaPage(smf);
+		metaPage.formatNew(DISK_PAGE_SIZE);
+		return new PagedMemoryManager(metaPage, smf);
+	}
+
+	private void closeFile(SegmentedMemoryMappedFile smf) {
+		smf.close();
+		new File(testFileName).delete();
+	}
+
+	private void pause() throws InterruptedException {
+		System.gc();
+		Thread.sleep(1000);
+	}
+
+}
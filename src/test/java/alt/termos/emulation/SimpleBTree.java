@@ -1,8 +1,12 @@
 package alt.termos.emulation;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Simple implementation of the B-Tree
@@ -24,6 +28,13 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 	private int size;
 	private V nullKeyValue;
 	
+	/*
+	 * Position of the next entry and number of added entries of the current putAll
+	 */
+	
+	private int batchPosition;
+	private int batchAdded;
+	
 	public SimpleBTree(Class<K> keyClass, Class<V> valueClass, int branchingFactor, Comparator<? super K> comparator) {
 		notNull(keyClass, "keyClass");
 		notNull(valueClass, "valueClass");
@@ -57,8 +68,16 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 		
 		public abstract V get(K key);
 		
+		protected abstract void getAll(List<? extends K> batchKeys, int[] order, int from, int to, List<V> result);
+		
 		public abstract Object put(K key, V value); 
 		
+		/**
+		 * Puts entries of the batch from batchPosition to the bound, returns after the split of the node
+		 */
+		
+		protected abstract Split putAll(List<K> batchKeys, List<V> batchValues, int to);
+		
 		public abstract V remove(K key);
 
 		protected abstract K getFirstKey();
@@ -259,6 +278,64 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 			index = -(index + 1);
 			return this.childs[index].get(key);
 		}
+		
+		@Override
+		protected void getAll(List<? extends K> batchKeys, int[] order, int from, int to, List<V> result) {
+			int i = from;
+			while (i != to) {
+				int index = search(batchKeys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i++], values[index]);
+					continue;
+				}
+				index = -(index + 1);
+				int next = i + 1;
+				if (index < length) {
+					K bound = keys[index];
+					while (next != to && comparator.compare(batchKeys.get(order[next]), bound) < 0) {
+						next++;
+					}
+				}
+				else {
+					next = to;
+				}
+				this.childs[index].getAll(batchKeys, order, i, next, result);
+				i = next;
+			}
+		}
+
+		@Override
+		protected Split putAll(List<K> batchKeys, List<V> batchValues, int to) {
+			while (batchPosition != to) {
+				int index = search(batchKeys.get(batchPosition));
+				if (index >= 0) {
+					replace(index, batchValues.get(batchPosition++));
+					continue;
+				}
+				index = -(index + 1);
+				int next = batchPosition + 1;
+				if (index < length) {
+					K bound = keys[index];
+					while (next != to && comparator.compare(batchKeys.get(next), bound) < 0) {
+						next++;
+					}
+				}
+				else {
+					next = to;
+				}
+				Split split = this.childs[index].putAll(batchKeys, batchValues, next);
+				if (split != null) {
+					if (length < keys.length) {
+						insertChild(index+1, split.greater);
+						insert(index, split.key, split.value);
+					}
+					else {
+						return split(index, split);
+					}
+				}
+			}
+			return null;
+		}
 
 		@Override
 		@SuppressWarnings("unchecked")
@@ -455,7 +532,7 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 			return null;
 		}
 
-		protected Object split(int index, Split split) {
+		protected Split split(int index, Split split) {
 			
 			if (index == branchingFactor) {
 
@@ -596,6 +673,16 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 			return null;
 		}
 		
+		@Override
+		protected void getAll(List<? extends K> batchKeys, int[] order, int from, int to, List<V> result) {
+			for (int i = from; i != to; ++i) {
+				int index = search(batchKeys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i], values[index]);
+				}
+			}
+		}
+		
 		@Override
 		public Object put(K key, V value) {
 			
@@ -619,6 +706,23 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 			return split(index, key, value);
 		}
 
+		@SuppressWarnings("unchecked")
+		@Override
+		protected Split putAll(List<K> batchKeys, List<V> batchValues, int to) {
+			while (batchPosition != to) {
+				Object result = put(batchKeys.get(batchPosition), batchValues.get(batchPosition));
+				batchPosition++;
+				if (result == null) {
+					batchAdded++;
+				}
+				else if (result instanceof SimpleBTree.Split) {
+					batchAdded++;
+					return (Split) result;
+				}
+			}
+			return null;
+		}
+
 		@Override
 		public V remove(K key) {
 			
@@ -754,6 +858,53 @@ public final class SimpleBTree<K, V> implements BasicTree<K, V> {
 		}
 	}
 	
+	public List<V> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		int[] order = Batches.sortedOrder(keys, comparator);
+		List<V> result = new ArrayList<V>(Collections.<V>nCopies(order.length, null));
+		int from = 0;
+		while (from != order.length && keys.get(order[from]) == null) {
+			result.set(order[from++], this.nullKeyValue);
+		}
+		if (from != order.length) {
+			root.getAll(keys, order, from, order.length, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Inserts the sorted batch in one walk, the split of the root grows the tree and the walk continues
+	 * from the new root
+	 */
+	
+	public void putAll(Map<? extends K, ? extends V> entries) {
+		notNull(entries, "entries");
+		List<K> keys = new ArrayList<K>(entries.keySet());
+		List<K> batchKeys = new ArrayList<K>(keys.size());
+		List<V> batchValues = new ArrayList<V>(keys.size());
+		for (int index : Batches.sortedOrder(keys, comparator)) {
+			K key = keys.get(index);
+			V value = entries.get(key);
+			if (key == null || value == null) {
+				put(key, value);
+			}
+			else {
+				batchKeys.add(key);
+				batchValues.add(value);
+			}
+		}
+		
+		this.batchPosition = 0;
+		this.batchAdded = 0;
+		while (this.batchPosition != batchKeys.size()) {
+			Split split = root.putAll(batchKeys, batchValues, batchKeys.size());
+			if (split != null) {
+				this.root = new InnerNode(root, split.key, split.value, split.greater);
+			}
+		}
+		this.size += this.batchAdded;
+	}
+	
 	public V remove(K key) {
 		if (key == null) {
 			return updateNullKeyValue(null);
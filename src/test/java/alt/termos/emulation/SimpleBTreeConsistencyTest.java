@@ -1,5 +1,7 @@
 package alt.termos.emulation;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
@@ -75,4 +77,42 @@ public class SimpleBTreeConsistencyTest {
 		return Operation.values()[ordinal];
 	}
 	
+	/*
+	 * The first batch grows the tree several levels at once, null values remove keys
+	 */
+	
+	@Test
+	public void testBatch() {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		SimpleBTree<Integer, Integer> testMap = new SimpleBTree<Integer, Integer>(Integer.class, Integer.class, 2, Comparators.INTEGER);
+		
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(i == 0 ? 5000 : 200);
+			Map<Integer, Integer> batch = new HashMap<Integer, Integer>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.put(key, value);
+			}
+			testMap.putAll(batch);
+			for (Map.Entry<Integer, Integer> entry : batch.entrySet()) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+		
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), testMap.get(entry.getKey()));
+		}
+		
+	}
+	
+
 }
@@ -0,0 +1,786 @@
+package alt.termos.emulation;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Online version of the IdealTree, multiway search tree that keeps hot entries close to the root.
+ *
+ * Every successful get increments the counter of the entry and promotes it to the parent node:
+ * the child is split by the entry, the entry goes to the parent between the two halves.
+ * If the parent is full, its coldest entry is demoted to the child when it is colder than the half of the promoted one.
+ * Insert goes to the first node with the free slot on the path, so the tree is not balanced,
+ * a subtree that is too high for its size is rebuilt balanced (scapegoat rule).
+ *
+ * @author Albert Shift
+ *
+ * @param <K>
+ * @param <V>
+ */
+
+public final class ThermalTree<K, V> implements Tree<K, V, CounterEntry<K, V>> {
+
+	private final int branchingFactor;
+	private final int maxLength;
+	private final Comparator<? super K> keyComparator;
+
+	private Node root;
+	private int size;
+	private int batchPosition;
+
+	private long promotions;
+	private long demotions;
+	private long rebuilds;
+
+	private int MAX_CACHE_SIZE = 1;
+	private int MEM_LOAD_TIME = 0;
+	private int DISK_LOAD_TIME = 1000;
+
+
+	private Map<Node, Integer> cache = new HashMap<Node, Integer>();
+	private long pageAccess;
+
+	public void access(Node node) {
+		Integer hits = cache.get(node);
+		if (hits != null) {
+			cache.put(node, hits.intValue() + 1);
+			pageAccess += MEM_LOAD_TIME;
+			return;
+		}
+
+		if (cache.size() == MAX_CACHE_SIZE) {
+
+			// evict
+			Map.Entry<Node, Integer> min = null;
+			for (Map.Entry<Node, Integer> e : cache.entrySet()) {
+				if (min == null) {
+					min = e;
+				}
+				else if (min.getValue().intValue()  > e.getValue().intValue()) {
+					min = e;
+				}
+			}
+
+			cache.remove(min.getKey());
+		}
+
+		cache.put(node, 1);
+		pageAccess += DISK_LOAD_TIME;
+
+	}
+
+	public ThermalTree(int branchingFactor, final Comparator<? super K> keyComparator) {
+		notNull(keyComparator, "keyComparator");
+		if (branchingFactor < 2) {
+			throw new IllegalArgumentException("illegal branchingFactor " + branchingFactor);
+		}
+		this.branchingFactor = branchingFactor;
+		this.maxLength = 2 * branchingFactor;
+		this.keyComparator = keyComparator;
+		this.root = new Node();
+	}
+
+	public static <K, V> ThermalTree<K, V> newInstance(int branchingFactor, final Comparator<? super K> keyComparator) {
+		return new ThermalTree<K, V>(branchingFactor, keyComparator);
+	}
+
+	private void notNull(Object obj, String argumentName) {
+		if (obj == null) {
+			throw new IllegalArgumentException("empty argument " + argumentName);
+		}
+	}
+
+	/*
+	 * Child i keeps keys between entries i-1 and i, any child can be null
+	 */
+
+	public final class Node {
+
+		@SuppressWarnings({ "unchecked" })
+		private final CounterEntry<K, V>[] entries = (CounterEntry<K, V>[]) Array.newInstance(CounterEntry.class, maxLength);
+
+		@SuppressWarnings({ "unchecked" })
+		private final Node[] childs = (Node[]) Array.newInstance(Node.class, maxLength + 1);
+
+		private int length;
+
+		protected int search(K key) {
+			int low = 0;
+			int high = length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = keyComparator.compare(entries[mid].getKey(), key);
+				if (cmp < 0) {
+					low = mid + 1;
+				}
+				else if (cmp > 0) {
+					high = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		/**
+		 * Entry replaces the child at the index, lesser and greater are children around the entry
+		 */
+
+		protected void insert(int index, CounterEntry<K, V> entry, Node lesser, Node greater) {
+			if (index < length) {
+				System.arraycopy(entries, index, entries, index + 1, length - index);
+				System.arraycopy(childs, index + 1, childs, index + 2, length - index);
+			}
+			entries[index] = entry;
+			childs[index] = lesser;
+			childs[index + 1] = greater;
+			length++;
+		}
+
+		/**
+		 * Removes the entry and one of the children around it
+		 */
+
+		protected void delete(int index, int childIndex) {
+			System.arraycopy(entries, index + 1, entries, index, length - index - 1);
+			System.arraycopy(childs, childIndex + 1, childs, childIndex, length - childIndex);
+			length--;
+			entries[length] = null;
+			childs[length + 1] = null;
+		}
+
+		/**
+		 * Entries after the index move to the new node, entry at the index is dropped
+		 */
+
+		protected Node splitAt(int index) {
+			Node greater = new Node();
+			greater.length = length - index - 1;
+			System.arraycopy(entries, index + 1, greater.entries, 0, greater.length);
+			System.arraycopy(childs, index + 1, greater.childs, 0, greater.length + 1);
+			for (int i = index; i != length; ++i) {
+				entries[i] = null;
+				childs[i + 1] = null;
+			}
+			length = index;
+			return greater;
+		}
+
+		protected int count() {
+			int count = length;
+			for (int i = 0; i <= length; ++i) {
+				if (childs[i] != null) {
+					count += childs[i].count();
+				}
+			}
+			return count;
+		}
+
+		protected int getPages() {
+			int pages = 1;
+			for (int i = 0; i <= length; ++i) {
+				if (childs[i] != null) {
+					pages += childs[i].getPages();
+				}
+			}
+			return pages;
+		}
+
+		protected void collect(List<CounterEntry<K, V>> list) {
+			for (int i = 0; i != length; ++i) {
+				if (childs[i] != null) {
+					childs[i].collect(list);
+				}
+				list.add(entries[i]);
+			}
+			if (childs[length] != null) {
+				childs[length].collect(list);
+			}
+		}
+
+		protected void decay() {
+			for (int i = 0; i != length; ++i) {
+				entries[i].setCounter(entries[i].getCounter() >>> 1);
+			}
+			for (int i = 0; i <= length; ++i) {
+				if (childs[i] != null) {
+					childs[i].decay();
+				}
+			}
+		}
+
+		protected int verify(CounterEntry<K, V> low, CounterEntry<K, V> high) {
+			if (length == 0 && this != root) {
+				throw new IllegalStateException("empty Node " + this);
+			}
+			for (int i = 0; i != length; ++i) {
+				K key = entries[i].getKey();
+				if (i > 0 && keyComparator.compare(entries[i - 1].getKey(), key) >= 0) {
+					throw new IllegalStateException("Node " + this + " has unordered keys at " + i);
+				}
+				if (low != null && keyComparator.compare(low.getKey(), key) >= 0) {
+					throw new IllegalStateException("key " + key + " is less than " + low.getKey() + " in Node " + this);
+				}
+				if (high != null && keyComparator.compare(key, high.getKey()) >= 0) {
+					throw new IllegalStateException("key " + key + " is greater than " + high.getKey() + " in Node " + this);
+				}
+			}
+			for (int i = length + 1; i != childs.length; ++i) {
+				if (childs[i] != null) {
+					throw new IllegalStateException("child after the length in Node " + this);
+				}
+			}
+			int count = length;
+			for (int i = 0; i <= length; ++i) {
+				if (childs[i] != null) {
+					count += childs[i].verify(i > 0 ? entries[i - 1] : low, i < length ? entries[i] : high);
+				}
+			}
+			return count;
+		}
+
+		protected void print(String prefix) {
+			System.out.println(prefix + "Node " + SystemUtil.getHexAddress(this) + ", length=" + length);
+			for (int i = 0; i != length; ++i) {
+				if (childs[i] != null) {
+					childs[i].print(prefix + "  ");
+				}
+				System.out.println(prefix + "  " + entries[i]);
+			}
+			if (childs[length] != null) {
+				childs[length].print(prefix + "  ");
+			}
+		}
+
+	}
+
+	@Override
+	public CounterEntry<K, V> get(K key) {
+		notNull(key, "key");
+		Node parent = null;
+		Node node = root;
+		while (node != null) {
+			access(node);
+			int index = node.search(key);
+			if (index >= 0) {
+				CounterEntry<K, V> entry = node.entries[index];
+				entry.increment();
+				if (parent != null) {
+					promote(parent, node, index);
+				}
+				return entry;
+			}
+			parent = node;
+			node = node.childs[-(index + 1)];
+		}
+		return null;
+	}
+
+	@Override
+	public CounterEntry<K, V> put(CounterEntry<K, V> entry) {
+		notNull(entry, "entry");
+		notNull(entry.getKey(), "key");
+		if (entry.getValue() == null) {
+			return remove(entry.getKey());
+		}
+
+		List<Node> path = new ArrayList<Node>();
+		Node node = root;
+		for (;;) {
+			int index = node.search(entry.getKey());
+			if (index >= 0) {
+				CounterEntry<K, V> oldEntry = node.entries[index];
+				node.entries[index] = entry;
+				return oldEntry;
+			}
+			index = -(index + 1);
+			Node child = node.childs[index];
+			if (child == null) {
+				path.add(node);
+				if (node.length < maxLength) {
+					node.insert(index, entry, null, null);
+				}
+				else {
+					Node newNode = new Node();
+					newNode.insert(0, entry, null, null);
+					node.childs[index] = newNode;
+					path.add(newNode);
+				}
+				break;
+			}
+			path.add(node);
+			node = child;
+		}
+
+		this.size++;
+		if (path.size() > getMaxHeight(size)) {
+			rebuildScapegoat(path);
+		}
+		return null;
+	}
+
+	/**
+	 * Keys are looked up one by one in the sorted order, every get promotes the entry 
+	 * and changes the paths of the next keys, so the walk is not shared
+	 */
+
+	@Override
+	public List<CounterEntry<K, V>> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		List<CounterEntry<K, V>> result = new ArrayList<CounterEntry<K, V>>(Collections.<CounterEntry<K, V>>nCopies(keys.size(), null));
+		for (int index : Batches.sortedOrder(keys, keyComparator)) {
+			result.set(index, get(keys.get(index)));
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts the sorted batch in one walk, entries under one child go down together.
+	 * Rebuild of the scapegoat changes the nodes of the walk, so the rest of the batch starts from the root
+	 */
+
+	@Override
+	public void putAll(Collection<? extends CounterEntry<K, V>> entries) {
+		notNull(entries, "entries");
+		List<CounterEntry<K, V>> list = new ArrayList<CounterEntry<K, V>>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (CounterEntry<K, V> entry : list) {
+			notNull(entry, "entry");
+			keys.add(entry.getKey());
+		}
+		List<CounterEntry<K, V>> batch = new ArrayList<CounterEntry<K, V>>(list.size());
+		for (int index : Batches.uniqueOrder(keys, keyComparator)) {
+			CounterEntry<K, V> entry = list.get(index);
+			if (entry.getKey() == null || entry.getValue() == null) {
+				put(entry);
+			}
+			else {
+				batch.add(entry);
+			}
+		}
+
+		this.batchPosition = 0;
+		while (this.batchPosition != batch.size()) {
+			insertBatch(batch, batch.size(), new ArrayList<Node>(), root);
+		}
+	}
+
+	/**
+	 * Puts entries of the batch from batchPosition to the bound in the subtree of the node
+	 *
+	 * @return false if the scapegoat was rebuilt and the walk must restart from the root
+	 */
+
+	private boolean insertBatch(List<CounterEntry<K, V>> batch, int to, List<Node> path, Node node) {
+		path.add(node);
+		while (this.batchPosition != to) {
+			CounterEntry<K, V> entry = batch.get(this.batchPosition);
+			int index = node.search(entry.getKey());
+			if (index >= 0) {
+				node.entries[index] = entry;
+				this.batchPosition++;
+				continue;
+			}
+			index = -(index + 1);
+			Node child = node.childs[index];
+			if (child == null) {
+				this.batchPosition++;
+				this.size++;
+				if (node.length < maxLength) {
+					node.insert(index, entry, null, null);
+					if (path.size() > getMaxHeight(size)) {
+						rebuildScapegoat(path);
+						return false;
+					}
+					continue;
+				}
+				Node newNode = new Node();
+				newNode.insert(0, entry, null, null);
+				node.childs[index] = newNode;
+				path.add(newNode);
+				if (path.size() > getMaxHeight(size)) {
+					rebuildScapegoat(path);
+					return false;
+				}
+				path.remove(path.size() - 1);
+				continue;
+			}
+			int next = this.batchPosition + 1;
+			if (index < node.length) {
+				K bound = node.entries[index].getKey();
+				while (next != to && keyComparator.compare(batch.get(next).getKey(), bound) < 0) {
+					next++;
+				}
+			}
+			else {
+				next = to;
+			}
+			if (!insertBatch(batch, next, path, child)) {
+				return false;
+			}
+		}
+		path.remove(path.size() - 1);
+		return true;
+	}
+
+	@Override
+	public CounterEntry<K, V> remove(K key) {
+		notNull(key, "key");
+		Node parent = null;
+		int parentIndex = -1;
+		Node node = root;
+		while (node != null) {
+			int index = node.search(key);
+			if (index >= 0) {
+				CounterEntry<K, V> entry = node.entries[index];
+				delete(parent, parentIndex, node, index);
+				this.size--;
+				return entry;
+			}
+			parent = node;
+			parentIndex = -(index + 1);
+			node = node.childs[parentIndex];
+		}
+		return null;
+	}
+
+	@Override
+	public CounterEntry<K, V> getFirstEntry() {
+		if (root.length == 0) {
+			return null;
+		}
+		Node node = root;
+		while (node.childs[0] != null) {
+			node = node.childs[0];
+		}
+		return node.entries[0];
+	}
+
+	@Override
+	public CounterEntry<K, V> getNextEntry(K key) {
+		if (key == null) {
+			return getFirstEntry();
+		}
+		CounterEntry<K, V> candidate = null;
+		Node node = root;
+		while (node != null) {
+			int index = node.search(key);
+			if (index >= 0) {
+				Node child = node.childs[index + 1];
+				if (child != null) {
+					while (child.childs[0] != null) {
+						child = child.childs[0];
+					}
+					return child.entries[0];
+				}
+				return index + 1 < node.length ? node.entries[index + 1] : candidate;
+			}
+			index = -(index + 1);
+			if (index < node.length) {
+				candidate = node.entries[index];
+			}
+			node = node.childs[index];
+		}
+		return candidate;
+	}
+
+	@Override
+	public CounterEntry<K, V> getLastEntry() {
+		if (root.length == 0) {
+			return null;
+		}
+		Node node = root;
+		while (node.childs[node.length] != null) {
+			node = node.childs[node.length];
+		}
+		return node.entries[node.length - 1];
+	}
+
+	@Override
+	public CounterEntry<K, V> removeFirst() {
+		CounterEntry<K, V> entry = getFirstEntry();
+		return entry != null ? remove(entry.getKey()) : null;
+	}
+
+	@Override
+	public CounterEntry<K, V> removeLast() {
+		CounterEntry<K, V> entry = getLastEntry();
+		return entry != null ? remove(entry.getKey()) : null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		this.root = new Node();
+		this.size = 0;
+		this.cache.clear();
+	}
+
+	@Override
+	public void verify() {
+		int count = root.verify(null, null);
+		if (count != size) {
+			throw new IllegalStateException("wrong size " + size + ", actual " + count);
+		}
+	}
+
+	/**
+	 * Halves all counters, so the old traffic does not keep entries at the top forever
+	 */
+
+	public void decay() {
+		root.decay();
+	}
+
+	public void print() {
+		root.print("");
+	}
+
+	public int getTotalPages() {
+		return root.getPages();
+	}
+
+	public void resetPageAccess() {
+		this.pageAccess = 0;
+	}
+
+	public long getPageAccess() {
+		return this.pageAccess;
+	}
+
+	public long getPromotions() {
+		return promotions;
+	}
+
+	public long getDemotions() {
+		return demotions;
+	}
+
+	public long getRebuilds() {
+		return rebuilds;
+	}
+
+	@Override
+	public Iterable<CounterEntry<K, V>> entries() {
+		return new Iterable<CounterEntry<K, V>>() {
+
+			@Override
+			public Iterator<CounterEntry<K, V>> iterator() {
+				return new Iterator<CounterEntry<K, V>>() {
+
+					private CounterEntry<K, V> nextEntry = getFirstEntry();
+
+					@Override
+					public boolean hasNext() {
+						return nextEntry != null;
+					}
+
+					@Override
+					public CounterEntry<K, V> next() {
+						CounterEntry<K, V> result = this.nextEntry;
+						this.nextEntry = getNextEntry(this.nextEntry.getKey());
+						return result;
+					}
+
+					@Override
+					public void remove() {
+						throw new IllegalStateException("unsupported operation");
+					}
+
+				};
+			}
+
+		};
+	}
+
+	/*
+	 * Promotion
+	 */
+
+	private void promote(Node parent, Node node, int index) {
+		CounterEntry<K, V> entry = node.entries[index];
+		int childIndex = -(parent.search(entry.getKey()) + 1);
+
+		if (parent.length == maxLength) {
+
+			/*
+			 * Entries around the child can not be demoted, the child moves with them
+			 */
+
+			int coldest = -1;
+			for (int i = 0; i != parent.length; ++i) {
+				if (i == childIndex - 1 || i == childIndex) {
+					continue;
+				}
+				if (coldest == -1 || parent.entries[i].getCounter() < parent.entries[coldest].getCounter()) {
+					coldest = i;
+				}
+			}
+			if (coldest == -1 || parent.entries[coldest].getCounter() * 2 >= entry.getCounter()) {
+				return;
+			}
+			demote(parent, coldest);
+			childIndex = -(parent.search(entry.getKey()) + 1);
+		}
+
+		Node greater = node.splitAt(index);
+		parent.insert(childIndex, entry, collapse(node), collapse(greater));
+		promotions++;
+	}
+
+	/*
+	 * Entry goes to the child with the free slot or to the new node between both children
+	 */
+
+	private void demote(Node parent, int index) {
+		CounterEntry<K, V> entry = parent.entries[index];
+		Node lesser = parent.childs[index];
+		Node greater = parent.childs[index + 1];
+
+		if (lesser != null && lesser.length < maxLength) {
+			lesser.insert(lesser.length, entry, lesser.childs[lesser.length], greater);
+			parent.delete(index, index + 1);
+		}
+		else if (greater != null && greater.length < maxLength) {
+			greater.insert(0, entry, lesser, greater.childs[0]);
+			parent.delete(index, index);
+		}
+		else {
+			Node node = new Node();
+			node.insert(0, entry, lesser, greater);
+			parent.delete(index, index + 1);
+			parent.childs[index] = node;
+		}
+		demotions++;
+	}
+
+	private Node collapse(Node node) {
+		return node.length == 0 ? node.childs[0] : node;
+	}
+
+	/*
+	 * Delete
+	 */
+
+	private void delete(Node parent, int parentIndex, Node node, int index) {
+		Node lesser = node.childs[index];
+		Node greater = node.childs[index + 1];
+		if (lesser != null && greater != null) {
+
+			/*
+			 * Successor has no lesser child, it replaces the entry
+			 */
+
+			Node successorParent = node;
+			int successorIndex = index + 1;
+			Node successor = greater;
+			while (successor.childs[0] != null) {
+				successorParent = successor;
+				successorIndex = 0;
+				successor = successor.childs[0];
+			}
+			node.entries[index] = successor.entries[0];
+			delete(successorParent, successorIndex, successor, 0);
+			return;
+		}
+		node.delete(index, greater == null ? index + 1 : index);
+		if (node.length == 0) {
+			if (parent == null) {
+				this.root = node.childs[0] != null ? node.childs[0] : node;
+			}
+			else {
+				parent.childs[parentIndex] = node.childs[0];
+			}
+		}
+	}
+
+	/*
+	 * Rebuild
+	 */
+
+	private int getMaxHeight(int size) {
+		int height = 0;
+		for (long capacity = 1; capacity <= size; capacity *= maxLength + 1) {
+			height++;
+		}
+		return 2 * height + 1;
+	}
+
+	/**
+	 * Finds the lowest node on the path which subtree is too high for its size and rebuilds it
+	 *
+	 * @param path - nodes from the root to the node of the new entry
+	 */
+
+	private void rebuildScapegoat(List<Node> path) {
+		for (int i = path.size() - 2; i >= 0; --i) {
+			Node node = path.get(i);
+			int height = path.size() - i;
+			if (height > getMaxHeight(node.count())) {
+				List<CounterEntry<K, V>> list = new ArrayList<CounterEntry<K, V>>();
+				node.collect(list);
+				Node rebuilt = build(list, 0, list.size());
+				if (i == 0) {
+					this.root = rebuilt;
+				}
+				else {
+					Node parent = path.get(i - 1);
+					int index = -(parent.search(list.get(0).getKey()) + 1);
+					parent.childs[index] = rebuilt;
+				}
+				rebuilds++;
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Balanced build, children get equal parts of entries between separators
+	 */
+
+	private Node build(List<CounterEntry<K, V>> list, int fromIndex, int toIndex) {
+		int n = toIndex - fromIndex;
+		if (n == 0) {
+			return null;
+		}
+		Node node = new Node();
+		if (n <= maxLength) {
+			for (int i = 0; i != n; ++i) {
+				node.entries[i] = list.get(fromIndex + i);
+			}
+			node.length = n;
+			return node;
+		}
+		int childSize = (n - maxLength) / (maxLength + 1);
+		int remainder = (n - maxLength) % (maxLength + 1);
+		int position = fromIndex;
+		for (int i = 0; i <= maxLength; ++i) {
+			int size = childSize + (i < remainder ? 1 : 0);
+			node.childs[i] = build(list, position, position + size);
+			position += size;
+			if (i < maxLength) {
+				node.entries[i] = list.get(position++);
+			}
+		}
+		node.length = maxLength;
+		return node;
+	}
+
+}
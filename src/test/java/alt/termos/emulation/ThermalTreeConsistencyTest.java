@@ -0,0 +1,124 @@
+package alt.termos.emulation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThermalTreeConsistencyTest {
+
+	private static Random random = new Random(5);
+	
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+	
+	@Test
+	public void test() {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		
+		ThermalTree<Integer, Integer> testMap = ThermalTree.newInstance(2, Comparators.INTEGER);
+		
+		for (int i = 0; i != 1000000; ++i) {
+			int key = getNextKey();
+			Integer controlValue = null;
+			Tree.Entry<Integer, Integer> testEntry = null;
+			switch(getRandomOperation()) {
+			case GET:
+				controlValue = controlMap.get(key);
+				testEntry = testMap.get(key);
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				testEntry = testMap.put(CounterEntry.newEntry(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				testEntry = testMap.remove(key);
+				break;
+			}
+			Assert.assertEquals(controlValue, testEntry != null ? testEntry.getValue() : null);
+			if (i % 100 == 0) {
+				testMap.verify();
+			}
+		}
+		
+		testMap.verify();
+		Assert.assertEquals(controlMap.size(), testMap.size());
+		Assert.assertEquals(controlMap.firstKey(), testMap.getFirstEntry().getKey());
+		Assert.assertEquals(controlMap.lastKey(), testMap.getLastEntry().getKey());
+		
+		Iterator<CounterEntry<Integer, Integer>> i = testMap.entries().iterator();
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), i.next().getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+		
+		while (!controlMap.isEmpty()) {
+			Assert.assertEquals(controlMap.pollFirstEntry().getValue(), testMap.removeFirst().getValue());
+			if (!controlMap.isEmpty()) {
+				Assert.assertEquals(controlMap.pollLastEntry().getValue(), testMap.removeLast().getValue());
+			}
+		}
+		testMap.verify();
+		Assert.assertTrue(testMap.isEmpty());
+	}
+	
+	/*
+	 * Skewed keys, hot keys are promoted and cold are demoted all the time
+	 */
+
+	private int getNextKey() {
+		return random.nextInt(100) < 80 ? random.nextInt(20) : random.nextInt(1000);
+	}
+	
+	private Operation getRandomOperation() {
+		int ordinal = random.nextInt(3);
+		return Operation.values()[ordinal];
+	}
+	
+	/*
+	 * The first batch grows the tree several levels at once, null values remove keys
+	 */
+	
+	@Test
+	public void testBatch() {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		ThermalTree<Integer, Integer> testMap = ThermalTree.newInstance(2, Comparators.INTEGER);
+		
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(i == 0 ? 5000 : 200);
+			List<CounterEntry<Integer, Integer>> batch = new ArrayList<CounterEntry<Integer, Integer>>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.add(CounterEntry.newEntry(key, value));
+			}
+			testMap.putAll(batch);
+			for (CounterEntry<Integer, Integer> entry : batch) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+		
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), testMap.get(entry.getKey()).getValue());
+		}
+		
+	}
+	
+
+}
@@ -1,5 +1,8 @@
 package alt.termos.emulation;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface Tree<K, V, E extends Tree.Entry<K, V>> {
 
 	E get(K key);
@@ -8,6 +11,23 @@ public interface Tree<K, V, E extends Tree.Entry<K, V>> {
 
 	E remove(K key);
 	
+	/**
+	 * Batch is sorted once and the tree is walked for all keys together
+	 * 
+	 * @param keys - keys in any order
+	 * @return entries in the order of keys, null for absent keys
+	 */
+	
+	List<E> getAll(List<? extends K> keys);
+	
+	/**
+	 * Puts entries as put does, the later entry of the same key wins
+	 * 
+	 * @param entries - entries in any order
+	 */
+	
+	void putAll(Collection<? extends E> entries);
+	
 	E getFirstEntry();
 	
 	E getNextEntry(K key);
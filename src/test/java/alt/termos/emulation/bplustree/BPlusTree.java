@@ -1,10 +1,15 @@
 package alt.termos.emulation.bplustree;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 
 import alt.termos.emulation.BTree;
+import alt.termos.emulation.Batches;
 import alt.termos.emulation.SystemUtil;
 import alt.termos.emulation.Tree;
 
@@ -27,6 +32,13 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 	private int size;
 	private E nullEntry;
 	
+	/*
+	 * Position of the next entry and number of added entries of the current putAll
+	 */
+	
+	private int batchPosition;
+	private int batchAdded;
+	
 	public BPlusTree(Class<E> entryClass, int branchingFactor, final Comparator<? super K> keyComparator) {
 		notNull(entryClass, "entryClass");
 		notNull(keyComparator, "keyComparator");
@@ -60,6 +72,12 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 		
 		public abstract Object put(E entry); 
 		
+		/**
+		 * Puts entries of the batch from batchPosition to the bound, returns after the split of the node
+		 */
+		
+		protected abstract Split putAll(List<E> batch, int to);
+		
 		public abstract E remove(K key);
 
 		protected abstract E getFirstEntry();
@@ -78,6 +96,8 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 		
 		protected abstract int getChildPages();
 		
+		protected abstract void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result);
+		
 		public Node() {
 		}
 		
@@ -274,6 +294,65 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 			index = -(index + 1);
 			return this.childs[index].get(key);
 		}
+		
+		@Override
+		protected void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result) {
+			int i = from;
+			while (i != to) {
+				int index = search(keys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i++], this.entries[index]);
+					continue;
+				}
+				index = -(index + 1);
+				int next = i + 1;
+				if (index < length) {
+					K bound = this.entries[index].getKey();
+					while (next != to && keyComparator.compare(keys.get(order[next]), bound) < 0) {
+						next++;
+					}
+				}
+				else {
+					next = to;
+				}
+				this.childs[index].getAll(keys, order, i, next, result);
+				i = next;
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected Split putAll(List<E> batch, int to) {
+			while (batchPosition != to) {
+				int index = search(batch.get(batchPosition).getKey());
+				if (index >= 0) {
+					replace(index, batch.get(batchPosition++));
+					continue;
+				}
+				index = -(index + 1);
+				int next = batchPosition + 1;
+				if (index < length) {
+					K bound = this.entries[index].getKey();
+					while (next != to && keyComparator.compare(batch.get(next).getKey(), bound) < 0) {
+						next++;
+					}
+				}
+				else {
+					next = to;
+				}
+				Split split = this.childs[index].putAll(batch, next);
+				if (split != null) {
+					if (this.length < this.entries.length) {
+						insertChild(index+1, split.greater);
+						insert(index, split.entry);
+					}
+					else {
+						return (Split) split(index, split);
+					}
+				}
+			}
+			return null;
+		}
 
 		@Override
 		@SuppressWarnings("unchecked")
@@ -630,6 +709,16 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 			return null;
 		}
 		
+		@Override
+		protected void getAll(List<? extends K> keys, int[] order, int from, int to, List<E> result) {
+			for (int i = from; i != to; ++i) {
+				int index = search(keys.get(order[i]));
+				if (index >= 0) {
+					result.set(order[i], this.entries[index]);
+				}
+			}
+		}
+		
 		@Override
 		public Object put(E entry) {
 			
@@ -653,6 +742,22 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 			return split(index, entry);
 		}
 
+		@SuppressWarnings("unchecked")
+		@Override
+		protected Split putAll(List<E> batch, int to) {
+			while (batchPosition != to) {
+				Object result = put(batch.get(batchPosition++));
+				if (result == null) {
+					batchAdded++;
+				}
+				else if (result instanceof BPlusTree.Split) {
+					batchAdded++;
+					return (Split) result;
+				}
+			}
+			return null;
+		}
+
 		@Override
 		public E remove(K key) {
 			
@@ -803,6 +908,56 @@ public final class BPlusTree<K, V, E extends Tree.Entry<K, V>> implements Tree<K
 		}
 	}
 
+	@Override
+	public List<E> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		int[] order = Batches.sortedOrder(keys, keyComparator);
+		List<E> result = new ArrayList<E>(Collections.<E>nCopies(order.length, null));
+		int from = 0;
+		while (from != order.length && keys.get(order[from]) == null) {
+			result.set(order[from++], this.nullEntry);
+		}
+		if (from != order.length) {
+			root.getAll(keys, order, from, order.length, result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Inserts the sorted batch in one walk, the split of the root grows the tree and the walk continues
+	 * from the new root
+	 */
+	
+	@Override
+	public void putAll(Collection<? extends E> entries) {
+		notNull(entries, "entries");
+		List<E> list = new ArrayList<E>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (E entry : list) {
+			keys.add(entry.getKey());
+		}
+		List<E> batch = new ArrayList<E>(list.size());
+		for (int index : Batches.uniqueOrder(keys, keyComparator)) {
+			E entry = list.get(index);
+			if (entry.getKey() == null || entry.getValue() == null) {
+				put(entry);
+			}
+			else {
+				batch.add(entry);
+			}
+		}
+		
+		this.batchPosition = 0;
+		this.batchAdded = 0;
+		while (this.batchPosition != batch.size()) {
+			Split split = root.putAll(batch, batch.size());
+			if (split != null) {
+				this.root = new InnerNode(root, split.entry, split.greater);
+			}
+		}
+		this.size += this.batchAdded;
+	}
+
 	public E remove(K key) {
 		if (key == null) {
 			return updateNullEntry(null);
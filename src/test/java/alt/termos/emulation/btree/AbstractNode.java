@@ -120,6 +120,21 @@ public abstract class AbstractNode<K, V> implements Node<K, V> {
 		return oldEntry;
 	}
 	
+	/**
+	 * Replaces the entry by the tombstone of its key, length of the node is not changed
+	 * 
+	 * @return removed entry or null if it is the tombstone already
+	 */
+	
+	protected Entry<K, V> markRemoved(int index) {
+		Entry<K, V> entry = this.entries[index];
+		if (entry instanceof Tombstone) {
+			return null;
+		}
+		this.entries[index] = new Tombstone<K, V>(entry.getKey());
+		return entry;
+	}
+	
 	protected void delete(int index) {
 		int last = this.length - 1;
 		if (index < last) {
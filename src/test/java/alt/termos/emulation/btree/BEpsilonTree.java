@@ -0,0 +1,847 @@
+package alt.termos.emulation.btree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import alt.termos.emulation.Batches;
+
+/**
+ * Write-optimized B-epsilon tree
+ *
+ * Entries are in leaves, inner nodes have separators and the buffer of messages for their subtrees.
+ * Put and remove append the message to the root, full buffer flushes the largest batch to one child,
+ * so one write of the child carries many messages down. Leaf applies the batch at once, splits and merges
+ * are done after the batch. Message closer to the root is newer, so get returns the first message found
+ * on the way down.
+ *
+ * Buffer size 0 is the plain B+Tree mode, every message goes to the leaf at once.
+ *
+ * Put and remove look up the previous entry first, blind upsert and delete only append the message to the root.
+ * Size counts the blind message when it reaches the leaf or meets the older message of its key, until then
+ * size is approximate.
+ *
+ * Changed nodes are collected until the checkpoint as dirty pages of the mapped file until the flush,
+ * written pages show the write amplification of the mode.
+ *
+ * @author Albert Shift
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+
+public final class BEpsilonTree<K, V> implements Tree<K, V> {
+
+	private final Configuration<K> conf;
+	private final int bufferSize;
+	private final int maxLength;
+	private final int minLength;
+
+	private Node root;
+	private int size;
+	private Entry<K, V> nullEntry;
+
+	private final Set<Node> dirtyNodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+	private long writtenPages;
+
+	public BEpsilonTree(Configuration<K> conf, int bufferSize) {
+		if (conf == null) {
+			throw new IllegalArgumentException("empty argument conf");
+		}
+		if (bufferSize < 0) {
+			throw new IllegalArgumentException("illegal bufferSize " + bufferSize);
+		}
+		this.conf = conf;
+		this.bufferSize = bufferSize;
+		this.maxLength = 2 * conf.getBranchingFactor();
+		this.minLength = conf.getBranchingFactor();
+		this.root = new Leaf();
+	}
+
+	public static <K, V> BEpsilonTree<K, V> newInstance(int branchingFactor, Comparator<? super K> keyComparator, int bufferSize) {
+		return new BEpsilonTree<K, V>(Configuration.newInstance(branchingFactor, keyComparator), bufferSize);
+	}
+
+	/*
+	 * Message of the put or the remove with the null entry, put and remove are counted in the size when they are sent
+	 */
+
+	private final class Message {
+
+		final Entry<K, V> entry;
+		final boolean blind;
+
+		Message(Entry<K, V> entry, boolean blind) {
+			this.entry = entry;
+			this.blind = blind;
+		}
+
+		int exists() {
+			return entry != null ? 1 : 0;
+		}
+
+	}
+
+	private abstract class Node {
+
+		abstract boolean isLeaf();
+
+		abstract int getLength();
+
+	}
+
+	private final class Leaf extends Node {
+
+		List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>();
+
+		@Override
+		boolean isLeaf() {
+			return true;
+		}
+
+		@Override
+		int getLength() {
+			return entries.size();
+		}
+
+		int search(K key) {
+			int low = 0;
+			int high = entries.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = compare(entries.get(mid).getKey(), key);
+				if (c < 0) {
+					low = mid + 1;
+				}
+				else if (c > 0) {
+					high = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+	}
+
+	/*
+	 * Separator is the first key of the right subtree, buffer keeps messages of all children
+	 */
+
+	private final class Inner extends Node {
+
+		final List<K> keys = new ArrayList<K>();
+		final List<Node> childs = new ArrayList<Node>();
+		final TreeMap<K, Message> buffer = newBuffer();
+
+		@Override
+		boolean isLeaf() {
+			return false;
+		}
+
+		@Override
+		int getLength() {
+			return keys.size();
+		}
+
+		int childIndex(K key) {
+			int low = 0;
+			int high = keys.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = compare(keys.get(mid), key);
+				if (c < 0) {
+					low = mid + 1;
+				}
+				else if (c > 0) {
+					high = mid - 1;
+				}
+				else {
+					return mid + 1;
+				}
+			}
+			return low;
+		}
+
+		NavigableMap<K, Message> batch(int index) {
+			K low = index > 0 ? keys.get(index - 1) : null;
+			K high = index < keys.size() ? keys.get(index) : null;
+			if (low == null) {
+				return high == null ? buffer : buffer.headMap(high, false);
+			}
+			return high == null ? buffer.tailMap(low, true) : buffer.subMap(low, true, high, false);
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <E extends Entry<K, V>> E get(K key) {
+		if (key == null) {
+			return (E) this.nullEntry;
+		}
+		return (E) find(root, key);
+	}
+
+	private Entry<K, V> find(Node node, K key) {
+		while (!node.isLeaf()) {
+			Inner inner = (Inner) node;
+			Message message = inner.buffer.get(key);
+			if (message != null) {
+				return message.entry;
+			}
+			node = inner.childs.get(inner.childIndex(key));
+		}
+		Leaf leaf = (Leaf) node;
+		int index = leaf.search(key);
+		return index >= 0 ? leaf.entries.get(index) : null;
+	}
+
+	/**
+	 * Previous entry is looked up before the message is sent, the lookup reads pages but does not change them
+	 */
+
+	@Override
+	public <E extends Entry<K, V>> E put(E entry) {
+		if (entry.getKey() == null) {
+			return updateNullEntry(entry);
+		}
+		if (entry.getValue() == null) {
+			return remove(entry.getKey());
+		}
+		E previous = get(entry.getKey());
+		send(entry.getKey(), new Message(entry, false));
+		if (previous == null) {
+			this.size++;
+		}
+		return previous;
+	}
+
+	@Override
+	public <E extends Entry<K, V>> E remove(K key) {
+		if (key == null) {
+			return updateNullEntry(null);
+		}
+		E previous = get(key);
+		if (previous != null) {
+			send(key, new Message(null, false));
+			this.size--;
+		}
+		return previous;
+	}
+
+	/**
+	 * Blind put, the message is appended to the root buffer without the lookup of the previous entry
+	 *
+	 * @param entry - entry, null value is the blind delete
+	 */
+
+	public void upsert(Entry<K, V> entry) {
+		if (entry.getKey() == null) {
+			updateNullEntry(entry);
+			return;
+		}
+		if (entry.getValue() == null) {
+			delete(entry.getKey());
+			return;
+		}
+		send(entry.getKey(), new Message(entry, true));
+	}
+
+	/**
+	 * Blind remove, the message is appended to the root buffer even if there is no entry of the key
+	 *
+	 * @param key - key
+	 */
+
+	public void delete(K key) {
+		if (key == null) {
+			updateNullEntry(null);
+			return;
+		}
+		send(key, new Message(null, true));
+	}
+
+	@Override
+	public <E extends Entry<K, V>> List<E> getAll(List<? extends K> keys) {
+		List<E> result = new ArrayList<E>(Collections.<E>nCopies(keys.size(), null));
+		for (int index : Batches.sortedOrder(keys, conf.getKeyComparator())) {
+			E entry = get(keys.get(index));
+			result.set(index, entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Batch goes to the root buffer as blind messages at once, buffers carry it down together,
+	 * so size is approximate until the messages are applied
+	 */
+
+	@Override
+	public <E extends Entry<K, V>> void putAll(Collection<? extends E> entries) {
+		if (entries == null) {
+			throw new IllegalArgumentException("empty argument entries");
+		}
+		List<E> list = new ArrayList<E>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (E entry : list) {
+			keys.add(entry.getKey());
+		}
+		TreeMap<K, Message> messages = newBuffer();
+		for (int index : Batches.uniqueOrder(keys, conf.getKeyComparator())) {
+			E entry = list.get(index);
+			if (entry.getKey() == null) {
+				updateNullEntry(entry);
+			}
+			else {
+				messages.put(entry.getKey(), new Message(entry.getValue() != null ? entry : null, true));
+			}
+		}
+		if (!messages.isEmpty()) {
+			apply(root, messages);
+			fixRoot();
+		}
+	}
+
+	/*
+	 * Messages
+	 */
+
+	private void send(K key, Message message) {
+		TreeMap<K, Message> messages = newBuffer();
+		messages.put(key, message);
+		apply(root, messages);
+		fixRoot();
+	}
+
+	/**
+	 * Node may overflow or underflow after it, the parent fixes it
+	 */
+
+	private void apply(Node node, NavigableMap<K, Message> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		markDirty(node);
+		if (node.isLeaf()) {
+			applyToLeaf((Leaf) node, messages);
+			return;
+		}
+		Inner inner = (Inner) node;
+		receive(inner, messages);
+		flushOverflow(inner);
+	}
+
+	/*
+	 * Newer message replaces the older one of the same key, its change of the size is known from the older message,
+	 * so the pair is counted as the older one: at once if it was counted or at the leaf if it was blind
+	 */
+
+	private void receive(Inner inner, NavigableMap<K, Message> messages) {
+		for (Map.Entry<K, Message> e : messages.entrySet()) {
+			Message message = e.getValue();
+			Message older = inner.buffer.put(e.getKey(), message);
+			if (older != null && older.blind != message.blind) {
+				this.size += (message.blind ? 1 : -1) * (message.exists() - older.exists());
+				inner.buffer.put(e.getKey(), new Message(message.entry, older.blind));
+			}
+		}
+	}
+
+	private void applyToLeaf(Leaf leaf, NavigableMap<K, Message> messages) {
+		List<Entry<K, V>> entries = leaf.entries;
+		List<Entry<K, V>> merged = new ArrayList<Entry<K, V>>(entries.size() + messages.size());
+		Iterator<Map.Entry<K, Message>> i = messages.entrySet().iterator();
+		Map.Entry<K, Message> message = i.next();
+		int j = 0;
+		while (message != null || j != entries.size()) {
+			int c = message == null ? -1 : (j == entries.size() ? 1 : compare(entries.get(j).getKey(), message.getKey()));
+			if (c < 0) {
+				merged.add(entries.get(j++));
+				continue;
+			}
+			int existed = 0;
+			if (c == 0) {
+				j++;
+				existed = 1;
+			}
+			Message m = message.getValue();
+			if (m.blind) {
+				this.size += m.exists() - existed;
+			}
+			if (m.entry != null) {
+				merged.add(m.entry);
+			}
+			message = i.hasNext() ? i.next() : null;
+		}
+		leaf.entries = merged;
+	}
+
+	/*
+	 * Largest batch goes down while the buffer is full, so every write of the child moves the most messages
+	 */
+
+	private void flushOverflow(Inner inner) {
+		while (inner.buffer.size() > bufferSize) {
+			int index = largestBatch(inner);
+			NavigableMap<K, Message> range = inner.batch(index);
+			TreeMap<K, Message> batch = new TreeMap<K, Message>(range);
+			range.clear();
+			apply(inner.childs.get(index), batch);
+			fixChild(inner, index);
+		}
+	}
+
+	private int largestBatch(Inner inner) {
+		int best = 0;
+		int bestCount = -1;
+		int index = 0;
+		int count = 0;
+		for (K key : inner.buffer.keySet()) {
+			while (index < inner.keys.size() && compare(key, inner.keys.get(index)) >= 0) {
+				if (count > bestCount) {
+					best = index;
+					bestCount = count;
+				}
+				index++;
+				count = 0;
+			}
+			count++;
+		}
+		return count > bestCount ? index : best;
+	}
+
+	/*
+	 * Structure
+	 */
+
+	private void fixRoot() {
+		for (;;) {
+			if (root.getLength() > maxLength) {
+				Inner newRoot = new Inner();
+				newRoot.childs.add(root);
+				root = newRoot;
+				splitChild(newRoot, 0);
+				continue;
+			}
+			if (!root.isLeaf() && root.getLength() == 0) {
+				Inner oldRoot = (Inner) root;
+				dirtyNodes.remove(oldRoot);
+				root = oldRoot.childs.get(0);
+				apply(root, oldRoot.buffer);
+				continue;
+			}
+			return;
+		}
+	}
+
+	private void fixChild(Inner parent, int index) {
+		for (;;) {
+			Node child = parent.childs.get(index);
+			if (child.getLength() > maxLength) {
+				splitChild(parent, index);
+				return;
+			}
+			if (child.getLength() >= minLength || parent.childs.size() == 1) {
+				return;
+			}
+			index = index > 0 ? index - 1 : index;
+			mergeChilds(parent, index);
+			Node merged = parent.childs.get(index);
+			if (!merged.isLeaf()) {
+				flushOverflow((Inner) merged);
+			}
+		}
+	}
+
+	/*
+	 * Halves are split again until they fit, batch may overflow the node many times
+	 */
+
+	private void splitChild(Inner parent, int index) {
+		Node child = parent.childs.get(index);
+		if (child.getLength() <= maxLength) {
+			return;
+		}
+		K separator;
+		Node greater;
+		if (child.isLeaf()) {
+			Leaf leaf = (Leaf) child;
+			Leaf right = new Leaf();
+			List<Entry<K, V>> tail = leaf.entries.subList(leaf.entries.size() / 2, leaf.entries.size());
+			right.entries.addAll(tail);
+			tail.clear();
+			separator = right.entries.get(0).getKey();
+			greater = right;
+		}
+		else {
+			Inner inner = (Inner) child;
+			Inner right = new Inner();
+			int mid = inner.keys.size() / 2;
+			separator = inner.keys.get(mid);
+			List<K> tailKeys = inner.keys.subList(mid, inner.keys.size());
+			right.keys.addAll(tailKeys.subList(1, tailKeys.size()));
+			tailKeys.clear();
+			List<Node> tailChilds = inner.childs.subList(mid + 1, inner.childs.size());
+			right.childs.addAll(tailChilds);
+			tailChilds.clear();
+			NavigableMap<K, Message> tailBuffer = inner.buffer.tailMap(separator, true);
+			right.buffer.putAll(tailBuffer);
+			tailBuffer.clear();
+			greater = right;
+		}
+		parent.keys.add(index, separator);
+		parent.childs.add(index + 1, greater);
+		markDirty(child);
+		markDirty(greater);
+		markDirty(parent);
+		splitChild(parent, index + 1);
+		splitChild(parent, index);
+	}
+
+	private void mergeChilds(Inner parent, int index) {
+		Node lesser = parent.childs.get(index);
+		Node greater = parent.childs.get(index + 1);
+		if (lesser.isLeaf()) {
+			((Leaf) lesser).entries.addAll(((Leaf) greater).entries);
+		}
+		else {
+			Inner lesserInner = (Inner) lesser;
+			Inner greaterInner = (Inner) greater;
+			lesserInner.keys.add(parent.keys.get(index));
+			lesserInner.keys.addAll(greaterInner.keys);
+			lesserInner.childs.addAll(greaterInner.childs);
+			lesserInner.buffer.putAll(greaterInner.buffer);
+		}
+		parent.keys.remove(index);
+		parent.childs.remove(index + 1);
+		dirtyNodes.remove(greater);
+		markDirty(lesser);
+		markDirty(parent);
+	}
+
+	/*
+	 * Ordered access merges messages of the node with entries of its subtree, message wins for the same key
+	 */
+
+	private Entry<K, V> nextEntry(Node node, K key) {
+		if (node.isLeaf()) {
+			Leaf leaf = (Leaf) node;
+			int index = 0;
+			if (key != null) {
+				index = leaf.search(key);
+				index = index >= 0 ? index + 1 : -(index + 1);
+			}
+			return index < leaf.entries.size() ? leaf.entries.get(index) : null;
+		}
+		Inner inner = (Inner) node;
+		K from = key;
+		for (;;) {
+			Entry<K, V> below = null;
+			for (int i = from == null ? 0 : inner.childIndex(from); below == null && i != inner.childs.size(); ++i) {
+				below = nextEntry(inner.childs.get(i), from);
+			}
+			Map.Entry<K, Message> message = from == null ? inner.buffer.firstEntry() : inner.buffer.higherEntry(from);
+			if (message == null || (below != null && compare(below.getKey(), message.getKey()) < 0)) {
+				return below;
+			}
+			if (message.getValue().entry != null) {
+				return message.getValue().entry;
+			}
+			from = message.getKey();
+		}
+	}
+
+	private Entry<K, V> prevEntry(Node node, K key) {
+		if (node.isLeaf()) {
+			Leaf leaf = (Leaf) node;
+			int index = leaf.entries.size() - 1;
+			if (key != null) {
+				index = leaf.search(key);
+				index = index >= 0 ? index - 1 : -(index + 1) - 1;
+			}
+			return index >= 0 ? leaf.entries.get(index) : null;
+		}
+		Inner inner = (Inner) node;
+		K from = key;
+		for (;;) {
+			Entry<K, V> below = null;
+			for (int i = from == null ? inner.keys.size() : inner.childIndex(from); below == null && i >= 0; --i) {
+				below = prevEntry(inner.childs.get(i), from);
+			}
+			Map.Entry<K, Message> message = from == null ? inner.buffer.lastEntry() : inner.buffer.lowerEntry(from);
+			if (message == null || (below != null && compare(below.getKey(), message.getKey()) > 0)) {
+				return below;
+			}
+			if (message.getValue().entry != null) {
+				return message.getValue().entry;
+			}
+			from = message.getKey();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <E extends Entry<K, V>> E getFirstEntry() {
+		if (hasNullEntry()) {
+			return (E) this.nullEntry;
+		}
+		return (E) nextEntry(root, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <E extends Entry<K, V>> E getNextEntry(K key) {
+		return (E) nextEntry(root, key);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <E extends Entry<K, V>> E getLastEntry() {
+		Entry<K, V> last = prevEntry(root, null);
+		return (E) (last != null ? last : this.nullEntry);
+	}
+
+	@Override
+	public <E extends Entry<K, V>> E removeFirst() {
+		if (hasNullEntry()) {
+			return updateNullEntry(null);
+		}
+		Entry<K, V> first = nextEntry(root, null);
+		return first != null ? this.<E>remove(first.getKey()) : null;
+	}
+
+	@Override
+	public <E extends Entry<K, V>> E removeLast() {
+		Entry<K, V> last = prevEntry(root, null);
+		if (last != null) {
+			return remove(last.getKey());
+		}
+		return updateNullEntry(null);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	private boolean hasNullEntry() {
+		return this.nullEntry != null;
+	}
+
+	private <E extends Entry<K, V>> E updateNullEntry(E entry) {
+		@SuppressWarnings("unchecked")
+		E result = (E) this.nullEntry;
+		this.nullEntry = entry;
+		return result;
+	}
+
+	/**
+	 * Blind messages that did not reach the leaf or the older message of their key are not counted
+	 */
+
+	@Override
+	public int size() {
+		return this.size + (hasNullEntry() ? 1 : 0);
+	}
+
+	@Override
+	public void clear() {
+		this.root = new Leaf();
+		this.size = 0;
+		this.nullEntry = null;
+		this.dirtyNodes.clear();
+	}
+
+	/**
+	 * Checks order and fill of nodes, ranges of buffers, depth of leaves and the size with pending blind messages
+	 *
+	 * @throws IllegalStateException if the tree is broken
+	 */
+
+	@Override
+	public void verify() {
+		verify(root, null, null, true);
+		int count = 0;
+		for (Entry<K, V> entry = nextEntry(root, null); entry != null; entry = nextEntry(root, entry.getKey())) {
+			count++;
+		}
+		int pending = pendingSize(root);
+		if (count != this.size + pending) {
+			throw new IllegalStateException("wrong size " + this.size + " and pending " + pending + ", actual " + count);
+		}
+	}
+
+	private int pendingSize(Node node) {
+		if (node.isLeaf()) {
+			return 0;
+		}
+		Inner inner = (Inner) node;
+		int pending = 0;
+		for (Map.Entry<K, Message> e : inner.buffer.entrySet()) {
+			if (e.getValue().blind) {
+				Node child = inner.childs.get(inner.childIndex(e.getKey()));
+				pending += e.getValue().exists() - (find(child, e.getKey()) != null ? 1 : 0);
+			}
+		}
+		for (Node child : inner.childs) {
+			pending += pendingSize(child);
+		}
+		return pending;
+	}
+
+	private int verify(Node node, K low, K high, boolean isRoot) {
+		int length = node.getLength();
+		if (length > maxLength || (!isRoot && length < minLength)) {
+			throw new IllegalStateException("wrong length " + length + " of the node " + node);
+		}
+		if (node.isLeaf()) {
+			K prevKey = low;
+			boolean first = true;
+			for (Entry<K, V> entry : ((Leaf) node).entries) {
+				checkKey(prevKey, entry.getKey(), high, first);
+				prevKey = entry.getKey();
+				first = false;
+			}
+			return 1;
+		}
+		Inner inner = (Inner) node;
+		if (inner.childs.size() != length + 1) {
+			throw new IllegalStateException("wrong number of childs " + inner.childs.size() + " of the node " + node);
+		}
+		if (inner.buffer.size() > bufferSize) {
+			throw new IllegalStateException("buffer overflow " + inner.buffer.size() + " of the node " + node);
+		}
+		for (K key : inner.buffer.keySet()) {
+			checkKey(low, key, high, true);
+		}
+		int depth = -1;
+		for (int i = 0; i <= length; ++i) {
+			K childLow = i > 0 ? inner.keys.get(i - 1) : low;
+			K childHigh = i < length ? inner.keys.get(i) : high;
+			if (i > 0) {
+				checkKey(low, childLow, high, true);
+			}
+			if (i > 0 && i < length && compare(childLow, childHigh) >= 0) {
+				throw new IllegalStateException("wrong order of separators in the node " + node);
+			}
+			int childDepth = verify(inner.childs.get(i), childLow, childHigh, false);
+			if (depth != -1 && depth != childDepth) {
+				throw new IllegalStateException("leaves on different depth in the node " + node);
+			}
+			depth = childDepth;
+		}
+		return depth + 1;
+	}
+
+	private void checkKey(K low, K key, K high, boolean lowInclusive) {
+		if (low != null && (lowInclusive ? compare(key, low) < 0 : compare(key, low) <= 0)) {
+			throw new IllegalStateException("key " + key + " is less than " + low);
+		}
+		if (high != null && compare(key, high) >= 0) {
+			throw new IllegalStateException("key " + key + " is not less than " + high);
+		}
+	}
+
+	@Override
+	public <E extends Entry<K, V>> Iterable<E> entries() {
+		return new Iterable<E>() {
+
+			@Override
+			public Iterator<E> iterator() {
+				return new Iterator<E>() {
+
+					private E nextEntry = getFirstEntry();
+
+					@Override
+					public boolean hasNext() {
+						return nextEntry != null;
+					}
+
+					@Override
+					public E next() {
+						E result = this.nextEntry;
+						this.nextEntry = getNextEntry(this.nextEntry.getKey());
+						return result;
+					}
+
+					@Override
+					public void remove() {
+						throw new IllegalStateException("unsupported operation");
+					}
+
+				};
+			}
+
+		};
+	}
+
+	/*
+	 * Pages
+	 */
+
+	private void markDirty(Node node) {
+		dirtyNodes.add(node);
+	}
+
+	/**
+	 * Writes dirty nodes as the flush of the mapped file writes dirty pages
+	 *
+	 * @return number of written pages
+	 */
+
+	public int checkpoint() {
+		int pages = dirtyNodes.size();
+		writtenPages += pages;
+		dirtyNodes.clear();
+		return pages;
+	}
+
+	public long getWrittenPages() {
+		return writtenPages;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getHeight() {
+		int height = 1;
+		for (Node node = root; !node.isLeaf(); node = ((Inner) node).childs.get(0)) {
+			height++;
+		}
+		return height;
+	}
+
+	public int getTotalPages() {
+		return countPages(root);
+	}
+
+	private int countPages(Node node) {
+		int count = 1;
+		if (!node.isLeaf()) {
+			for (Node child : ((Inner) node).childs) {
+				count += countPages(child);
+			}
+		}
+		return count;
+	}
+
+	private int compare(K key1, K key2) {
+		return conf.getKeyComparator().compare(key1, key2);
+	}
+
+	private TreeMap<K, Message> newBuffer() {
+		return new TreeMap<K, Message>(conf.getKeyComparator());
+	}
+
+}
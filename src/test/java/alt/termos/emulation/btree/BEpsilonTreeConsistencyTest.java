@@ -0,0 +1,178 @@
+package alt.termos.emulation.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alt.termos.emulation.Comparators;
+
+/**
+ * Consistency test for the B-epsilon tree in the plain and buffered modes
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class BEpsilonTreeConsistencyTest {
+
+	private static Random random = new Random(5);
+
+	private enum Operation {
+		GET, PUT, REMOVE;
+	}
+
+	@Test
+	public void test() {
+		for (int bufferSize : new int[] { 0, 1, 4, 16 }) {
+			testLoop(BEpsilonTree.<Integer, Integer>newInstance(2, Comparators.INTEGER, bufferSize), false);
+		}
+	}
+
+	/*
+	 * Blind writes do not return the previous entry, it is read before the write, size is checked by verify()
+	 */
+
+	@Test
+	public void testBlind() {
+		for (int bufferSize : new int[] { 0, 1, 4, 16 }) {
+			testLoop(BEpsilonTree.<Integer, Integer>newInstance(2, Comparators.INTEGER, bufferSize), true);
+		}
+	}
+
+	private void testLoop(BEpsilonTree<Integer, Integer> testMap, boolean blind) {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+
+		for (int i = 0; i != 300000; ++i) {
+			int key = random.nextInt(3000);
+			Integer controlValue = null;
+			Tree.Entry<Integer, Integer> testEntry = null;
+			switch(Operation.values()[random.nextInt(3)]) {
+			case GET:
+				controlValue = controlMap.get(key);
+				testEntry = testMap.get(key);
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				if (blind) {
+					testEntry = testMap.get(key);
+					testMap.upsert(SimpleEntry.newEntry(key, i));
+				}
+				else {
+					testEntry = testMap.put(SimpleEntry.newEntry(key, i));
+				}
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				if (blind) {
+					testEntry = testMap.get(key);
+					testMap.delete(key);
+				}
+				else {
+					testEntry = testMap.remove(key);
+				}
+				break;
+			}
+			Assert.assertEquals(controlValue, testEntry != null ? testEntry.getValue() : null);
+			if (i % 1000 == 0) {
+				testMap.verify();
+				Integer nextKey = controlMap.higherKey(key);
+				Tree.Entry<Integer, Integer> nextEntry = testMap.getNextEntry(key);
+				Assert.assertEquals(nextKey, nextEntry != null ? nextEntry.getKey() : null);
+			}
+		}
+
+		testMap.verify();
+		if (!blind) {
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+		Assert.assertEquals(controlMap.firstKey(), testMap.getFirstEntry().getKey());
+		Assert.assertEquals(controlMap.lastKey(), testMap.getLastEntry().getKey());
+
+		Iterator<Tree.Entry<Integer, Integer>> i = testMap.<Tree.Entry<Integer, Integer>>entries().iterator();
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), i.next().getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+
+		while (!controlMap.isEmpty()) {
+			Assert.assertEquals(controlMap.pollFirstEntry().getValue(), testMap.removeFirst().getValue());
+			if (!controlMap.isEmpty()) {
+				Assert.assertEquals(controlMap.pollLastEntry().getValue(), testMap.removeLast().getValue());
+			}
+		}
+		testMap.verify();
+		if (!blind) {
+			Assert.assertTrue(testMap.isEmpty());
+		}
+		Assert.assertNull(testMap.getFirstEntry());
+		Assert.assertNull(testMap.getLastEntry());
+	}
+
+	/*
+	 * Random inserts dirty a leaf each in the plain mode, buffers carry many messages in one write
+	 */
+
+	@Test
+	public void testWrittenPages() {
+		BEpsilonTree<Integer, Integer> plain = BEpsilonTree.newInstance(16, Comparators.INTEGER, 0);
+		BEpsilonTree<Integer, Integer> buffered = BEpsilonTree.newInstance(16, Comparators.INTEGER, 512);
+		for (int i = 0; i != 100000; ++i) {
+			int key = random.nextInt();
+			plain.put(SimpleEntry.newEntry(key, i));
+			buffered.put(SimpleEntry.newEntry(key, i));
+			if (i % 1000 == 999) {
+				plain.checkpoint();
+				buffered.checkpoint();
+			}
+		}
+		plain.verify();
+		buffered.verify();
+		Assert.assertEquals(plain.size(), buffered.size());
+		Assert.assertTrue(plain.getWrittenPages() > 4 * buffered.getWrittenPages());
+	}
+
+	/*
+	 * Batch is sent as blind messages, size is checked with pending messages by verify()
+	 */
+
+	@Test
+	public void testBatch() {
+
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		BEpsilonTree<Integer, Integer> testMap = BEpsilonTree.newInstance(2, Comparators.INTEGER, 16);
+
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(i == 0 ? 5000 : 200);
+			List<SimpleEntry<Integer, Integer>> batch = new ArrayList<SimpleEntry<Integer, Integer>>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.add(SimpleEntry.newEntry(key, value));
+			}
+			testMap.putAll(batch);
+			for (SimpleEntry<Integer, Integer> entry : batch) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+		}
+
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), testMap.get(entry.getKey()).getValue());
+		}
+
+	}
+
+
+}
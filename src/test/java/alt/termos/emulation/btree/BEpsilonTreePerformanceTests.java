@@ -0,0 +1,55 @@
+package alt.termos.emulation.btree;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import alt.termos.emulation.Comparators;
+
+/**
+ * Written pages per insert of random keys against the size of buffers, pages are written on every checkpoint
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class BEpsilonTreePerformanceTests {
+
+	public static final int N = 1000000;
+	public static final int CHECKPOINT = 10000;
+	public static final int BRANCHING_FACTOR = 32;
+	public static final int[] BUFFER_SIZES = new int[] { 0, 64, 256, 1024, 4096 };
+
+	@Test
+	public void performanceInsertTest() {
+
+		for (int bufferSize : BUFFER_SIZES) {
+			insert(bufferSize, false);
+			insert(bufferSize, true);
+		}
+	}
+
+	/*
+	 * Put reads the path to the leaf before the message is sent, blind upsert only appends it to the root
+	 */
+
+	private void insert(int bufferSize, boolean blind) {
+		Random random = new Random(5);
+		BEpsilonTree<Integer, Integer> tree = BEpsilonTree.newInstance(BRANCHING_FACTOR, Comparators.INTEGER, bufferSize);
+		long t0 = System.currentTimeMillis();
+		for (int i = 0; i != N; ++i) {
+			if (blind) {
+				tree.upsert(SimpleEntry.newEntry(random.nextInt(), i));
+			}
+			else {
+				tree.put(SimpleEntry.newEntry(random.nextInt(), i));
+			}
+			if (i % CHECKPOINT == CHECKPOINT - 1) {
+				tree.checkpoint();
+			}
+		}
+		System.out.println("bufferSize = " + bufferSize + ", blind = " + blind + ", written pages per insert = " + (double) tree.getWrittenPages() / N
+				+ ", height = " + tree.getHeight() + ", time = " + (System.currentTimeMillis() - t0));
+	}
+
+}
@@ -1,11 +1,21 @@
 package alt.termos.emulation.btree;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+
+import alt.termos.emulation.Batches;
 
 /**
  * Simple implementation of the B-Tree
  * 
+ * In the lazy delete mode remove replaces the entry by the tombstone and nodes are not joined or rotated,
+ * so remove and put of the same key change one node. Tombstones are purged by compact(), while there are
+ * more tombstones than entries every remove also purges tombstones of the next few nodes.
+ * 
  * @author Albert Shift
  *
  * @param <K> Key type
@@ -15,13 +25,17 @@ import java.util.Iterator;
 public final class BTree<K, V> implements Tree<K, V> {
 
 	private final Configuration<K> conf;
+	private final Configuration<K> compactConf;
 	
 	private Node<K, V> root;
 	private int size;
+	private int tombstones;
+	private K compactKey;
 	private Entry<K, V> nullEntry;
 
 	public BTree(Configuration<K> conf) {
 		this.conf = conf;
+		this.compactConf = conf.isLazyDelete() ? Configuration.<K>newInstance(conf.getBranchingFactor(), conf.getKeyComparator()) : conf;
 		this.root = new LeafNode<K, V>(conf);
 	}
 	
@@ -29,6 +43,10 @@ public final class BTree<K, V> implements Tree<K, V> {
 		return new BTree<K, V>(Configuration.newInstance(branchingFactor, keyComparator));
 	}
 	
+	public static <K, V> BTree<K, V> newInstance(int branchingFactor, final Comparator<? super K> keyComparator, boolean lazyDelete) {
+		return new BTree<K, V>(Configuration.newInstance(branchingFactor, keyComparator, lazyDelete));
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public <E extends Entry<K, V>> E get(K key) {
@@ -36,7 +54,7 @@ public final class BTree<K, V> implements Tree<K, V> {
 			return (E) this.nullEntry;
 		}
 		
-		return (E) this.root.get(conf, key);
+		return (E) live(this.root.get(conf, key));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -51,6 +69,10 @@ public final class BTree<K, V> implements Tree<K, V> {
 		}
 		
 		Object result = root.put(conf, entry);
+		if (result instanceof Tombstone) {
+			this.tombstones--;
+			result = null;
+		}
 		if (result == null) {
 			this.size++;
 			return null;
@@ -66,6 +88,68 @@ public final class BTree<K, V> implements Tree<K, V> {
 		}
 	}
 
+	private void notNull(Object obj, String argumentName) {
+		if (obj == null) {
+			throw new IllegalArgumentException("empty argument " + argumentName);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <E extends Entry<K, V>> List<E> getAll(List<? extends K> keys) {
+		notNull(keys, "keys");
+		int[] order = Batches.sortedOrder(keys, conf.getKeyComparator());
+		List<Entry<K, V>> result = new ArrayList<Entry<K, V>>(Collections.<Entry<K, V>>nCopies(order.length, null));
+		int from = 0;
+		while (from != order.length && keys.get(order[from]) == null) {
+			result.set(order[from++], this.nullEntry);
+		}
+		if (from != order.length) {
+			this.root.getAll(conf, keys, order, from, order.length, result);
+		}
+		if (this.tombstones != 0) {
+			for (int i = 0; i != result.size(); ++i) {
+				result.set(i, live(result.get(i)));
+			}
+		}
+		return (List<E>) result;
+	}
+	
+	/**
+	 * Inserts the sorted batch in one walk, the split of the root grows the tree and the walk continues
+	 * from the new root
+	 */
+	
+	@Override
+	public <E extends Entry<K, V>> void putAll(Collection<? extends E> entries) {
+		notNull(entries, "entries");
+		List<E> list = new ArrayList<E>(entries);
+		List<K> keys = new ArrayList<K>(list.size());
+		for (E entry : list) {
+			keys.add(entry.getKey());
+		}
+		List<E> sorted = new ArrayList<E>(list.size());
+		for (int index : Batches.uniqueOrder(keys, conf.getKeyComparator())) {
+			E entry = list.get(index);
+			if (entry.getKey() == null || entry.getValue() == null) {
+				put(entry);
+			}
+			else {
+				sorted.add(entry);
+			}
+		}
+		
+		PutBatch<K, V> batch = new PutBatch<K, V>(sorted);
+		while (batch.getPosition() != batch.size()) {
+			Split<K, V> split = root.putAll(conf, batch, batch.size());
+			if (split != null) {
+				this.root = new InnerNode<K, V>(conf, root, split.getEntry(), split.getGreater());
+			}
+		}
+		this.size += batch.getAdded();
+		this.tombstones -= batch.getRevived();
+	}
+
 	public <E extends Entry<K, V>>  E remove(K key) {
 		if (key == null) {
 			return updateNullEntry(null);
@@ -74,7 +158,12 @@ public final class BTree<K, V> implements Tree<K, V> {
 		@SuppressWarnings("unchecked")
 		E removedEntry = (E) root.remove(conf, key);
 		if (removedEntry != null) {
-			afterRemoveProcessing();
+			if (conf.isLazyDelete()) {
+				afterLazyRemove();
+			}
+			else {
+				afterRemoveProcessing();
+			}
 		}
 		return removedEntry;
 	}
@@ -86,7 +175,7 @@ public final class BTree<K, V> implements Tree<K, V> {
 			return (E) this.nullEntry;
 		}
 		if (hasTreeEntries()) {
-			return (E) root.getFirstEntry();
+			return (E) skipTombstones(root.getFirstEntry());
 		}
 		return null;
 	}
@@ -95,16 +184,16 @@ public final class BTree<K, V> implements Tree<K, V> {
 	@Override
 	public <E extends Entry<K, V>>  E getNextEntry(K key) {
 		if (key == null) {
-			return (E) root.getFirstEntry();
+			return hasTreeEntries() ? (E) skipTombstones(root.getFirstEntry()) : null;
 		}
-		return (E) root.getNextEntry(conf, key);
+		return (E) skipTombstones(root.getNextEntry(conf, key));
 	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
 	public <E extends Entry<K, V>>  E getLastEntry() {
 		if (hasTreeEntries()) {
-			return (E) root.getLastEntry();
+			return (E) lastLiveEntry();
 		}
 		if (hasNullEntry()) {
 			return (E) this.nullEntry;
@@ -120,6 +209,9 @@ public final class BTree<K, V> implements Tree<K, V> {
 		if (hasNullEntry()) {
 			return updateNullEntry(null);
 		}
+		if (conf.isLazyDelete()) {
+			return remove(skipTombstones(root.getFirstEntry()).getKey());
+		}
 		@SuppressWarnings("unchecked")
 		E removedEntry = (E) root.removeFirst(conf);
 		if (removedEntry != null) {
@@ -134,6 +226,9 @@ public final class BTree<K, V> implements Tree<K, V> {
 			return null;
 		}
 		if (hasTreeEntries()) {
+			if (conf.isLazyDelete()) {
+				return remove(lastLiveEntry().getKey());
+			}
 			@SuppressWarnings("unchecked")
 			E removedEntry = (E) root.removeLast(conf);
 			if (removedEntry != null) {
@@ -145,11 +240,98 @@ public final class BTree<K, V> implements Tree<K, V> {
 	}
 
 	private void afterRemoveProcessing() {
+		collapseRoot();
+		this.size--;
+	}
+	
+	private void collapseRoot() {
 		if (root instanceof InnerNode && root.getLength() == 0) {
 			InnerNode<K, V> inner = (InnerNode<K, V>) root;
 			this.root = inner.pollFirstChild();
 		}
+	}
+	
+	private void afterLazyRemove() {
 		this.size--;
+		this.tombstones++;
+		if (this.tombstones > this.size + 2 * conf.getBranchingFactor()) {
+			compactStep(4 * conf.getBranchingFactor());
+		}
+	}
+	
+	/*
+	 * Bounded part of the maintenance pass, it continues after the last visited key and wraps to the first entry
+	 */
+	
+	private void compactStep(int maxEntries) {
+		List<K> keys = new ArrayList<K>();
+		Entry<K, V> entry = this.compactKey == null ? root.getFirstEntry() : root.getNextEntry(conf, this.compactKey);
+		for (int i = 0; i != maxEntries && entry != null; ++i) {
+			if (entry instanceof Tombstone) {
+				keys.add(entry.getKey());
+			}
+			this.compactKey = entry.getKey();
+			entry = root.getNextEntry(conf, entry.getKey());
+		}
+		if (entry == null) {
+			this.compactKey = null;
+		}
+		for (K key : keys) {
+			if (root.remove(compactConf, key) != null) {
+				collapseRoot();
+			}
+		}
+		this.tombstones -= keys.size();
+	}
+	
+	/**
+	 * Maintenance pass of the lazy delete mode: tombstones are removed as entries of the eager mode,
+	 * so underfull nodes are joined or rotated with siblings
+	 * 
+	 * @return number of purged tombstones
+	 */
+	
+	public int compact() {
+		if (this.tombstones == 0) {
+			return 0;
+		}
+		List<K> keys = new ArrayList<K>(this.tombstones);
+		for (Entry<K, V> entry = root.getFirstEntry(); entry != null; entry = root.getNextEntry(conf, entry.getKey())) {
+			if (entry instanceof Tombstone) {
+				keys.add(entry.getKey());
+			}
+		}
+		for (K key : keys) {
+			if (root.remove(compactConf, key) != null) {
+				collapseRoot();
+			}
+		}
+		this.tombstones = 0;
+		this.compactKey = null;
+		return keys.size();
+	}
+	
+	public int getTombstones() {
+		return this.tombstones;
+	}
+	
+	private Entry<K, V> live(Entry<K, V> entry) {
+		return entry instanceof Tombstone ? null : entry;
+	}
+	
+	private Entry<K, V> skipTombstones(Entry<K, V> entry) {
+		while (entry instanceof Tombstone) {
+			entry = root.getNextEntry(conf, entry.getKey());
+		}
+		return entry;
+	}
+	
+	private Entry<K, V> lastLiveEntry() {
+		Entry<K, V> entry = root.getLastEntry();
+		while (entry instanceof Tombstone) {
+			entry = root.getPrevEntry(conf, entry.getKey());
+		}
+		return entry;
 	}
 	
 	public void print() {
@@ -162,10 +344,7 @@ public final class BTree<K, V> implements Tree<K, V> {
 	}
 	
 	private boolean hasTreeEntries() {
-		if (root instanceof LeafNode && root.getLength() == 0) {
-			return false;
-		}
-		return true;
+		return this.size != 0;
 	}
 	
 	private boolean hasNullEntry() {
@@ -188,6 +367,8 @@ public final class BTree<K, V> implements Tree<K, V> {
 	public void clear() {
 		this.root = new LeafNode<K, V>(conf);
 		this.size = 0;
+		this.tombstones = 0;
+		this.compactKey = null;
 	}
 	
 	@Override
@@ -1,5 +1,9 @@
 package alt.termos.emulation.btree;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
@@ -75,6 +79,72 @@ public class BTreeConsistencyTest {
 		}
 	}
 
+	/*
+	 * Removed keys stay in nodes as tombstones until compact() or the automatic compaction
+	 */
+	
+	@Test
+	public void testLazyDelete() {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		BTree<Integer, Integer> testMap = BTree.newInstance(3, Comparators.INTEGER, true);
+		
+		for (int i = 0; i != 300000; ++i) {
+			int key = getNextKey();
+			Integer controlValue = null;
+			Tree.Entry<Integer, Integer> testEntry = null;
+			switch(getRandomOperation()) {
+			case GET:
+				controlValue = controlMap.get(key);
+				testEntry = testMap.get(key);
+				break;
+			case PUT:
+				controlValue = controlMap.put(key, i);
+				testEntry = testMap.put(SimpleEntry.newEntry(key, i));
+				break;
+			case REMOVE:
+				controlValue = controlMap.remove(key);
+				testEntry = testMap.remove(key);
+				break;
+			}
+			Assert.assertEquals(controlValue, testEntry != null ? testEntry.getValue() : null);
+			Assert.assertEquals(controlMap.size(), testMap.size());
+			if (i % 1000 == 0) {
+				testMap.verify();
+				Integer nextKey = controlMap.higherKey(key);
+				Tree.Entry<Integer, Integer> nextEntry = testMap.getNextEntry(key);
+				Assert.assertEquals(nextKey, nextEntry != null ? nextEntry.getKey() : null);
+				Tree.Entry<Integer, Integer> lastEntry = testMap.getLastEntry();
+				Assert.assertEquals(controlMap.isEmpty() ? null : controlMap.lastKey(), lastEntry != null ? lastEntry.getKey() : null);
+			}
+			if (i % 50000 == 0) {
+				testMap.compact();
+				Assert.assertEquals(0, testMap.getTombstones());
+				testMap.verify();
+			}
+		}
+		
+		Assert.assertEquals(controlMap.firstKey(), testMap.getFirstEntry().getKey());
+		Assert.assertEquals(controlMap.lastKey(), testMap.getLastEntry().getKey());
+		
+		Iterator<Tree.Entry<Integer, Integer>> i = testMap.<Tree.Entry<Integer, Integer>>entries().iterator();
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), i.next().getValue());
+		}
+		Assert.assertFalse(i.hasNext());
+		
+		while (!controlMap.isEmpty()) {
+			Assert.assertEquals(controlMap.pollFirstEntry().getValue(), testMap.removeFirst().getValue());
+			if (!controlMap.isEmpty()) {
+				Assert.assertEquals(controlMap.pollLastEntry().getValue(), testMap.removeLast().getValue());
+			}
+		}
+		testMap.verify();
+		Assert.assertTrue(testMap.isEmpty());
+		Assert.assertNull(testMap.getFirstEntry());
+		Assert.assertNull(testMap.getLastEntry());
+	}
+
 	private int getNextKey() {
 		return random.nextInt(1000);
 	}
@@ -84,4 +154,47 @@ public class BTreeConsistencyTest {
 		return Operation.values()[ordinal];
 	}
 	
+	/*
+	 * The first batch grows the tree several levels at once, null values remove keys
+	 */
+	
+	@Test
+	public void testBatch() {
+		testBatch(false);
+		testBatch(true);
+	}
+	
+	private void testBatch(boolean lazyDelete) {
+		
+		TreeMap<Integer, Integer> controlMap = new TreeMap<Integer, Integer>();
+		BTree<Integer, Integer> testMap = BTree.newInstance(2, Comparators.INTEGER, lazyDelete);
+		
+		for (int i = 0; i != 2000; ++i) {
+			int length = 1 + random.nextInt(i == 0 ? 5000 : 200);
+			List<SimpleEntry<Integer, Integer>> batch = new ArrayList<SimpleEntry<Integer, Integer>>();
+			for (int j = 0; j != length; ++j) {
+				int key = random.nextInt(12000);
+				Integer value = random.nextInt(10) == 0 ? null : j;
+				batch.add(SimpleEntry.newEntry(key, value));
+			}
+			testMap.putAll(batch);
+			for (SimpleEntry<Integer, Integer> entry : batch) {
+				if (entry.getValue() != null) {
+					controlMap.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					controlMap.remove(entry.getKey());
+				}
+			}
+			testMap.verify();
+			Assert.assertEquals(controlMap.size(), testMap.size());
+		}
+		
+		for (Map.Entry<Integer, Integer> entry : controlMap.entrySet()) {
+			Assert.assertEquals(entry.getValue(), testMap.get(entry.getKey()).getValue());
+		}
+		
+	}
+	
+
 }
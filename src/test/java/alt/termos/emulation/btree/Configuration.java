@@ -14,8 +14,20 @@ public final class Configuration<K> {
 
 	private final int branchingFactor;
 	private final Comparator<? super K> keyComparator;
+	private final boolean lazyDelete;
 	
 	public Configuration(int branchingFactor, Comparator<? super K> keyComparator) {
+		this(branchingFactor, keyComparator, false);
+	}
+	
+	/**
+	 * 
+	 * @param branchingFactor - minimum length of the node
+	 * @param keyComparator - comparator of keys
+	 * @param lazyDelete - remove leaves the tombstone in the node, nodes are rebalanced by BTree.compact()
+	 */
+	
+	public Configuration(int branchingFactor, Comparator<? super K> keyComparator, boolean lazyDelete) {
 		if (branchingFactor < 2) {
 			throw new IllegalArgumentException("illegal branchingFactor " + branchingFactor);
 		}
@@ -24,11 +36,16 @@ public final class Configuration<K> {
 		}
 		this.branchingFactor = branchingFactor;
 		this.keyComparator = keyComparator;
+		this.lazyDelete = lazyDelete;
 	}
 
 	public static <K> Configuration<K> newInstance(int branchingFactor, Comparator<? super K> keyComparator) {
 		return new Configuration<K>(branchingFactor, keyComparator);
 	}
+
+	public static <K> Configuration<K> newInstance(int branchingFactor, Comparator<? super K> keyComparator, boolean lazyDelete) {
+		return new Configuration<K>(branchingFactor, keyComparator, lazyDelete);
+	}
 	
 	public int getBranchingFactor() {
 		return branchingFactor;
@@ -38,4 +55,8 @@ public final class Configuration<K> {
 		return keyComparator;
 	}
 
+	public boolean isLazyDelete() {
+		return lazyDelete;
+	}
+
 }
@@ -1,6 +1,7 @@
 package alt.termos.emulation.btree;
 
 import java.lang.reflect.Array;
+import java.util.List;
 
 import alt.termos.emulation.SystemUtil;
 import alt.termos.emulation.btree.Tree.Entry;
@@ -80,6 +81,31 @@ public final class InnerNode<K, V> extends AbstractNode<K, V> {
 		index = -(index + 1);
 		return this.childs[index].get(conf, key);
 	}
+	
+	@Override
+	public void getAll(Configuration<K> conf, List<? extends K> keys, int[] order, int from, int to, List<Entry<K, V>> result) {
+		int i = from;
+		while (i != to) {
+			int index = search(conf, keys.get(order[i]));
+			if (index >= 0) {
+				result.set(order[i++], this.entries[index]);
+				continue;
+			}
+			index = -(index + 1);
+			int next = i + 1;
+			if (index < length) {
+				K bound = this.entries[index].getKey();
+				while (next != to && conf.getKeyComparator().compare(keys.get(order[next]), bound) < 0) {
+					next++;
+				}
+			}
+			else {
+				next = to;
+			}
+			this.childs[index].getAll(conf, keys, order, i, next, result);
+			i = next;
+		}
+	}
 
 	@Override
 	public Object put(Configuration<K> conf, Entry<K, V> entry) {
@@ -121,6 +147,9 @@ public final class InnerNode<K, V> extends AbstractNode<K, V> {
 		
 		int index = search(conf, key);
 		if (index >= 0) {		
+			if (conf.isLazyDelete()) {
+				return markRemoved(index);
+			}
 			Entry<K, V> removedEntry = this.entries[index];
 			removeByIndex(conf, index);
 			return removedEntry;
@@ -130,12 +159,52 @@ public final class InnerNode<K, V> extends AbstractNode<K, V> {
 		
 		Entry<K, V> removedEntry = this.childs[index].remove(conf, key);
 		
-		if (removedEntry != null) {
+		if (removedEntry != null && !conf.isLazyDelete()) {
 			balance(conf, index);
 		}
 		return removedEntry;
 	}
 	
+	/**
+	 * Entries of the batch under one child go down together, after the split of the child the walk 
+	 * continues in this node, the split of this node returns it to the parent
+	 */
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public Split<K, V> putAll(Configuration<K> conf, PutBatch<K, V> batch, int to) {
+		while (batch.getPosition() != to) {
+			int index = search(conf, batch.getKey(batch.getPosition()));
+			if (index >= 0) {
+				Entry<K, V> entry = batch.next();
+				batch.count(replace(index, entry));
+				continue;
+			}
+			index = -(index + 1);
+			int next = batch.getPosition() + 1;
+			if (index < length) {
+				K bound = this.entries[index].getKey();
+				while (next != to && conf.getKeyComparator().compare(batch.getKey(next), bound) < 0) {
+					next++;
+				}
+			}
+			else {
+				next = to;
+			}
+			Split<K, V> split = this.childs[index].putAll(conf, batch, next);
+			if (split != null) {
+				if (this.length < this.entries.length) {
+					insertChild(index+1, split.getGreater());
+					insert(index, split.getEntry());
+				}
+				else {
+					return (Split<K, V>) split(conf, index, split);
+				}
+			}
+		}
+		return null;
+	}
+	
 	protected boolean canJoin(Node<K, V> lesserChild, Node<K, V> greaterChild) {
 		if (lesserChild instanceof LeafNode) {
 			return lesserChild.getLength() + greaterChild.getLength() <= this.entries.length;
@@ -324,6 +393,25 @@ public final class InnerNode<K, V> extends AbstractNode<K, V> {
 		return nextEntry;
 	}
 	
+	@Override
+	public Entry<K, V> getPrevEntry(Configuration<K> conf, K key) {
+		
+		int index = search(conf, key);
+		if (index >= 0) {
+			return this.childs[index].getLastEntry();
+		}
+		
+		index = -(index + 1);
+		
+		Entry<K, V> prevEntry = this.childs[index].getPrevEntry(conf, key);
+		
+		if (prevEntry == null && index > 0) {
+			prevEntry = this.entries[index-1];
+		}
+		
+		return prevEntry;
+	}
+	
 	@Override
 	public Entry<K, V> getLastEntry() {
 		return this.childs[length].getLastEntry();
@@ -0,0 +1,45 @@
+package alt.termos.emulation.btree;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import alt.termos.emulation.Comparators;
+
+/**
+ * Remove and put of random keys in the loaded tree, eager delete rebalances nodes on every remove,
+ * lazy delete leaves the tombstone that the next put of the key reuses
+ *
+ * @author Albert Shift
+ *
+ */
+
+public class LazyDeletePerformanceTests {
+
+	public static final int N = 1000000;
+	public static final int CHURN = 5000000;
+	public static final int BRANCHING_FACTOR = 32;
+
+	@Test
+	public void performanceChurnTest() {
+
+		for (boolean lazyDelete : new boolean[] { false, true }) {
+			Random random = new Random(5);
+			BTree<Integer, Integer> tree = BTree.newInstance(BRANCHING_FACTOR, Comparators.INTEGER, lazyDelete);
+			for (int i = 0; i != N; ++i) {
+				tree.put(SimpleEntry.newEntry(i, i));
+			}
+			long t0 = System.currentTimeMillis();
+			for (int i = 0; i != CHURN; ++i) {
+				int key = random.nextInt(N);
+				tree.remove(key);
+				tree.put(SimpleEntry.newEntry(key, i));
+			}
+			long t1 = System.currentTimeMillis();
+			int purged = tree.compact();
+			System.out.println("lazyDelete = " + lazyDelete + ", churn time = " + (t1 - t0) + ", compact time = " + (System.currentTimeMillis() - t1)
+					+ ", purged = " + purged + ", pages = " + tree.getTotalPages());
+		}
+	}
+
+}
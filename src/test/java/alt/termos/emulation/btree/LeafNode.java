@@ -1,5 +1,7 @@
 package alt.termos.emulation.btree;
 
+import java.util.List;
+
 import alt.termos.emulation.SystemUtil;
 import alt.termos.emulation.btree.Tree.Entry;
 
@@ -37,6 +39,16 @@ public final class LeafNode<K, V> extends AbstractNode<K, V> {
 		return null;
 	}
 	
+	@Override
+	public void getAll(Configuration<K> conf, List<? extends K> keys, int[] order, int from, int to, List<Entry<K, V>> result) {
+		for (int i = from; i != to; ++i) {
+			int index = search(conf, keys.get(order[i]));
+			if (index >= 0) {
+				result.set(order[i], this.entries[index]);
+			}
+		}
+	}
+	
 	@Override
 	public Object put(Configuration<K> conf, Entry<K, V> entry) {
 		
@@ -59,12 +71,26 @@ public final class LeafNode<K, V> extends AbstractNode<K, V> {
 		
 		return split(conf, index, entry);
 	}
+	
+	@Override
+	public Split<K, V> putAll(Configuration<K> conf, PutBatch<K, V> batch, int to) {
+		while (batch.getPosition() != to) {
+			Split<K, V> split = batch.count(put(conf, batch.next()));
+			if (split != null) {
+				return split;
+			}
+		}
+		return null;
+	}
 
 	@Override
 	public Entry<K, V> remove(Configuration<K> conf, K key) {
 		
 		int index = search(conf, key);
 		if (index >= 0) {
+			if (conf.isLazyDelete()) {
+				return markRemoved(index);
+			}
 			Entry<K, V> removedEntry = this.entries[index];
 			delete(index);
 			return removedEntry;
@@ -92,6 +118,18 @@ public final class LeafNode<K, V> extends AbstractNode<K, V> {
 		
 	}
 	
+	@Override
+	public Entry<K, V> getPrevEntry(Configuration<K> conf, K key) {
+		
+		int index = search(conf, key);
+		if (index < 0) {
+			index = -(index + 1);
+		}
+		
+		return index > 0 ? this.entries[index-1] : null;
+		
+	}
+	
 	@Override
 	public Entry<K, V> getLastEntry() {
 		return this.entries[this.length-1];
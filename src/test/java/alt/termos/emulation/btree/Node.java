@@ -1,5 +1,7 @@
 package alt.termos.emulation.btree;
 
+import java.util.List;
+
 import alt.termos.emulation.btree.Tree.Entry;
 
 /**
@@ -17,8 +19,12 @@ public interface Node<K, V> {
 	
 	Entry<K, V> get(Configuration<K> conf, K key);
 
+	void getAll(Configuration<K> conf, List<? extends K> keys, int[] order, int from, int to, List<Entry<K, V>> result);
+
 	Object put(Configuration<K> conf, Entry<K, V> entry);
 
+	Split<K, V> putAll(Configuration<K> conf, PutBatch<K, V> batch, int to);
+
 	Entry<K, V> remove(Configuration<K> conf, K key);
 
 	void verify(Configuration<K> conf, boolean root);
@@ -27,6 +33,8 @@ public interface Node<K, V> {
 	
 	Entry<K, V> getNextEntry(Configuration<K> conf, K key);
 
+	Entry<K, V> getPrevEntry(Configuration<K> conf, K key);
+
 	Entry<K, V> getLastEntry();
 
 	Entry<K, V> removeFirst(Configuration<K> conf);
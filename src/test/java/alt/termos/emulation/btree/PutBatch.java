@@ -0,0 +1,76 @@
+package alt.termos.emulation.btree;
+
+import java.util.List;
+
+import alt.termos.emulation.btree.Tree.Entry;
+
+/**
+ * Sorted batch of putAll with the position of the next entry, nodes take entries of their range
+ * and return after the split, so the parent places the split and continues the walk
+ *
+ * @author Albert Shift
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+
+public final class PutBatch<K, V> {
+
+	private final List<? extends Entry<K, V>> entries;
+	private int position;
+	private int added;
+	private int revived;
+
+	public PutBatch(List<? extends Entry<K, V>> entries) {
+		this.entries = entries;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public K getKey(int index) {
+		return entries.get(index).getKey();
+	}
+
+	public Entry<K, V> next() {
+		return entries.get(position++);
+	}
+
+	/**
+	 * Counts the result of the put in the node
+	 *
+	 * @return split of the node or null
+	 */
+
+	@SuppressWarnings("unchecked")
+	public Split<K, V> count(Object result) {
+		if (result instanceof Tombstone) {
+			revived++;
+			added++;
+			return null;
+		}
+		if (result == null) {
+			added++;
+			return null;
+		}
+		if (result instanceof Split) {
+			added++;
+			return (Split<K, V>) result;
+		}
+		return null;
+	}
+
+	public int getAdded() {
+		return added;
+	}
+
+	public int getRevived() {
+		return revived;
+	}
+
+}
@@ -0,0 +1,37 @@
+package alt.termos.emulation.btree;
+
+import alt.termos.emulation.btree.Tree.Entry;
+
+/**
+ * Removed entry in the lazy delete mode, keeps the key so the node stays ordered
+ * 
+ * @author Albert Shift
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+
+public final class Tombstone<K, V> implements Entry<K, V> {
+
+	private final K key;
+
+	public Tombstone(K key) {
+		this.key = key;
+	}
+
+	@Override
+	public K getKey() {
+		return key;
+	}
+
+	@Override
+	public V getValue() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "Tombstone [key=" + key + "]";
+	}
+	
+}
@@ -1,5 +1,8 @@
 package alt.termos.emulation.btree;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Base Tree interface for all trees
  * 
@@ -17,6 +20,23 @@ public interface Tree<K, V> {
 
 	<E extends Entry<K, V>> E remove(K key);
 	
+	/**
+	 * Batch is sorted once and the tree is walked for all keys together
+	 * 
+	 * @param keys - keys in any order
+	 * @return entries in the order of keys, null for absent keys
+	 */
+	
+	<E extends Entry<K, V>> List<E> getAll(List<? extends K> keys);
+	
+	/**
+	 * Puts entries as put does, the later entry of the same key wins
+	 * 
+	 * @param entries - entries in any order
+	 */
+	
+	<E extends Entry<K, V>> void putAll(Collection<? extends E> entries);
+	
 	<E extends Entry<K, V>> E getFirstEntry();
 	
 	<E extends Entry<K, V>> E getNextEntry(K key);
@@ -0,0 +1,81 @@
+package alt.termos.util;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SegmentedMemoryMappedFileTest {
+
+	public static final String testFileName = "segmented.mmf";
+	
+	@Test
+	public void testGrow() throws Exception {
+		
+		long segmentSize = Unsafe.UNSAFE.pageSize() * 4;
+		new File(testFileName).delete();
+		
+		SegmentedMemoryMappedFile smf = new SegmentedMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, 1, segmentSize, segmentSize * 3);
+		try {
+			Assert.assertEquals(segmentSize, smf.getSize());
+			Assert.assertEquals(1, smf.getSegmentCount());
+			
+			long address = smf.getAddress();
+			Unsafe.UNSAFE.putLong(address, 777L);
+			
+			Assert.assertTrue(smf.grow(segmentSize + 1));
+			Assert.assertEquals(segmentSize * 2, smf.getSize());
+			Assert.assertEquals(2, smf.getSegmentCount());
+			Assert.assertEquals(address, smf.getAddress());
+			Assert.assertEquals(777L, Unsafe.UNSAFE.getLong(smf.getAddress()));
+			
+			Unsafe.UNSAFE.putLong(smf.getSegmentAddress(1), 888L);
+			
+			Assert.assertFalse(smf.grow(segmentSize * 3 + 1));
+			Assert.assertEquals(2, smf.getSegmentCount());
+		}
+		finally {
+			smf.close();
+		}
+		
+		smf = new SegmentedMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, 1, segmentSize, segmentSize * 3);
+		try {
+			Assert.assertEquals(2, smf.getSegmentCount());
+			Assert.assertEquals(777L, Unsafe.UNSAFE.getLong(smf.getSegmentAddress(0)));
+			Assert.assertEquals(888L, Unsafe.UNSAFE.getLong(smf.getSegmentAddress(1)));
+		}
+		finally {
+			smf.close();
+			new File(testFileName).delete();
+		}
+		
+	}
+	
+	@Test
+	public void testRangedForce() throws Exception {
+		
+		long segmentSize = Unsafe.UNSAFE.pageSize() * 4;
+		new File(testFileName).delete();
+		
+		SegmentedMemoryMappedFile smf = new SegmentedMemoryMappedFile(testFileName, MapFileMode.READ_WRITE, segmentSize * 2, segmentSize, segmentSize * 2);
+		try {
+			
+			/*
+			 * java.nio is opened for tests, so the native msync is available
+			 */
+			
+			Assert.assertTrue(smf.isRangedFlush());
+			
+			Unsafe.UNSAFE.putLong(smf.getSegmentAddress(0) + segmentSize - 8, 777L);
+			Unsafe.UNSAFE.putLong(smf.getSegmentAddress(1), 888L);
+			smf.force(segmentSize - 8, 16);
+			smf.force(0, 0);
+		}
+		finally {
+			smf.close();
+			new File(testFileName).delete();
+		}
+		
+	}
+	
+}